@@ -7,26 +7,49 @@ import java.io.PrintWriter;
 import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-
-import com.alibaba.fastjson2.JSON;
+import java.util.UUID;
+import java.util.stream.IntStream;
 
 import static cn.ac.iscas.secretsharing.AdditiveSecretSharing.*;
 
 import cn.ac.iscas.secretsharing.AdditiveSecretSharing;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
 import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
 import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+import cn.ac.iscas.secretsharing.CorrelatedRandomness;
+import cn.ac.iscas.secretsharing.MultiplicationTriples;
+import cn.ac.iscas.secretsharing.OTPreprocessing;
+import cn.ac.iscas.secretsharing.ProtocolContext;
+import cn.ac.iscas.secretsharing.RandomNumberTuples;
+import cn.ac.iscas.secretsharing.ReplicatedContext;
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing;
+import cn.ac.iscas.server.ReplicatedServer;
+import cn.ac.iscas.server.SKNNServer;
+import cn.ac.iscas.sknn.IndexBuilder;
+import cn.ac.iscas.sknn.ReplicatedSKNN;
 import cn.ac.iscas.sknn.SKNNV2;
 import cn.ac.iscas.sknn.SKNNV2.AG;
+import cn.ac.iscas.sknn.SKNNV2.IVFIndex;
+import cn.ac.iscas.sknn.SKNNV2.KDTree;
+import cn.ac.iscas.sknn.SKNNV2.LSHTables;
+import cn.ac.iscas.sknn.SKNNV2.MortonLayout;
+import cn.ac.iscas.sknn.SKNNV2.PQIndex;
 import cn.ac.iscas.sknn.SKNNV2.Point;
 import cn.ac.iscas.sknn.SKNNV2.VG;
+import cn.ac.iscas.sknn.SKNNV2.VGGroup;
+import cn.ac.iscas.sknn.VoronoiIndex;
+import cn.ac.iscas.utils.ProtocolCostCounter;
 import cn.ac.iscas.utils.RunningTimeCounter;
+import cn.ac.iscas.utils.ServerMetrics;
 import cn.ac.iscas.utils.Util;
 import static cn.ac.iscas.utils.DataProcessor.*;
 
@@ -34,6 +57,9 @@ public class TestSKNNV2 {
 
     /**
      * test type:   0-Linear SKNN   1-Voronoi SKNN for debug  2-Voronoi SKNN for test
+     *              3-Voronoi SKNN on a real Voronoi index of the random dataset (dimension = 2)
+     *              4-k-d tree SKNN (approximate)  5-LSH SKNN (approximate)
+     *              6-IVF SKNN (approximate)  7-PQ SKNN (approximate)
      * 
      * testType = 0 or 1
      * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k
@@ -41,6 +67,35 @@ public class TestSKNNV2 {
      * testType = 2
      * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k agNum agSize vgNum vgSize
      * 
+     * testType = 3
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k gridSize
+     * 
+     * testType = 4
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k leafSize backtrack
+     * 
+     * testType = 5
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k tableNum hashBits probes
+     * 
+     * testType = 6
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k clusterNum nprobe
+     * 
+     * testType = 7
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k subspaceNum codewordNum width
+     * 
+     * testType = 1, 2, 3时，同时上传定位桶的索引（见shareBucketIndex）。
+     * testType = 4, 5, 6, 7时结果是近似的，不逐个验证，最后输出平均召回率。
+     * 
+     * JVM参数 -Dsknn.fss=N（N > 0）时，同时上传N个基于DCF的大小比较密钥和等值比较密钥，C1、C2的大小比较和等值比较都只需一轮
+     * （见AdditiveSecretSharing.secureComparisionFSS、secureEqualFSS）；每个元素各用一个密钥，用完后查询出错。
+     * JVM参数 -Dsknn.precision=N（N > 0）时，线性和基于维诺图的SKNN先将距离截断为N个有效比特再比较
+     * （见SKNNV2.secureLinearSKNN），模数相应加长STATISTICAL_SECURITY位，结果按近似SKNN统计召回率。
+     * JVM参数 -Dsknn.tuples=N（N > 0）时，同时上传一批N个随机数元组（见RandomNumberTuples），
+     * 大小比较和等值比较中的每个元素各用一个，用完后查询出错；否则所有元素共用一个随机数元组。
+     * JVM参数 -Dsknn.triples=N（N > 0）时，同时上传一批N个乘法三元组（见MultiplicationTriples），
+     * 乘法中的每个元素各用一个，用完后查询出错；否则所有元素共用一个乘法三元组。
+     * JVM参数 -Dsknn.ot=N（N > 0）时，不分发乘法三元组和随机数元组，由C1、C2在查询前用OT扩展各自生成N个随机数元组和
+     * 2Nl个乘法三元组（见OTPreprocessing.preprocess），每个只用一次，用完后查询出错。
+     * 
      * @param args
      * @throws IOException
      */
@@ -65,11 +120,28 @@ public class TestSKNNV2 {
         // 计算欧式距离后，还要对各维度进行求和，此时范围是：2 * dataLength + log_2(m)
         // 则需要的判断范围是2 * dataLength + log_2(m) + 2
         int l = dataLength * 2 + (int) Util.log2(m) + 2;
+        int precision = Integer.getInteger("sknn.precision", 0);
+        // 截断距离以及PQ的短位宽比较时，掩码需要多出的比特数（见SKNNV2.distanceBits、AdditiveSecretSharing.secureComparision）
+        if (precision > 0 || testType == 7)
+            l += STATISTICAL_SECURITY;
 
         Random random = randomSeed.equals("null") ? new Random() : new Random(Long.parseLong(randomSeed));
         BigInteger mod = BigInteger.probablePrime(l, random);
-        MultiplicationTriple[] triples = generateMultiplicationTriples(mod);
-        RandomNumberTuple[] tuples = generateRandomNumberTuples(l, mod);
+        int otNumber = Integer.getInteger("sknn.ot", 0);
+        MultiplicationTriple[] triples = otNumber > 0 ? new MultiplicationTriple[2]
+                : generateMultiplicationTriples(mod);
+        RandomNumberTuple[] tuples = otNumber > 0 ? new RandomNumberTuple[2] : generateRandomNumberTuples(l, mod);
+        int keyNumber = Integer.getInteger("sknn.fss", 0);
+        ComparisonKey[][] comparisonKeys = keyNumber > 0 ? generateComparisonKeys(mod, keyNumber)
+                : new ComparisonKey[2][];
+        ComparisonKey[][] equalityKeys = keyNumber > 0 ? generateEqualityKeys(mod, keyNumber)
+                : new ComparisonKey[2][];
+        int tupleNumber = Integer.getInteger("sknn.tuples", 0);
+        RandomNumberTuples[] tupleBatches = tupleNumber > 0 ? generateRandomNumberTuples(l, mod, tupleNumber)
+                : new RandomNumberTuples[2];
+        int tripleNumber = Integer.getInteger("sknn.triples", 0);
+        MultiplicationTriples[] tripleBatches = tripleNumber > 0 ? generateMultiplicationTriples(mod, tripleNumber)
+                : new MultiplicationTriples[2];
         System.out.println("mod = " + mod);
 
         BigInteger[][] dataset = generateDataset(m, dataNumber, dataLength, random);
@@ -79,23 +151,39 @@ public class TestSKNNV2 {
         VG[] vgs = null;
         AG[][] agsSecrets = null;
         VG[][] vgsSecrets = null;
+        KDTree[] kdTreeSecrets = null;
+        int backtrack = 0;
+        LSHTables[] lshTablesSecrets = null;
+        int probes = 0;
+        IVFIndex[] ivfIndexSecrets = null;
+        int nprobe = 0;
+        PQIndex[] pqIndexSecrets = null;
         if (testType == 0) {
-            pointsSecrets = new Point[2][dataNumber];
-            for (int i = 0; i < dataNumber; i++) {
-                pointsSecrets[0][i] = new Point(m);
-                pointsSecrets[1][i] = new Point(m);
-
-                BigInteger[] idSecrets = randomSplit(dataset[i][m], mod);
-                pointsSecrets[0][i].id = idSecrets[0];
-                pointsSecrets[1][i].id = idSecrets[1];
-
-                for (int j = 0; j < m; j++) {
-                    BigInteger[] pSecrets = randomSplit(dataset[i][j], mod);
-
-                    pointsSecrets[0][i].data[j] = pSecrets[0];
-                    pointsSecrets[1][i].data[j] = pSecrets[1];
-                }
-            }
+            pointsSecrets = sharePoints(dataset, m, mod);
+        } else if (testType == 4) {
+            int leafSize = Integer.parseInt(args[index++]);
+            backtrack = Integer.parseInt(args[index++]);
+
+            kdTreeSecrets = shareKDTree(IndexBuilder.buildKDTree(dataset, m, leafSize), mod);
+        } else if (testType == 5) {
+            int tableNum = Integer.parseInt(args[index++]);
+            int hashBits = Integer.parseInt(args[index++]);
+            probes = Integer.parseInt(args[index++]);
+
+            lshTablesSecrets = shareLSHTables(
+                    IndexBuilder.buildLSHTables(dataset, m, dataLength, tableNum, hashBits, random), mod);
+        } else if (testType == 6) {
+            int clusterNum = Integer.parseInt(args[index++]);
+            nprobe = Integer.parseInt(args[index++]);
+
+            ivfIndexSecrets = shareIVFIndex(IndexBuilder.buildIVFIndex(dataset, m, clusterNum, random), mod);
+        } else if (testType == 7) {
+            int subspaceNum = Integer.parseInt(args[index++]);
+            int codewordNum = Integer.parseInt(args[index++]);
+            int width = Integer.parseInt(args[index++]);
+
+            pqIndexSecrets = sharePQIndex(
+                    IndexBuilder.buildPQIndex(dataset, m, subspaceNum, codewordNum, width, random), mod);
         } else if (testType == 1) {
             dataset[0] = new BigInteger[] { BigInteger.valueOf(20), BigInteger.valueOf(60), BigInteger.valueOf(0) };
             dataset[1] = new BigInteger[] { BigInteger.valueOf(40), BigInteger.valueOf(60), BigInteger.valueOf(1) };
@@ -117,10 +205,19 @@ public class TestSKNNV2 {
 
             ags = new AG[agNum];
             vgs = new VG[vgNum];
-            generateVoronoiSKNNVirtualData(dataLength, ags, agSize, vgs, vgSize);
+            generateVoronoiSKNNVirtualData(dataLength, m, ags, agSize, vgs, vgSize);
+            agsSecrets = shareAGs(ags, mod);
+            vgsSecrets = shareVGs(vgs, mod);
+        } else if (testType == 3) {
+            int gridSize = Integer.parseInt(args[index++]);
+
+            VoronoiIndex voronoiIndex = buildVoronoiIndex(dataset, dataLength, gridSize);
+            ags = voronoiIndex.getAGs();
+            vgs = voronoiIndex.getVGs();
             agsSecrets = shareAGs(ags, mod);
             vgsSecrets = shareVGs(vgs, mod);
         }
+        String[][] bucketIndexJsons = (vgs == null) ? null : shareBucketIndex(vgs, mod);
 
         try (Socket socketC1 = new Socket(ipC1, portC1); Socket socketC2 = new Socket(ipC2, portC2);) {
             PrintWriter writerC1 = new PrintWriter(socketC1.getOutputStream());
@@ -134,14 +231,33 @@ public class TestSKNNV2 {
             Util.writeBigInteger(mod, writerC1);
             Util.writeInt(dataNumber, writerC1);
             Util.writeInt(m, writerC1);
+            Util.writeInt(precision, writerC1);
             if (testType == 0) {
                 Util.writePoints(pointsSecrets[0], writerC1);
-            } else if (testType == 1 || testType == 2) {
-                writerC1.println(parseAGsToJson(agsSecrets[0]));
-                writerC1.println(parseVGsToJson(vgsSecrets[0]));
+            } else if (testType == 4) {
+                writerC1.println(SKNNV2.parseKDTreeToJson(kdTreeSecrets[0]));
+                Util.writeInt(backtrack, writerC1);
+            } else if (testType == 5) {
+                writerC1.println(SKNNV2.parseLSHTablesToJson(lshTablesSecrets[0]));
+                Util.writeInt(probes, writerC1);
+            } else if (testType == 6) {
+                writerC1.println(SKNNV2.parseIVFIndexToJson(ivfIndexSecrets[0]));
+                Util.writeInt(nprobe, writerC1);
+            } else if (testType == 7) {
+                writerC1.println(SKNNV2.parsePQIndexToJson(pqIndexSecrets[0]));
+            } else if (testType != 0) {
+                writerC1.println(SKNNV2.parseAGsToJson(agsSecrets[0]));
+                writerC1.println(SKNNV2.parseVGsToJson(vgsSecrets[0]));
+                writerC1.println(bucketIndexJsons[0][0]);
+                writerC1.println(bucketIndexJsons[0][1]);
             }
             writerC1.println(parseMultiplicationTripleToJson(triples[0]));
             writerC1.println(parseRandomNumberTupleToJson(tuples[0]));
+            writerC1.println(parseComparisonKeysToJson(comparisonKeys[0]));
+            writerC1.println(parseComparisonKeysToJson(equalityKeys[0]));
+            writerC1.println(parseRandomNumberTuplesToJson(tupleBatches[0]));
+            writerC1.println(parseMultiplicationTriplesToJson(tripleBatches[0]));
+            Util.writeInt(otNumber, writerC1);
             writerC1.flush();
 
             Util.writeInt(testType, writerC2);
@@ -149,20 +265,40 @@ public class TestSKNNV2 {
             Util.writeBigInteger(mod, writerC2);
             Util.writeInt(dataNumber, writerC2);
             Util.writeInt(m, writerC2);
+            Util.writeInt(precision, writerC2);
             if (testType == 0) {
                 Util.writePoints(pointsSecrets[1], writerC2);
-            } else if (testType == 1 || testType == 2) {
-                writerC2.println(parseAGsToJson(agsSecrets[1]));
-                writerC2.println(parseVGsToJson(vgsSecrets[1]));
+            } else if (testType == 4) {
+                writerC2.println(SKNNV2.parseKDTreeToJson(kdTreeSecrets[1]));
+                Util.writeInt(backtrack, writerC2);
+            } else if (testType == 5) {
+                writerC2.println(SKNNV2.parseLSHTablesToJson(lshTablesSecrets[1]));
+                Util.writeInt(probes, writerC2);
+            } else if (testType == 6) {
+                writerC2.println(SKNNV2.parseIVFIndexToJson(ivfIndexSecrets[1]));
+                Util.writeInt(nprobe, writerC2);
+            } else if (testType == 7) {
+                writerC2.println(SKNNV2.parsePQIndexToJson(pqIndexSecrets[1]));
+            } else if (testType != 0) {
+                writerC2.println(SKNNV2.parseAGsToJson(agsSecrets[1]));
+                writerC2.println(SKNNV2.parseVGsToJson(vgsSecrets[1]));
+                writerC2.println(bucketIndexJsons[1][0]);
+                writerC2.println(bucketIndexJsons[1][1]);
             }
             writerC2.println(parseMultiplicationTripleToJson(triples[1]));
             writerC2.println(parseRandomNumberTupleToJson(tuples[1]));
+            writerC2.println(parseComparisonKeysToJson(comparisonKeys[1]));
+            writerC2.println(parseComparisonKeysToJson(equalityKeys[1]));
+            writerC2.println(parseRandomNumberTuplesToJson(tupleBatches[1]));
+            writerC2.println(parseMultiplicationTriplesToJson(tripleBatches[1]));
+            Util.writeInt(otNumber, writerC2);
             writerC2.flush();
 
             /* 计算过程 */
             Util.writeInt(testNumber, writerC1);
             Util.writeInt(testNumber, writerC2);
 
+            int hits = 0; // 近似SKNN的结果中真正的k近邻点个数之和
             for (int i = 0; i < testNumber; i++) {
                 System.out.print(i + " ");
 
@@ -182,7 +318,14 @@ public class TestSKNNV2 {
                 Point[] r1 = Util.readPoints(k, m, readerC1);
                 Point[] r2 = Util.readPoints(k, m, readerC2);
 
-                if (testType == 0 || testType == 1) {
+                if (isApproximate(testType, precision)) {
+                    Set<BigInteger> r = new HashSet<>();
+                    for (int j = 0; j < k; j++) {
+                        r.add(r1[j].id.add(r2[j].id).mod(mod));
+                    }
+                    r.retainAll(getKNearest(dataset, q, m, 2, k));
+                    hits += r.size();
+                } else if (testType != 2) {
                     Set<BigInteger> r = new HashSet<>();
                     for (int j = 0; j < k; j++) {
                         r.add(r1[j].id.add(r2[j].id).mod(mod));
@@ -206,6 +349,8 @@ public class TestSKNNV2 {
                 }
             }
             System.out.println();
+            if (isApproximate(testType, precision))
+                System.out.println("Recall: " + String.format("%.4f", (double) hits / (testNumber * k)));
             long timeC1 = Util.readLong(readerC1);
             long communicationTimeC1 = Util.readLong(readerC1);
             long computingTimeC1 = Util.readLong(readerC1);
@@ -222,7 +367,10 @@ public class TestSKNNV2 {
     }
 
     /**
-    * args: role portC1
+    * args: role portC1 [metricsPort]
+    * 
+    * 给出metricsPort时，在本机该端口提供Prometheus格式的运行指标。
+    * JVM参数 -Dsknn.allocation=true 时，查询开销中还会输出各阶段分配的内存及GC情况。
     * 
     * @param args
     * @throws IOException
@@ -231,6 +379,8 @@ public class TestSKNNV2 {
         /* 提取测试数据 */
         int index = 1;
         int portC1 = Integer.parseInt(args[index++]);
+        if (args.length > index)
+            ServerMetrics.startHttpServer(Integer.parseInt(args[index++]));
 
         ServerSocket serverSocket = new ServerSocket(portC1);
 
@@ -248,23 +398,73 @@ public class TestSKNNV2 {
         BigInteger mod = Util.readBigInteger(readerUser);
         int dataNumber = Util.readInt(readerUser);
         int m = Util.readInt(readerUser);
+        int precision = Util.readInt(readerUser);
         Point[] points = null;
         AG[] ags = null;
         VG[] vgs = null;
+        VGGroup[] groups = null;
+        MortonLayout layout = null;
+        KDTree kdTree = null;
+        int backtrack = 0;
+        LSHTables lshTables = null;
+        int probes = 0;
+        IVFIndex ivfIndex = null;
+        int nprobe = 0;
+        PQIndex pqIndex = null;
         if (testType == 0) {
             points = Util.readPoints(dataNumber, m, readerUser);
-        } else if (testType == 1 || testType == 2) {
-            ags = parseJsonToAGs(readerUser.readLine());
-            vgs = parseJsonToVGs(readerUser.readLine());
+        } else if (testType == 4) {
+            kdTree = SKNNV2.parseJsonToKDTree(readerUser.readLine());
+            backtrack = Util.readInt(readerUser);
+        } else if (testType == 5) {
+            lshTables = SKNNV2.parseJsonToLSHTables(readerUser.readLine());
+            probes = Util.readInt(readerUser);
+        } else if (testType == 6) {
+            ivfIndex = SKNNV2.parseJsonToIVFIndex(readerUser.readLine());
+            nprobe = Util.readInt(readerUser);
+        } else if (testType == 7) {
+            pqIndex = SKNNV2.parseJsonToPQIndex(readerUser.readLine());
+        } else if (testType != 0) {
+            ags = SKNNV2.parseJsonToAGs(readerUser.readLine());
+            vgs = SKNNV2.parseJsonToVGs(readerUser.readLine());
+            groups = SKNNV2.parseJsonToVGGroups(readerUser.readLine());
+            layout = SKNNV2.parseJsonToMortonLayout(readerUser.readLine());
         }
         MultiplicationTriple triple = parseJsonToMultiplicationTriple(readerUser.readLine());
         RandomNumberTuple tuple = parseJsonToRandomNumberTuple(readerUser.readLine());
+        ComparisonKey[] comparisonKeys = parseJsonToComparisonKeys(readerUser.readLine());
+        ComparisonKey[] equalityKeys = parseJsonToComparisonKeys(readerUser.readLine());
+        RandomNumberTuples tupleBatch = parseJsonToRandomNumberTuples(readerUser.readLine());
+        MultiplicationTriples tripleBatch = parseJsonToMultiplicationTriples(readerUser.readLine());
+        int otNumber = Util.readInt(readerUser);
+        ServerMetrics.setShareTableBytes(
+                SKNNServer.estimateShareTableBytes(points, ags, vgs, kdTree, lshTables, ivfIndex, pqIndex));
 
         AdditiveSecretSharing.PartyID partyID = AdditiveSecretSharing.PartyID.C1;
 
+        CorrelatedRandomness randomness = CorrelatedRandomness.fixed(triple, tuple);
+        if (tupleBatch != null)
+            randomness = CorrelatedRandomness.batched(randomness, tupleBatch,
+                    CorrelatedRandomness.Cursor.of(tupleBatch.size), mod);
+        if (tripleBatch != null)
+            randomness = CorrelatedRandomness.batched(randomness, tripleBatch,
+                    CorrelatedRandomness.Cursor.of(tripleBatch.size), mod);
+        if (comparisonKeys != null)
+            randomness = CorrelatedRandomness.comparisonKeys(randomness, comparisonKeys);
+        if (equalityKeys != null)
+            randomness = CorrelatedRandomness.equalityKeys(randomness, equalityKeys);
+        ProtocolContext ctx = new ProtocolContext(partyID, mod, readerC2, writerC2, randomness);
+        if (otNumber > 0) {
+            // 离线阶段：与对方生成乘法三元组和随机数元组，不再使用数据拥有者分发的
+            long preprocessStart = System.currentTimeMillis();
+            ctx = ctx.fork(readerC2, writerC2, OTPreprocessing.preprocess(ctx, randomness, otNumber, 1)[0]);
+            System.out.println("Preprocessing Time C1: " + (System.currentTimeMillis() - preprocessStart) + " ms");
+        }
+
         int testNumber = Util.readInt(readerUser);
         long timeSum = 0L;
         long communicationTimeSum = 0l;
+        ProtocolCostCounter.CostNode lastQueryCost = null;
         for (int i = 0; i < testNumber; i++) {
 
             BigInteger[] q = Util.readBigIntegers(m, readerUser);
@@ -274,14 +474,26 @@ public class TestSKNNV2 {
 
             Point[] r1 = null;
             long timePre = System.currentTimeMillis();
+            long queryStart = System.nanoTime();
             RunningTimeCounter.startRecord(RunningTimeCounter.COMMUNICATION_TIME);
+            ctx.startQuery("query " + i);
             if (testType == 0) {
-                r1 = SKNNV2.secureLinearSKNN(partyID, points, q, k, triple, tuple, mod, readerC2, writerC2);
-            } else if (testType == 1 || testType == 2) {
-                r1 = SKNNV2.secureVoronoiSKNN(partyID, ags, vgs, q, k, triple, tuple, mod, readerC2, writerC2);
+                r1 = SKNNV2.secureLinearSKNN(ctx, points, q, k, precision);
+            } else if (testType == 4) {
+                r1 = SKNNV2.secureKDTreeSKNN(ctx, kdTree, q, k, backtrack);
+            } else if (testType == 5) {
+                r1 = SKNNV2.secureLSHSKNN(ctx, lshTables, q, k, probes);
+            } else if (testType == 6) {
+                r1 = SKNNV2.secureIVFSKNN(ctx, ivfIndex, q, k, nprobe);
+            } else if (testType == 7) {
+                r1 = SKNNV2.securePQSKNN(ctx, pqIndex, q, k);
+            } else if (testType != 0) {
+                r1 = SKNNV2.secureVoronoiSKNN(ctx, ags, vgs, groups, layout, q, k, precision);
             }
             timeSum += System.currentTimeMillis() - timePre;
+            ServerMetrics.recordQuery(SKNNServer.getMode(testType), System.nanoTime() - queryStart);
             communicationTimeSum += RunningTimeCounter.get(RunningTimeCounter.COMMUNICATION_TIME);
+            lastQueryCost = ctx.finishQuery();
 
             Util.writePoints(r1, writerUser);
         }
@@ -292,13 +504,22 @@ public class TestSKNNV2 {
         Util.writeLong(communicationTimeAvg, writerUser);
         Util.writeLong(computingTimeAvg, writerUser);
 
+        if (lastQueryCost != null) {
+            System.out.println("Cost of the last query:");
+            System.out.print(lastQueryCost.dump());
+        }
+
         socketC2.close();
         socketUser.close();
         serverSocket.close();
+        ServerMetrics.stopHttpServer();
     }
 
     /**
-    * args: role ipC1 portC1 portC2
+    * args: role ipC1 portC1 portC2 [metricsPort]
+    * 
+    * 给出metricsPort时，在本机该端口提供Prometheus格式的运行指标。
+    * JVM参数 -Dsknn.allocation=true 时，查询开销中还会输出各阶段分配的内存及GC情况。
     * 
     * @param args
     * @throws IOException
@@ -309,6 +530,8 @@ public class TestSKNNV2 {
         String ipC1 = args[index++];
         int portC1 = Integer.parseInt(args[index++]);
         int portC2 = Integer.parseInt(args[index++]);
+        if (args.length > index)
+            ServerMetrics.startHttpServer(Integer.parseInt(args[index++]));
 
         ServerSocket serverSocket = new ServerSocket(portC2);
 
@@ -326,22 +549,72 @@ public class TestSKNNV2 {
         BigInteger mod = Util.readBigInteger(readerUser);
         int dataNumber = Util.readInt(readerUser);
         int m = Util.readInt(readerUser);
+        int precision = Util.readInt(readerUser);
         Point[] points = null;
         AG[] ags = null;
         VG[] vgs = null;
+        VGGroup[] groups = null;
+        MortonLayout layout = null;
+        KDTree kdTree = null;
+        int backtrack = 0;
+        LSHTables lshTables = null;
+        int probes = 0;
+        IVFIndex ivfIndex = null;
+        int nprobe = 0;
+        PQIndex pqIndex = null;
         if (testType == 0) {
             points = Util.readPoints(dataNumber, m, readerUser);
-        } else if (testType == 1 || testType == 2) {
-            ags = parseJsonToAGs(readerUser.readLine());
-            vgs = parseJsonToVGs(readerUser.readLine());
+        } else if (testType == 4) {
+            kdTree = SKNNV2.parseJsonToKDTree(readerUser.readLine());
+            backtrack = Util.readInt(readerUser);
+        } else if (testType == 5) {
+            lshTables = SKNNV2.parseJsonToLSHTables(readerUser.readLine());
+            probes = Util.readInt(readerUser);
+        } else if (testType == 6) {
+            ivfIndex = SKNNV2.parseJsonToIVFIndex(readerUser.readLine());
+            nprobe = Util.readInt(readerUser);
+        } else if (testType == 7) {
+            pqIndex = SKNNV2.parseJsonToPQIndex(readerUser.readLine());
+        } else if (testType != 0) {
+            ags = SKNNV2.parseJsonToAGs(readerUser.readLine());
+            vgs = SKNNV2.parseJsonToVGs(readerUser.readLine());
+            groups = SKNNV2.parseJsonToVGGroups(readerUser.readLine());
+            layout = SKNNV2.parseJsonToMortonLayout(readerUser.readLine());
         }
         MultiplicationTriple triple = parseJsonToMultiplicationTriple(readerUser.readLine());
         RandomNumberTuple tuple = parseJsonToRandomNumberTuple(readerUser.readLine());
+        ComparisonKey[] comparisonKeys = parseJsonToComparisonKeys(readerUser.readLine());
+        ComparisonKey[] equalityKeys = parseJsonToComparisonKeys(readerUser.readLine());
+        RandomNumberTuples tupleBatch = parseJsonToRandomNumberTuples(readerUser.readLine());
+        MultiplicationTriples tripleBatch = parseJsonToMultiplicationTriples(readerUser.readLine());
+        int otNumber = Util.readInt(readerUser);
+        ServerMetrics.setShareTableBytes(
+                SKNNServer.estimateShareTableBytes(points, ags, vgs, kdTree, lshTables, ivfIndex, pqIndex));
 
         AdditiveSecretSharing.PartyID partyID = AdditiveSecretSharing.PartyID.C2;
+        CorrelatedRandomness randomness = CorrelatedRandomness.fixed(triple, tuple);
+        if (tupleBatch != null)
+            randomness = CorrelatedRandomness.batched(randomness, tupleBatch,
+                    CorrelatedRandomness.Cursor.of(tupleBatch.size), mod);
+        if (tripleBatch != null)
+            randomness = CorrelatedRandomness.batched(randomness, tripleBatch,
+                    CorrelatedRandomness.Cursor.of(tripleBatch.size), mod);
+        if (comparisonKeys != null)
+            randomness = CorrelatedRandomness.comparisonKeys(randomness, comparisonKeys);
+        if (equalityKeys != null)
+            randomness = CorrelatedRandomness.equalityKeys(randomness, equalityKeys);
+        ProtocolContext ctx = new ProtocolContext(partyID, mod, readerC1, writerC1, randomness);
+        if (otNumber > 0) {
+            // 离线阶段：与对方生成乘法三元组和随机数元组，不再使用数据拥有者分发的
+            long preprocessStart = System.currentTimeMillis();
+            ctx = ctx.fork(readerC1, writerC1, OTPreprocessing.preprocess(ctx, randomness, otNumber, 1)[0]);
+            System.out.println("Preprocessing Time C2: " + (System.currentTimeMillis() - preprocessStart) + " ms");
+        }
+
         int testNumber = Util.readInt(readerUser);
         long timeSum = 0L;
         long communicationTimeSum = 0l;
+        ProtocolCostCounter.CostNode lastQueryCost = null;
         for (int i = 0; i < testNumber; i++) {
 
             BigInteger[] q = Util.readBigIntegers(m, readerUser);
@@ -351,15 +624,27 @@ public class TestSKNNV2 {
 
             Point[] r2 = null;
             long timePre = System.currentTimeMillis();
+            long queryStart = System.nanoTime();
             RunningTimeCounter.startRecord(RunningTimeCounter.COMMUNICATION_TIME);
+            ctx.startQuery("query " + i);
             // testing function
             if (testType == 0) {
-                r2 = SKNNV2.secureLinearSKNN(partyID, points, q, k, triple, tuple, mod, readerC1, writerC1);
-            } else if (testType == 1 || testType == 2) {
-                r2 = SKNNV2.secureVoronoiSKNN(partyID, ags, vgs, q, k, triple, tuple, mod, readerC1, writerC1);
+                r2 = SKNNV2.secureLinearSKNN(ctx, points, q, k, precision);
+            } else if (testType == 4) {
+                r2 = SKNNV2.secureKDTreeSKNN(ctx, kdTree, q, k, backtrack);
+            } else if (testType == 5) {
+                r2 = SKNNV2.secureLSHSKNN(ctx, lshTables, q, k, probes);
+            } else if (testType == 6) {
+                r2 = SKNNV2.secureIVFSKNN(ctx, ivfIndex, q, k, nprobe);
+            } else if (testType == 7) {
+                r2 = SKNNV2.securePQSKNN(ctx, pqIndex, q, k);
+            } else if (testType != 0) {
+                r2 = SKNNV2.secureVoronoiSKNN(ctx, ags, vgs, groups, layout, q, k, precision);
             }
             timeSum += System.currentTimeMillis() - timePre;
+            ServerMetrics.recordQuery(SKNNServer.getMode(testType), System.nanoTime() - queryStart);
             communicationTimeSum += RunningTimeCounter.get(RunningTimeCounter.COMMUNICATION_TIME);
+            lastQueryCost = ctx.finishQuery();
 
             Util.writePoints(r2, writerUser);
         }
@@ -370,9 +655,558 @@ public class TestSKNNV2 {
         Util.writeLong(communicationTimeAvg, writerUser);
         Util.writeLong(computingTimeAvg, writerUser);
 
+        if (lastQueryCost != null) {
+            System.out.println("Cost of the last query:");
+            System.out.print(lastQueryCost.dump());
+        }
+
         socketC1.close();
         socketUser.close();
         serverSocket.close();
+        ServerMetrics.stopHttpServer();
+    }
+
+    /**
+     * 常驻模式的数据用户：先向C1、C2上传一次数据集，再同时开启sessionNumber个会话进行查询。
+     * 
+     * testType = 0 or 1
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber
+     * 
+     * testType = 2
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber agNum agSize vgNum vgSize
+     * 
+     * testType = 3
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber gridSize [updateNumber]
+     * 
+     * testType = 4
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber leafSize backtrack
+     * 
+     * testType = 5
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber tableNum hashBits probes
+     * 
+     * testType = 6
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber clusterNum nprobe
+     * 
+     * testType = 7
+     * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber subspaceNum codewordNum width
+     * 
+     * 其中testNumber为每个会话的查询次数。testType = 3时，若给出updateNumber，上传数据集后先删除、插入各updateNumber个点，
+     * 只上传变化的行（见VoronoiIndex.update()），再开始查询。
+     * JVM参数 -Dsknn.precision、-Dsknn.fss、-Dsknn.tuples、-Dsknn.triples、-Dsknn.ot的含义与user()相同，
+     * 其中-Dsknn.ot时每个会话开始前生成该会话的相关随机数，-Dsknn.fss、-Dsknn.tuples、-Dsknn.triples时
+     * 所有会话从同一批密钥、元组、三元组中租用互不重叠的部分。常驻服务不重复使用相关随机数，
+     * 所以需要-Dsknn.ot，或者同时给出-Dsknn.tuples和-Dsknn.triples，否则上传被拒绝。
+     * 
+     * @param args
+     * @throws IOException
+     */
+    public static void userDaemon(String[] args) throws IOException, InterruptedException {
+        /* 提取测试数据 */
+        int index = 1;
+        String ipC1 = args[index++];
+        int portC1 = Integer.parseInt(args[index++]);
+        String ipC2 = args[index++];
+        int portC2 = Integer.parseInt(args[index++]);
+
+        String randomSeed = args[index++];
+        int testType = Integer.parseInt(args[index++]);
+        int testNumber = Integer.parseInt(args[index++]);
+        int dataNumber = Integer.parseInt(args[index++]);
+        int dataLength = Integer.parseInt(args[index++]);
+        int m = Integer.parseInt(args[index++]); // dimension
+        int k = Integer.parseInt(args[index++]);
+        int sessionNumber = Integer.parseInt(args[index++]);
+
+        int l = dataLength * 2 + (int) Util.log2(m) + 2;
+        int precision = Integer.getInteger("sknn.precision", 0);
+        // 截断距离以及PQ的短位宽比较时，掩码需要多出的比特数（见SKNNV2.distanceBits、AdditiveSecretSharing.secureComparision）
+        if (precision > 0 || testType == 7)
+            l += STATISTICAL_SECURITY;
+
+        Random random = randomSeed.equals("null") ? new Random() : new Random(Long.parseLong(randomSeed));
+        BigInteger mod = BigInteger.probablePrime(l, random);
+        int otNumber = Integer.getInteger("sknn.ot", 0);
+        MultiplicationTriple[] triples = otNumber > 0 ? new MultiplicationTriple[2]
+                : generateMultiplicationTriples(mod);
+        RandomNumberTuple[] tuples = otNumber > 0 ? new RandomNumberTuple[2] : generateRandomNumberTuples(l, mod);
+        int keyNumber = Integer.getInteger("sknn.fss", 0);
+        ComparisonKey[][] comparisonKeys = keyNumber > 0 ? generateComparisonKeys(mod, keyNumber)
+                : new ComparisonKey[2][];
+        ComparisonKey[][] equalityKeys = keyNumber > 0 ? generateEqualityKeys(mod, keyNumber)
+                : new ComparisonKey[2][];
+        int tupleNumber = Integer.getInteger("sknn.tuples", 0);
+        RandomNumberTuples[] tupleBatches = tupleNumber > 0 ? generateRandomNumberTuples(l, mod, tupleNumber)
+                : new RandomNumberTuples[2];
+        int tripleNumber = Integer.getInteger("sknn.triples", 0);
+        MultiplicationTriples[] tripleBatches = tripleNumber > 0 ? generateMultiplicationTriples(mod, tripleNumber)
+                : new MultiplicationTriples[2];
+
+        BigInteger[][] dataset = generateDataset(m, dataNumber, dataLength, random);
+
+        Point[][] pointsSecrets = new Point[2][];
+        AG[][] agsSecrets = new AG[2][];
+        VG[][] vgsSecrets = new VG[2][];
+        String[][] bucketIndexJsons = new String[2][];
+        KDTree[] kdTreeSecrets = new KDTree[2];
+        int backtrack = 0;
+        LSHTables[] lshTablesSecrets = new LSHTables[2];
+        int probes = 0;
+        IVFIndex[] ivfIndexSecrets = new IVFIndex[2];
+        int nprobe = 0;
+        PQIndex[] pqIndexSecrets = new PQIndex[2];
+        VoronoiIndex voronoiIndex = null;
+        int updateNumber = 0;
+        if (testType == 0) {
+            pointsSecrets = sharePoints(dataset, m, mod);
+        } else if (testType == 4) {
+            int leafSize = Integer.parseInt(args[index++]);
+            backtrack = Integer.parseInt(args[index++]);
+
+            kdTreeSecrets = shareKDTree(IndexBuilder.buildKDTree(dataset, m, leafSize), mod);
+        } else if (testType == 5) {
+            int tableNum = Integer.parseInt(args[index++]);
+            int hashBits = Integer.parseInt(args[index++]);
+            probes = Integer.parseInt(args[index++]);
+
+            lshTablesSecrets = shareLSHTables(
+                    IndexBuilder.buildLSHTables(dataset, m, dataLength, tableNum, hashBits, random), mod);
+        } else if (testType == 6) {
+            int clusterNum = Integer.parseInt(args[index++]);
+            nprobe = Integer.parseInt(args[index++]);
+
+            ivfIndexSecrets = shareIVFIndex(IndexBuilder.buildIVFIndex(dataset, m, clusterNum, random), mod);
+        } else if (testType == 7) {
+            int subspaceNum = Integer.parseInt(args[index++]);
+            int codewordNum = Integer.parseInt(args[index++]);
+            int width = Integer.parseInt(args[index++]);
+
+            pqIndexSecrets = sharePQIndex(
+                    IndexBuilder.buildPQIndex(dataset, m, subspaceNum, codewordNum, width, random), mod);
+        } else if (testType == 1) {
+            dataset[0] = new BigInteger[] { BigInteger.valueOf(20), BigInteger.valueOf(60), BigInteger.valueOf(0) };
+            dataset[1] = new BigInteger[] { BigInteger.valueOf(40), BigInteger.valueOf(60), BigInteger.valueOf(1) };
+            dataset[2] = new BigInteger[] { BigInteger.valueOf(80), BigInteger.valueOf(60), BigInteger.valueOf(2) };
+            dataset[3] = new BigInteger[] { BigInteger.valueOf(20), BigInteger.valueOf(20), BigInteger.valueOf(3) };
+            dataset[4] = new BigInteger[] { BigInteger.valueOf(40), BigInteger.valueOf(20), BigInteger.valueOf(4) };
+            dataset[5] = new BigInteger[] { BigInteger.valueOf(80), BigInteger.valueOf(20), BigInteger.valueOf(5) };
+
+            AG[] ags = new AG[6];
+            VG[] vgs = new VG[2];
+            generateVoronoiSKNNTestData(ags, vgs);
+            agsSecrets = shareAGs(ags, mod);
+            vgsSecrets = shareVGs(vgs, mod);
+            bucketIndexJsons = shareBucketIndex(vgs, mod);
+        } else if (testType == 2) {
+            int agNum = Integer.parseInt(args[index++]);
+            int agSize = Integer.parseInt(args[index++]);
+            int vgNum = Integer.parseInt(args[index++]);
+            int vgSize = Integer.parseInt(args[index++]);
+
+            AG[] ags = new AG[agNum];
+            VG[] vgs = new VG[vgNum];
+            generateVoronoiSKNNVirtualData(dataLength, m, ags, agSize, vgs, vgSize);
+            agsSecrets = shareAGs(ags, mod);
+            vgsSecrets = shareVGs(vgs, mod);
+            bucketIndexJsons = shareBucketIndex(vgs, mod);
+        } else if (testType == 3) {
+            int gridSize = Integer.parseInt(args[index++]);
+            if (args.length > index)
+                updateNumber = Integer.parseInt(args[index++]);
+
+            voronoiIndex = buildVoronoiIndex(dataset, dataLength, gridSize);
+            agsSecrets = shareAGs(voronoiIndex.getAGs(), mod);
+            vgsSecrets = shareVGs(voronoiIndex.getVGs(), mod);
+            // 网格的划分不随增量更新变化，所以定位索引只需建立一次
+            bucketIndexJsons = shareBucketIndex(voronoiIndex.getVGs(), mod);
+        }
+
+        /* 上传数据集 */
+        String[] ips = { ipC1, ipC2 };
+        int[] ports = { portC1, portC2 };
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = new Socket(ips[i], ports[i])) {
+                PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                writer.println(SKNNServer.LOAD);
+                Util.writeInt(testType, writer);
+                Util.writeBigInteger(mod, writer);
+                Util.writeInt(dataNumber, writer);
+                Util.writeInt(m, writer);
+                Util.writeInt(precision, writer);
+                if (testType == 0) {
+                    Util.writePoints(pointsSecrets[i], writer);
+                } else if (testType == 4) {
+                    writer.println(SKNNV2.parseKDTreeToJson(kdTreeSecrets[i]));
+                    Util.writeInt(backtrack, writer);
+                } else if (testType == 5) {
+                    writer.println(SKNNV2.parseLSHTablesToJson(lshTablesSecrets[i]));
+                    Util.writeInt(probes, writer);
+                } else if (testType == 6) {
+                    writer.println(SKNNV2.parseIVFIndexToJson(ivfIndexSecrets[i]));
+                    Util.writeInt(nprobe, writer);
+                } else if (testType == 7) {
+                    writer.println(SKNNV2.parsePQIndexToJson(pqIndexSecrets[i]));
+                } else {
+                    writer.println(SKNNV2.parseAGsToJson(agsSecrets[i]));
+                    writer.println(SKNNV2.parseVGsToJson(vgsSecrets[i]));
+                    writer.println(bucketIndexJsons[i][0]);
+                    writer.println(bucketIndexJsons[i][1]);
+                }
+                writer.println(parseMultiplicationTripleToJson(triples[i]));
+                writer.println(parseRandomNumberTupleToJson(tuples[i]));
+                writer.println(parseComparisonKeysToJson(comparisonKeys[i]));
+                writer.println(parseComparisonKeysToJson(equalityKeys[i]));
+                writer.println(parseRandomNumberTuplesToJson(tupleBatches[i]));
+                writer.println(parseMultiplicationTriplesToJson(tripleBatches[i]));
+                Util.writeInt(otNumber, writer);
+                writer.flush();
+
+                String reply = reader.readLine();
+                if (!SKNNServer.OK.equals(reply))
+                    throw new IOException("Dataset is rejected by " + ips[i] + ":" + ports[i] + ": " + reply);
+            }
+        }
+
+        /* 增量更新 */
+        if (updateNumber > 0) {
+            List<BigInteger[]> rows = new ArrayList<>(Arrays.asList(dataset));
+            List<BigInteger> deletes = new ArrayList<>();
+            List<BigInteger[]> inserts = new ArrayList<>();
+            for (int i = 0; i < updateNumber; i++) {
+                deletes.add(rows.remove(random.nextInt(rows.size()))[m]);
+            }
+            for (int i = 0; i < updateNumber; i++) {
+                BigInteger[] row = { new BigInteger(dataLength, random), new BigInteger(dataLength, random),
+                        BigInteger.valueOf(dataNumber + i) };
+                inserts.add(row);
+                rows.add(row);
+            }
+
+            long start = System.currentTimeMillis();
+            VoronoiIndex.Update update = voronoiIndex.update(inserts, deletes);
+            uploadUpdate(ips, ports, update, mod);
+            System.out.println("Update: " + update.agIndexes.length + " AG rows, " + update.vgIndexes.length
+                    + " VG rows, time = " + (System.currentTimeMillis() - start) + " ms");
+
+            dataset = rows.toArray(new BigInteger[0][]);
+        }
+        BigInteger[][] validDataset = dataset;
+
+        /* 多个会话同时查询 */
+        long[] sessionTimes = new long[sessionNumber];
+        int[] sessionHits = new int[sessionNumber]; // testType = 4时，结果中真正的k近邻点个数之和
+        Thread[] sessions = new Thread[sessionNumber];
+        for (int s = 0; s < sessionNumber; s++) {
+            int sessionIndex = s;
+            Random sessionRandom = new Random(random.nextLong());
+
+            sessions[s] = new Thread(() -> {
+                String sessionId = UUID.randomUUID().toString();
+                try (Socket socketC1 = new Socket(ipC1, portC1); Socket socketC2 = new Socket(ipC2, portC2);) {
+                    PrintWriter writerC1 = new PrintWriter(socketC1.getOutputStream());
+                    BufferedReader readerC1 = new BufferedReader(new InputStreamReader(socketC1.getInputStream()));
+
+                    PrintWriter writerC2 = new PrintWriter(socketC2.getOutputStream());
+                    BufferedReader readerC2 = new BufferedReader(new InputStreamReader(socketC2.getInputStream()));
+
+                    writerC1.println(SKNNServer.QUERY + " " + sessionId);
+                    writerC2.println(SKNNServer.QUERY + " " + sessionId);
+
+                    long timePre = System.currentTimeMillis();
+                    for (int i = 0; i < testNumber; i++) {
+                        BigInteger[] q = new BigInteger[m];
+                        BigInteger[][] qSecrets = new BigInteger[2][m];
+                        for (int j = 0; j < m; j++) {
+                            q[j] = new BigInteger(dataLength, sessionRandom);
+
+                            BigInteger[] t = randomSplit(q[j], mod);
+                            qSecrets[0][j] = t[0];
+                            qSecrets[1][j] = t[1];
+                        }
+
+                        Util.writeInt(k, writerC1);
+                        Util.writeBigIntegers(qSecrets[0], writerC1);
+                        Util.writeInt(k, writerC2);
+                        Util.writeBigIntegers(qSecrets[1], writerC2);
+
+                        Point[] r1 = readResult(k, m, readerC1);
+                        Point[] r2 = readResult(k, m, readerC2);
+
+                        if (isApproximate(testType, precision)) {
+                            Set<BigInteger> r = new HashSet<>();
+                            for (int j = 0; j < k; j++) {
+                                r.add(r1[j].id.add(r2[j].id).mod(mod));
+                            }
+                            r.retainAll(getKNearest(validDataset, q, m, 2, k));
+                            sessionHits[sessionIndex] += r.size();
+                        } else if (testType != 2) {
+                            Set<BigInteger> r = new HashSet<>();
+                            for (int j = 0; j < k; j++) {
+                                r.add(r1[j].id.add(r2[j].id).mod(mod));
+                            }
+
+                            // 验证结果
+                            Set<BigInteger> validResult = getKNearest(validDataset, q, m, 2, k);
+                            if (!r.containsAll(validResult)) {
+                                System.out.println("Session " + sessionIndex + ": Result is wrong!");
+                                System.out.println("SKNN: " + r);
+                                System.out.println("KNN" + validResult);
+                                System.out.println("q = " + Arrays.asList(q));
+                            }
+                        }
+                    }
+                    sessionTimes[sessionIndex] = System.currentTimeMillis() - timePre;
+
+                    writerC1.println(SKNNServer.END);
+                    writerC1.flush();
+                    writerC2.println(SKNNServer.END);
+                    writerC2.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            sessions[s].start();
+        }
+
+        for (int s = 0; s < sessionNumber; s++) {
+            sessions[s].join();
+            System.out.println("Session " + s + " average time: " + sessionTimes[s] / testNumber + " ms");
+            if (isApproximate(testType, precision))
+                System.out.println("Session " + s + " recall: "
+                        + String.format("%.4f", (double) sessionHits[s] / (testNumber * k)));
+        }
+    }
+
+    /**
+     * 常驻模式的C1
+     * 
+     * args: role portC1 [metricsPort]
+     */
+    public static void c1Daemon(String[] args) throws IOException {
+        int index = 1;
+        int portC1 = Integer.parseInt(args[index++]);
+        if (args.length > index)
+            ServerMetrics.startHttpServer(Integer.parseInt(args[index++]));
+
+        SKNNServer.c1(portC1).serve();
+    }
+
+    /**
+     * 常驻模式的C2
+     * 
+     * args: role ipC1 portC1 portC2 [metricsPort]
+     */
+    public static void c2Daemon(String[] args) throws IOException {
+        int index = 1;
+        String ipC1 = args[index++];
+        int portC1 = Integer.parseInt(args[index++]);
+        int portC2 = Integer.parseInt(args[index++]);
+        if (args.length > index)
+            ServerMetrics.startHttpServer(Integer.parseInt(args[index++]));
+
+        SKNNServer.c2(ipC1, portC1, portC2).serve();
+    }
+
+    /**
+     * 三方复制秘密分享上的SKNN（见ReplicatedSecretSharing），由S1、S2、S3计算，不需要乘法三元组和随机数元组
+     * 
+     * args: role ipS1 portS1 ipS2 portS2 ipS3 portS3 randomSeed testNumber dataNumber dataLength dimension k [gridSize]
+     * 
+     * 给出gridSize时对数据集构造真实的维诺图索引（同user()的testType = 3），使用基于Voronoi图的SKNN，否则使用线性SKNN。
+     * JVM参数 -Dsknn.tuples=N（N > 0）时，S1、S2、S3在查询前先生成N个随机数元组，否则在查询中按需生成。
+     */
+    public static void userReplicated(String[] args) throws IOException {
+        /* 提取测试数据 */
+        int index = 1;
+        String[] ips = new String[ReplicatedContext.PARTIES];
+        int[] ports = new int[ReplicatedContext.PARTIES];
+        for (int i = 0; i < ReplicatedContext.PARTIES; i++) {
+            ips[i] = args[index++];
+            ports[i] = Integer.parseInt(args[index++]);
+        }
+
+        String randomSeed = args[index++];
+        int testNumber = Integer.parseInt(args[index++]);
+        int dataNumber = Integer.parseInt(args[index++]);
+        int dataLength = Integer.parseInt(args[index++]);
+        int m = Integer.parseInt(args[index++]); // dimension
+        int k = Integer.parseInt(args[index++]);
+        int testType = (args.length > index) ? 3 : 0;
+        int gridSize = (args.length > index) ? Integer.parseInt(args[index++]) : 0;
+
+        // 模数的长度同user()，生成随机比特要求 p = 3 mod 4（见ReplicatedSecretSharing.randomBits）
+        int l = dataLength * 2 + (int) Util.log2(m) + 2;
+        Random random = randomSeed.equals("null") ? new Random() : new Random(Long.parseLong(randomSeed));
+        BigInteger mod;
+        do {
+            mod = BigInteger.probablePrime(l, random);
+        } while (!mod.testBit(1));
+        int tupleNumber = Integer.getInteger("sknn.tuples", 0);
+        System.out.println("mod = " + mod);
+
+        BigInteger[][] dataset = generateDataset(m, dataNumber, dataLength, random);
+        ReplicatedSKNN.Point[][] pointsSecrets = null;
+        ReplicatedSKNN.AG[][] agsSecrets = null;
+        ReplicatedSKNN.VG[][] vgsSecrets = null;
+        if (testType == 0) {
+            pointsSecrets = shareReplicatedPoints(dataset, m, mod, random);
+        } else {
+            VoronoiIndex voronoiIndex = buildVoronoiIndex(dataset, dataLength, gridSize);
+            agsSecrets = shareReplicatedAGs(voronoiIndex.getAGs(), mod, random);
+            vgsSecrets = shareReplicatedVGs(voronoiIndex.getVGs(), mod, random);
+        }
+
+        Socket[] sockets = new Socket[ReplicatedContext.PARTIES];
+        try {
+            PrintWriter[] writers = new PrintWriter[ReplicatedContext.PARTIES];
+            BufferedReader[] readers = new BufferedReader[ReplicatedContext.PARTIES];
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                sockets[p] = new Socket(ips[p], ports[p]);
+                writers[p] = new PrintWriter(sockets[p].getOutputStream());
+                readers[p] = new BufferedReader(new InputStreamReader(sockets[p].getInputStream()));
+            }
+
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                Util.writeInt(k, writers[p]);
+                Util.writeBigInteger(mod, writers[p]);
+                Util.writeInt(m, writers[p]);
+                Util.writeInt(testType, writers[p]);
+                if (testType == 0) {
+                    Util.writeInt(dataNumber, writers[p]);
+                    ReplicatedServer.writeReplicatedPoints(pointsSecrets[p], writers[p]);
+                } else {
+                    ReplicatedServer.writeReplicatedAGs(agsSecrets[p], writers[p]);
+                    ReplicatedServer.writeReplicatedVGs(vgsSecrets[p], writers[p]);
+                }
+                Util.writeInt(tupleNumber, writers[p]);
+                Util.writeInt(testNumber, writers[p]);
+            }
+
+            /* 计算过程 */
+            for (int i = 0; i < testNumber; i++) {
+                System.out.print(i + " ");
+
+                BigInteger[] q = new BigInteger[m];
+                ReplicatedSecretSharing.Share[][] qSecrets = new ReplicatedSecretSharing.Share[ReplicatedContext.PARTIES][m];
+                for (int j = 0; j < m; j++) {
+                    q[j] = new BigInteger(dataLength, random);
+
+                    ReplicatedSecretSharing.Share[] t = ReplicatedSecretSharing.randomSplit(q[j], mod, random);
+                    for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                        qSecrets[p][j] = t[p];
+                    }
+                }
+
+                for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                    ReplicatedServer.writeReplicatedShares(qSecrets[p], writers[p]);
+                }
+
+                ReplicatedSKNN.Point[][] rs = new ReplicatedSKNN.Point[ReplicatedContext.PARTIES][];
+                for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                    rs[p] = ReplicatedServer.readReplicatedPoints(k, m, readers[p]);
+                }
+
+                // S1、S2的部分即可恢复结果
+                Set<BigInteger> r = new HashSet<>();
+                for (int j = 0; j < k; j++) {
+                    r.add(ReplicatedSecretSharing.recover(rs[0][j].id, rs[1][j].id, mod));
+                }
+
+                // 验证结果
+                Set<BigInteger> validResult = getKNearest(dataset, q, m, 2, k);
+
+                for (BigInteger id : validResult) {
+                    if (!r.contains(id)) {
+                        System.out.println("Result is wrong!");
+                        System.out.println("SKNN: " + r);
+                        System.out.println("KNN" + validResult);
+                        System.out.println("q = " + Arrays.asList(q));
+
+                        break;
+                    }
+                }
+            }
+            System.out.println();
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                long time = Util.readLong(readers[p]);
+                long communicationTime = Util.readLong(readers[p]);
+                long computingTime = Util.readLong(readers[p]);
+                System.out.println("Time S" + (p + 1) + ": " + time + " ms");
+                System.out.println("Communication Time S" + (p + 1) + ": " + communicationTime + " ms");
+                System.out.println("Computing Time S" + (p + 1) + ": " + computingTime + " ms");
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+        }
+    }
+
+    /**
+     * 三方复制秘密分享的S1，依次接受数据拥有者、S2和S3的连接
+     * 
+     * args: role portS1
+     */
+    public static void s1(String[] args) throws IOException {
+        int index = 1;
+        int portS1 = Integer.parseInt(args[index++]);
+
+        ReplicatedServer.s1(portS1);
+    }
+
+    /**
+     * 三方复制秘密分享的S2，接受数据拥有者的连接后连接S1，再接受S3的连接
+     * 
+     * args: role ipS1 portS1 portS2
+     */
+    public static void s2(String[] args) throws IOException {
+        int index = 1;
+        String ipS1 = args[index++];
+        int portS1 = Integer.parseInt(args[index++]);
+        int portS2 = Integer.parseInt(args[index++]);
+
+        ReplicatedServer.s2(ipS1, portS1, portS2);
+    }
+
+    /**
+     * 三方复制秘密分享的S3，接受数据拥有者的连接后连接S1、S2
+     * 
+     * args: role ipS1 portS1 ipS2 portS2 portS3
+     */
+    public static void s3(String[] args) throws IOException {
+        int index = 1;
+        String ipS1 = args[index++];
+        int portS1 = Integer.parseInt(args[index++]);
+        String ipS2 = args[index++];
+        int portS2 = Integer.parseInt(args[index++]);
+        int portS3 = Integer.parseInt(args[index++]);
+
+        ReplicatedServer.s3(ipS1, portS1, ipS2, portS2, portS3);
+    }
+
+    public static Point[][] sharePoints(BigInteger[][] dataset, int m, BigInteger mod) {
+        int dataNumber = dataset.length;
+
+        Point[][] pointsSecrets = new Point[2][dataNumber];
+        for (int i = 0; i < dataNumber; i++) {
+            pointsSecrets[0][i] = new Point(m);
+            pointsSecrets[1][i] = new Point(m);
+
+            BigInteger[] idSecrets = randomSplit(dataset[i][m], mod);
+            pointsSecrets[0][i].id = idSecrets[0];
+            pointsSecrets[1][i].id = idSecrets[1];
+
+            for (int j = 0; j < m; j++) {
+                BigInteger[] pSecrets = randomSplit(dataset[i][j], mod);
+
+                pointsSecrets[0][i].data[j] = pSecrets[0];
+                pointsSecrets[1][i].data[j] = pSecrets[1];
+            }
+        }
+
+        return pointsSecrets;
     }
 
     public static Point[] sharePoint(Point point, BigInteger mod) {
@@ -390,6 +1224,201 @@ public class TestSKNNV2 {
                 new Point(idSecrets[1], pointDataSecrets[1]) };
     }
 
+    /*
+     * 三方复制秘密分享中各方持有的数据集
+     */
+    private static ReplicatedSKNN.Point[][] shareReplicatedPoints(BigInteger[][] dataset, int m, BigInteger mod,
+            Random random) {
+        int dataNumber = dataset.length;
+
+        ReplicatedSKNN.Point[][] pointsSecrets = new ReplicatedSKNN.Point[ReplicatedContext.PARTIES][dataNumber];
+        for (int i = 0; i < dataNumber; i++) {
+            ReplicatedSecretSharing.Share[] idSecrets = ReplicatedSecretSharing.randomSplit(dataset[i][m], mod, random);
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                pointsSecrets[p][i] = new ReplicatedSKNN.Point(m);
+                pointsSecrets[p][i].id = idSecrets[p];
+            }
+
+            for (int j = 0; j < m; j++) {
+                ReplicatedSecretSharing.Share[] pSecrets = ReplicatedSecretSharing.randomSplit(dataset[i][j], mod,
+                        random);
+                for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                    pointsSecrets[p][i].data[j] = pSecrets[p];
+                }
+            }
+        }
+
+        return pointsSecrets;
+    }
+
+    /*
+     * 三方复制秘密分享中各方持有的AG表
+     */
+    private static ReplicatedSKNN.AG[][] shareReplicatedAGs(AG[] ags, BigInteger mod, Random random) {
+        int num = ags.length;
+
+        ReplicatedSKNN.AG[][] agsSecrets = new ReplicatedSKNN.AG[ReplicatedContext.PARTIES][num];
+        for (int i = 0; i < num; i++) {
+            ReplicatedSecretSharing.Share[] labelSecrets = ReplicatedSecretSharing.randomSplit(ags[i].label, mod,
+                    random);
+            ReplicatedSecretSharing.Share[][] subLabelSecrets = shareReplicatedValues(ags[i].subLabels, mod, random);
+            ReplicatedSKNN.Point[][] pointSecrets = shareReplicatedPoints(ags[i].points, mod, random);
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                agsSecrets[p][i] = new ReplicatedSKNN.AG(labelSecrets[p], pointSecrets[p], subLabelSecrets[p]);
+            }
+        }
+
+        return agsSecrets;
+    }
+
+    /*
+     * 三方复制秘密分享中各方持有的VG表
+     */
+    private static ReplicatedSKNN.VG[][] shareReplicatedVGs(VG[] vgs, BigInteger mod, Random random) {
+        int num = vgs.length;
+
+        ReplicatedSKNN.VG[][] vgsSecrets = new ReplicatedSKNN.VG[ReplicatedContext.PARTIES][num];
+        for (int i = 0; i < num; i++) {
+            ReplicatedSecretSharing.Share[][] lowSecrets = shareReplicatedValues(vgs[i].low.data, mod, random);
+            ReplicatedSecretSharing.Share[][] highSecrets = shareReplicatedValues(vgs[i].high.data, mod, random);
+            ReplicatedSecretSharing.Share[][] subLabelSecrets = shareReplicatedValues(vgs[i].subLabels, mod, random);
+            ReplicatedSKNN.Point[][] pointSecrets = shareReplicatedPoints(vgs[i].points, mod, random);
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                vgsSecrets[p][i] = new ReplicatedSKNN.VG(lowSecrets[p], highSecrets[p], pointSecrets[p],
+                        subLabelSecrets[p]);
+            }
+        }
+
+        return vgsSecrets;
+    }
+
+    private static ReplicatedSKNN.Point[][] shareReplicatedPoints(Point[] points, BigInteger mod, Random random) {
+        int m = points[0].data.length;
+
+        BigInteger[][] dataset = new BigInteger[points.length][m + 1];
+        for (int i = 0; i < points.length; i++) {
+            System.arraycopy(points[i].data, 0, dataset[i], 0, m);
+            dataset[i][m] = points[i].id;
+        }
+
+        return shareReplicatedPoints(dataset, m, mod, random);
+    }
+
+    /*
+     * 返回各方持有的x的分享
+     */
+    private static ReplicatedSecretSharing.Share[][] shareReplicatedValues(BigInteger[] x, BigInteger mod,
+            Random random) {
+        ReplicatedSecretSharing.Share[][] secrets =
+                new ReplicatedSecretSharing.Share[ReplicatedContext.PARTIES][x.length];
+        for (int i = 0; i < x.length; i++) {
+            ReplicatedSecretSharing.Share[] t = ReplicatedSecretSharing.randomSplit(x[i], mod, random);
+            for (int p = 0; p < ReplicatedContext.PARTIES; p++) {
+                secrets[p][i] = t[p];
+            }
+        }
+
+        return secrets;
+    }
+
+    /*
+     * 向C1、C2上传一次增量更新中变化的AG行和VG桶的秘密分享，格式见SKNNServer.Dataset.update()
+     */
+    public static void uploadUpdate(String[] ips, int[] ports, VoronoiIndex.Update update, BigInteger mod)
+            throws IOException {
+        AG[][] agsSecrets = (update.ags.length == 0) ? new AG[2][0] : shareAGs(update.ags, mod);
+        VG[][] vgsSecrets = (update.vgs.length == 0) ? new VG[2][0] : shareVGs(update.vgs, mod);
+
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = new Socket(ips[i], ports[i])) {
+                PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                writer.println(SKNNServer.UPDATE);
+                Util.writeInt(update.agNum, writer);
+                Util.writeInt(update.agIndexes.length, writer);
+                Util.writeIntegers(update.agIndexes, writer);
+                writer.println(SKNNV2.parseAGsToJson(agsSecrets[i]));
+                Util.writeInt(update.vgIndexes.length, writer);
+                Util.writeIntegers(update.vgIndexes, writer);
+                writer.println(SKNNV2.parseVGsToJson(vgsSecrets[i]));
+                writer.flush();
+
+                String reply = reader.readLine();
+                if (!SKNNServer.OK.equals(reply))
+                    throw new IOException("Update is rejected by " + ips[i] + ":" + ports[i] + ": " + reply);
+            }
+        }
+    }
+
+    /*
+     * 读取常驻服务返回的k个点，服务端以ERROR代替结果时抛出IOException（见SKNNServer）
+     */
+    private static Point[] readResult(int k, int m, BufferedReader reader) throws IOException {
+        reader.mark(1 << 16); // 只回退第一行
+        String line = reader.readLine();
+        if (line == null || line.startsWith(SKNNServer.ERROR))
+            throw new IOException("Query is rejected: " + line);
+        reader.reset();
+
+        return Util.readPoints(k, m, reader);
+    }
+
+    /*
+     * 对随机数据集构造真实的维诺图索引，数据空间为[0, 2^dataLength)，与随机查询点的范围一致
+     */
+    public static VoronoiIndex buildVoronoiIndex(BigInteger[][] dataset, int dataLength, int gridSize) {
+        long start = System.currentTimeMillis();
+
+        BigInteger maxHigh = BigInteger.TWO.pow(dataLength);
+        VoronoiIndex voronoiIndex = VoronoiIndex.build(dataset, new BigInteger[] { BigInteger.ZERO, BigInteger.ZERO },
+                new BigInteger[] { maxHigh, maxHigh }, gridSize);
+
+        System.out.println("Voronoi index: agNum = " + voronoiIndex.getAGs().length + ", agSize = "
+                + voronoiIndex.getAGs()[0].points.length + ", vgNum = " + voronoiIndex.getVGs().length + ", vgSize = "
+                + voronoiIndex.getVGs()[0].points.length + ", time = " + (System.currentTimeMillis() - start) + " ms");
+
+        return voronoiIndex;
+    }
+
+    /*
+     * 为VG表建立定位桶的索引并拆分为秘密分享，返回两方各自的两行JSON：桶的分组（见IndexBuilder.groupVGs）、
+     * 桶的Morton键排列（见IndexBuilder.mortonLayout）。两种索引都可用时只保留比较次数较少的一种，不用的一行为null。
+     */
+    public static String[][] shareBucketIndex(VG[] vgs, BigInteger mod) {
+        int m = vgs[0].low.data.length;
+        VGGroup[] groups = IndexBuilder.groupVGs(vgs);
+        MortonLayout layout = IndexBuilder.mortonLayout(vgs);
+        if (groups != null && layout != null) {
+            long groupComparisons = 2L * m * (groups.length + groups[0].members.length);
+            long mortonComparisons = vgs.length - 1;
+            for (int depth : layout.depths) {
+                mortonComparisons += (1L << depth) - 1;
+            }
+
+            if (mortonComparisons <= groupComparisons) {
+                groups = null;
+            } else {
+                layout = null;
+            }
+        }
+
+        if (groups != null)
+            System.out.println("VG groups: groupNum = " + groups.length + ", groupSize = " + groups[0].members.length);
+        if (layout != null)
+            System.out.println("Morton layout: depths = " + Arrays.toString(layout.depths));
+
+        VGGroup[][] groupsSecrets = shareVGGroups(groups, mod);
+        MortonLayout[] layoutSecrets = shareMortonLayout(layout, mod);
+        String[][] jsons = new String[2][];
+        for (int i = 0; i < 2; i++) {
+            jsons[i] = new String[] { SKNNV2.parseVGGroupsToJson(groupsSecrets[i]),
+                    SKNNV2.parseMortonLayoutToJson(layoutSecrets[i]) };
+        }
+
+        return jsons;
+    }
+
     public static void generateVoronoiSKNNTestData(AG[] ags, VG[] vgs) {
         Point[] points = new Point[6];
         points[0] = new Point(BigInteger.valueOf(0),
@@ -428,7 +1457,11 @@ public class TestSKNNV2 {
                 new BigInteger[] { BigInteger.valueOf(3), BigInteger.valueOf(4), BigInteger.valueOf(5) });
     }
 
-    public static void generateVoronoiSKNNVirtualData(int dataLength, AG[] ags, int agSize,
+    /*
+     * 生成m维的虚拟数据，桶由整个数据空间[0, 2^dataLength)^m逐次对半切分得到，切分的维度依次轮换，
+     * 所有桶恰好铺满整个空间。
+     */
+    public static void generateVoronoiSKNNVirtualData(int dataLength, int m, AG[] ags, int agSize,
             VG[] vgs, int vgSize) {
 
         int agNum = ags.length;
@@ -438,8 +1471,8 @@ public class TestSKNNV2 {
 
         List<Point> dataset = new ArrayList<>();
         for (int i = 0; i < agNum * agSize; i++) {
-            BigInteger[] pData = new BigInteger[2];
-            for (int j = 0; j < 2; j++) {
+            BigInteger[] pData = new BigInteger[m];
+            for (int j = 0; j < m; j++) {
                 pData[j] = new BigInteger(dataLength, random);
             }
 
@@ -468,14 +1501,38 @@ public class TestSKNNV2 {
         }
 
         BigInteger maxHigh = BigInteger.TWO.pow(dataLength);
-        BigInteger interval = maxHigh.divide(BigInteger.valueOf(vgNum));
-        for (int i = 0; i < vgNum; i++) {
-            Point low = new Point(null, new BigInteger[] { interval.multiply(BigInteger.valueOf(i)), BigInteger.ZERO });
-            Point high = new Point(null, new BigInteger[] { interval.multiply(BigInteger.valueOf(i + 1)), maxHigh });
+        BigInteger[] low0 = new BigInteger[m];
+        BigInteger[] high0 = new BigInteger[m];
+        for (int j = 0; j < m; j++) {
+            low0[j] = BigInteger.ZERO;
+            high0[j] = maxHigh;
+        }
 
-            if (i == vgNum - 1) {
-                high = new Point(null, new BigInteger[] { maxHigh, maxHigh });
-            }
+        // 每次取出最早生成的桶，沿其下一个维度对半切分，直到桶的数量为vgNum
+        Deque<Point[]> boxes = new ArrayDeque<>();
+        Deque<Integer> splitDims = new ArrayDeque<>();
+        boxes.add(new Point[] { new Point(null, low0), new Point(null, high0) });
+        splitDims.add(0);
+        while (boxes.size() < vgNum) {
+            Point[] box = boxes.poll();
+            int dim = splitDims.poll();
+            BigInteger mid = box[0].data[dim].add(box[1].data[dim]).shiftRight(1);
+
+            BigInteger[] lowerHigh = box[1].data.clone();
+            lowerHigh[dim] = mid;
+            BigInteger[] upperLow = box[0].data.clone();
+            upperLow[dim] = mid;
+
+            boxes.add(new Point[] { box[0], new Point(null, lowerHigh) });
+            boxes.add(new Point[] { new Point(null, upperLow), box[1] });
+            splitDims.add((dim + 1) % m);
+            splitDims.add((dim + 1) % m);
+        }
+
+        for (int i = 0; i < vgNum; i++) {
+            Point[] box = boxes.poll();
+            Point low = box[0];
+            Point high = box[1];
 
             Collections.shuffle(dataset);
             Point[] points = new Point[vgSize];
@@ -499,7 +1556,8 @@ public class TestSKNNV2 {
         int m = ags[0].points[0].data.length;
 
         AG[][] agsSecrets = new AG[2][num];
-        for (int i = 0; i < num; i++) {
+        // 各行互相独立，并行拆分
+        IntStream.range(0, num).parallel().forEach(i -> {
             agsSecrets[0][i] = new AG(size, m);
             agsSecrets[1][i] = new AG(size, m);
 
@@ -516,26 +1574,19 @@ public class TestSKNNV2 {
                 agsSecrets[0][i].points[j] = pointSecrets[0];
                 agsSecrets[1][i].points[j] = pointSecrets[1];
             }
-        }
+        });
 
         return agsSecrets;
     }
 
-    public static String parseAGsToJson(AG[] ags) {
-        return JSON.toJSONString(ags);
-    }
-
-    public static AG[] parseJsonToAGs(String json) {
-        return JSON.parseArray(json, AG.class).toArray(new AG[] {});
-    }
-
     public static VG[][] shareVGs(VG[] vgs, BigInteger mod) {
         int num = vgs.length;
         int size = vgs[0].points.length;
         int m = vgs[0].points[0].data.length;
 
         VG[][] vgsSecrets = new VG[2][num];
-        for (int i = 0; i < num; i++) {
+        // 各行互相独立，并行拆分
+        IntStream.range(0, num).parallel().forEach(i -> {
             vgsSecrets[0][i] = new VG(size, m);
             vgsSecrets[1][i] = new VG(size, m);
 
@@ -556,32 +1607,229 @@ public class TestSKNNV2 {
                 vgsSecrets[0][i].points[j] = pointSecrets[0];
                 vgsSecrets[1][i].points[j] = pointSecrets[1];
             }
-        }
+        });
 
         return vgsSecrets;
     }
 
-    public static String parseVGsToJson(VG[] vgs) {
-        return JSON.toJSONString(vgs);
+    /*
+     * 组的边界拆分为秘密分享，组内成员的下标是公开的；groups为null时返回两个null
+     */
+    public static VGGroup[][] shareVGGroups(VGGroup[] groups, BigInteger mod) {
+        if (groups == null)
+            return new VGGroup[2][];
+
+        VGGroup[][] groupsSecrets = new VGGroup[2][groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            Point[] lowSecrets = sharePoint(groups[g].low, mod);
+            Point[] highSecrets = sharePoint(groups[g].high, mod);
+
+            groupsSecrets[0][g] = new VGGroup(lowSecrets[0], highSecrets[0], groups[g].members.clone());
+            groupsSecrets[1][g] = new VGGroup(lowSecrets[1], highSecrets[1], groups[g].members.clone());
+        }
+
+        return groupsSecrets;
     }
 
-    public static VG[] parseJsonToVGs(String json) {
-        return JSON.parseArray(json, VG.class).toArray(new VG[] {});
+    /*
+     * 各桶的起始键拆分为秘密分享，其余字段是公开的；layout为null时返回两个null
+     */
+    public static MortonLayout[] shareMortonLayout(MortonLayout layout, BigInteger mod) {
+        MortonLayout[] layoutSecrets = new MortonLayout[2];
+        if (layout == null)
+            return layoutSecrets;
+
+        int vgNum = layout.keys.length;
+        BigInteger[][] keysSecrets = new BigInteger[2][vgNum];
+        for (int t = 0; t < vgNum; t++) {
+            BigInteger[] secrets = randomSplit(layout.keys[t], mod);
+            keysSecrets[0][t] = secrets[0];
+            keysSecrets[1][t] = secrets[1];
+        }
+        for (int i = 0; i < 2; i++) {
+            layoutSecrets[i] = new MortonLayout(layout.low, layout.cellWidths, layout.depths, layout.order,
+                    keysSecrets[i]);
+        }
+
+        return layoutSecrets;
     }
 
-    public static void main(String[] args) throws IOException {
+    public static KDTree[] shareKDTree(KDTree kdTree, BigInteger mod) {
+        int leafNum = kdTree.leaves.length;
+        int capacity = kdTree.leaves[0].length;
+
+        KDTree[] kdTreeSecrets = new KDTree[2];
+        for (int i = 0; i < 2; i++) {
+            kdTreeSecrets[i] = new KDTree(kdTree.depth, new BigInteger[kdTree.splits.length],
+                    new Point[leafNum][capacity], new BigInteger[leafNum][capacity]);
+        }
+
+        for (int i = 0; i < kdTree.splits.length; i++) {
+            BigInteger[] splitSecrets = randomSplit(kdTree.splits[i], mod);
+            kdTreeSecrets[0].splits[i] = splitSecrets[0];
+            kdTreeSecrets[1].splits[i] = splitSecrets[1];
+        }
+
+        // 各叶节点互相独立，并行拆分
+        IntStream.range(0, leafNum).parallel().forEach(i -> {
+            for (int j = 0; j < capacity; j++) {
+                Point[] pointSecrets = sharePoint(kdTree.leaves[i][j], mod);
+                kdTreeSecrets[0].leaves[i][j] = pointSecrets[0];
+                kdTreeSecrets[1].leaves[i][j] = pointSecrets[1];
+
+                BigInteger[] paddingSecrets = randomSplit(kdTree.paddings[i][j], mod);
+                kdTreeSecrets[0].paddings[i][j] = paddingSecrets[0];
+                kdTreeSecrets[1].paddings[i][j] = paddingSecrets[1];
+            }
+        });
+
+        return kdTreeSecrets;
+    }
+
+    /*
+     * 超平面和中心是公开的，只拆分各桶中的点
+     */
+    public static LSHTables[] shareLSHTables(LSHTables tables, BigInteger mod) {
+        int tableNum = tables.buckets.length;
+        int bucketNum = tables.buckets[0].length;
+        int capacity = tables.buckets[0][0].length;
+
+        LSHTables[] tablesSecrets = new LSHTables[2];
+        for (int i = 0; i < 2; i++) {
+            tablesSecrets[i] = new LSHTables(tables.planes, tables.center, new Point[tableNum][bucketNum][capacity],
+                    new BigInteger[tableNum][bucketNum][capacity]);
+        }
+
+        // 各桶互相独立，并行拆分
+        IntStream.range(0, tableNum * bucketNum).parallel().forEach(index -> {
+            int t = index / bucketNum, v = index % bucketNum;
+            for (int i = 0; i < capacity; i++) {
+                Point[] pointSecrets = sharePoint(tables.buckets[t][v][i], mod);
+                tablesSecrets[0].buckets[t][v][i] = pointSecrets[0];
+                tablesSecrets[1].buckets[t][v][i] = pointSecrets[1];
+
+                BigInteger[] paddingSecrets = randomSplit(tables.paddings[t][v][i], mod);
+                tablesSecrets[0].paddings[t][v][i] = paddingSecrets[0];
+                tablesSecrets[1].paddings[t][v][i] = paddingSecrets[1];
+            }
+        });
+
+        return tablesSecrets;
+    }
+
+    public static IVFIndex[] shareIVFIndex(IVFIndex index, BigInteger mod) {
+        int clusterNum = index.clusters.length;
+        int capacity = index.clusters[0].length;
+
+        IVFIndex[] indexSecrets = new IVFIndex[2];
+        for (int i = 0; i < 2; i++) {
+            indexSecrets[i] = new IVFIndex(new Point[clusterNum], new Point[clusterNum][capacity],
+                    new BigInteger[clusterNum][capacity]);
+        }
+
+        // 各簇互相独立，并行拆分
+        IntStream.range(0, clusterNum).parallel().forEach(c -> {
+            Point[] centroidSecrets = sharePoint(index.centroids[c], mod);
+            indexSecrets[0].centroids[c] = centroidSecrets[0];
+            indexSecrets[1].centroids[c] = centroidSecrets[1];
+
+            for (int i = 0; i < capacity; i++) {
+                Point[] pointSecrets = sharePoint(index.clusters[c][i], mod);
+                indexSecrets[0].clusters[c][i] = pointSecrets[0];
+                indexSecrets[1].clusters[c][i] = pointSecrets[1];
+
+                BigInteger[] paddingSecrets = randomSplit(index.paddings[c][i], mod);
+                indexSecrets[0].paddings[c][i] = paddingSecrets[0];
+                indexSecrets[1].paddings[c][i] = paddingSecrets[1];
+            }
+        });
+
+        return indexSecrets;
+    }
+
+    public static PQIndex[] sharePQIndex(PQIndex index, BigInteger mod) {
+        int subspaceNum = index.codebooks.length;
+        int codewordNum = index.codebooks[0].length;
+        int num = index.points.length;
+
+        PQIndex[] indexSecrets = new PQIndex[2];
+        for (int i = 0; i < 2; i++) {
+            indexSecrets[i] = new PQIndex(index.width, new Point[subspaceNum][codewordNum],
+                    new BigInteger[subspaceNum][codewordNum][codewordNum], new Point[num],
+                    new BigInteger[num][subspaceNum][codewordNum]);
+        }
+
+        for (int s = 0; s < subspaceNum; s++) {
+            for (int i = 0; i < codewordNum; i++) {
+                Point[] codewordSecrets = sharePoint(index.codebooks[s][i], mod);
+                indexSecrets[0].codebooks[s][i] = codewordSecrets[0];
+                indexSecrets[1].codebooks[s][i] = codewordSecrets[1];
+
+                for (int j = 0; j < codewordNum; j++) {
+                    BigInteger[] tableSecrets = randomSplit(index.tables[s][i][j], mod);
+                    indexSecrets[0].tables[s][i][j] = tableSecrets[0];
+                    indexSecrets[1].tables[s][i][j] = tableSecrets[1];
+                }
+            }
+        }
+
+        // 各点互相独立，并行拆分
+        IntStream.range(0, num).parallel().forEach(x -> {
+            Point[] pointSecrets = sharePoint(index.points[x], mod);
+            indexSecrets[0].points[x] = pointSecrets[0];
+            indexSecrets[1].points[x] = pointSecrets[1];
+
+            for (int s = 0; s < subspaceNum; s++) {
+                for (int i = 0; i < codewordNum; i++) {
+                    BigInteger[] codeSecrets = randomSplit(index.codes[x][s][i], mod);
+                    indexSecrets[0].codes[x][s][i] = codeSecrets[0];
+                    indexSecrets[1].codes[x][s][i] = codeSecrets[1];
+                }
+            }
+        });
+
+        return indexSecrets;
+    }
+
+    /*
+     * 近似SKNN（k-d树、LSH、IVF、PQ）以及截断了距离的线性、维诺图SKNN的结果不逐个验证，只统计召回率。
+     * testType = 2的数据集不是真正的维诺图，两种情况都不验证。
+     */
+    private static boolean isApproximate(int testType, int precision) {
+        return (testType >= 4 && testType <= 7) || (precision > 0 && testType != 2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
 
         // args不是null，其长度为0。
         System.out.println("args: " + Arrays.asList(args));
 
         /*
         * test type:   0-Linear SKNN   1-Voronoi SKNN for debug  2-Voronoi SKNN for test
+        *              3-Voronoi SKNN on a real Voronoi index of the random dataset (dimension = 2)
+        *              4-k-d tree SKNN (approximate)  5-LSH SKNN (approximate)
+        *              6-IVF SKNN (approximate)  7-PQ SKNN (approximate)
         * 
         * testType = 0 or 1
         * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k
         * 
         * testType = 2
         * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k agNum agSize vgNum vgSize
+        * 
+        * testType = 3
+        * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k gridSize
+        * 
+        * testType = 4
+        * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k leafSize backtrack
+        * 
+        * testType = 5
+        * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k tableNum hashBits probes
+        * 
+        * testType = 6
+        * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k clusterNum nprobe
+        * 
+        * testType = 7
+        * args: role ipC1 portC1 ipC2 portC2 randomSeed testType testNumber dataNumber dataLength dimension k subspaceNum codewordNum width
         */
 
         String c1 = "c1 8001";
@@ -590,6 +1838,24 @@ public class TestSKNNV2 {
                 + "null 0 10 1000 20 5 3"; // randomSeed testType testNumber dataNumber dataLength dimension k
                 // + "null 1 100 6 7 2 3"; // randomSeed testType testNumber dataNumber dataLength dimension k
                 // + "null 2 100 6 7 2 3 6 3 2 3"; // randomSeed testType testNumber dataNumber dataLength dimension k agNum agSize vgNum vgSize
+                // + "null 3 100 1000 20 2 3 16"; // randomSeed testType testNumber dataNumber dataLength dimension k gridSize
+                // + "null 4 100 1000 20 5 3 8 2"; // randomSeed testType testNumber dataNumber dataLength dimension k leafSize backtrack
+                // + "null 5 100 1000 20 128 3 4 4 1"; // randomSeed testType testNumber dataNumber dataLength dimension k tableNum hashBits probes
+                // + "null 6 100 1000 20 128 3 32 2"; // randomSeed testType testNumber dataNumber dataLength dimension k clusterNum nprobe
+                // + "null 7 100 1000 20 128 3 32 16 12"; // randomSeed testType testNumber dataNumber dataLength dimension k subspaceNum codewordNum width
+
+        // 常驻模式：先启动c1d、c2d，userd上传数据集后开启多个会话
+        // String c1 = "c1d 8001";
+        // String c2 = "c2d 127.0.0.1 8001 8002";
+        // String user = "userd 127.0.0.1 8001 127.0.0.1 8002 "
+        //         + "null 0 10 1000 20 5 3 4"; // randomSeed testType testNumber dataNumber dataLength dimension k sessionNumber
+
+        // 三方复制秘密分享：先启动s1、s2、s3
+        // String s1 = "s1 8001";
+        // String s2 = "s2 127.0.0.1 8001 8002";
+        // String s3 = "s3 127.0.0.1 8001 127.0.0.1 8002 8003";
+        // String user = "user3 127.0.0.1 8001 127.0.0.1 8002 127.0.0.1 8003 "
+        //         + "null 10 1000 20 5 3"; // randomSeed testNumber dataNumber dataLength dimension k
 
         args = c1.split(" ");
         args = c2.split(" ");
@@ -601,5 +1867,19 @@ public class TestSKNNV2 {
             c1(args);
         else if (args[0].equals("c2"))
             c2(args);
+        else if (args[0].equals("userd"))
+            userDaemon(args);
+        else if (args[0].equals("c1d"))
+            c1Daemon(args);
+        else if (args[0].equals("c2d"))
+            c2Daemon(args);
+        else if (args[0].equals("user3"))
+            userReplicated(args);
+        else if (args[0].equals("s1"))
+            s1(args);
+        else if (args[0].equals("s2"))
+            s2(args);
+        else if (args[0].equals("s3"))
+            s3(args);
     }
 }
@@ -2,10 +2,16 @@ package cn.ac.iscas.secretsharing;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 import com.alibaba.fastjson.JSON;
 
+import cn.ac.iscas.utils.ProtocolCostCounter;
+import cn.ac.iscas.utils.ServerMetrics;
 import cn.ac.iscas.utils.Util;
 
 /**
@@ -15,6 +21,10 @@ import cn.ac.iscas.utils.Util;
  */
 public class AdditiveSecretSharing {
 
+    /**
+     * 截断时掩码比被截断的值多出的比特数，即统计安全参数（见secureTruncation）
+     */
+    public static final int STATISTICAL_SECURITY = 40;
 
     public enum PartyID {
         C1, C2
@@ -62,6 +72,21 @@ public class AdditiveSecretSharing {
         return JSON.parseObject(json, MultiplicationTriple.class);
     }
 
+    /**
+     * 一次生成size个乘法三元组，每个三元组只用于一个元素（见MultiplicationTriples）
+     */
+    public static MultiplicationTriples[] generateMultiplicationTriples(BigInteger mod, int size) {
+        return MultiplicationTriples.generate(mod, size);
+    }
+
+    public static String parseMultiplicationTriplesToJson(MultiplicationTriples triples) {
+        return JSON.toJSONString(triples);
+    }
+
+    public static MultiplicationTriples parseJsonToMultiplicationTriples(String json) {
+        return JSON.parseObject(json, MultiplicationTriples.class);
+    }
+
     /**
      * 要求：x < mod/2
      * 计算中会限制：  mod / 2 < x1 < mod， 则 x1 + x2 = x % mod 的同时保证 x1 + x2 > mod
@@ -103,30 +128,36 @@ public class AdditiveSecretSharing {
         return (partyID == PartyID.C1) ? a : BigInteger.ZERO;
     }
 
-    public static BigInteger recover(PartyID partyID, BigInteger xi, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger shareConstant(ProtocolContext ctx, BigInteger a) {
+        return shareConstant(ctx.partyID, a);
+    }
 
-        Util.writeBigInteger(xi, writer); // 将自己的秘密发送给对方
-        BigInteger xTemp = Util.readBigInteger(reader); // 接收对方的秘密
+    public static BigInteger recover(ProtocolContext ctx, BigInteger xi) throws IOException {
 
-        return add(xi, xTemp, mod); // 加性秘密恢复
+        return ProtocolCostCounter.call("recover", () -> {
+            // 将自己的秘密发送给对方，并接收对方的秘密
+            BigInteger xTemp = ctx.exchangeDirectly(new BigInteger[] { xi })[0];
+
+            return add(xi, xTemp, ctx.mod); // 加性秘密恢复
+        });
     }
 
-    public static BigInteger[] recover(PartyID partyID, BigInteger[] xiArray, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger[] recover(ProtocolContext ctx, BigInteger[] xiArray) throws IOException {
 
-        int len = xiArray.length;
+        return ProtocolCostCounter.call("recover", () -> {
+            int len = xiArray.length;
 
-        // Util.writeBigIntegers(xiArray, writer); // 将自己的秘密发送给对方
-        // BigInteger[] tiArray = Util.readBigIntegers(len, reader); // 接收对方的秘密
-        BigInteger[] tiArray = Util.exchangeBigIntegers(xiArray, reader, writer);
+            // Util.writeBigIntegers(xiArray, writer); // 将自己的秘密发送给对方
+            // BigInteger[] tiArray = Util.readBigIntegers(len, reader); // 接收对方的秘密
+            BigInteger[] tiArray = ctx.exchange(xiArray);
 
-        BigInteger[] result = new BigInteger[len];
-        for (int i = 0; i < len; i++) {
-            result[i] = add(xiArray[i], tiArray[i], mod);
-        }
+            BigInteger[] result = new BigInteger[len];
+            for (int i = 0; i < len; i++) {
+                result[i] = add(xiArray[i], tiArray[i], ctx.mod);
+            }
 
-        return result; // 加性秘密恢复
+            return result; // 加性秘密恢复
+        });
     }
 
     /**
@@ -171,58 +202,70 @@ public class AdditiveSecretSharing {
      * C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
      * C_2计算： [z]_2 = e * f + f * [a]_2 + e * [b]_2 + [c]_2
      */
-    public static BigInteger multiply(PartyID partyID, BigInteger xi, BigInteger yi, MultiplicationTriple triple,
-            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
-        BigInteger ei = subtract(xi, triple.ai, mod);
-        BigInteger fi = subtract(yi, triple.bi, mod);
-
-        // C_1与C_2交换秘密并恢复e和f
-        Util.writeBigIntegers(new BigInteger[] { ei, fi }, writer);
-        BigInteger[] t = Util.readBigIntegers(2, reader);
-        BigInteger e = add(ei, t[0], mod);
-        BigInteger f = add(fi, t[1], mod);
-
-        BigInteger x;
-        if (partyID == PartyID.C1) // C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
-            // x = f * triple.ai + e * triple.bi + triple.ci;
-            x = f.multiply(triple.ai).add(e.multiply(triple.bi)).add(triple.ci);
-        else
-            // x = e * f + f * triple.ai + e * triple.bi + triple.ci;
-            x = e.multiply(f).add(f.multiply(triple.ai)).add(e.multiply(triple.bi)).add(triple.ci);
+    public static BigInteger multiply(ProtocolContext ctx, BigInteger xi, BigInteger yi) throws IOException {
+        return ProtocolCostCounter.call("multiply", () -> {
+            MultiplicationTriple triple = ctx.nextMultiplicationTriple();
+            BigInteger mod = ctx.mod;
 
-        return x.mod(mod);
-    }
-
-    public static BigInteger[] multiplyS(PartyID partyID, BigInteger[] xis, BigInteger[] yis,
-            MultiplicationTriple triple, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
-        int num = xis.length;
-        BigInteger[] result = new BigInteger[num];
+            BigInteger ei = subtract(xi, triple.ai, mod);
+            BigInteger fi = subtract(yi, triple.bi, mod);
 
-        BigInteger[] efis = new BigInteger[num * 2];
-        for (int i = 0; i < num; i++) {
-            efis[i] = subtract(xis[i], triple.ai, mod);
-            efis[i + num] = subtract(yis[i], triple.bi, mod);
-        }
-
-        BigInteger[] ts = Util.exchangeBigIntegers(efis, reader, writer);
-
-        for (int i = 0; i < num; i++) {
             // C_1与C_2交换秘密并恢复e和f
-            BigInteger e = add(efis[i], ts[i], mod);
-            BigInteger f = add(efis[i + num], ts[i + num], mod);
+            BigInteger[] t = ctx.exchangeDirectly(new BigInteger[] { ei, fi });
+            ServerMetrics.recordTriplesConsumed(1);
+            BigInteger e = add(ei, t[0], mod);
+            BigInteger f = add(fi, t[1], mod);
 
             BigInteger x;
-            if (partyID == PartyID.C1) // C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
+            if (ctx.isC1()) // C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
                 // x = f * triple.ai + e * triple.bi + triple.ci;
                 x = f.multiply(triple.ai).add(e.multiply(triple.bi)).add(triple.ci);
             else
                 // x = e * f + f * triple.ai + e * triple.bi + triple.ci;
                 x = e.multiply(f).add(f.multiply(triple.ai)).add(e.multiply(triple.bi)).add(triple.ci);
 
-            result[i] = x.mod(mod);
-        }
+            return x.mod(mod);
+        });
+    }
+
+    public static BigInteger[] multiplyS(ProtocolContext ctx, BigInteger[] xis, BigInteger[] yis)
+            throws IOException {
+        return ProtocolCostCounter.call("multiplyS", () -> {
+            BigInteger mod = ctx.mod;
+
+            int num = xis.length;
+            BigInteger[] result = new BigInteger[num];
+
+            // 每个元素各用一个三元组，否则恢复出的e、f会暴露各元素之间的差
+            MultiplicationTriple[] triples = ctx.nextMultiplicationTriples(num);
+            BigInteger[] efis = new BigInteger[num * 2];
+            for (int i = 0; i < num; i++) {
+                efis[i] = subtract(xis[i], triples[i].ai, mod);
+                efis[i + num] = subtract(yis[i], triples[i].bi, mod);
+            }
+
+            BigInteger[] ts = ctx.exchange(efis);
+            ServerMetrics.recordTriplesConsumed(num);
+
+            for (int i = 0; i < num; i++) {
+                // C_1与C_2交换秘密并恢复e和f
+                BigInteger e = add(efis[i], ts[i], mod);
+                BigInteger f = add(efis[i + num], ts[i + num], mod);
 
-        return result;
+                MultiplicationTriple triple = triples[i];
+                BigInteger x;
+                if (ctx.isC1()) // C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
+                    // x = f * triple.ai + e * triple.bi + triple.ci;
+                    x = f.multiply(triple.ai).add(e.multiply(triple.bi)).add(triple.ci);
+                else
+                    // x = e * f + f * triple.ai + e * triple.bi + triple.ci;
+                    x = e.multiply(f).add(f.multiply(triple.ai)).add(e.multiply(triple.bi)).add(triple.ci);
+
+                result[i] = x.mod(mod);
+            }
+
+            return result;
+        });
     }
 
     /*
@@ -230,78 +273,81 @@ public class AdditiveSecretSharing {
      * 
      * 减少通讯复杂度为：log_2(n)，其中n为数值个数。
      */
-    public static BigInteger secureProduct(PartyID partyID, BigInteger[] xiArray, MultiplicationTriple triple,
-            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger secureProduct(ProtocolContext ctx, BigInteger[] xiArray) throws IOException {
 
-        if (xiArray == null || xiArray.length == 0)
-            return null;
+        return ProtocolCostCounter.call("secureProduct", () -> {
+            BigInteger[] curiArray = xiArray;
+            if (curiArray == null || curiArray.length == 0)
+                return null;
 
-        while (xiArray.length > 1) {
-            int subLen = xiArray.length / 2;
-            BigInteger[] preiArray = Arrays.copyOfRange(xiArray, 0, subLen);
-            BigInteger[] postiArray = Arrays.copyOfRange(xiArray, subLen, subLen * 2);
+            while (curiArray.length > 1) {
+                int subLen = curiArray.length / 2;
+                BigInteger[] preiArray = Arrays.copyOfRange(curiArray, 0, subLen);
+                BigInteger[] postiArray = Arrays.copyOfRange(curiArray, subLen, subLen * 2);
 
-            BigInteger[] tiArray = multiplyS(partyID, preiArray, postiArray, triple, mod, reader, writer);
+                BigInteger[] tiArray = multiplyS(ctx, preiArray, postiArray);
 
-            if (xiArray.length % 2 != 0) { // 若长度为奇数，则末尾元素未参与此轮乘法
-                BigInteger taili = xiArray[xiArray.length - 1];
+                if (curiArray.length % 2 != 0) { // 若长度为奇数，则末尾元素未参与此轮乘法
+                    BigInteger taili = curiArray[curiArray.length - 1];
 
-                xiArray = new BigInteger[subLen + 1];
-                xiArray[subLen] = taili;
-            } else {
-                xiArray = new BigInteger[subLen];
-            }
+                    curiArray = new BigInteger[subLen + 1];
+                    curiArray[subLen] = taili;
+                } else {
+                    curiArray = new BigInteger[subLen];
+                }
 
-            System.arraycopy(tiArray, 0, xiArray, 0, subLen);
-        }
+                System.arraycopy(tiArray, 0, curiArray, 0, subLen);
+            }
 
-        return xiArray[0];
+            return curiArray[0];
+        });
     }
 
-    public static BigInteger[] secureProduct(PartyID partyID, BigInteger[][] xiArrays, MultiplicationTriple triple,
-            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger[] secureProduct(ProtocolContext ctx, BigInteger[][] xiArrays) throws IOException {
 
-        int arrNum = xiArrays.length; // 数组个数
-        int arrLen = xiArrays[0].length; // 各数组长度
+        return ProtocolCostCounter.call("secureProduct", () -> {
+            int arrNum = xiArrays.length; // 数组个数
+            int arrLen = xiArrays[0].length; // 各数组长度
 
-        while (xiArrays[0].length > 1) {
-            int subLen = arrLen / 2;
+            while (xiArrays[0].length > 1) {
+                int subLen = arrLen / 2;
 
-            BigInteger[] preisArray = new BigInteger[arrNum * subLen];
-            BigInteger[] postisArray = new BigInteger[arrNum * subLen];
-            for (int i = 0; i < arrNum; i++) {
-                System.arraycopy(xiArrays[i], 0, preisArray, i * subLen, subLen);
-                System.arraycopy(xiArrays[i], subLen, postisArray, i * subLen, subLen);
-            }
+                BigInteger[] preisArray = new BigInteger[arrNum * subLen];
+                BigInteger[] postisArray = new BigInteger[arrNum * subLen];
+                for (int i = 0; i < arrNum; i++) {
+                    System.arraycopy(xiArrays[i], 0, preisArray, i * subLen, subLen);
+                    System.arraycopy(xiArrays[i], subLen, postisArray, i * subLen, subLen);
+                }
 
-            BigInteger[] tisArray = multiplyS(partyID, preisArray, postisArray, triple, mod, reader, writer);
+                BigInteger[] tisArray = multiplyS(ctx, preisArray, postisArray);
 
-            if (arrLen % 2 != 0) { // 若长度为奇数，则末尾元素未参与此轮乘法
-                for (int i = 0; i < arrNum; i++) {
-                    BigInteger tailii = xiArrays[i][arrLen - 1];
+                if (arrLen % 2 != 0) { // 若长度为奇数，则末尾元素未参与此轮乘法
+                    for (int i = 0; i < arrNum; i++) {
+                        BigInteger tailii = xiArrays[i][arrLen - 1];
 
-                    xiArrays[i] = new BigInteger[subLen + 1];
-                    xiArrays[i][subLen] = tailii;
+                        xiArrays[i] = new BigInteger[subLen + 1];
+                        xiArrays[i][subLen] = tailii;
+                    }
+                } else {
+                    for (int i = 0; i < arrNum; i++) {
+                        xiArrays[i] = new BigInteger[subLen];
+                    }
                 }
-            } else {
+
                 for (int i = 0; i < arrNum; i++) {
-                    xiArrays[i] = new BigInteger[subLen];
+                    System.arraycopy(tisArray, i * subLen, xiArrays[i], 0, subLen);
                 }
+
+                arrLen = xiArrays[0].length;
             }
 
+            BigInteger[] resultis = new BigInteger[arrNum];
             for (int i = 0; i < arrNum; i++) {
-                System.arraycopy(tisArray, i * subLen, xiArrays[i], 0, subLen);
+                resultis[i] = xiArrays[i][0];
             }
 
-            arrLen = xiArrays[0].length;
-        }
-
-        BigInteger[] resultis = new BigInteger[arrNum];
-        for (int i = 0; i < arrNum; i++) {
-            resultis[i] = xiArrays[i][0];
-        }
-
-        return resultis;
+            return resultis;
+        });
     }
 
     public static class RandomNumberTuple {
@@ -337,6 +383,13 @@ public class AdditiveSecretSharing {
         return tuples;
     }
 
+    /**
+     * 一次生成size个随机数元组，每个元组只用于一个元素（见RandomNumberTuples）
+     */
+    public static RandomNumberTuples[] generateRandomNumberTuples(int l, BigInteger mod, int size) {
+        return RandomNumberTuples.generate(l, mod, size);
+    }
+
     public static String parseRandomNumberTupleToJson(RandomNumberTuple rTuple) {
         return JSON.toJSONString(rTuple);
     }
@@ -345,6 +398,98 @@ public class AdditiveSecretSharing {
         return JSON.parseObject(json, RandomNumberTuple.class);
     }
 
+    public static String parseRandomNumberTuplesToJson(RandomNumberTuples tuples) {
+        return JSON.toJSONString(tuples);
+    }
+
+    public static RandomNumberTuples parseJsonToRandomNumberTuples(String json) {
+        return JSON.parseObject(json, RandomNumberTuples.class);
+    }
+
+    /**
+     * 基于DCF的比较所需的密钥，此处是某方的部分
+     * <p>
+     * 对公开的 x' = x + r mod p，
+     * bool(0 <= x < T) = bool(x' < (r + T) mod p) - bool(x' < r) + bool(r + T >= p)，
+     * 两个比较分别由密钥high、low给出，最后一项由数据拥有者分享。
+     * T = (p+1)/2时用于大小比较（见secureComparisionFSS），T = 1时用于等值比较（见secureEqualFSS）。
+     */
+    public static class ComparisonKey {
+        public BigInteger r;
+        public BigInteger wrap; // bool(r + T >= p)的分享
+        public DCF.Key low, high; // bool(x' < r)、bool(x' < (r + T) mod p)
+
+        public ComparisonKey() {
+        }
+
+        public ComparisonKey(BigInteger r, BigInteger wrap, DCF.Key low, DCF.Key high) {
+            this.r = r;
+            this.wrap = wrap;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    /**
+     * 生成size个比较密钥，每个只用于一个元素（见secureComparisionFSS）
+     *
+     * @return 下标0、1分别为C1、C2的密钥
+     */
+    public static ComparisonKey[][] generateComparisonKeys(BigInteger mod, int size) {
+        return generateComparisonKeys(mod, mod.add(BigInteger.ONE).shiftRight(1), size);
+    }
+
+    /**
+     * 生成size个等值比较密钥，每个只用于一个元素（见secureEqualFSS）
+     *
+     * @return 下标0、1分别为C1、C2的密钥
+     */
+    public static ComparisonKey[][] generateEqualityKeys(BigInteger mod, int size) {
+        return generateComparisonKeys(mod, BigInteger.ONE, size);
+    }
+
+    private static ComparisonKey[][] generateComparisonKeys(BigInteger mod, BigInteger t, int size) {
+        Random random = new SecureRandom();
+
+        ComparisonKey[][] keys = new ComparisonKey[2][size];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            ComparisonKey[] pair = generateComparisonKey(mod, t, random);
+            keys[0][i] = pair[0];
+            keys[1][i] = pair[1];
+        });
+
+        return keys;
+    }
+
+    private static ComparisonKey[] generateComparisonKey(BigInteger mod, BigInteger t, Random random) {
+        int l = mod.bitLength();
+
+        BigInteger r = Util.getRandomBigInteger(mod, random);
+        BigInteger rt = r.add(t);
+        BigInteger wrap = (rt.compareTo(mod) >= 0) ? BigInteger.ONE : BigInteger.ZERO;
+
+        BigInteger[] rSecrets = randomSplit(r, mod);
+        BigInteger[] wrapSecrets = randomSplit(wrap, mod);
+        DCF.Key[] lows = DCF.generate(r, l, BigInteger.ONE, mod, random);
+        DCF.Key[] highs = DCF.generate(rt.mod(mod), l, BigInteger.ONE, mod, random);
+
+        ComparisonKey[] keys = new ComparisonKey[2];
+        for (int i = 0; i < 2; i++) {
+            keys[i] = new ComparisonKey(rSecrets[i], wrapSecrets[i], lows[i], highs[i]);
+        }
+
+        return keys;
+    }
+
+    public static String parseComparisonKeysToJson(ComparisonKey[] keys) {
+        return JSON.toJSONString(keys);
+    }
+
+    public static ComparisonKey[] parseJsonToComparisonKeys(String json) {
+        List<ComparisonKey> keys = JSON.parseArray(json, ComparisonKey.class);
+        return keys == null ? null : keys.toArray(new ComparisonKey[] {});
+    }
+
     /**
     * SC - v2
     * 计算 bool(a < b)
@@ -354,53 +499,58 @@ public class AdditiveSecretSharing {
     *
     * 为保证数值总小于模数的一半，则模数的长度至少为数值的长度+2
     */
-    public static BigInteger secureComparision(PartyID partyID, BigInteger ai, BigInteger bi,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger secureComparision(ProtocolContext ctx, BigInteger ai, BigInteger bi)
+            throws IOException {
 
-        // 计算 <c> = <a> - <b>
-        BigInteger ci = ai.subtract(bi).mod(mod);
+        if (ctx.hasComparisonKeys())
+            return secureComparisionFSS(ctx, new BigInteger[] { ai }, new BigInteger[] { bi })[0];
 
-        // 计算 < c<p/2 >
-        BigInteger ti = secureComparisionSub1(partyID, ci, triple, rTuple, mod, reader, writer);
+        return ProtocolCostCounter.call("secureComparision", () -> {
+            RandomNumberTuple rTuple = ctx.nextRandomNumberTuple();
 
-        // 计算 < a<b > = 1 - < c<p/2 >
-        BigInteger resulti = shareConstant(partyID, BigInteger.ONE).subtract(ti).mod(mod);
+            // 计算 <c> = <a> - <b>
+            BigInteger ci = ai.subtract(bi).mod(ctx.mod);
 
-        return resulti;
+            // 计算 < c<p/2 >
+            BigInteger ti = secureComparisionSub1(ctx, ci, rTuple);
+
+            // 计算 < a<b > = 1 - < c<p/2 >
+            BigInteger resulti = ctx.one().subtract(ti).mod(ctx.mod);
+
+            return resulti;
+        });
     }
 
     /*
      * 计算< a < p/2 >
      * mod: p，大素数，比特长度为l
      */
-    private static BigInteger secureComparisionSub1(PartyID partyID, BigInteger ai,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    private static BigInteger secureComparisionSub1(ProtocolContext ctx, BigInteger ai,
+            RandomNumberTuple rTuple) throws IOException {
 
         // <x> = 2<a>
-        BigInteger xi = BigInteger.TWO.multiply(ai).mod(mod);
+        BigInteger xi = BigInteger.TWO.multiply(ai).mod(ctx.mod);
 
         // <c> = <x> + <r>
-        BigInteger ci = xi.add(rTuple.r).mod(mod);
+        BigInteger ci = xi.add(rTuple.r).mod(ctx.mod);
 
         // open/recover c
-        BigInteger c = recover(partyID, ci, mod, reader, writer);
+        BigInteger c = recover(ctx, ci);
 
         // 计算<alpha> = <c0 XOR r0>。当c0 = 0，<alpha> = <r0>；当c0 = 1, <alpha> = 1 - <r0>。
         BigInteger c0 = c.mod(BigInteger.TWO);
         BigInteger alphai = (c0.equals(BigInteger.ZERO)) ? rTuple.rBinary[0]
-                : shareConstant(partyID, BigInteger.ONE).subtract(rTuple.rBinary[0]);
+                : ctx.one().subtract(rTuple.rBinary[0]);
 
         // 计算 <beta> = < c<r >
-        BigInteger betai = secureComparisionSub2(partyID, c, rTuple.rBinary, triple, rTuple, mod, reader, writer);
+        BigInteger betai = secureComparisionSub2(ctx, c, rTuple.rBinary, rTuple);
 
         // 计算<x_0> = <beta> + <alpha> - 2 <alpha> <beta>
-        BigInteger ti = multiply(partyID, alphai, betai, triple, mod, reader, writer);
-        BigInteger x0i = alphai.add(betai).subtract(BigInteger.TWO.multiply(ti)).mod(mod);
+        BigInteger ti = multiply(ctx, alphai, betai);
+        BigInteger x0i = alphai.add(betai).subtract(BigInteger.TWO.multiply(ti)).mod(ctx.mod);
 
         // 计算< a<p/2 > = 1 - <x_0>
-        BigInteger resulti = shareConstant(partyID, BigInteger.ONE).subtract(x0i).mod(mod);
+        BigInteger resulti = ctx.one().subtract(x0i).mod(ctx.mod);
 
         return resulti;
     }
@@ -409,9 +559,8 @@ public class AdditiveSecretSharing {
      * 计算< a < b >
      * 其中，a是公开值，b是秘密分享
      */
-    private static BigInteger secureComparisionSub2(PartyID partyID, BigInteger a, BigInteger[] biArray,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    private static BigInteger secureComparisionSub2(ProtocolContext ctx, BigInteger a, BigInteger[] biArray,
+            RandomNumberTuple rTuple) throws IOException {
 
         int l = rTuple.l;
 
@@ -420,7 +569,7 @@ public class AdditiveSecretSharing {
         BigInteger[] ciArray = new BigInteger[l];
         for (int i = 0; i < l; i++) {
             ciArray[i] = (aBinary[i].equals(BigInteger.ZERO)) ? biArray[i]
-                    : shareConstant(partyID, BigInteger.ONE).subtract(biArray[i]);
+                    : ctx.one().subtract(biArray[i]);
         }
 
         BigInteger[] diArray = new BigInteger[l];
@@ -429,24 +578,24 @@ public class AdditiveSecretSharing {
         eiArray[l - 1] = diArray[l - 1];
         for (int i = l - 2; i >= 0; i--) {
             // <d_{i+1} > < c_i >
-            BigInteger ti = multiply(partyID, diArray[i + 1], ciArray[i], triple, mod, reader, writer);
+            BigInteger ti = multiply(ctx, diArray[i + 1], ciArray[i]);
 
             // <d_i> =  <d_{i+1} > +  < c_i > - <d_{i+1} > <c_i>
-            diArray[i] = diArray[i + 1].add(ciArray[i]).subtract(ti).mod(mod);
+            diArray[i] = diArray[i + 1].add(ciArray[i]).subtract(ti).mod(ctx.mod);
 
             // <e_i> = <d_i> - <d_{i+1}>
-            eiArray[i] = diArray[i].subtract(diArray[i + 1]).mod(mod);
+            eiArray[i] = diArray[i].subtract(diArray[i + 1]).mod(ctx.mod);
         }
 
         // 计算 < a<b > = SUM( <e_i> <r_i> )
-        BigInteger[] tiArray = multiplyS(partyID, eiArray, rTuple.rBinary, triple, mod, reader, writer);
+        BigInteger[] tiArray = multiplyS(ctx, eiArray, rTuple.rBinary);
 
         BigInteger sumi = BigInteger.ZERO;
         for (int i = 0; i < tiArray.length; i++) {
             sumi = sumi.add(tiArray[i]);
         }
 
-        return sumi.mod(mod);
+        return sumi.mod(ctx.mod);
     }
 
     /**
@@ -455,80 +604,88 @@ public class AdditiveSecretSharing {
     * 0 <= ai, bi < p/2
     *
     * 为保证数值总小于模数的一半，则模数的长度至少为数值的长度+2
+    *
+    * 相关随机数来源提供比较密钥时，改用secureComparisionFSS。
     */
-    public static BigInteger[] secureComparision(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger[] secureComparision(ProtocolContext ctx, BigInteger[] aiArray, BigInteger[] biArray)
+            throws IOException {
 
-        int arrLen = aiArray.length;
+        if (ctx.hasComparisonKeys())
+            return secureComparisionFSS(ctx, aiArray, biArray);
 
-        // 计算 <c> = <a> - <b>
-        BigInteger[] ciArray = new BigInteger[arrLen];
-        for (int i = 0; i < arrLen; i++) {
-            ciArray[i] = aiArray[i].subtract(biArray[i]).mod(mod);
-        }
+        return ProtocolCostCounter.call("secureComparision", () -> {
+            int arrLen = aiArray.length;
+            RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(arrLen);
 
-        // 计算 < c<p/2 >
-        BigInteger[] tiArray = secureComparisionSub1(partyID, ciArray, triple, rTuple, mod, reader, writer);
+            // 计算 <c> = <a> - <b>
+            BigInteger[] ciArray = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                ciArray[i] = aiArray[i].subtract(biArray[i]).mod(ctx.mod);
+            }
 
-        // 计算 < a<b > = 1 - < c<p/2 >
-        BigInteger[] resultis = new BigInteger[arrLen];
-        for (int i = 0; i < arrLen; i++) {
-            resultis[i] = shareConstant(partyID, BigInteger.ONE).subtract(tiArray[i]).mod(mod);
-        }
+            // 计算 < c<p/2 >
+            BigInteger[] tiArray = secureComparisionSub1(ctx, ciArray, rTuples);
 
-        return resultis;
+            // 计算 < a<b > = 1 - < c<p/2 >
+            BigInteger[] resultis = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                resultis[i] = ctx.one().subtract(tiArray[i]).mod(ctx.mod);
+            }
+
+            return resultis;
+        });
     }
 
     /*
-     * 计算< a < p/2 >
+     * 计算< a < p/2 >，每个元素使用各自的随机数元组
      * mod: p，大素数，比特长度为l
      */
-    private static BigInteger[] secureComparisionSub1(PartyID partyID, BigInteger[] aiArray,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    private static BigInteger[] secureComparisionSub1(ProtocolContext ctx, BigInteger[] aiArray,
+            RandomNumberTuple[] rTuples) throws IOException {
 
         int arrayLen = aiArray.length;
+        int l = ctx.mod.bitLength();
 
         // <x> = 2<a>
         BigInteger[] xiArray = new BigInteger[arrayLen];
         for (int i = 0; i < arrayLen; i++) {
-            xiArray[i] = BigInteger.TWO.multiply(aiArray[i]).mod(mod);
+            xiArray[i] = BigInteger.TWO.multiply(aiArray[i]).mod(ctx.mod);
         }
 
         // <c> = <x> + <r>
         BigInteger[] ciArray = new BigInteger[arrayLen];
         for (int i = 0; i < arrayLen; i++) {
-            ciArray[i] = xiArray[i].add(rTuple.r).mod(mod);
+            ciArray[i] = xiArray[i].add(rTuples[i].r).mod(ctx.mod);
         }
 
         // open/recover c
-        BigInteger[] cArray = recover(partyID, ciArray, mod, reader, writer);
+        BigInteger[] cArray = recover(ctx, ciArray);
 
         // 计算<alpha> = <c0 XOR r0>。当c0 = 0，<alpha> = <r0>；当c0 = 1, <alpha> = 1 - <r0>。
         BigInteger[] alphaiArray = new BigInteger[arrayLen];
         for (int i = 0; i < arrayLen; i++) {
             BigInteger c0 = cArray[i].mod(BigInteger.TWO);
-            alphaiArray[i] = (c0.equals(BigInteger.ZERO)) ? rTuple.rBinary[0]
-                    : shareConstant(partyID, BigInteger.ONE).subtract(rTuple.rBinary[0]);
+            alphaiArray[i] = (c0.equals(BigInteger.ZERO)) ? rTuples[i].rBinary[0]
+                    : ctx.one().subtract(rTuples[i].rBinary[0]);
         }
 
         // 计算 <beta> = < c<r >
         BigInteger[][] triArray = new BigInteger[arrayLen][];
         for (int i = 0; i < arrayLen; i++) {
-            triArray[i] = rTuple.rBinary;
+            triArray[i] = rTuples[i].rBinary;
         }
-        BigInteger[] betaiArray = secureComparisionSub2(partyID, cArray, triArray, triple, rTuple, mod, reader, writer);
+        BigInteger[] betaiArray = secureComparisionSub2(ctx, cArray, triArray, l);
 
         // 计算<x_0> = <beta> + <alpha> - 2 <alpha> <beta>
-        BigInteger[] tis = multiplyS(partyID, alphaiArray, betaiArray, triple, mod, reader, writer);
+        BigInteger[] tis = multiplyS(ctx, alphaiArray, betaiArray);
         BigInteger[] resultis = new BigInteger[arrayLen];
         for (int i = 0; i < arrayLen; i++) {
             // BigInteger ti = multiply(partyID, alphaiArray[i], betaiArray[i], triple, mod, reader, writer);
-            BigInteger x0i = alphaiArray[i].add(betaiArray[i]).subtract(BigInteger.TWO.multiply(tis[i])).mod(mod);
+            BigInteger x0i = alphaiArray[i].add(betaiArray[i]).subtract(BigInteger.TWO.multiply(tis[i]))
+                    .mod(ctx.mod);
 
             // 计算< a<p/2 > = 1 - <x_0>
-            resultis[i] = shareConstant(partyID, BigInteger.ONE).subtract(x0i).mod(mod);
+            resultis[i] = ctx.one().subtract(x0i).mod(ctx.mod);
         }
 
         return resultis;
@@ -536,14 +693,12 @@ public class AdditiveSecretSharing {
 
     /*
      * 计算< a < b >
-     * 其中，a是公开值，b是秘密分享
+     * 其中，a是公开值，b是按比特的秘密分享，只比较低l位
      */
-    private static BigInteger[] secureComparisionSub2(PartyID partyID, BigInteger[] aArray, BigInteger[][] biArrays,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    static BigInteger[] secureComparisionSub2(ProtocolContext ctx, BigInteger[] aArray,
+            BigInteger[][] biArrays, int l) throws IOException {
 
         int arrLen = aArray.length;
-        int l = rTuple.l;
 
         BigInteger[][] aBinarys = new BigInteger[arrLen][];
         for (int i = 0; i < arrLen; i++) {
@@ -554,7 +709,7 @@ public class AdditiveSecretSharing {
         for (int j = 0; j < arrLen; j++) {
             for (int i = 0; i < l; i++) {
                 ciArrays[j][i] = (aBinarys[j][i].equals(BigInteger.ZERO)) ? biArrays[j][i]
-                        : shareConstant(partyID, BigInteger.ONE).subtract(biArrays[j][i]);
+                        : ctx.one().subtract(biArrays[j][i]);
             }
         }
 
@@ -565,21 +720,21 @@ public class AdditiveSecretSharing {
             eiArrays[i][l - 1] = diArrays[i][l - 1];
         }
         for (int i = l - 2; i >= 0; i--) {
-            // <d_{i+1} > < c_i >
-            BigInteger[] tdis = new BigInteger[arrLen];
-            BigInteger[] tcis = new BigInteger[arrLen];
+            // <d_{i+1} > < c_i >，每层的输入使用上下文中的临时缓冲区
+            BigInteger[] tdis = ctx.scratch(0, arrLen);
+            BigInteger[] tcis = ctx.scratch(1, arrLen);
             for (int j = 0; j < arrLen; j++) {
                 tdis[j] = diArrays[j][i + 1];
                 tcis[j] = ciArrays[j][i];
             }
-            BigInteger[] tis = multiplyS(partyID, tdis, tcis, triple, mod, reader, writer);
+            BigInteger[] tis = multiplyS(ctx, tdis, tcis);
 
             for (int j = 0; j < arrLen; j++) {
                 // <d_i> =  <d_{i+1} > +  < c_i > - <d_{i+1} > <c_i>
-                diArrays[j][i] = diArrays[j][i + 1].add(ciArrays[j][i]).subtract(tis[j]).mod(mod);
+                diArrays[j][i] = diArrays[j][i + 1].add(ciArrays[j][i]).subtract(tis[j]).mod(ctx.mod);
 
                 // <e_i> = <d_i> - <d_{i+1}>
-                eiArrays[j][i] = diArrays[j][i].subtract(diArrays[j][i + 1]).mod(mod);
+                eiArrays[j][i] = diArrays[j][i].subtract(diArrays[j][i + 1]).mod(ctx.mod);
             }
         }
 
@@ -588,91 +743,294 @@ public class AdditiveSecretSharing {
         BigInteger[] trbis = new BigInteger[arrLen * l];
         for (int i = 0; i < arrLen; i++) {
             System.arraycopy(eiArrays[i], 0, teis, i * l, l);
-            System.arraycopy(rTuple.rBinary, 0, trbis, i * l, l);
+            System.arraycopy(biArrays[i], 0, trbis, i * l, l);
         }
-        BigInteger[] tiArray = multiplyS(partyID, teis, trbis, triple, mod, reader, writer);
+        BigInteger[] tiArray = multiplyS(ctx, teis, trbis);
         BigInteger[] sumiArray = new BigInteger[arrLen];
         for (int i = 0; i < arrLen; i++) {
             sumiArray[i] = BigInteger.ZERO;
             for (int j = 0; j < l; j++) {
-                sumiArray[i] = sumiArray[i].add(tiArray[i * l + j]).mod(mod);
+                sumiArray[i] = sumiArray[i].add(tiArray[i * l + j]).mod(ctx.mod);
             }
         }
 
         return sumiArray;
     }
 
+    /**
+    * SC S - 短位宽
+    * 0 <= ai, bi < 2^width，比较只处理width个比特，交换的元素个数和轮数都与width而非模数的长度l成正比。
+    *
+    * 令 y = a - b + 2^width，则 0 < y < 2^(width+1)，bool(a < b) = 1 - floor( y / 2^width )。
+    * 用随机数元组的低l-2位组成r'，恢复 c = y + r'（不会超过模数，r'统计地隐藏y），则
+    * y mod 2^width = (c mod 2^width) - (r' mod 2^width) + 2^width * bool( c mod 2^width < r' mod 2^width )，
+    * 其中的比较只涉及r的低width位（见secureComparisionSub2）。
+    *
+    * 隐藏y的统计安全参数为 l - 3 - width，要求 0 < width 且 width + 3 + STATISTICAL_SECURITY <= l，
+    * 否则退化为secureComparision(ctx, aiArray, biArray)，调用方应相应加长模数。
+    * 提供比较密钥时同样退化，secureComparisionFSS的轮数与width无关。
+    */
+    public static BigInteger[] secureComparision(ProtocolContext ctx, BigInteger[] aiArray, BigInteger[] biArray,
+            int width) throws IOException {
+
+        int l = ctx.mod.bitLength();
+        if (width <= 0 || width + 3 + STATISTICAL_SECURITY > l || ctx.hasComparisonKeys())
+            return secureComparision(ctx, aiArray, biArray);
+
+        return ProtocolCostCounter.call("secureComparision", () -> {
+            int arrLen = aiArray.length;
+            RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(arrLen);
+
+            BigInteger offset = BigInteger.ONE.shiftLeft(width);
+
+            // <r'> = SUM_{i < l-2}( 2^i <r_i> )，<r' mod 2^width> = SUM_{i < width}( 2^i <r_i> )
+            BigInteger[][] masks = new BigInteger[arrLen][];
+            for (int i = 0; i < arrLen; i++) {
+                masks[i] = lowBitsMask(rTuples[i].rBinary, l - 2, width);
+            }
+
+            // 恢复 c = y + r'
+            BigInteger yOffseti = shareConstant(ctx, offset);
+            BigInteger[] ciArray = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                ciArray[i] = aiArray[i].subtract(biArray[i]).add(yOffseti).add(masks[i][0]).mod(ctx.mod);
+            }
+            BigInteger[] cArray = recover(ctx, ciArray);
+
+            // < c mod 2^width < r' mod 2^width >
+            BigInteger[] cLowArray = new BigInteger[arrLen];
+            BigInteger[][] triArrays = new BigInteger[arrLen][];
+            for (int i = 0; i < arrLen; i++) {
+                cLowArray[i] = cArray[i].mod(offset);
+                triArrays[i] = Arrays.copyOf(rTuples[i].rBinary, width);
+            }
+            BigInteger[] borrowis = secureComparisionSub2(ctx, cLowArray, triArrays, width);
+
+            // < a<b > = 1 - ( <y> - <y mod 2^width> ) / 2^width
+            BigInteger inverse = offset.modInverse(ctx.mod);
+            BigInteger[] resultis = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                BigInteger yi = ciArray[i].subtract(masks[i][0]);
+                BigInteger yLowi = shareConstant(ctx, cLowArray[i]).subtract(masks[i][1])
+                        .add(borrowis[i].shiftLeft(width));
+                BigInteger highi = yi.subtract(yLowi).multiply(inverse);
+                resultis[i] = ctx.one().subtract(highi).mod(ctx.mod);
+            }
+
+            return resultis;
+        });
+    }
+
+    /**
+    * 概率截断（TruncPr）
+    * 0 <= xi < 2^bits，结果为 floor( x / 2^shift ) 或 floor( x / 2^shift ) + 1，
+    * 取后者的概率为 (x mod 2^shift) / 2^shift，即按低位的大小随机进位。只需要一轮通信。
+    *
+    * 与短位宽的比较相同，用随机数元组的低l-2位组成r'，恢复 c = x + r'，则
+    * x mod 2^shift 约等于 (c mod 2^shift) - (r' mod 2^shift)，差值即为进位，这里不再做比较修正。
+    * 隐藏x的统计安全参数为 l - 2 - bits，调用方应选择足够长的模数（见STATISTICAL_SECURITY）。
+    */
+    public static BigInteger[] secureTruncation(ProtocolContext ctx, BigInteger[] xis, int bits, int shift)
+            throws IOException {
+
+        int l = ctx.mod.bitLength();
+        if (bits + 2 >= l)
+            throw new IllegalArgumentException("bits + 2 must be less than the bit length of mod: " + bits);
+        if (shift <= 0)
+            return xis.clone();
+
+        return ProtocolCostCounter.call("secureTruncation", () -> {
+            RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(xis.length);
+
+            BigInteger offset = BigInteger.ONE.shiftLeft(shift);
+
+            // <r'> = SUM_{i < l-2}( 2^i <r_i> )，<r' mod 2^shift> = SUM_{i < shift}( 2^i <r_i> )
+            BigInteger[][] masks = new BigInteger[xis.length][];
+            for (int i = 0; i < xis.length; i++) {
+                masks[i] = lowBitsMask(rTuples[i].rBinary, l - 2, shift);
+            }
+
+            // 恢复 c = x + r'
+            BigInteger[] ciArray = new BigInteger[xis.length];
+            for (int i = 0; i < xis.length; i++) {
+                ciArray[i] = xis[i].add(masks[i][0]).mod(ctx.mod);
+            }
+            BigInteger[] cArray = recover(ctx, ciArray);
+
+            // <x / 2^shift> = ( <x> - (c mod 2^shift) + <r' mod 2^shift> ) / 2^shift
+            BigInteger inverse = offset.modInverse(ctx.mod);
+            BigInteger[] resultis = new BigInteger[xis.length];
+            for (int i = 0; i < xis.length; i++) {
+                BigInteger xLowi = shareConstant(ctx, cArray[i].mod(offset)).subtract(masks[i][1]);
+                resultis[i] = xis[i].subtract(xLowi).multiply(inverse).mod(ctx.mod);
+            }
+
+            return resultis;
+        });
+    }
+
+    /*
+     * 由按比特分享的r组成 { <r'>, <r' mod 2^low> }，其中 r' = SUM_{i < length}( 2^i <r_i> )，结果未取模
+     */
+    static BigInteger[] lowBitsMask(BigInteger[] rBinary, int length, int low) {
+        BigInteger ri = BigInteger.ZERO, lowi = BigInteger.ZERO;
+        for (int i = 0; i < length; i++) {
+            ri = ri.add(rBinary[i].shiftLeft(i));
+            if (i == low - 1)
+                lowi = ri;
+        }
+        return new BigInteger[] { ri, lowi };
+    }
+
+    /**
+    * SC S - 基于函数秘密分享
+    * 0 <= ai, bi < p/2
+    *
+    * 每个元素取一个比较密钥，恢复 x' = a - b + r 后，各方用该密钥在x'上本地求值（见ComparisonKey、DCF），
+    * 得到 < a >= b >，只需要一轮通信，每个元素交换一个值；代价是比较密钥的长度与l成正比，且求值需要2l次AES。
+    */
+    public static BigInteger[] secureComparisionFSS(ProtocolContext ctx, BigInteger[] aiArray, BigInteger[] biArray)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureComparisionFSS", () -> {
+            int arrLen = aiArray.length;
+            ComparisonKey[] keys = ctx.nextComparisonKeys(arrLen);
+
+            // 恢复 x' = a - b + r，每个元素用各自的r，否则公开的x'之差会泄露a - b之差
+            BigInteger[] ciArray = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                ciArray[i] = aiArray[i].subtract(biArray[i]).add(keys[i].r).mod(ctx.mod);
+            }
+            BigInteger[] cArray = recover(ctx, ciArray);
+
+            // < a<b > = 1 - < a>=b >
+            BigInteger[] resultis = new BigInteger[arrLen];
+            IntStream.range(0, arrLen).parallel().forEach(i -> resultis[i] = ctx.one()
+                    .subtract(evaluateComparisonKey(ctx, keys[i], cArray[i])).mod(ctx.mod));
+
+            return resultis;
+        });
+    }
+
+    /*
+     * 对公开的 x' = x + r 求 < 0 <= x < T > 的分享，T由生成密钥时决定
+     */
+    static BigInteger evaluateComparisonKey(ProtocolContext ctx, ComparisonKey key, BigInteger c) {
+        boolean party1 = !ctx.isC1();
+        BigInteger highi = DCF.evaluate(party1, key.high, c, ctx.mod);
+        BigInteger lowi = DCF.evaluate(party1, key.low, c, ctx.mod);
+
+        return highi.subtract(lowi).add(key.wrap).mod(ctx.mod);
+    }
+
     /*
      * 等值比较协议
      */
-    public static BigInteger secureEqual(PartyID partyID, BigInteger ai, BigInteger bi,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger secureEqual(ProtocolContext ctx, BigInteger ai, BigInteger bi)
+            throws IOException {
 
-        // 本地计算 <c> = <a> - <b> + <r>
-        BigInteger ci = ai.subtract(bi).add(rTuple.r).mod(mod);
+        if (ctx.hasEqualityKeys())
+            return secureEqualFSS(ctx, new BigInteger[] { ai }, new BigInteger[] { bi })[0];
 
-        // open/recover c
-        BigInteger c = recover(partyID, ci, mod, reader, writer);
+        return ProtocolCostCounter.call("secureEqual", () -> {
+            RandomNumberTuple rTuple = ctx.nextRandomNumberTuple();
 
-        // 计算 <c=r>
-        BigInteger resulti = secureEqualSub(partyID, c, rTuple.r, triple, rTuple, mod, reader, writer);
+            // 本地计算 <c> = <a> - <b> + <r>
+            BigInteger ci = ai.subtract(bi).add(rTuple.r).mod(ctx.mod);
 
-        return resulti;
+            // open/recover c
+            BigInteger c = recover(ctx, ci);
+
+            // 计算 <c=r>
+            BigInteger resulti = secureEqualSub(ctx, c, rTuple.r, rTuple);
+
+            return resulti;
+        });
     }
 
-    private static BigInteger secureEqualSub(PartyID partyID, BigInteger c, BigInteger ri,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    private static BigInteger secureEqualSub(ProtocolContext ctx, BigInteger c, BigInteger ri,
+            RandomNumberTuple rTuple) throws IOException {
 
         BigInteger[] cBinary = Util.decimalToBinaryV2(c, rTuple.l);
 
         BigInteger[] alphaiArray = new BigInteger[rTuple.l];
         for (int i = 0; i < rTuple.l; i++) {
             alphaiArray[i] = (cBinary[i].equals(BigInteger.ONE)) ? rTuple.rBinary[i]
-                    : shareConstant(partyID, BigInteger.ONE).subtract(rTuple.rBinary[i]);
+                    : ctx.one().subtract(rTuple.rBinary[i]);
         }
 
         // 计算 <c=r> = PROD(<\alpha_i>)
-        BigInteger resulti = secureProduct(partyID, alphaiArray, triple, mod, reader, writer);
+        BigInteger resulti = secureProduct(ctx, alphaiArray);
 
         return resulti;
     }
 
     /*
     * 等值比较协议 S
+    *
+    * 恢复c后需要对l个比特连乘，共log_2(l)轮；相关随机数来源提供等值比较密钥时，改用只需一轮的secureEqualFSS。
     */
-    public static BigInteger[] secureEqual(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger[] secureEqual(ProtocolContext ctx, BigInteger[] aiArray, BigInteger[] biArray)
+            throws IOException {
 
-        int arrLen = aiArray.length;
+        if (ctx.hasEqualityKeys())
+            return secureEqualFSS(ctx, aiArray, biArray);
 
-        // 本地计算 <c> = <a> - <b> + <r>
-        BigInteger[] ciArray = new BigInteger[arrLen];
-        for (int i = 0; i < arrLen; i++) {
-            ciArray[i] = aiArray[i].subtract(biArray[i]).add(rTuple.r).mod(mod);
-        }
-        // BigInteger ci = ai.subtract(bi).add(rTuple.r).mod(mod);
+        return ProtocolCostCounter.call("secureEqual", () -> {
+            int arrLen = aiArray.length;
+            RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(arrLen);
 
-        // open/recover c
-        BigInteger[] cArray = recover(partyID, ciArray, mod, reader, writer);
-        // BigInteger c = recover(partyID, ci, mod, reader, writer);
+            // 本地计算 <c> = <a> - <b> + <r>
+            BigInteger[] ciArray = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                ciArray[i] = aiArray[i].subtract(biArray[i]).add(rTuples[i].r).mod(ctx.mod);
+            }
+            // BigInteger ci = ai.subtract(bi).add(rTuple.r).mod(mod);
 
-        // 计算 <c=r>
-        BigInteger[] riArray = new BigInteger[arrLen];
-        Arrays.fill(riArray, 0, arrLen, rTuple.r);
-        BigInteger[] resulti = secureEqualSub(partyID, cArray, riArray, triple, rTuple, mod, reader, writer);
+            // open/recover c
+            BigInteger[] cArray = recover(ctx, ciArray);
+            // BigInteger c = recover(partyID, ci, mod, reader, writer);
 
-        return resulti;
+            // 计算 <c=r>
+            BigInteger[] resulti = secureEqualSub(ctx, cArray, rTuples);
+
+            return resulti;
+        });
     }
 
-    private static BigInteger[] secureEqualSub(PartyID partyID, BigInteger[] cArray, BigInteger[] riArray,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    /**
+    * 等值比较协议 S - 基于函数秘密分享
+    *
+    * 每个元素取一个等值比较密钥（T = 1的比较密钥，见ComparisonKey），恢复 x' = a - b + r 后，各方在x'上本地求值得到 < a-b == 0 >，
+    * 轮数为常数1，与l无关。
+    */
+    public static BigInteger[] secureEqualFSS(ProtocolContext ctx, BigInteger[] aiArray, BigInteger[] biArray)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureEqualFSS", () -> {
+            int arrLen = aiArray.length;
+            ComparisonKey[] keys = ctx.nextEqualityKeys(arrLen);
+
+            // 恢复 x' = a - b + r，每个元素用各自的r
+            BigInteger[] ciArray = new BigInteger[arrLen];
+            for (int i = 0; i < arrLen; i++) {
+                ciArray[i] = aiArray[i].subtract(biArray[i]).add(keys[i].r).mod(ctx.mod);
+            }
+            BigInteger[] cArray = recover(ctx, ciArray);
+
+            BigInteger[] resultis = new BigInteger[arrLen];
+            IntStream.range(0, arrLen).parallel()
+                    .forEach(i -> resultis[i] = evaluateComparisonKey(ctx, keys[i], cArray[i]));
+
+            return resultis;
+        });
+    }
+
+    private static BigInteger[] secureEqualSub(ProtocolContext ctx, BigInteger[] cArray, RandomNumberTuple[] rTuples)
+            throws IOException {
 
         int arrLen = cArray.length;
-        int l = rTuple.l;
+        int l = ctx.mod.bitLength();
 
         BigInteger[][] cBinarys = new BigInteger[arrLen][];
         for (int i = 0; i < arrLen; i++) {
@@ -682,15 +1040,86 @@ public class AdditiveSecretSharing {
         BigInteger[][] alphaiArrays = new BigInteger[arrLen][l];
         for (int i = 0; i < arrLen; i++) {
             for (int j = 0; j < l; j++) {
-                alphaiArrays[i][j] = (cBinarys[i][j].equals(BigInteger.ONE)) ? rTuple.rBinary[j]
-                        : shareConstant(partyID, BigInteger.ONE).subtract(rTuple.rBinary[j]);
+                alphaiArrays[i][j] = (cBinarys[i][j].equals(BigInteger.ONE)) ? rTuples[i].rBinary[j]
+                        : ctx.one().subtract(rTuples[i].rBinary[j]);
             }
         }
 
         // 计算 <c=r> = PROD(<\alpha_i>)
-        BigInteger[] resultis = secureProduct(partyID, alphaiArrays, triple, mod, reader, writer);
+        BigInteger[] resultis = secureProduct(ctx, alphaiArrays);
 
         return resultis;
     }
 
+    /*
+     * 以下为此前的参数形式，每次调用创建一个使用固定相关随机数的ProtocolContext
+     */
+
+    public static BigInteger recover(PartyID partyID, BigInteger xi, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return recover(new ProtocolContext(partyID, mod, reader, writer, null, null), xi);
+    }
+
+    public static BigInteger[] recover(PartyID partyID, BigInteger[] xiArray, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return recover(new ProtocolContext(partyID, mod, reader, writer, null, null), xiArray);
+    }
+
+    public static BigInteger multiply(PartyID partyID, BigInteger xi, BigInteger yi, MultiplicationTriple triple,
+            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return multiply(new ProtocolContext(partyID, mod, reader, writer, triple, null), xi, yi);
+    }
+
+    public static BigInteger[] multiplyS(PartyID partyID, BigInteger[] xis, BigInteger[] yis,
+            MultiplicationTriple triple, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return multiplyS(new ProtocolContext(partyID, mod, reader, writer, triple, null), xis, yis);
+    }
+
+    public static BigInteger secureProduct(PartyID partyID, BigInteger[] xiArray, MultiplicationTriple triple,
+            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureProduct(new ProtocolContext(partyID, mod, reader, writer, triple, null), xiArray);
+    }
+
+    public static BigInteger[] secureProduct(PartyID partyID, BigInteger[][] xiArrays, MultiplicationTriple triple,
+            BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureProduct(new ProtocolContext(partyID, mod, reader, writer, triple, null), xiArrays);
+    }
+
+    public static BigInteger secureComparision(PartyID partyID, BigInteger ai, BigInteger bi,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureComparision(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), ai, bi);
+    }
+
+    public static BigInteger[] secureComparision(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureComparision(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), aiArray,
+                biArray);
+    }
+
+    public static BigInteger[] secureComparision(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
+            ComparisonKey[] cKeys, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureComparisionFSS(new ProtocolContext(partyID, mod, reader, writer, null, null, cKeys, null),
+                aiArray, biArray);
+    }
+
+    public static BigInteger secureEqual(PartyID partyID, BigInteger ai, BigInteger bi,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureEqual(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), ai, bi);
+    }
+
+    public static BigInteger[] secureEqual(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureEqual(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), aiArray, biArray);
+    }
+
+    public static BigInteger[] secureEqual(PartyID partyID, BigInteger[] aiArray, BigInteger[] biArray,
+            ComparisonKey[] eKeys, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureEqualFSS(new ProtocolContext(partyID, mod, reader, writer, null, null, null, eKeys), aiArray,
+                biArray);
+    }
+
 }
@@ -0,0 +1,139 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.ac.iscas.utils.ProtocolCostCounter;
+
+/**
+ * 异步执行互相独立的子协议
+ * <p>
+ * 调度器有若干条通道（lane），每条通道有自己的信道（ProtocolContext）和一个执行线程，通道内的子协议按提交顺序串行执行，
+ * 不同通道之间并发执行。子协议按提交顺序轮流分配到各通道，所以只要双方以相同顺序提交，同一个子协议在双方总是落在同一通道上。
+ * <p>
+ * 各通道的信道可以是同一会话在复用连接上打开的子会话（sessionId/1、sessionId/2……，见SKNNServer），
+ * 每条通道还需要自己的相关随机数来源，保证双方在同一通道上的消耗顺序一致。用完后需关闭，结束各通道的线程。
+ * <p>
+ * 只有一条通道时使用原上下文的信道（见ProtocolContext.async()），子协议在提交时直接执行，不开线程，
+ * 返回的结果已经完成，效果与直接调用相同。
+ */
+public class AsyncProtocol implements Closeable {
+
+    /**
+     * 在某条通道上执行的子协议
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run(ProtocolContext ctx) throws IOException;
+    }
+
+    private final ProtocolContext[] lanes;
+    private final ExecutorService[] executors; // 为null时在提交时直接执行
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * 只有一条通道，使用ctx的信道，子协议在提交时直接执行
+     */
+    public AsyncProtocol(ProtocolContext ctx) {
+        this.lanes = new ProtocolContext[] { ctx };
+        this.executors = null;
+    }
+
+    public AsyncProtocol(List<ProtocolContext> lanes) {
+        this.lanes = lanes.toArray(new ProtocolContext[0]);
+        this.executors = new ExecutorService[lanes.size()];
+        for (int i = 0; i < executors.length; i++) {
+            String name = "protocol-lane-" + i;
+            executors[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getLaneNumber() {
+        return lanes.length;
+    }
+
+    /**
+     * 提交一个子协议，开销记到提交时所在的节点下（见ProtocolCostCounter）。
+     *
+     * @param name 子协议名称，用于开销统计
+     */
+    public <T> CompletableFuture<T> submit(String name, Task<T> task) {
+        int lane = Math.floorMod(next.getAndIncrement(), lanes.length);
+        if (executors == null) {
+            try {
+                return CompletableFuture.completedFuture(ProtocolCostCounter.call(name, () -> task.run(lanes[lane])));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(new UncheckedIOException(e));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        ProtocolCostCounter.CostNode parent = ProtocolCostCounter.currentNode();
+        return CompletableFuture.supplyAsync(() -> {
+            ProtocolCostCounter.Scope scope = ProtocolCostCounter.enter(parent, name);
+            try (scope) {
+                return task.run(lanes[lane]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executors[lane]);
+    }
+
+    public CompletableFuture<BigInteger[]> multiplyS(BigInteger[] xis, BigInteger[] yis) {
+        return submit("multiplyS", ctx -> AdditiveSecretSharing.multiplyS(ctx, xis, yis));
+    }
+
+    public CompletableFuture<BigInteger[]> recover(BigInteger[] xiArray) {
+        return submit("recover", ctx -> AdditiveSecretSharing.recover(ctx, xiArray));
+    }
+
+    public CompletableFuture<BigInteger[]> secureComparision(BigInteger[] aiArray, BigInteger[] biArray) {
+        return submit("secureComparision", ctx -> AdditiveSecretSharing.secureComparision(ctx, aiArray, biArray));
+    }
+
+    public CompletableFuture<BigInteger[]> secureEqual(BigInteger[] aiArray, BigInteger[] biArray) {
+        return submit("secureEqual", ctx -> AdditiveSecretSharing.secureEqual(ctx, aiArray, biArray));
+    }
+
+    public CompletableFuture<BigInteger[]> secureProduct(BigInteger[][] xiArrays) {
+        return submit("secureProduct", ctx -> AdditiveSecretSharing.secureProduct(ctx, xiArrays));
+    }
+
+    /**
+     * 等待结果，把子协议中的IOException还原抛出
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executors == null)
+            return;
+
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+}
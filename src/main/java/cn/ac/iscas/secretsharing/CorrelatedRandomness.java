@@ -0,0 +1,367 @@
+package cn.ac.iscas.secretsharing;
+
+import java.math.BigInteger;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+
+/**
+ * 相关随机数的来源
+ * <p>
+ * 乘法中的每个元素各取一个乘法三元组（见nextMultiplicationTriples），
+ * 大小比较和等值比较中的每个元素各取一个随机数元组（见nextRandomNumberTuples）。
+ * 提供比较密钥时，大小比较中的每个元素改取一个比较密钥（见AdditiveSecretSharing.secureComparisionFSS），
+ * 提供等值比较密钥时，等值比较中的每个元素改取一个等值比较密钥（见AdditiveSecretSharing.secureEqualFSS）。
+ */
+public interface CorrelatedRandomness {
+
+    MultiplicationTriple nextMultiplicationTriple();
+
+    /**
+     * 一次取n个乘法三元组，双方按相同顺序调用时取到的是同一批三元组
+     */
+    default MultiplicationTriple[] nextMultiplicationTriples(int n) {
+        MultiplicationTriple[] triples = new MultiplicationTriple[n];
+        for (int i = 0; i < n; i++) {
+            triples[i] = nextMultiplicationTriple();
+        }
+        return triples;
+    }
+
+    RandomNumberTuple nextRandomNumberTuple();
+
+    /**
+     * 一次取n个随机数元组，双方按相同顺序调用时取到的是同一批元组
+     */
+    default RandomNumberTuple[] nextRandomNumberTuples(int n) {
+        RandomNumberTuple[] tuples = new RandomNumberTuple[n];
+        for (int i = 0; i < n; i++) {
+            tuples[i] = nextRandomNumberTuple();
+        }
+        return tuples;
+    }
+
+    /**
+     * @return 剩余的乘法三元组个数，重复使用同一个三元组时返回-1
+     */
+    default long remainingMultiplicationTriples() {
+        return -1;
+    }
+
+    /**
+     * @return 剩余的随机数元组个数，重复使用同一个元组时返回-1
+     */
+    default long remainingRandomNumberTuples() {
+        return -1;
+    }
+
+    default boolean hasComparisonKeys() {
+        return false;
+    }
+
+    /**
+     * 一次取n个比较密钥，每个只用于一个元素；双方按相同顺序调用时取到的是同一批密钥
+     */
+    default ComparisonKey[] nextComparisonKeys(int n) {
+        throw new UnsupportedOperationException("no comparison keys");
+    }
+
+    default boolean hasEqualityKeys() {
+        return false;
+    }
+
+    /**
+     * 一次取n个等值比较密钥，每个只用于一个元素；双方按相同顺序调用时取到的是同一批密钥
+     */
+    default ComparisonKey[] nextEqualityKeys(int n) {
+        throw new UnsupportedOperationException("no equality keys");
+    }
+
+    /**
+     * 一批按顺序消耗的相关随机数中下一个可用的位置
+     * <p>
+     * 每个位置只取出一次，剩余不足时抛出IllegalStateException，不从头循环使用。
+     */
+    interface Cursor {
+
+        /**
+         * 取出n个
+         *
+         * @return 其中第一个的序号
+         */
+        long next(int n);
+
+        /**
+         * @return 剩余的个数
+         */
+        long remaining();
+
+        /**
+         * 从第0个开始，共size个
+         */
+        static Cursor of(long size) {
+            return range(0, size);
+        }
+
+        /**
+         * 第from个到第to个（不含）
+         */
+        static Cursor range(long from, long to) {
+            return new Cursor() {
+                private long next = from;
+
+                @Override
+                public synchronized long next(int n) {
+                    if (next + n > to)
+                        throw new IllegalStateException(
+                                "correlated randomness exhausted: " + n + " requested, " + (to - next) + " left");
+
+                    long start = next;
+                    next += n;
+                    return start;
+                }
+
+                @Override
+                public synchronized long remaining() {
+                    return to - next;
+                }
+            };
+        }
+    }
+
+    /**
+     * 除覆盖的方法外，全部取自base
+     */
+    abstract class Delegating implements CorrelatedRandomness {
+        protected final CorrelatedRandomness base;
+
+        protected Delegating(CorrelatedRandomness base) {
+            this.base = base;
+        }
+
+        @Override
+        public MultiplicationTriple nextMultiplicationTriple() {
+            return base.nextMultiplicationTriple();
+        }
+
+        @Override
+        public MultiplicationTriple[] nextMultiplicationTriples(int n) {
+            return base.nextMultiplicationTriples(n);
+        }
+
+        @Override
+        public RandomNumberTuple nextRandomNumberTuple() {
+            return base.nextRandomNumberTuple();
+        }
+
+        @Override
+        public RandomNumberTuple[] nextRandomNumberTuples(int n) {
+            return base.nextRandomNumberTuples(n);
+        }
+
+        @Override
+        public long remainingMultiplicationTriples() {
+            return base.remainingMultiplicationTriples();
+        }
+
+        @Override
+        public long remainingRandomNumberTuples() {
+            return base.remainingRandomNumberTuples();
+        }
+
+        @Override
+        public boolean hasComparisonKeys() {
+            return base.hasComparisonKeys();
+        }
+
+        @Override
+        public ComparisonKey[] nextComparisonKeys(int n) {
+            return base.nextComparisonKeys(n);
+        }
+
+        @Override
+        public boolean hasEqualityKeys() {
+            return base.hasEqualityKeys();
+        }
+
+        @Override
+        public ComparisonKey[] nextEqualityKeys(int n) {
+            return base.nextEqualityKeys(n);
+        }
+    }
+
+    /**
+     * 始终返回同一个乘法三元组和随机数元组，即此前各原语的做法。
+     * <p>
+     * 注意：由于此代码只是实验性质，重复使用相关随机数并不安全
+     */
+    static CorrelatedRandomness fixed(MultiplicationTriple triple, RandomNumberTuple tuple) {
+        return new CorrelatedRandomness() {
+            @Override
+            public MultiplicationTriple nextMultiplicationTriple() {
+                return triple;
+            }
+
+            @Override
+            public RandomNumberTuple nextRandomNumberTuple() {
+                return tuple;
+            }
+        };
+    }
+
+    /**
+     * 不提供乘法三元组和随机数元组，取用时抛出IllegalStateException，用作其余来源的base，
+     * 如常驻服务中每个相关随机数都必须只用一次
+     */
+    static CorrelatedRandomness none() {
+        return new CorrelatedRandomness() {
+            @Override
+            public MultiplicationTriple nextMultiplicationTriple() {
+                throw new IllegalStateException("no multiplication triples are provided");
+            }
+
+            @Override
+            public RandomNumberTuple nextRandomNumberTuple() {
+                throw new IllegalStateException("no random number tuples are provided");
+            }
+
+            @Override
+            public long remainingMultiplicationTriples() {
+                return 0;
+            }
+
+            @Override
+            public long remainingRandomNumberTuples() {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * 乘法三元组从triples中按顺序取，取用的位置由cursor给出，每个只用一次；其余相关随机数取自base。
+     */
+    static CorrelatedRandomness pooled(CorrelatedRandomness base, MultiplicationTriple[] triples, Cursor cursor) {
+        return new Delegating(base) {
+            @Override
+            public MultiplicationTriple nextMultiplicationTriple() {
+                return nextMultiplicationTriples(1)[0];
+            }
+
+            @Override
+            public MultiplicationTriple[] nextMultiplicationTriples(int n) {
+                int from = (int) cursor.next(n);
+                MultiplicationTriple[] next = new MultiplicationTriple[n];
+                System.arraycopy(triples, from, next, 0, n);
+                return next;
+            }
+
+            @Override
+            public long remainingMultiplicationTriples() {
+                return cursor.remaining();
+            }
+        };
+    }
+
+    /**
+     * 乘法三元组从一批三元组triples中按顺序取，取用的位置由cursor给出，每个只用一次；其余相关随机数取自base。
+     */
+    static CorrelatedRandomness batched(CorrelatedRandomness base, MultiplicationTriples triples, Cursor cursor,
+            BigInteger mod) {
+        return new Delegating(base) {
+            @Override
+            public MultiplicationTriple nextMultiplicationTriple() {
+                return nextMultiplicationTriples(1)[0];
+            }
+
+            @Override
+            public MultiplicationTriple[] nextMultiplicationTriples(int n) {
+                return triples.get(cursor.next(n), n, mod);
+            }
+
+            @Override
+            public long remainingMultiplicationTriples() {
+                return cursor.remaining();
+            }
+        };
+    }
+
+    /**
+     * 随机数元组从tuples中按顺序取，取用的位置由cursor给出，每个只用一次；其余相关随机数取自base。
+     * <p>
+     * 双方为同一条信道各准备一个同样的cursor即可保证消耗顺序一致。
+     */
+    static CorrelatedRandomness batched(CorrelatedRandomness base, RandomNumberTuples tuples, Cursor cursor,
+            BigInteger mod) {
+        return new Delegating(base) {
+            @Override
+            public RandomNumberTuple nextRandomNumberTuple() {
+                return nextRandomNumberTuples(1)[0];
+            }
+
+            @Override
+            public RandomNumberTuple[] nextRandomNumberTuples(int n) {
+                return tuples.get(cursor.next(n), n, mod);
+            }
+
+            @Override
+            public long remainingRandomNumberTuples() {
+                return cursor.remaining();
+            }
+        };
+    }
+
+    /**
+     * 比较密钥从keys中按顺序取，每个只用一次，用完后抛出IllegalStateException；其余相关随机数取自base。
+     */
+    static CorrelatedRandomness comparisonKeys(CorrelatedRandomness base, ComparisonKey[] keys) {
+        return comparisonKeys(base, keys, Cursor.of(keys.length));
+    }
+
+    /**
+     * 同上，取用的位置由cursor给出，如常驻服务中各会话从同一批密钥中租用互不重叠的区间
+     */
+    static CorrelatedRandomness comparisonKeys(CorrelatedRandomness base, ComparisonKey[] keys, Cursor cursor) {
+        return new Delegating(base) {
+            @Override
+            public boolean hasComparisonKeys() {
+                return true;
+            }
+
+            @Override
+            public ComparisonKey[] nextComparisonKeys(int n) {
+                int from = (int) cursor.next(n);
+                ComparisonKey[] next = new ComparisonKey[n];
+                System.arraycopy(keys, from, next, 0, n);
+                return next;
+            }
+        };
+    }
+
+    /**
+     * 等值比较密钥从keys中按顺序取，每个只用一次，用完后抛出IllegalStateException；其余相关随机数取自base。
+     */
+    static CorrelatedRandomness equalityKeys(CorrelatedRandomness base, ComparisonKey[] keys) {
+        return equalityKeys(base, keys, Cursor.of(keys.length));
+    }
+
+    /**
+     * 同上，取用的位置由cursor给出
+     */
+    static CorrelatedRandomness equalityKeys(CorrelatedRandomness base, ComparisonKey[] keys, Cursor cursor) {
+        return new Delegating(base) {
+            @Override
+            public boolean hasEqualityKeys() {
+                return true;
+            }
+
+            @Override
+            public ComparisonKey[] nextEqualityKeys(int n) {
+                int from = (int) cursor.next(n);
+                ComparisonKey[] next = new ComparisonKey[n];
+                System.arraycopy(keys, from, next, 0, n);
+                return next;
+            }
+        };
+    }
+}
@@ -0,0 +1,248 @@
+package cn.ac.iscas.secretsharing;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 分布式比较函数（DCF）
+ * <p>
+ * 把函数 f(x) = beta * bool(x < alpha) 分享成两个密钥，各方用自己的密钥对公开的x本地求值，两方结果之和（模p）即为f(x)，
+ * 单个密钥不泄露alpha和beta。构造见Boyle等，Function Secret Sharing for Mixed-Mode and Fixed-Point Secure Computation：
+ * x按比特从高到低沿一棵深度为n的树展开，每层一个修正字，求值只需n次伪随机数生成，不需要通信。
+ * <p>
+ * 伪随机数生成器为固定密钥的AES（G(s)_j = AES(s XOR j) XOR s XOR j），种子长度为128比特，
+ * 种子的最低位用作控制比特t。
+ */
+public class DCF {
+
+    private final static int SEED_BYTES = 16;
+
+    // 固定的公开AES密钥
+    private final static byte[] FIXED_KEY = { 0x43, 0x61, 0x53, 0x2d, 0x53, 0x4b, 0x4e, 0x4e, 0x2d, 0x44, 0x43, 0x46,
+            0x2d, 0x50, 0x52, 0x47 };
+
+    // 由种子导出Z_p中的值时使用的调整值，与展开子节点时使用的区分开
+    private final static int CONVERT_TWEAK = 0x80;
+
+    private final static ThreadLocal<Cipher> AES = ThreadLocal.withInitial(() -> {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(FIXED_KEY, "AES"));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * 某一方的密钥
+     */
+    public static class Key {
+        public int n; // 输入的比特数
+        public byte[] seed;
+        public byte[][] sCWs; // 各层种子的修正字
+        public BigInteger[] vCWs; // 各层输出值的修正字
+        public boolean[] tLCWs, tRCWs; // 各层左、右子节点控制比特的修正字
+        public BigInteger finalCW;
+
+        public Key() {
+        }
+
+        private Key(int n, byte[] seed) {
+            this.n = n;
+            this.seed = seed;
+            this.sCWs = new byte[n][];
+            this.vCWs = new BigInteger[n];
+            this.tLCWs = new boolean[n];
+            this.tRCWs = new boolean[n];
+        }
+    }
+
+    /*
+     * 一个节点展开后的左右子节点
+     */
+    private static class Children {
+        private byte[] sL, sR;
+        private boolean tL, tR;
+        private BigInteger vL, vR;
+
+        private byte[] s(boolean right) {
+            return right ? sR : sL;
+        }
+
+        private boolean t(boolean right) {
+            return right ? tR : tL;
+        }
+
+        private BigInteger v(boolean right) {
+            return right ? vR : vL;
+        }
+    }
+
+    /**
+     * 生成 f(x) = beta * bool(x < alpha) 的两个密钥，0 <= x, alpha < 2^n
+     *
+     * @return 两个密钥，分别由C1、C2持有
+     */
+    public static Key[] generate(BigInteger alpha, int n, BigInteger beta, BigInteger mod, Random random) {
+        byte[] s0 = new byte[SEED_BYTES], s1 = new byte[SEED_BYTES];
+        random.nextBytes(s0);
+        random.nextBytes(s1);
+        Key[] keys = { new Key(n, s0.clone()), new Key(n, s1.clone()) };
+
+        boolean t0 = false, t1 = true;
+        BigInteger vAlpha = BigInteger.ZERO;
+        for (int i = 0; i < n; i++) {
+            boolean a = alpha.testBit(n - 1 - i);
+            Children c0 = expand(s0, mod), c1 = expand(s1, mod);
+
+            // alpha的这一位为0时沿左子树走，右子树上的点都不小于alpha；为1时左子树上的点都小于alpha
+            boolean lose = !a;
+            boolean keep = a;
+
+            byte[] sCW = xor(c0.s(lose), c1.s(lose));
+            BigInteger vCW = negate(t1, c1.v(lose).subtract(c0.v(lose)).subtract(vAlpha));
+            if (a)
+                vCW = vCW.add(negate(t1, beta));
+            vCW = vCW.mod(mod);
+            vAlpha = vAlpha.subtract(c1.v(keep)).add(c0.v(keep)).add(negate(t1, vCW)).mod(mod);
+
+            boolean tLCW = c0.tL ^ c1.tL ^ a ^ true;
+            boolean tRCW = c0.tR ^ c1.tR ^ a;
+            boolean tKeepCW = keep ? tRCW : tLCW;
+
+            for (Key key : keys) {
+                key.sCWs[i] = sCW;
+                key.vCWs[i] = vCW;
+                key.tLCWs[i] = tLCW;
+                key.tRCWs[i] = tRCW;
+            }
+
+            s0 = t0 ? xor(c0.s(keep), sCW) : c0.s(keep);
+            s1 = t1 ? xor(c1.s(keep), sCW) : c1.s(keep);
+            t0 = c0.t(keep) ^ (t0 && tKeepCW);
+            t1 = c1.t(keep) ^ (t1 && tKeepCW);
+        }
+
+        BigInteger finalCW = negate(t1, convert(s1, mod).subtract(convert(s0, mod)).subtract(vAlpha)).mod(mod);
+        keys[0].finalCW = finalCW;
+        keys[1].finalCW = finalCW;
+
+        return keys;
+    }
+
+    /**
+     * 用某一方的密钥对公开的x求值
+     *
+     * @param party1 密钥是否属于第二方（C2）
+     * @return f(x)的分享
+     */
+    public static BigInteger evaluate(boolean party1, Key key, BigInteger x, BigInteger mod) {
+        byte[] s = key.seed;
+        boolean t = party1;
+        BigInteger v = BigInteger.ZERO;
+
+        for (int i = 0; i < key.n; i++) {
+            Children c = expand(s, mod);
+            boolean right = x.testBit(key.n - 1 - i);
+
+            BigInteger vi = c.v(right);
+            if (t)
+                vi = vi.add(key.vCWs[i]);
+            v = v.add(negate(party1, vi));
+
+            s = c.s(right);
+            boolean ti = c.t(right);
+            if (t) {
+                s = xor(s, key.sCWs[i]);
+                ti ^= right ? key.tRCWs[i] : key.tLCWs[i];
+            }
+            t = ti;
+        }
+
+        BigInteger last = convert(s, mod);
+        if (t)
+            last = last.add(key.finalCW);
+        v = v.add(negate(party1, last));
+
+        return v.mod(mod);
+    }
+
+    /*
+     * G(s) = sL || tL || sR || tR || vL || vR，其中vL、vR各取valueBlocks个分组再模p
+     */
+    private static Children expand(byte[] s, BigInteger mod) {
+        int vBlocks = valueBlocks(mod);
+        byte[] out = prg(s, 0, 2 + 2 * vBlocks);
+
+        Children c = new Children();
+        c.sL = Arrays.copyOfRange(out, 0, SEED_BYTES);
+        c.tL = (c.sL[SEED_BYTES - 1] & 1) != 0;
+        c.sL[SEED_BYTES - 1] &= ~1;
+        c.sR = Arrays.copyOfRange(out, SEED_BYTES, 2 * SEED_BYTES);
+        c.tR = (c.sR[SEED_BYTES - 1] & 1) != 0;
+        c.sR[SEED_BYTES - 1] &= ~1;
+
+        int vBytes = vBlocks * SEED_BYTES;
+        c.vL = new BigInteger(1, Arrays.copyOfRange(out, 2 * SEED_BYTES, 2 * SEED_BYTES + vBytes)).mod(mod);
+        c.vR = new BigInteger(1, Arrays.copyOfRange(out, 2 * SEED_BYTES + vBytes, 2 * SEED_BYTES + 2 * vBytes))
+                .mod(mod);
+
+        return c;
+    }
+
+    /*
+     * 由叶子节点的种子导出Z_p中的值
+     */
+    private static BigInteger convert(byte[] s, BigInteger mod) {
+        return new BigInteger(1, prg(s, CONVERT_TWEAK, valueBlocks(mod))).mod(mod);
+    }
+
+    /*
+     * 转换到Z_p的值比p多出AdditiveSecretSharing.STATISTICAL_SECURITY个比特，使其与均匀分布统计上不可区分
+     */
+    private static int valueBlocks(BigInteger mod) {
+        int bits = mod.bitLength() + AdditiveSecretSharing.STATISTICAL_SECURITY;
+        return (bits + 8 * SEED_BYTES - 1) / (8 * SEED_BYTES);
+    }
+
+    private static byte[] prg(byte[] s, int tweak, int blocks) {
+        byte[] in = new byte[blocks * SEED_BYTES];
+        for (int j = 0; j < blocks; j++) {
+            System.arraycopy(s, 0, in, j * SEED_BYTES, SEED_BYTES);
+            in[j * SEED_BYTES] ^= (byte) (tweak + j);
+        }
+
+        byte[] out;
+        try {
+            out = AES.get().doFinal(in);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < out.length; i++) {
+            out[i] ^= in[i];
+        }
+
+        return out;
+    }
+
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length];
+        for (int i = 0; i < a.length; i++) {
+            c[i] = (byte) (a[i] ^ b[i]);
+        }
+        return c;
+    }
+
+    /*
+     * (-1)^sign * x
+     */
+    private static BigInteger negate(boolean sign, BigInteger x) {
+        return sign ? x.negate() : x;
+    }
+}
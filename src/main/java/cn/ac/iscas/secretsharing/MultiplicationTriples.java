@@ -0,0 +1,120 @@
+package cn.ac.iscas.secretsharing;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.stream.IntStream;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.RandomNumberTuples.Stream;
+
+/**
+ * 一批乘法三元组中某方的部分，每个三元组只用于一次乘法中的一个元素
+ * <p>
+ * 两方的[a]_i、[b]_i都由各自的种子展开（AES-CTR，每个三元组一段独立的密钥流，同RandomNumberTuples），
+ * C1的[c]_1也由种子展开，所以C1只需保存种子；C2的 [c]_2 = ab - [c]_1 按64位分块紧凑地存放在long数组中。
+ * <p>
+ * 生成时各三元组互不依赖，按三元组并行生成。
+ */
+public class MultiplicationTriples {
+
+    public int size; // 三元组个数
+    public byte[] seed; // 展开[a]_i、[b]_i（C1还有[c]_1）的种子
+    private long[] packed; // C2：第i个三元组的[c]_2从 i * limbs 开始；C1为null
+
+    public MultiplicationTriples() {
+    }
+
+    private MultiplicationTriples(int size, byte[] seed, long[] packed) {
+        this.size = size;
+        this.seed = seed;
+        this.packed = packed;
+    }
+
+    /**
+     * 生成size个三元组
+     *
+     * @return 两方的部分，分别由C1、C2持有
+     */
+    public static MultiplicationTriples[] generate(BigInteger mod, int size) {
+        SecureRandom random = new SecureRandom();
+        byte[] seed1 = new byte[RandomNumberTuples.SEED_BYTES];
+        byte[] seed2 = new byte[RandomNumberTuples.SEED_BYTES];
+        random.nextBytes(seed1);
+        random.nextBytes(seed2);
+
+        int limbs = RandomNumberTuples.limbs(mod);
+        long[] packed = new long[size * limbs];
+
+        IntStream.range(0, size).parallel().forEach(i -> {
+            MultiplicationTriple c1 = expand(seed1, i, mod, true);
+            MultiplicationTriple c2 = expand(seed2, i, mod, false);
+            BigInteger c = c1.ai.add(c2.ai).multiply(c1.bi.add(c2.bi)).mod(mod);
+            RandomNumberTuples.pack(c.subtract(c1.ci).mod(mod), packed, i * limbs, limbs);
+        });
+
+        return new MultiplicationTriples[] { new MultiplicationTriples(size, seed1, null),
+                new MultiplicationTriples(size, seed2, packed) };
+    }
+
+    /**
+     * @return 第index个三元组中本方的分享
+     */
+    public MultiplicationTriple get(int index, BigInteger mod) {
+        MultiplicationTriple triple = expand(seed, index, mod, packed == null);
+        if (packed != null) {
+            int limbs = RandomNumberTuples.limbs(mod);
+            triple.ci = RandomNumberTuples.unpack(packed, index * limbs, limbs);
+        }
+
+        return triple;
+    }
+
+    /**
+     * 从第from个开始取n个三元组，超出size时抛出IllegalStateException，不从头循环使用
+     */
+    public MultiplicationTriple[] get(long from, int n, BigInteger mod) {
+        if (from < 0 || from + n > size)
+            throw new IllegalStateException("multiplication triples exhausted: [" + from + ", " + (from + n)
+                    + ") requested, " + size + " in total");
+
+        MultiplicationTriple[] triples = new MultiplicationTriple[n];
+        IntStream.range(0, n).parallel().forEach(i -> triples[i] = get((int) (from + i), mod));
+        return triples;
+    }
+
+    /**
+     * C2的[c]_2序列化为Base64，避免JSON中逐个写出long
+     */
+    public String getPacked() {
+        if (packed == null)
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 * packed.length);
+        buffer.asLongBuffer().put(packed);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    public void setPacked(String packed) {
+        if (packed == null) {
+            this.packed = null;
+            return;
+        }
+
+        LongBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(packed)).asLongBuffer();
+        this.packed = new long[buffer.remaining()];
+        buffer.get(this.packed);
+    }
+
+    /*
+     * 由种子展开第index个三元组的[a]_i、[b]_i，withC为true时还展开[c]_i
+     */
+    private static MultiplicationTriple expand(byte[] seed, long index, BigInteger mod, boolean withC) {
+        Stream stream = new Stream(seed, index, mod);
+        BigInteger ai = stream.next();
+        BigInteger bi = stream.next();
+        return new MultiplicationTriple(ai, bi, withC ? stream.next() : null);
+    }
+}
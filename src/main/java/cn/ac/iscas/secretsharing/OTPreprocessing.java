@@ -0,0 +1,489 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+
+/**
+ * 不依赖可信第三方，由C1、C2两方自己生成相关随机数（乘法三元组和随机数元组）
+ * <p>
+ * 基础OT为Chou、Orlandi的The Simplest Protocol for Oblivious Transfer（RFC 3526中的2048位MODP群），
+ * 在128个基础OT上用IKNP扩展出任意多个相关OT，再按Gilboa的方法由相关OT计算乘积的加性分享：
+ * 一方持有x，另一方持有y的各比特，对y的第j位做一次相关OT，相关量为 x * 2^j。
+ * <p>
+ * 双方同时作为发送方和接收方，两个方向的消息在同一次交换中完成，所以除基础OT外每批只需两轮。
+ * 伪随机数生成器为AES-CTR，相关OT的散列为固定密钥的AES（同DCF），矩阵的展开、转置和散列都并行计算。
+ * <p>
+ * 只满足半诚实安全。
+ */
+public class OTPreprocessing {
+
+    private final static int KAPPA = 128; // 基础OT个数，即计算安全参数
+    private final static int KAPPA_WORDS = KAPPA / 64;
+    private final static int KEY_BYTES = 16;
+    private final static int CHUNK_WORDS = 16; // 交换矩阵时每个BigInteger包含的long个数
+    private final static int HASH_ROWS = 1024; // 并行散列时每段的行数
+    private final static int TRIPLE_BATCH = 1 << 14; // 每次crossProduct生成的乘法三元组个数上限，限制矩阵占用的内存
+
+    // RFC 3526，2048位MODP群，生成元为2
+    private final static BigInteger GROUP_P = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1"
+            + "29024E088A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245"
+            + "E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3D"
+            + "C2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D"
+            + "670C354E4ABC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9"
+            + "DE2BCBF6955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+    private final static BigInteger GROUP_G = BigInteger.TWO;
+    private final static int EXPONENT_BITS = 256;
+
+    // 相关OT散列使用的固定公开AES密钥，与DCF的不同
+    private final static byte[] FIXED_KEY = { 0x43, 0x61, 0x53, 0x2d, 0x53, 0x4b, 0x4e, 0x4e, 0x2d, 0x49, 0x4b, 0x4e,
+            0x50, 0x2d, 0x4f, 0x54 };
+
+    private final static ThreadLocal<Cipher> HASH = ThreadLocal.withInitial(() -> {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(FIXED_KEY, "AES"));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final static ThreadLocal<Cipher> PRG = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ProtocolContext ctx;
+
+    // 作为扩展OT的发送方：随机的s，以及以s_i为选择比特由基础OT得到的密钥 k_i^{s_i}
+    private final long[] s = new long[KAPPA_WORDS];
+    private final byte[][] senderKeys = new byte[KAPPA][];
+
+    // 作为扩展OT的接收方：基础OT中作为发送方的两组密钥 k_i^0、k_i^1
+    private final byte[][] receiverKeys0 = new byte[KAPPA][], receiverKeys1 = new byte[KAPPA][];
+
+    private long used = 0; // 已经扩展的OT个数，各批的密钥流和散列的调整值互不重叠
+
+    /**
+     * 与对方执行基础OT，双方需同时创建
+     */
+    public OTPreprocessing(ProtocolContext ctx) throws IOException {
+        this.ctx = ctx;
+
+        ProtocolCostCounter.run("baseOT", () -> {
+            for (int i = 0; i < KAPPA_WORDS; i++) {
+                s[i] = ctx.random.nextLong();
+            }
+
+            // 作为基础OT的发送方：A = g^a
+            BigInteger a = new BigInteger(EXPONENT_BITS, ctx.random);
+            BigInteger A = GROUP_G.modPow(a, GROUP_P);
+            BigInteger peerA = ctx.exchangeDirectly(new BigInteger[] { A })[0];
+
+            // 作为基础OT的接收方：s_i = 0时 B_i = g^{b_i}，s_i = 1时 B_i = A' g^{b_i}
+            BigInteger[] b = new BigInteger[KAPPA];
+            BigInteger[] B = new BigInteger[KAPPA];
+            for (int i = 0; i < KAPPA; i++) {
+                b[i] = new BigInteger(EXPONENT_BITS, ctx.random);
+            }
+            IntStream.range(0, KAPPA).parallel().forEach(i -> {
+                B[i] = GROUP_G.modPow(b[i], GROUP_P);
+                if (bit(s, i))
+                    B[i] = B[i].multiply(peerA).mod(GROUP_P);
+                senderKeys[i] = deriveKey(i, peerA.modPow(b[i], GROUP_P));
+            });
+            BigInteger[] peerB = ctx.exchangeDirectly(B);
+
+            // k_i^0 = H(B_i^a)，k_i^1 = H((B_i / A)^a)
+            BigInteger inverse = A.modPow(a, GROUP_P).modInverse(GROUP_P);
+            IntStream.range(0, KAPPA).parallel().forEach(i -> {
+                BigInteger k0 = peerB[i].modPow(a, GROUP_P);
+                receiverKeys0[i] = deriveKey(i, k0);
+                receiverKeys1[i] = deriveKey(i, k0.multiply(inverse).mod(GROUP_P));
+            });
+        });
+    }
+
+    /**
+     * 计算 x_1 * y_2 + x_2 * y_1 的分享，其中x_1、y_1为C1的输入，x_2、y_2为C2的输入，双方同时调用。
+     * <p>
+     * 0 <= y < 2^bits，x任意。
+     */
+    public BigInteger[] crossProduct(BigInteger[] x, BigInteger[] y, int bits) throws IOException {
+        return ProtocolCostCounter.call("crossProduct", () -> {
+            BigInteger mod = ctx.mod;
+            int n = x.length;
+            int rows = (n * bits + KAPPA - 1) / KAPPA * KAPPA;
+            int words = rows / 64;
+            long from = used;
+            used += rows;
+
+            // 作为接收方的选择比特r：第e个元素的第j位为y_e的第j位
+            long[] choice = new long[words];
+            for (int e = 0; e < n; e++) {
+                for (int j = 0; j < bits; j++) {
+                    if (y[e].testBit(j))
+                        choice[(e * bits + j) >>> 6] |= 1L << ((e * bits + j) & 63);
+                }
+            }
+
+            // 接收方：t_i = G(k_i^0)，u_i = t_i XOR G(k_i^1) XOR r
+            long[][] t = new long[KAPPA][];
+            long[][] u = new long[KAPPA][];
+            IntStream.range(0, KAPPA).parallel().forEach(i -> {
+                t[i] = expand(receiverKeys0[i], from, words);
+                u[i] = expand(receiverKeys1[i], from, words);
+                for (int w = 0; w < words; w++) {
+                    u[i][w] ^= t[i][w] ^ choice[w];
+                }
+            });
+            long[][] peerU = fromBigIntegers(ctx.exchange(toBigIntegers(u, words)), words);
+
+            // 发送方：q_i = G(k_i^{s_i}) XOR s_i u_i，按行即 q_j = t_j XOR r_j s
+            long[][] q = new long[KAPPA][];
+            IntStream.range(0, KAPPA).parallel().forEach(i -> {
+                q[i] = expand(senderKeys[i], from, words);
+                if (bit(s, i)) {
+                    for (int w = 0; w < words; w++) {
+                        q[i][w] ^= peerU[i][w];
+                    }
+                }
+            });
+
+            long[] tRows = transpose(t, words);
+            long[] qRows = transpose(q, words);
+
+            // 发送方：tau_j = H(j, q_j XOR s) - H(j, q_j) - x * 2^j，自己的分享为 -SUM( H(j, q_j) )
+            BigInteger[] h0 = hash(qRows, from, n * bits, false, mod);
+            BigInteger[] h1 = hash(qRows, from, n * bits, true, mod);
+            BigInteger[] tau = new BigInteger[n * bits];
+            BigInteger[] result = new BigInteger[n];
+            IntStream.range(0, n).parallel().forEach(e -> {
+                BigInteger share = BigInteger.ZERO;
+                for (int j = 0; j < bits; j++) {
+                    int row = e * bits + j;
+                    tau[row] = h1[row].subtract(h0[row]).subtract(x[e].shiftLeft(j)).mod(mod);
+                    share = share.subtract(h0[row]);
+                }
+                result[e] = share;
+            });
+            BigInteger[] peerTau = ctx.exchange(tau);
+
+            // 接收方：H(j, t_j) - r_j tau_j，r_j = 0时为H(j, q_j)，r_j = 1时为 H(j, q_j) + x * 2^j
+            BigInteger[] h = hash(tRows, from, n * bits, false, mod);
+            IntStream.range(0, n).parallel().forEach(e -> {
+                BigInteger share = result[e];
+                for (int j = 0; j < bits; j++) {
+                    int row = e * bits + j;
+                    share = share.add(h[row]);
+                    if (y[e].testBit(j))
+                        share = share.subtract(peerTau[row]);
+                }
+                result[e] = share.mod(mod);
+            });
+
+            return result;
+        });
+    }
+
+    /**
+     * 生成n个乘法三元组：双方各自随机选择a_i、b_i，c_i = a_i b_i + < a_1 b_2 + a_2 b_1 >
+     * <p>
+     * 每TRIPLE_BATCH个一批计算交叉项，批数多时只多出轮数。
+     */
+    public MultiplicationTriple[] generateMultiplicationTriples(int n) throws IOException {
+        return ProtocolCostCounter.call("generateMultiplicationTriples", () -> {
+            BigInteger mod = ctx.mod;
+            BigInteger[] a = new BigInteger[n], b = new BigInteger[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = ctx.getRandomBigInteger(mod);
+                b[i] = ctx.getRandomBigInteger(mod);
+            }
+
+            MultiplicationTriple[] triples = new MultiplicationTriple[n];
+            for (int from = 0; from < n; from += TRIPLE_BATCH) {
+                int to = Math.min(n, from + TRIPLE_BATCH);
+                BigInteger[] cross = crossProduct(Arrays.copyOfRange(a, from, to), Arrays.copyOfRange(b, from, to),
+                        mod.bitLength());
+                for (int i = from; i < to; i++) {
+                    triples[i] = new MultiplicationTriple(a[i], b[i],
+                            a[i].multiply(b[i]).add(cross[i - from]).mod(mod));
+                }
+            }
+
+            return triples;
+        });
+    }
+
+    /**
+     * 生成n个随机数元组：双方各自随机选择比特u_i，r的各比特为 u_1 XOR u_2 = u_1 + u_2 - 2 u_1 u_2。
+     * <p>
+     * r在[0, 2^l)中均匀分布，公开 < p-1 < r > 并丢弃 r >= p 的元组，剩下的r在[0, p)中均匀分布。
+     * 每轮比较中每个元素用到的 2l-1 个乘法三元组（见AdditiveSecretSharing.secureComparisionSub2）当场生成，
+     * 只用这一次，否则公开的比较结果会泄露被丢弃的r的比特。
+     */
+    public RandomNumberTuple[] generateRandomNumberTuples(int n) throws IOException {
+        return ProtocolCostCounter.call("generateRandomNumberTuples", () -> {
+            BigInteger mod = ctx.mod;
+            int l = mod.bitLength();
+
+            List<RandomNumberTuple> tuples = new ArrayList<>();
+            while (tuples.size() < n) {
+                // p > 2^(l-1)，每个元组被保留的概率大于1/2
+                int batch = 2 * (n - tuples.size()) + 8;
+
+                // 比较中每个元素用(l-1)个乘法算前缀或、l个乘法求和
+                int tripleNumber = batch * (2 * l - 1);
+                MultiplicationTriple[] triples = generateMultiplicationTriples(tripleNumber);
+                ProtocolContext tripleCtx = ctx.fork(ctx.reader, ctx.writer, CorrelatedRandomness.pooled(
+                        ctx.randomness, triples, CorrelatedRandomness.Cursor.of(tripleNumber)));
+
+                BigInteger[] u = new BigInteger[batch * l];
+                for (int i = 0; i < u.length; i++) {
+                    u[i] = ctx.random.nextBoolean() ? BigInteger.ONE : BigInteger.ZERO;
+                }
+                BigInteger[] uu = crossProduct(u, u, 1); // < 2 u_1 u_2 >
+
+                BigInteger[][] rBinarys = new BigInteger[batch][l];
+                BigInteger[] rs = new BigInteger[batch];
+                BigInteger[] bounds = new BigInteger[batch];
+                for (int e = 0; e < batch; e++) {
+                    BigInteger r = BigInteger.ZERO;
+                    for (int j = 0; j < l; j++) {
+                        rBinarys[e][j] = u[e * l + j].subtract(uu[e * l + j]).mod(mod);
+                        r = r.add(rBinarys[e][j].shiftLeft(j));
+                    }
+                    rs[e] = r.mod(mod);
+                    bounds[e] = mod.subtract(BigInteger.ONE);
+                }
+
+                BigInteger[] outside = AdditiveSecretSharing.recover(tripleCtx,
+                        AdditiveSecretSharing.secureComparisionSub2(tripleCtx, bounds, rBinarys, l));
+                for (int e = 0; e < batch && tuples.size() < n; e++) {
+                    if (outside[e].signum() == 0)
+                        tuples.add(new RandomNumberTuple(rs[e], l, rBinarys[e]));
+                }
+            }
+
+            return tuples.toArray(new RandomNumberTuple[0]);
+        });
+    }
+
+    /**
+     * 生成number个随机数元组和 number * 2l 个乘法三元组，返回views个相关随机数来源，第i个取其中的第 i * number / views 个
+     * 到第 (i + 1) * number / views 个（不含）随机数元组以及对应区间的乘法三元组，每个只用一次，用完后出错；
+     * 比较密钥等其余相关随机数取自base。双方需同时调用。
+     * <p>
+     * 基于比特分解的比较中每个元素用一个随机数元组和 2l-1 个乘法三元组，所以按每个元组 2l 个三元组准备，多出的留给其余乘法。
+     */
+    public static CorrelatedRandomness[] preprocess(ProtocolContext ctx, CorrelatedRandomness base, int number,
+            int views) throws IOException {
+        CorrelatedRandomness[] bases = new CorrelatedRandomness[views];
+        Arrays.fill(bases, base);
+        return preprocess(ctx, bases, number);
+    }
+
+    /**
+     * 同上，每个来源一个base，如常驻服务中各条通道各自租用的比较密钥（见AsyncProtocol）
+     */
+    public static CorrelatedRandomness[] preprocess(ProtocolContext ctx, CorrelatedRandomness[] bases, int number)
+            throws IOException {
+
+        int views = bases.length;
+        OTPreprocessing ot = new OTPreprocessing(ctx);
+        int triplesPerTuple = 2 * ctx.mod.bitLength();
+        MultiplicationTriple[] triples = ot.generateMultiplicationTriples(number * triplesPerTuple);
+        RandomNumberTuples tuples = RandomNumberTuples.of(ot.generateRandomNumberTuples(number), ctx.mod);
+
+        CorrelatedRandomness[] randomness = new CorrelatedRandomness[views];
+        for (int i = 0; i < views; i++) {
+            long from = (long) number * i / views;
+            long to = (long) number * (i + 1) / views;
+            randomness[i] = CorrelatedRandomness.batched(CorrelatedRandomness.pooled(bases[i], triples,
+                    CorrelatedRandomness.Cursor.range(from * triplesPerTuple, to * triplesPerTuple)), tuples,
+                    CorrelatedRandomness.Cursor.range(from, to), ctx.mod);
+        }
+
+        return randomness;
+    }
+
+    /*
+     * 由基础OT的群元素导出AES密钥：SHA-256(i || K)的前16字节
+     */
+    private static byte[] deriveKey(int i, BigInteger element) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(4).putInt(i).array());
+            digest.update(element.toByteArray());
+            return Arrays.copyOf(digest.digest(), KEY_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * G(k)中从第from比特开始的words个long，from为128的倍数
+     */
+    private static long[] expand(byte[] key, long from, int words) {
+        byte[] iv = new byte[16];
+        long counter = from / 128;
+        for (int k = 0; k < 8; k++) {
+            iv[15 - k] = (byte) (counter >>> (8 * k));
+        }
+
+        byte[] stream;
+        try {
+            Cipher cipher = PRG.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            stream = cipher.doFinal(new byte[8 * words]);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long[] result = new long[words];
+        ByteBuffer.wrap(stream).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(result);
+        return result;
+    }
+
+    /*
+     * 把KAPPA列、每列words个long的矩阵转置为按行存放，第j行为 rows[j * KAPPA_WORDS ...]
+     */
+    private static long[] transpose(long[][] columns, int words) {
+        long[] rows = new long[words * 64 * KAPPA_WORDS];
+        IntStream.range(0, words).parallel().forEach(w -> {
+            long[] block = new long[64];
+            for (int h = 0; h < KAPPA_WORDS; h++) {
+                for (int b = 0; b < 64; b++) {
+                    block[b] = columns[64 * h + b][w];
+                }
+                transpose64(block);
+                for (int j = 0; j < 64; j++) {
+                    rows[(64 * w + j) * KAPPA_WORDS + h] = block[j];
+                }
+            }
+        });
+        return rows;
+    }
+
+    /*
+     * 64 x 64的比特矩阵原地转置：a[i]的第j位与a[j]的第i位交换
+     */
+    private static void transpose64(long[] a) {
+        long m = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>= 1, m ^= (m << j)) {
+            for (int k = 0; k < 64; k = ((k | j) + 1) & ~j) {
+                long t = ((a[k] >>> j) ^ a[k | j]) & m;
+                a[k] ^= t << j;
+                a[k | j] ^= t;
+            }
+        }
+    }
+
+    /*
+     * 对前count行求 H(j, row_j)，每HASH_ROWS行一段并行计算
+     */
+    private BigInteger[] hash(long[] rows, long from, int count, boolean xorS, BigInteger mod) {
+        BigInteger[] result = new BigInteger[count];
+        IntStream.range(0, (count + HASH_ROWS - 1) / HASH_ROWS).parallel().forEach(c -> {
+            int start = c * HASH_ROWS;
+            BigInteger[] h = hash(rows, from, start, Math.min(HASH_ROWS, count - start), xorS, mod);
+            System.arraycopy(h, 0, result, start, h.length);
+        });
+        return result;
+    }
+
+    /*
+     * 对第start行起的count行求 H(j, row_j)（xorS为true时为 H(j, row_j XOR s)），j为全局的行号。
+     * H(j, x) = AES(x XOR j') XOR x XOR j'，每行取多个分组（j'各不相同），转换到Z_p时多出STATISTICAL_SECURITY个比特
+     */
+    private BigInteger[] hash(long[] rows, long from, int start, int count, boolean xorS, BigInteger mod) {
+        int blocks = (mod.bitLength() + AdditiveSecretSharing.STATISTICAL_SECURITY + KAPPA - 1) / KAPPA;
+
+        ByteBuffer in = ByteBuffer.allocate(count * blocks * 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int j = 0; j < count; j++) {
+            int offset = (start + j) * KAPPA_WORDS;
+            long x0 = rows[offset], x1 = rows[offset + 1];
+            if (xorS) {
+                x0 ^= s[0];
+                x1 ^= s[1];
+            }
+            for (int b = 0; b < blocks; b++) {
+                in.putLong(x0);
+                in.putLong(x1 ^ ((from + start + j) * blocks + b));
+            }
+        }
+
+        byte[] out;
+        try {
+            out = HASH.get().doFinal(in.array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] input = in.array();
+        for (int i = 0; i < out.length; i++) {
+            out[i] ^= input[i];
+        }
+
+        BigInteger[] result = new BigInteger[count];
+        for (int j = 0; j < count; j++) {
+            result[j] = new BigInteger(1, Arrays.copyOfRange(out, j * blocks * 16, (j + 1) * blocks * 16)).mod(mod);
+        }
+        return result;
+    }
+
+    /*
+     * 交换矩阵时每列分成若干段，每段CHUNK_WORDS个long转换为一个BigInteger
+     */
+    private static BigInteger[] toBigIntegers(long[][] columns, int words) {
+        int chunks = (words + CHUNK_WORDS - 1) / CHUNK_WORDS;
+        BigInteger[] result = new BigInteger[columns.length * chunks];
+        for (int i = 0; i < columns.length; i++) {
+            for (int c = 0; c < chunks; c++) {
+                int length = Math.min(CHUNK_WORDS, words - c * CHUNK_WORDS);
+                ByteBuffer buffer = ByteBuffer.allocate(8 * length);
+                buffer.asLongBuffer().put(columns[i], c * CHUNK_WORDS, length);
+                result[i * chunks + c] = new BigInteger(1, buffer.array());
+            }
+        }
+        return result;
+    }
+
+    private static long[][] fromBigIntegers(BigInteger[] x, int words) {
+        int chunks = (words + CHUNK_WORDS - 1) / CHUNK_WORDS;
+        long[][] columns = new long[x.length / chunks][words];
+        for (int i = 0; i < columns.length; i++) {
+            for (int c = 0; c < chunks; c++) {
+                int length = Math.min(CHUNK_WORDS, words - c * CHUNK_WORDS);
+                byte[] bytes = x[i * chunks + c].toByteArray();
+                byte[] padded = new byte[8 * length];
+                int copy = Math.min(bytes.length, padded.length); // 去掉符号位多出的字节
+                System.arraycopy(bytes, bytes.length - copy, padded, padded.length - copy, copy);
+                ByteBuffer.wrap(padded).asLongBuffer().get(columns[i], c * CHUNK_WORDS, length);
+            }
+        }
+        return columns;
+    }
+
+    private static boolean bit(long[] x, int i) {
+        return ((x[i >>> 6] >>> (i & 63)) & 1L) != 0;
+    }
+}
@@ -0,0 +1,205 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.PartyID;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+import cn.ac.iscas.utils.Util;
+
+/**
+ * 协议上下文
+ * <p>
+ * 执行协议所需的全部状态：参与方、模数、与对方的信道、相关随机数来源、本地随机数生成器、临时缓冲区以及开销统计。
+ * AdditiveSecretSharing和SKNNV2的交互原语都以它作为第一个参数，不同上下文之间不共享可变状态，
+ * 所以同一JVM中的多个查询各用一个上下文即可同时执行。
+ * <p>
+ * 上下文本身不是线程安全的，同一时间只应由一个线程使用。
+ */
+public class ProtocolContext {
+
+    // 临时缓冲区的个数，见scratch()
+    private final static int SCRATCH_SLOTS = 4;
+
+    public final PartyID partyID;
+    public final BigInteger mod;
+    public final BufferedReader reader;
+    public final PrintWriter writer;
+    public final CorrelatedRandomness randomness;
+    public final Random random = new SecureRandom();
+
+    private final BigInteger one; // 公开常量1的分享
+    private final BigInteger[][] scratch = new BigInteger[SCRATCH_SLOTS][];
+
+    private ProtocolCostCounter.CostNode metrics = null;
+    private AsyncProtocol async = null;
+
+    public ProtocolContext(PartyID partyID, BigInteger mod, BufferedReader reader, PrintWriter writer,
+            CorrelatedRandomness randomness) {
+        this.partyID = partyID;
+        this.mod = mod;
+        this.reader = reader;
+        this.writer = writer;
+        this.randomness = randomness;
+        this.one = AdditiveSecretSharing.shareConstant(partyID, BigInteger.ONE);
+    }
+
+    /**
+     * 使用固定的乘法三元组和随机数元组，见CorrelatedRandomness.fixed()
+     */
+    public ProtocolContext(PartyID partyID, BigInteger mod, BufferedReader reader, PrintWriter writer,
+            MultiplicationTriple triple, RandomNumberTuple rTuple) {
+        this(partyID, mod, reader, writer, CorrelatedRandomness.fixed(triple, rTuple));
+    }
+
+    /**
+     * 同上，cKeys不为null时大小比较改用基于DCF的协议（见AdditiveSecretSharing.secureComparisionFSS），
+     * eKeys不为null时等值比较改用基于DCF的协议（见AdditiveSecretSharing.secureEqualFSS），每个元素用掉其中一个
+     */
+    public ProtocolContext(PartyID partyID, BigInteger mod, BufferedReader reader, PrintWriter writer,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, ComparisonKey[] cKeys, ComparisonKey[] eKeys) {
+        this(partyID, mod, reader, writer, withKeys(CorrelatedRandomness.fixed(triple, rTuple), cKeys, eKeys));
+    }
+
+    private static CorrelatedRandomness withKeys(CorrelatedRandomness randomness, ComparisonKey[] cKeys,
+            ComparisonKey[] eKeys) {
+        if (cKeys != null)
+            randomness = CorrelatedRandomness.comparisonKeys(randomness, cKeys);
+        if (eKeys != null)
+            randomness = CorrelatedRandomness.equalityKeys(randomness, eKeys);
+
+        return randomness;
+    }
+
+    /**
+     * 使用另一条信道的上下文，参与方、模数和相关随机数来源不变。
+     * <p>
+     * 固定的相关随机数可以共享；按顺序逐个消耗的来源需为每条信道单独准备，保证双方的消耗顺序一致。
+     */
+    public ProtocolContext fork(BufferedReader reader, PrintWriter writer, CorrelatedRandomness randomness) {
+        return new ProtocolContext(partyID, mod, reader, writer, randomness);
+    }
+
+    public ProtocolContext fork(BufferedReader reader, PrintWriter writer) {
+        return fork(reader, writer, randomness);
+    }
+
+    /**
+     * @return 异步执行子协议的调度器。未设置时使用本上下文的信道，子协议在提交时直接执行，不开线程。
+     */
+    public AsyncProtocol async() {
+        if (async == null)
+            async = new AsyncProtocol(this);
+
+        return async;
+    }
+
+    /**
+     * 设置有多条通道的调度器，由调用方负责关闭（如常驻服务在会话结束时）
+     */
+    public void setAsync(AsyncProtocol async) {
+        this.async = async;
+    }
+
+    public boolean isC1() {
+        return partyID == PartyID.C1;
+    }
+
+    /**
+     * @return 公开常量1的分享
+     */
+    public BigInteger one() {
+        return one;
+    }
+
+    public MultiplicationTriple nextMultiplicationTriple() {
+        return randomness.nextMultiplicationTriple();
+    }
+
+    public MultiplicationTriple[] nextMultiplicationTriples(int n) {
+        return randomness.nextMultiplicationTriples(n);
+    }
+
+    public RandomNumberTuple nextRandomNumberTuple() {
+        return randomness.nextRandomNumberTuple();
+    }
+
+    public RandomNumberTuple[] nextRandomNumberTuples(int n) {
+        return randomness.nextRandomNumberTuples(n);
+    }
+
+    public boolean hasComparisonKeys() {
+        return randomness.hasComparisonKeys();
+    }
+
+    public ComparisonKey[] nextComparisonKeys(int n) {
+        return randomness.nextComparisonKeys(n);
+    }
+
+    public boolean hasEqualityKeys() {
+        return randomness.hasEqualityKeys();
+    }
+
+    public ComparisonKey[] nextEqualityKeys(int n) {
+        return randomness.nextEqualityKeys(n);
+    }
+
+    public BigInteger getRandomBigInteger(BigInteger bound) {
+        return Util.getRandomBigInteger(bound, random);
+    }
+
+    /**
+     * 与对方交换数据，见Util.exchangeBigIntegers()
+     */
+    public BigInteger[] exchange(BigInteger[] x) throws IOException {
+        return Util.exchangeBigIntegers(x, reader, writer);
+    }
+
+    /**
+     * 与对方交换少量数据，不启动读写线程，见Util.exchangeBigIntegersDirectly()
+     */
+    public BigInteger[] exchangeDirectly(BigInteger[] x) throws IOException {
+        return Util.exchangeBigIntegersDirectly(x, reader, writer);
+    }
+
+    /**
+     * 取一个长度为length的临时缓冲区，同一slot的缓冲区会被重复使用。
+     * <p>
+     * 仅用于不会逃出当前调用的中间结果，如逐层计算时每层的输入。
+     */
+    public BigInteger[] scratch(int slot, int length) {
+        BigInteger[] buffer = scratch[slot];
+        if (buffer == null || buffer.length != length) {
+            buffer = new BigInteger[length];
+            scratch[slot] = buffer;
+        }
+
+        return buffer;
+    }
+
+    /**
+     * 开始记录一次查询的协议开销，需在执行查询的线程中调用，见ProtocolCostCounter.startQuery()
+     */
+    public ProtocolCostCounter.CostNode startQuery(String name) {
+        metrics = ProtocolCostCounter.startQuery(name);
+        return metrics;
+    }
+
+    public ProtocolCostCounter.CostNode finishQuery() {
+        return ProtocolCostCounter.finishQuery();
+    }
+
+    /**
+     * @return 最近一次查询的开销统计，未记录时返回null
+     */
+    public ProtocolCostCounter.CostNode getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,277 @@
+package cn.ac.iscas.secretsharing;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.stream.IntStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+
+/**
+ * 一批随机数元组中某方的部分，每个元组只用于一次大小比较或等值比较中的一个元素
+ * <p>
+ * 每个元组由 l + 1 个分享组成：r以及r的l个比特。C1的分享由种子展开（AES-CTR，每个元组一段独立的密钥流），
+ * 所以只需保存种子；C2的分享为 真实值 - C1的分享，按64位分块紧凑地存放在long数组中，
+ * 不为每个比特单独创建BigInteger。模数不超过62位时，生成和展开都只使用long运算。
+ * 两方自己生成的元组（见OTPreprocessing）没有种子，两方都按C2的方式存放（见of()）。
+ * <p>
+ * 生成时各元组互不依赖，按元组并行生成。
+ */
+public class RandomNumberTuples {
+
+    final static int SEED_BYTES = 16;
+
+    // 模数不超过该长度时，分享直接用long计算
+    private final static int LONG_BITS = 62;
+
+    public int l; // 比特数，同RandomNumberTuple.l
+    public int size; // 元组个数
+    public byte[] seed; // C1：展开分享的种子，C2为null
+    private long[] packed; // seed为null时：第i个元组的第j个分享（j = 0为r，之后为r的各比特）从 (i * (l + 1) + j) * limbs 开始
+
+    public RandomNumberTuples() {
+    }
+
+    private RandomNumberTuples(int l, int size, byte[] seed, long[] packed) {
+        this.l = l;
+        this.size = size;
+        this.seed = seed;
+        this.packed = packed;
+    }
+
+    /**
+     * 生成size个元组
+     *
+     * @return 两方的部分，分别由C1、C2持有
+     */
+    public static RandomNumberTuples[] generate(int l, BigInteger mod, int size) {
+        SecureRandom random = new SecureRandom();
+        byte[] dealerSeed = new byte[SEED_BYTES];
+        byte[] seed = new byte[SEED_BYTES];
+        random.nextBytes(dealerSeed);
+        random.nextBytes(seed);
+
+        int limbs = limbs(mod);
+        int width = l + 1;
+        long[] packed = new long[size * width * limbs];
+
+        // 同一线程中的密钥流共用一个Cipher，所以先取出r，再展开C1的分享
+        IntStream.range(0, size).parallel().forEach(i -> {
+            int offset = i * width * limbs;
+
+            if (mod.bitLength() <= LONG_BITS) {
+                long p = mod.longValue();
+                long r = new Stream(dealerSeed, i, mod).nextLong();
+                Stream c1 = new Stream(seed, i, mod);
+                packed[offset] = Math.floorMod(r - c1.nextLong(), p);
+                for (int j = 0; j < l; j++) {
+                    packed[offset + 1 + j] = Math.floorMod(((r >>> j) & 1L) - c1.nextLong(), p);
+                }
+            } else {
+                BigInteger r = new Stream(dealerSeed, i, mod).next();
+                Stream c1 = new Stream(seed, i, mod);
+                pack(r.subtract(c1.next()).mod(mod), packed, offset, limbs);
+                for (int j = 0; j < l; j++) {
+                    BigInteger bit = r.testBit(j) ? BigInteger.ONE : BigInteger.ZERO;
+                    pack(bit.subtract(c1.next()).mod(mod), packed, offset + (1 + j) * limbs, limbs);
+                }
+            }
+        });
+
+        return new RandomNumberTuples[] { new RandomNumberTuples(l, size, seed, null),
+                new RandomNumberTuples(l, size, null, packed) };
+    }
+
+    /**
+     * 把本方已有的元组按C2的方式存放
+     */
+    public static RandomNumberTuples of(RandomNumberTuple[] tuples, BigInteger mod) {
+        int l = mod.bitLength();
+        int limbs = limbs(mod);
+        long[] packed = new long[tuples.length * (l + 1) * limbs];
+        IntStream.range(0, tuples.length).parallel().forEach(i -> {
+            int offset = i * (l + 1) * limbs;
+            pack(tuples[i].r, packed, offset, limbs);
+            for (int j = 0; j < l; j++) {
+                pack(tuples[i].rBinary[j], packed, offset + (1 + j) * limbs, limbs);
+            }
+        });
+        return new RandomNumberTuples(l, tuples.length, null, packed);
+    }
+
+    /**
+     * @return 第index个元组中本方的分享
+     */
+    public RandomNumberTuple get(int index, BigInteger mod) {
+        BigInteger r;
+        BigInteger[] rBinary = new BigInteger[l];
+
+        if (seed != null) {
+            Stream c1 = new Stream(seed, index, mod);
+            r = c1.next();
+            for (int j = 0; j < l; j++) {
+                rBinary[j] = c1.next();
+            }
+        } else {
+            int limbs = limbs(mod);
+            int offset = index * (l + 1) * limbs;
+            r = unpack(packed, offset, limbs);
+            for (int j = 0; j < l; j++) {
+                rBinary[j] = unpack(packed, offset + (1 + j) * limbs, limbs);
+            }
+        }
+
+        return new RandomNumberTuple(r, l, rBinary);
+    }
+
+    /**
+     * 从第from个开始取n个元组，超出size时抛出IllegalStateException，不从头循环使用
+     */
+    public RandomNumberTuple[] get(long from, int n, BigInteger mod) {
+        if (from < 0 || from + n > size)
+            throw new IllegalStateException("random number tuples exhausted: [" + from + ", " + (from + n)
+                    + ") requested, " + size + " in total");
+
+        RandomNumberTuple[] tuples = new RandomNumberTuple[n];
+        IntStream.range(0, n).parallel().forEach(i -> tuples[i] = get((int) (from + i), mod));
+        return tuples;
+    }
+
+    /**
+     * C2的分享序列化为Base64，避免JSON中逐个写出long
+     */
+    public String getPacked() {
+        if (packed == null)
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 * packed.length);
+        buffer.asLongBuffer().put(packed);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    public void setPacked(String packed) {
+        if (packed == null) {
+            this.packed = null;
+            return;
+        }
+
+        LongBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(packed)).asLongBuffer();
+        this.packed = new long[buffer.remaining()];
+        buffer.get(this.packed);
+    }
+
+    static int limbs(BigInteger mod) {
+        return (mod.bitLength() + 63) / 64;
+    }
+
+    static void pack(BigInteger x, long[] packed, int offset, int limbs) {
+        for (int k = 0; k < limbs; k++) {
+            packed[offset + k] = x.shiftRight(64 * k).longValue();
+        }
+    }
+
+    static BigInteger unpack(long[] packed, int offset, int limbs) {
+        if (limbs == 1 && packed[offset] >= 0)
+            return BigInteger.valueOf(packed[offset]);
+
+        byte[] bytes = new byte[8 * limbs + 1]; // 大端，首字节为0，保证结果非负
+        for (int k = 0; k < limbs; k++) {
+            long limb = packed[offset + k];
+            for (int b = 0; b < 8; b++) {
+                bytes[bytes.length - 1 - 8 * k - b] = (byte) (limb >>> (8 * b));
+            }
+        }
+        return new BigInteger(bytes);
+    }
+
+    /*
+     * 第index个元组的密钥流，从中按拒绝采样取出[0, p)中均匀分布的值（MultiplicationTriples也使用）
+     */
+    static class Stream {
+        private final static ThreadLocal<Cipher> AES = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        private final BigInteger mod;
+        private final int bytes; // 每个候选值使用的字节数
+        private final Cipher cipher;
+        private byte[] buffer = new byte[0];
+        private int position = 0;
+
+        Stream(byte[] seed, long index, BigInteger mod) {
+            this.mod = mod;
+            this.bytes = (mod.bitLength() + 7) / 8;
+            this.cipher = AES.get();
+
+            // 每个元组的计数器从 index * 2^32 开始，互不重叠
+            byte[] iv = new byte[SEED_BYTES];
+            long counter = index;
+            for (int k = 0; k < 8; k++) {
+                iv[SEED_BYTES - 5 - k] = (byte) (counter >>> (8 * k));
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"), new IvParameterSpec(iv));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        BigInteger next() {
+            int l = mod.bitLength();
+            while (true) {
+                byte[] candidate = take();
+                BigInteger x = new BigInteger(1, candidate);
+                if (x.bitLength() > l)
+                    x = x.mod(BigInteger.ONE.shiftLeft(l));
+                if (x.compareTo(mod) < 0)
+                    return x;
+            }
+        }
+
+        /*
+         * 同next()，模数不超过62位时使用
+         */
+        private long nextLong() {
+            long p = mod.longValue();
+            long mask = (1L << mod.bitLength()) - 1;
+            while (true) {
+                byte[] candidate = take();
+                long x = 0;
+                for (byte b : candidate) {
+                    x = (x << 8) | (b & 0xff);
+                }
+                x &= mask;
+                if (x < p)
+                    return x;
+            }
+        }
+
+        private byte[] take() {
+            if (position + bytes > buffer.length) {
+                // 一次取出约l + 1个值所需的密钥流
+                byte[] more = cipher.update(new byte[Math.max(bytes * (mod.bitLength() + 1), 64)]);
+                byte[] merged = new byte[buffer.length - position + more.length];
+                System.arraycopy(buffer, position, merged, 0, buffer.length - position);
+                System.arraycopy(more, 0, merged, buffer.length - position, more.length);
+                buffer = merged;
+                position = 0;
+            }
+
+            byte[] candidate = new byte[bytes];
+            System.arraycopy(buffer, position, candidate, 0, bytes);
+            position += bytes;
+            return candidate;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing.BitTuple;
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing.Share;
+import cn.ac.iscas.utils.Util;
+
+/**
+ * 三方复制秘密分享中某一方的协议上下文（见ReplicatedSecretSharing）
+ * <p>
+ * 三方S1、S2、S3（party = 0, 1, 2）连成一个环，每方只向上一方（party - 1）发送、从下一方（party + 1）接收。
+ * 创建时每方把自己的PRF密钥k_i发给上一方，之后每方持有k_i和k_{i+1}，
+ * 由此不需要通信即可生成随机数的分享和零的分享。三方按相同顺序调用，PRF的计数器保持一致。
+ */
+public class ReplicatedContext {
+
+    public final static int PARTIES = 3;
+
+    private final static int KEY_BYTES = 16;
+
+    private final static ThreadLocal<Cipher> PRF = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public final int party;
+    public final BigInteger mod;
+    public final BufferedReader reader; // 来自下一方
+    public final PrintWriter writer; // 发往上一方
+    public final Random random = new SecureRandom();
+
+    private final byte[] key; // k_i
+    private final byte[] nextKey; // k_{i+1}
+    private long counter = 0; // 已使用的PRF输出个数
+
+    // 预先生成的随机数元组，不够时再生成一批（见ReplicatedSecretSharing.generateBitTuples）
+    private final Deque<BitTuple> tuples = new ArrayDeque<>();
+
+    public ReplicatedContext(int party, BigInteger mod, BufferedReader reader, PrintWriter writer)
+            throws IOException {
+        this.party = party;
+        this.mod = mod;
+        this.reader = reader;
+        this.writer = writer;
+
+        key = new byte[KEY_BYTES];
+        random.nextBytes(key);
+        BigInteger peerKey = Util.exchangeBigIntegersDirectly(new BigInteger[] { new BigInteger(1, key) }, reader,
+                writer)[0];
+        nextKey = toKey(peerKey);
+    }
+
+    /**
+     * 随机数r的分享，r = SUM( F(k_i) )，本方持有 (F(k_i), F(k_{i+1}))
+     */
+    public Share[] randomShares(int n) {
+        long from = counter;
+        counter += n;
+
+        BigInteger[] a = prf(key, from, n), b = prf(nextKey, from, n);
+        Share[] shares = new Share[n];
+        for (int i = 0; i < n; i++) {
+            shares[i] = new Share(a[i], b[i]);
+        }
+        return shares;
+    }
+
+    /**
+     * 零的加性分享（三方各一个），alpha_i = F(k_i) - F(k_{i+1})
+     */
+    public BigInteger[] zeroShares(int n) {
+        long from = counter;
+        counter += n;
+
+        BigInteger[] a = prf(key, from, n), b = prf(nextKey, from, n);
+        BigInteger[] alphas = new BigInteger[n];
+        for (int i = 0; i < n; i++) {
+            alphas[i] = a[i].subtract(b[i]).mod(mod);
+        }
+        return alphas;
+    }
+
+    /**
+     * 取n个随机数元组，每个元素各用一个
+     */
+    public BitTuple[] nextBitTuples(int n) throws IOException {
+        if (tuples.size() < n)
+            preprocess(Math.max(n - tuples.size(), ReplicatedSecretSharing.TUPLE_BATCH));
+
+        BitTuple[] result = new BitTuple[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = tuples.poll();
+        }
+        return result;
+    }
+
+    /**
+     * 离线阶段：预先生成n个随机数元组
+     */
+    public void preprocess(int n) throws IOException {
+        for (BitTuple tuple : ReplicatedSecretSharing.generateBitTuples(this, n)) {
+            tuples.add(tuple);
+        }
+    }
+
+    /*
+     * F(k, from), ..., F(k, from + n - 1)：AES-CTR，每个值取若干分组，比p多出STATISTICAL_SECURITY个比特
+     */
+    private BigInteger[] prf(byte[] k, long from, int n) {
+        int blocks = (mod.bitLength() + AdditiveSecretSharing.STATISTICAL_SECURITY + 127) / 128;
+
+        byte[] iv = new byte[16];
+        long start = from * blocks;
+        for (int i = 0; i < 8; i++) {
+            iv[15 - i] = (byte) (start >>> (8 * i));
+        }
+
+        byte[] stream;
+        try {
+            Cipher cipher = PRF.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(k, "AES"), new IvParameterSpec(iv));
+            stream = cipher.doFinal(new byte[n * blocks * 16]);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        BigInteger[] values = new BigInteger[n];
+        byte[] value = new byte[blocks * 16];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(stream, i * value.length, value, 0, value.length);
+            values[i] = new BigInteger(1, value).mod(mod);
+        }
+        return values;
+    }
+
+    private static byte[] toKey(BigInteger x) {
+        byte[] bytes = x.toByteArray();
+        byte[] k = new byte[KEY_BYTES];
+        int copy = Math.min(bytes.length, KEY_BYTES); // 去掉符号位多出的字节
+        System.arraycopy(bytes, bytes.length - copy, k, KEY_BYTES - copy, copy);
+        return k;
+    }
+}
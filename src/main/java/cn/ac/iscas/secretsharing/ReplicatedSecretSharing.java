@@ -0,0 +1,417 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import cn.ac.iscas.utils.ProtocolCostCounter;
+import cn.ac.iscas.utils.Util;
+
+/**
+ * 三方复制秘密分享（诚实多数，半诚实安全）
+ * <p>
+ * x = x_0 + x_1 + x_2 mod p，第i方持有 (x_i, x_{i+1})，任意两方可以恢复x，单独一方得不到x的任何信息。
+ * 乘法不需要乘法三元组：第i方本地计算 z_i = x_i y_i + x_i y_{i+1} + x_{i+1} y_i + alpha_i（alpha为零的分享），
+ * 再把z_i发给上一方，每方每次乘法只发送一个元素、只需一轮。
+ * <p>
+ * 大小比较和等值比较与AdditiveSecretSharing中基于比特分解的协议相同，所需的随机数元组由三方自己生成：
+ * 随机比特由 b = (a / sqrt(a^2) + 1) / 2 得到，要求 p = 3 mod 4。
+ */
+public class ReplicatedSecretSharing {
+
+    public final static int TUPLE_BATCH = 1024; // 随机数元组不够时每批生成的个数
+
+    /**
+     * 某方持有的分享 (x_i, x_{i+1})
+     */
+    public static class Share {
+        public BigInteger a, b;
+
+        public Share() {
+        }
+
+        public Share(BigInteger a, BigInteger b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    /**
+     * 随机数r及其各比特的分享，同AdditiveSecretSharing.RandomNumberTuple
+     */
+    public static class BitTuple {
+        public Share r;
+        public int l;
+        public Share[] rBinary;
+
+        public BitTuple(Share r, int l, Share[] rBinary) {
+            this.r = r;
+            this.l = l;
+            this.rBinary = rBinary;
+        }
+    }
+
+    /**
+     * 分享x，返回三方各自的部分
+     */
+    public static Share[] randomSplit(BigInteger x, BigInteger mod, Random random) {
+        BigInteger[] xs = new BigInteger[ReplicatedContext.PARTIES];
+        xs[0] = Util.getRandomBigInteger(mod, random);
+        xs[1] = Util.getRandomBigInteger(mod, random);
+        xs[2] = x.subtract(xs[0]).subtract(xs[1]).mod(mod);
+
+        Share[] shares = new Share[ReplicatedContext.PARTIES];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] = new Share(xs[i], xs[(i + 1) % shares.length]);
+        }
+        return shares;
+    }
+
+    /**
+     * 由第i方和第i+1方的部分恢复x
+     */
+    public static BigInteger recover(Share si, Share sNext, BigInteger mod) {
+        return si.a.add(sNext.a).add(sNext.b).mod(mod);
+    }
+
+    public static Share add(ReplicatedContext ctx, Share x, Share y) {
+        return new Share(x.a.add(y.a).mod(ctx.mod), x.b.add(y.b).mod(ctx.mod));
+    }
+
+    public static Share subtract(ReplicatedContext ctx, Share x, Share y) {
+        return new Share(x.a.subtract(y.a).mod(ctx.mod), x.b.subtract(y.b).mod(ctx.mod));
+    }
+
+    public static Share multiply(ReplicatedContext ctx, BigInteger c, Share x) {
+        return new Share(c.multiply(x.a).mod(ctx.mod), c.multiply(x.b).mod(ctx.mod));
+    }
+
+    /**
+     * 常数c的分享：c记在x_0上，第0方和第2方持有x_0
+     */
+    public static Share constant(ReplicatedContext ctx, BigInteger c) {
+        BigInteger a = (ctx.party == 0) ? c.mod(ctx.mod) : BigInteger.ZERO;
+        BigInteger b = (ctx.party == ReplicatedContext.PARTIES - 1) ? c.mod(ctx.mod) : BigInteger.ZERO;
+        return new Share(a, b);
+    }
+
+    public static Share addConstant(ReplicatedContext ctx, Share x, BigInteger c) {
+        return add(ctx, x, constant(ctx, c));
+    }
+
+    /**
+     * 恢复x：每方把x_{i+1}发给上一方，从下一方收到x_{i+2}
+     */
+    public static BigInteger[] open(ReplicatedContext ctx, Share[] x) throws IOException {
+        return ProtocolCostCounter.call("open", () -> {
+            BigInteger[] bs = new BigInteger[x.length];
+            for (int i = 0; i < x.length; i++) {
+                bs[i] = x[i].b;
+            }
+            BigInteger[] cs = Util.exchangeBigIntegers(bs, ctx.reader, ctx.writer);
+
+            BigInteger[] result = new BigInteger[x.length];
+            for (int i = 0; i < x.length; i++) {
+                result[i] = x[i].a.add(x[i].b).add(cs[i]).mod(ctx.mod);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 批量乘法，一轮，每方每个元素发送一个值
+     */
+    public static Share[] multiplyS(ReplicatedContext ctx, Share[] x, Share[] y) throws IOException {
+        return ProtocolCostCounter.call("multiplyS", () -> {
+            int num = x.length;
+            BigInteger[] alphas = ctx.zeroShares(num);
+
+            // z_i = x_i y_i + x_i y_{i+1} + x_{i+1} y_i + alpha_i
+            BigInteger[] zs = new BigInteger[num];
+            for (int i = 0; i < num; i++) {
+                zs[i] = x[i].a.multiply(y[i].a.add(y[i].b)).add(x[i].b.multiply(y[i].a)).add(alphas[i])
+                        .mod(ctx.mod);
+            }
+
+            // 把z_i发给上一方，从下一方收到z_{i+1}
+            BigInteger[] zNexts = Util.exchangeBigIntegers(zs, ctx.reader, ctx.writer);
+
+            Share[] result = new Share[num];
+            for (int i = 0; i < num; i++) {
+                result[i] = new Share(zs[i], zNexts[i]);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 批量内积 SUM_j( x[i][j] y[i][j] )：z_i对乘积是线性的，各项在本地求和后再交换，每组只发送一个元素
+     */
+    public static Share[] innerProductS(ReplicatedContext ctx, Share[][] x, Share[][] y) throws IOException {
+        return ProtocolCostCounter.call("innerProductS", () -> {
+            int num = x.length;
+            BigInteger[] alphas = ctx.zeroShares(num);
+
+            BigInteger[] zs = new BigInteger[num];
+            for (int i = 0; i < num; i++) {
+                BigInteger z = alphas[i];
+                for (int j = 0; j < x[i].length; j++) {
+                    z = z.add(x[i][j].a.multiply(y[i][j].a.add(y[i][j].b))).add(x[i][j].b.multiply(y[i][j].a));
+                }
+                zs[i] = z.mod(ctx.mod);
+            }
+
+            BigInteger[] zNexts = Util.exchangeBigIntegers(zs, ctx.reader, ctx.writer);
+
+            Share[] result = new Share[num];
+            for (int i = 0; i < num; i++) {
+                result[i] = new Share(zs[i], zNexts[i]);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 批量连乘：xs[i]为第i组的各乘数，两两相乘，各组同时进行，轮数为log_2(组内个数)
+     */
+    public static Share[] secureProduct(ReplicatedContext ctx, Share[][] xs) throws IOException {
+        return ProtocolCostCounter.call("secureProduct", () -> {
+            Share[][] layer = xs;
+            while (true) {
+                int pairs = 0;
+                for (Share[] x : layer) {
+                    pairs += x.length / 2;
+                }
+                if (pairs == 0)
+                    break;
+
+                Share[] lefts = new Share[pairs], rights = new Share[pairs];
+                int p = 0;
+                for (Share[] x : layer) {
+                    for (int j = 0; j + 1 < x.length; j += 2) {
+                        lefts[p] = x[j];
+                        rights[p++] = x[j + 1];
+                    }
+                }
+                Share[] products = multiplyS(ctx, lefts, rights);
+
+                Share[][] next = new Share[layer.length][];
+                p = 0;
+                for (int i = 0; i < layer.length; i++) {
+                    Share[] x = layer[i];
+                    next[i] = new Share[(x.length + 1) / 2];
+                    for (int j = 0; j < x.length / 2; j++) {
+                        next[i][j] = products[p++];
+                    }
+                    if (x.length % 2 == 1)
+                        next[i][x.length / 2] = x[x.length - 1];
+                }
+                layer = next;
+            }
+
+            Share[] result = new Share[xs.length];
+            for (int i = 0; i < xs.length; i++) {
+                result[i] = layer[i][0];
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 生成n个随机比特的分享：随机的a，公开a^2，b = (a / sqrt(a^2) + 1) / 2，a = 0时重新生成
+     */
+    public static Share[] randomBits(ReplicatedContext ctx, int n) throws IOException {
+        if (!ctx.mod.testBit(1))
+            throw new IllegalArgumentException("the modulus must be 3 mod 4: " + ctx.mod);
+
+        return ProtocolCostCounter.call("randomBits", () -> {
+            BigInteger exponent = ctx.mod.add(BigInteger.ONE).shiftRight(2); // sqrt(v) = v^((p+1)/4)
+            BigInteger inverse2 = BigInteger.TWO.modInverse(ctx.mod);
+
+            List<Share> bits = new ArrayList<>();
+            while (bits.size() < n) {
+                int batch = n - bits.size();
+                Share[] a = ctx.randomShares(batch);
+                BigInteger[] squares = open(ctx, multiplyS(ctx, a, a));
+
+                for (int i = 0; i < batch; i++) {
+                    if (squares[i].signum() == 0)
+                        continue;
+
+                    BigInteger c = squares[i].modPow(exponent, ctx.mod).modInverse(ctx.mod);
+                    bits.add(multiply(ctx, inverse2, addConstant(ctx, multiply(ctx, c, a[i]), BigInteger.ONE)));
+                }
+            }
+
+            return bits.toArray(new Share[0]);
+        });
+    }
+
+    /**
+     * 生成n个随机数元组：r的各比特为随机比特，公开 < p-1 < r > 并丢弃 r >= p 的元组
+     */
+    public static BitTuple[] generateBitTuples(ReplicatedContext ctx, int n) throws IOException {
+        return ProtocolCostCounter.call("generateBitTuples", () -> {
+            int l = ctx.mod.bitLength();
+
+            List<BitTuple> tuples = new ArrayList<>();
+            while (tuples.size() < n) {
+                // p > 2^(l-1)，每个元组被保留的概率大于1/2
+                int batch = 2 * (n - tuples.size()) + 8;
+                Share[] bits = randomBits(ctx, batch * l);
+
+                Share[][] rBinarys = new Share[batch][];
+                BigInteger[] bounds = new BigInteger[batch];
+                for (int e = 0; e < batch; e++) {
+                    rBinarys[e] = new Share[l];
+                    System.arraycopy(bits, e * l, rBinarys[e], 0, l);
+                    bounds[e] = ctx.mod.subtract(BigInteger.ONE);
+                }
+                BigInteger[] outside = open(ctx, bitsLessThan(ctx, bounds, rBinarys, l));
+
+                for (int e = 0; e < batch && tuples.size() < n; e++) {
+                    if (outside[e].signum() != 0)
+                        continue;
+
+                    // <r> = SUM( 2^j <r_j> )
+                    Share r = constant(ctx, BigInteger.ZERO);
+                    for (int j = 0; j < l; j++) {
+                        r = add(ctx, r, multiply(ctx, BigInteger.ONE.shiftLeft(j), rBinarys[e][j]));
+                    }
+                    tuples.add(new BitTuple(r, l, rBinarys[e]));
+                }
+            }
+
+            return tuples.toArray(new BitTuple[0]);
+        });
+    }
+
+    /**
+     * 批量计算 bool(a < b)，0 <= a, b < p/2，与AdditiveSecretSharing.secureComparision()相同
+     */
+    public static Share[] secureComparision(ReplicatedContext ctx, Share[] a, Share[] b) throws IOException {
+        return ProtocolCostCounter.call("secureComparision", () -> {
+            int num = a.length;
+            int l = ctx.mod.bitLength();
+            BitTuple[] tuples = ctx.nextBitTuples(num);
+
+            // <c> = 2(<a> - <b>) + <r>，恢复c
+            Share[] cs = new Share[num];
+            for (int i = 0; i < num; i++) {
+                Share x = subtract(ctx, a[i], b[i]);
+                cs[i] = add(ctx, add(ctx, x, x), tuples[i].r);
+            }
+            BigInteger[] c = open(ctx, cs);
+
+            // <alpha> = <c_0 XOR r_0>，<beta> = < c<r >
+            Share[] alphas = new Share[num];
+            Share[][] rBinarys = new Share[num][];
+            for (int i = 0; i < num; i++) {
+                alphas[i] = bitXor(ctx, c[i].testBit(0), tuples[i].rBinary[0]);
+                rBinarys[i] = tuples[i].rBinary;
+            }
+            Share[] betas = bitsLessThan(ctx, c, rBinarys, l);
+
+            // < a<b > = <x_0> = <alpha> + <beta> - 2 <alpha> <beta>
+            Share[] ts = multiplyS(ctx, alphas, betas);
+            Share[] result = new Share[num];
+            for (int i = 0; i < num; i++) {
+                result[i] = subtract(ctx, add(ctx, alphas[i], betas[i]), multiply(ctx, BigInteger.TWO, ts[i]));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 批量计算 bool(a == b)，与AdditiveSecretSharing.secureEqual()相同
+     */
+    public static Share[] secureEqual(ReplicatedContext ctx, Share[] a, Share[] b) throws IOException {
+        return ProtocolCostCounter.call("secureEqual", () -> {
+            int num = a.length;
+            int l = ctx.mod.bitLength();
+            BitTuple[] tuples = ctx.nextBitTuples(num);
+
+            // <c> = <a> - <b> + <r>，恢复c
+            Share[] cs = new Share[num];
+            for (int i = 0; i < num; i++) {
+                cs[i] = add(ctx, subtract(ctx, a[i], b[i]), tuples[i].r);
+            }
+            BigInteger[] c = open(ctx, cs);
+
+            // <c=r> = PROD( 1 - <c_j XOR r_j> )
+            Share[][] alphas = new Share[num][l];
+            for (int i = 0; i < num; i++) {
+                for (int j = 0; j < l; j++) {
+                    alphas[i][j] = bitXor(ctx, !c[i].testBit(j), tuples[i].rBinary[j]);
+                }
+            }
+            return secureProduct(ctx, alphas);
+        });
+    }
+
+    /*
+     * 计算 < c<r >，其中c为公开值，r按比特分享，只比较低l位，与AdditiveSecretSharing.secureComparisionSub2()相同
+     */
+    private static Share[] bitsLessThan(ReplicatedContext ctx, BigInteger[] c, Share[][] rBinarys, int l)
+            throws IOException {
+
+        int num = c.length;
+
+        // <c_i XOR r_i>
+        Share[][] xs = new Share[num][l];
+        for (int e = 0; e < num; e++) {
+            for (int i = 0; i < l; i++) {
+                xs[e][i] = bitXor(ctx, c[e].testBit(i), rBinarys[e][i]);
+            }
+        }
+
+        // <d_i> = <d_{i+1}> + <x_i> - <d_{i+1}> <x_i>，<e_i> = <d_i> - <d_{i+1}>
+        Share[] ds = new Share[num];
+        Share[][] es = new Share[num][l];
+        for (int e = 0; e < num; e++) {
+            ds[e] = xs[e][l - 1];
+            es[e][l - 1] = ds[e];
+        }
+        for (int i = l - 2; i >= 0; i--) {
+            Share[] column = new Share[num];
+            for (int e = 0; e < num; e++) {
+                column[e] = xs[e][i];
+            }
+            Share[] ts = multiplyS(ctx, ds, column);
+            for (int e = 0; e < num; e++) {
+                Share d = subtract(ctx, add(ctx, ds[e], xs[e][i]), ts[e]);
+                es[e][i] = subtract(ctx, d, ds[e]);
+                ds[e] = d;
+            }
+        }
+
+        // < c<r > = SUM( <e_i> <r_i> )
+        Share[] lefts = new Share[num * l], rights = new Share[num * l];
+        for (int e = 0; e < num; e++) {
+            for (int i = 0; i < l; i++) {
+                lefts[e * l + i] = es[e][i];
+                rights[e * l + i] = rBinarys[e][i];
+            }
+        }
+        Share[] ts = multiplyS(ctx, lefts, rights);
+
+        Share[] result = new Share[num];
+        for (int e = 0; e < num; e++) {
+            Share sum = constant(ctx, BigInteger.ZERO);
+            for (int i = 0; i < l; i++) {
+                sum = add(ctx, sum, ts[e * l + i]);
+            }
+            result[e] = sum;
+        }
+        return result;
+    }
+
+    /*
+     * <c XOR r>：c = 0时为<r>，c = 1时为 1 - <r>
+     */
+    private static Share bitXor(ReplicatedContext ctx, boolean c, Share r) {
+        return c ? subtract(ctx, constant(ctx, BigInteger.ONE), r) : r;
+    }
+}
@@ -0,0 +1,561 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+import cn.ac.iscas.utils.ServerMetrics;
+
+import static cn.ac.iscas.secretsharing.AdditiveSecretSharing.*;
+
+/**
+ * 延迟执行的秘密分享计算
+ * <p>
+ * 调用方先用add、multiply、open、lessThan、equal等方法构造计算图，此时不发生任何通信；
+ * 需要结果时（Value.share()或flush()）才统一执行。执行时区分公开值和秘密分享：
+ * <ul>
+ * <li>加减法、公开值与秘密分享的乘法在本地完成，不需要通信；</li>
+ * <li>两个秘密分享的乘法和秘密恢复（open）需要通信。所有输入已就绪的乘法和恢复合并为一轮交换，
+ * 即每轮交换处理计算图中的一层。</li>
+ * </ul>
+ * 大小比较和等值比较按AdditiveSecretSharing中的协议展开为乘法和恢复，所以与其他互相独立的计算共用交换轮次，
+ * 整个计算图的通信轮数等于其关键路径上的交互层数。
+ * <p>
+ * 双方必须以相同的顺序构造相同的计算图（图的结构只能依赖公开值）。
+ * 与ProtocolContext一样，不是线程安全的。
+ */
+public class ShareCircuit {
+
+    // 元素个数不超过该值时直接交换，不启动读写线程
+    private final static int DIRECT_EXCHANGE_LIMIT = 16;
+
+    private enum Kind {
+        INPUT, LOCAL, MULTIPLY, OPEN
+    }
+
+    /**
+     * 计算图中的一个值：公开值，或本方持有的秘密分享
+     */
+    public class Value {
+        private final Kind kind;
+        private final boolean isPublic;
+        private final Value[] inputs;
+        private final Function<BigInteger[], BigInteger> function; // 仅LOCAL使用
+
+        private BigInteger value = null; // 公开值或本方的分享，null表示尚未计算
+
+        private Value(Kind kind, boolean isPublic, Value[] inputs, Function<BigInteger[], BigInteger> function) {
+            this.kind = kind;
+            this.isPublic = isPublic;
+            this.inputs = inputs;
+            this.function = function;
+        }
+
+        public boolean isPublic() {
+            return isPublic;
+        }
+
+        /**
+         * @return 本方持有的分享，公开值按shareConstant()的规则拆分。未计算时先执行flush()。
+         */
+        public BigInteger share() throws IOException {
+            if (value == null)
+                flush();
+
+            return isPublic ? shareConstant(ctx, value) : value;
+        }
+
+        /**
+         * @return 公开值，未计算时先执行flush()
+         */
+        public BigInteger publicValue() throws IOException {
+            if (!isPublic)
+                throw new IllegalStateException("The value is secret shared");
+            if (value == null)
+                flush();
+
+            return value;
+        }
+
+        private boolean isReady() {
+            for (Value input : inputs) {
+                if (input.value == null)
+                    return false;
+            }
+            return true;
+        }
+
+        private BigInteger[] inputValues() {
+            BigInteger[] values = new BigInteger[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                values[i] = inputs[i].value;
+            }
+            return values;
+        }
+    }
+
+    private final static Value[] NO_INPUTS = new ShareCircuit.Value[0];
+
+    private final ProtocolContext ctx;
+    private final List<Value> pending = new ArrayList<>(); // 按创建顺序，即拓扑顺序
+
+    private final Value zero, one;
+
+    public ShareCircuit(ProtocolContext ctx) {
+        this.ctx = ctx;
+        this.zero = constant(BigInteger.ZERO);
+        this.one = constant(BigInteger.ONE);
+    }
+
+    public ProtocolContext getContext() {
+        return ctx;
+    }
+
+    /*
+     * 构造计算图
+     */
+
+    public Value constant(BigInteger value) {
+        Value v = new Value(Kind.INPUT, true, NO_INPUTS, null);
+        v.value = value.mod(ctx.mod);
+        return v;
+    }
+
+    public Value zero() {
+        return zero;
+    }
+
+    public Value one() {
+        return one;
+    }
+
+    public Value secret(BigInteger share) {
+        Value v = new Value(Kind.INPUT, false, NO_INPUTS, null);
+        v.value = share;
+        return v;
+    }
+
+    public Value[] secrets(BigInteger[] shares) {
+        Value[] values = new Value[shares.length];
+        for (int i = 0; i < shares.length; i++) {
+            values[i] = secret(shares[i]);
+        }
+        return values;
+    }
+
+    /*
+     * 本地计算。输入都已就绪时立即计算，否则留到flush()。
+     */
+    private Value local(boolean isPublic, Function<BigInteger[], BigInteger> function, Value... inputs) {
+        Value v = new Value(Kind.LOCAL, isPublic, inputs, function);
+        if (v.isReady())
+            v.value = function.apply(v.inputValues());
+        else
+            pending.add(v);
+
+        return v;
+    }
+
+    private Value interactive(Kind kind, boolean isPublic, Value... inputs) {
+        Value v = new Value(kind, isPublic, inputs, null);
+        pending.add(v);
+        return v;
+    }
+
+    public Value add(Value a, Value b) {
+        if (a.isPublic == b.isPublic)
+            return local(a.isPublic, in -> in[0].add(in[1]).mod(ctx.mod), a, b);
+
+        // 公开值与秘密分享相加：公开值只由C_1加上
+        Value s = a.isPublic ? b : a, p = a.isPublic ? a : b;
+        return local(false, in -> in[0].add(shareConstant(ctx, in[1])).mod(ctx.mod), s, p);
+    }
+
+    public Value subtract(Value a, Value b) {
+        if (a.isPublic == b.isPublic)
+            return local(a.isPublic, in -> in[0].subtract(in[1]).mod(ctx.mod), a, b);
+
+        return local(false, in -> shareOf(a, in[0]).subtract(shareOf(b, in[1])).mod(ctx.mod), a, b);
+    }
+
+    private BigInteger shareOf(Value v, BigInteger value) {
+        return v.isPublic ? shareConstant(ctx, value) : value;
+    }
+
+    public Value sum(Value... values) {
+        Value result = zero;
+        for (Value v : values) {
+            result = add(result, v);
+        }
+        return result;
+    }
+
+    /**
+     * 乘法。只有两个秘密分享相乘时才需要通信，含公开值的乘法在本地完成。
+     */
+    public Value multiply(Value a, Value b) {
+        if (a.isPublic || b.isPublic)
+            return local(a.isPublic && b.isPublic, in -> in[0].multiply(in[1]).mod(ctx.mod), a, b);
+
+        return interactive(Kind.MULTIPLY, false, a, b);
+    }
+
+    /**
+     * 两分法连乘，层数为log_2(n)
+     */
+    public Value product(Value... values) {
+        if (values.length == 0)
+            return one;
+
+        List<Value> layer = new ArrayList<>(List.of(values));
+        while (layer.size() > 1) {
+            List<Value> next = new ArrayList<>();
+            for (int i = 0; i + 1 < layer.size(); i += 2) {
+                next.add(multiply(layer.get(i), layer.get(i + 1)));
+            }
+            if (layer.size() % 2 != 0)
+                next.add(layer.get(layer.size() - 1));
+            layer = next;
+        }
+
+        return layer.get(0);
+    }
+
+    /**
+     * 恢复秘密，结果为公开值
+     */
+    public Value open(Value a) {
+        if (a.isPublic)
+            return a;
+
+        return interactive(Kind.OPEN, true, a);
+    }
+
+    /**
+     * 批量计算 bool(a < b)，与AdditiveSecretSharing.secureComparision()相同，每个元素使用一个随机数元组。
+     * <p>
+     * 0 <= a, b < p/2
+     * <p>
+     * 提供比较密钥时与AdditiveSecretSharing.secureComparisionFSS()相同，每个元素使用一个比较密钥，只有一轮。
+     */
+    public Value[] lessThan(Value[] a, Value[] b) {
+        if (ctx.hasComparisonKeys())
+            return lessThanFSS(a, b);
+
+        RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(a.length);
+
+        Value[] result = new Value[a.length];
+        for (int i = 0; i < a.length; i++) {
+            // <c> = 2(<a> - <b>) + <r>，恢复c
+            Value x = subtract(a[i], b[i]);
+            Value c = open(add(add(x, x), secret(rTuples[i].r)));
+
+            result[i] = lessThanSub(c, secrets(rTuples[i].rBinary), rTuples[i].l);
+        }
+
+        return result;
+    }
+
+    public Value lessThan(Value a, Value b) {
+        return lessThan(new Value[] { a }, new Value[] { b })[0];
+    }
+
+    private Value[] lessThanFSS(Value[] a, Value[] b) {
+        ComparisonKey[] keys = ctx.nextComparisonKeys(a.length);
+
+        Value[] result = new Value[a.length];
+        for (int i = 0; i < a.length; i++) {
+            // 恢复 x' = <a> - <b> + <r>，< a<b > = 1 - < a>=b >，后者由比较密钥在x'上本地求值；每个元素用各自的密钥
+            ComparisonKey key = keys[i];
+            Value c = open(add(subtract(a[i], b[i]), secret(key.r)));
+            Value ge = local(false, in -> AdditiveSecretSharing.evaluateComparisonKey(ctx, key, in[0]), c);
+            result[i] = subtract(one, ge);
+        }
+
+        return result;
+    }
+
+    /*
+     * 计算 < a<b > = <x_0> = <beta> + <alpha> - 2 <alpha> <beta>，其中c为公开值
+     */
+    private Value lessThanSub(Value c, Value[] rBinary, int l) {
+        // <alpha> = <c0 XOR r0>
+        Value alpha = bitXor(c, 0, rBinary[0]);
+
+        // <beta> = < c<r >
+        Value beta = bitsLessThan(c, rBinary, l);
+
+        Value t = multiply(alpha, beta);
+        return subtract(add(alpha, beta), add(t, t));
+    }
+
+    /*
+     * 计算 < c<r >，只比较c和r的低l位，其中c为公开值，r按比特分享
+     */
+    private Value bitsLessThan(Value c, Value[] rBinary, int l) {
+        // c的各比特在恢复后才知道，所以<c_i XOR r_i>作为本地计算节点
+        Value[] ci = new Value[l];
+        for (int i = 0; i < l; i++) {
+            ci[i] = bitXor(c, i, rBinary[i]);
+        }
+
+        Value d = ci[l - 1];
+        Value[] ei = new Value[l];
+        ei[l - 1] = d;
+        for (int i = l - 2; i >= 0; i--) {
+            // <d_i> = <d_{i+1}> + <c_i> - <d_{i+1}> <c_i>
+            Value di = subtract(add(d, ci[i]), multiply(d, ci[i]));
+
+            // <e_i> = <d_i> - <d_{i+1}>
+            ei[i] = subtract(di, d);
+            d = di;
+        }
+
+        Value[] terms = new Value[l];
+        for (int i = 0; i < l; i++) {
+            terms[i] = multiply(ei[i], rBinary[i]);
+        }
+        return sum(terms);
+    }
+
+    /**
+     * 批量计算 bool(a < b)，只处理width个比特，与AdditiveSecretSharing.secureComparision(ctx, a, b, width)相同。
+     * <p>
+     * 0 <= a, b < 2^width；width <= 0 或 width + 3 + STATISTICAL_SECURITY > l（统计安全参数不足），
+     * 以及提供比较密钥时退化为lessThan(a, b)。
+     */
+    public Value[] lessThan(Value[] a, Value[] b, int width) {
+        int l = ctx.mod.bitLength();
+        if (width <= 0 || width + 3 + STATISTICAL_SECURITY > l || ctx.hasComparisonKeys())
+            return lessThan(a, b);
+
+        RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(a.length);
+
+        BigInteger offset = BigInteger.ONE.shiftLeft(width);
+        Value offsetValue = constant(offset);
+        Value inverse = constant(offset.modInverse(ctx.mod));
+
+        Value[] result = new Value[a.length];
+        for (int i = 0; i < a.length; i++) {
+            Value[] rBinary = secrets(Arrays.copyOf(rTuples[i].rBinary, width));
+            Value[] rMask = lowBitsMask(rTuples[i].rBinary, l - 2, width);
+
+            // <y> = <a> - <b> + 2^width，恢复 c = y + r'
+            Value y = add(subtract(a[i], b[i]), offsetValue);
+            Value c = open(add(y, rMask[0]));
+
+            // <y mod 2^width> = (c mod 2^width) - <r' mod 2^width> + 2^width < c mod 2^width < r' mod 2^width >
+            Value cLow = local(true, in -> in[0].mod(offset), c);
+            Value borrow = bitsLessThan(cLow, rBinary, width);
+            Value yLow = add(subtract(cLow, rMask[1]), multiply(offsetValue, borrow));
+
+            // < a<b > = 1 - ( <y> - <y mod 2^width> ) / 2^width
+            result[i] = subtract(one, multiply(subtract(y, yLow), inverse));
+        }
+
+        return result;
+    }
+
+    /**
+     * 批量概率截断，与AdditiveSecretSharing.secureTruncation()相同，每个元素使用一个随机数元组。
+     * <p>
+     * 0 <= x < 2^bits，结果为 floor( x / 2^shift ) 或再加1。
+     */
+    public Value[] truncate(Value[] x, int bits, int shift) {
+        int l = ctx.mod.bitLength();
+        if (bits + 2 >= l)
+            throw new IllegalArgumentException("bits + 2 must be less than the bit length of mod: " + bits);
+        if (shift <= 0)
+            return x.clone();
+
+        RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(x.length);
+
+        BigInteger offset = BigInteger.ONE.shiftLeft(shift);
+        Value inverse = constant(offset.modInverse(ctx.mod));
+
+        Value[] result = new Value[x.length];
+        for (int i = 0; i < x.length; i++) {
+            Value[] rMask = lowBitsMask(rTuples[i].rBinary, l - 2, shift);
+
+            // 恢复 c = x + r'，<x / 2^shift> = ( <x> - (c mod 2^shift) + <r' mod 2^shift> ) / 2^shift
+            Value c = open(add(x[i], rMask[0]));
+            Value cLow = local(true, in -> in[0].mod(offset), c);
+            result[i] = multiply(subtract(x[i], subtract(cLow, rMask[1])), inverse);
+        }
+
+        return result;
+    }
+
+    /*
+     * { <r'>, <r' mod 2^low> }，见AdditiveSecretSharing.lowBitsMask()，r'由随机数元组直接算出，不占用电路节点
+     */
+    private Value[] lowBitsMask(BigInteger[] rBinary, int length, int low) {
+        BigInteger[] mask = AdditiveSecretSharing.lowBitsMask(rBinary, length, low);
+        return new Value[] { secret(mask[0].mod(ctx.mod)), secret(mask[1].mod(ctx.mod)) };
+    }
+
+    /*
+     * <c_i XOR r_i>：c_i = 0时为<r_i>，c_i = 1时为1 - <r_i>
+     */
+    private Value bitXor(Value c, int i, Value ri) {
+        return local(false, in -> in[0].testBit(i) ? shareConstant(ctx, BigInteger.ONE).subtract(in[1]).mod(ctx.mod)
+                : in[1], c, ri);
+    }
+
+    /**
+     * 批量计算 bool(a == b)，与AdditiveSecretSharing.secureEqual()相同，每个元素使用一个随机数元组。
+     * <p>
+     * 提供等值比较密钥时与AdditiveSecretSharing.secureEqualFSS()相同，每个元素使用一个等值比较密钥，只有一轮。
+     */
+    public Value[] equal(Value[] a, Value[] b) {
+        if (ctx.hasEqualityKeys())
+            return equalFSS(a, b);
+
+        RandomNumberTuple[] rTuples = ctx.nextRandomNumberTuples(a.length);
+
+        Value[] result = new Value[a.length];
+        for (int i = 0; i < a.length; i++) {
+            // <c> = <a> - <b> + <r>，恢复c
+            Value c = open(add(subtract(a[i], b[i]), secret(rTuples[i].r)));
+            Value[] rBinary = secrets(rTuples[i].rBinary);
+
+            // <c=r> = PROD( c_j == r_j )
+            Value[] alphas = new Value[rTuples[i].l];
+            for (int j = 0; j < rTuples[i].l; j++) {
+                alphas[j] = bitXnor(c, j, rBinary[j]);
+            }
+            result[i] = product(alphas);
+        }
+
+        return result;
+    }
+
+    public Value equal(Value a, Value b) {
+        return equal(new Value[] { a }, new Value[] { b })[0];
+    }
+
+    private Value[] equalFSS(Value[] a, Value[] b) {
+        ComparisonKey[] keys = ctx.nextEqualityKeys(a.length);
+
+        Value[] result = new Value[a.length];
+        for (int i = 0; i < a.length; i++) {
+            // 恢复 x' = <a> - <b> + <r>，< a==b >由等值比较密钥在x'上本地求值；每个元素用各自的密钥
+            ComparisonKey key = keys[i];
+            Value c = open(add(subtract(a[i], b[i]), secret(key.r)));
+            result[i] = local(false, in -> AdditiveSecretSharing.evaluateComparisonKey(ctx, key, in[0]), c);
+        }
+
+        return result;
+    }
+
+    /*
+     * c_j = 1时为<r_j>，c_j = 0时为1 - <r_j>
+     */
+    private Value bitXnor(Value c, int j, Value rj) {
+        return local(false, in -> in[0].testBit(j) ? in[1]
+                : shareConstant(ctx, BigInteger.ONE).subtract(in[1]).mod(ctx.mod), c, rj);
+    }
+
+    /*
+     * 执行
+     */
+
+    public BigInteger[] shares(Value[] values) throws IOException {
+        flush();
+
+        BigInteger[] shares = new BigInteger[values.length];
+        for (int i = 0; i < values.length; i++) {
+            shares[i] = values[i].share();
+        }
+        return shares;
+    }
+
+    /**
+     * 执行所有未计算的节点。每轮先完成所有可计算的本地节点，再把输入已就绪的乘法和恢复合并为一次交换。
+     */
+    public void flush() throws IOException {
+        if (pending.isEmpty())
+            return;
+
+        ProtocolCostCounter.run("ShareCircuit.flush", () -> {
+            while (!pending.isEmpty()) {
+                List<Value> multiplications = new ArrayList<>();
+                List<Value> openings = new ArrayList<>();
+                List<Value> remaining = new ArrayList<>();
+
+                for (Value v : pending) {
+                    if (!v.isReady()) {
+                        remaining.add(v);
+                    } else if (v.kind == Kind.LOCAL) { // 按拓扑顺序，后续节点在本轮即可使用结果
+                        v.value = v.function.apply(v.inputValues());
+                    } else {
+                        (v.kind == Kind.MULTIPLY ? multiplications : openings).add(v);
+                    }
+                }
+
+                if (multiplications.isEmpty() && openings.isEmpty()) {
+                    if (!remaining.isEmpty())
+                        throw new IllegalStateException("The circuit has nodes that can never be evaluated");
+                    pending.clear();
+                    break;
+                }
+
+                exchangeLayer(multiplications, openings);
+
+                pending.clear();
+                pending.addAll(remaining);
+            }
+        });
+    }
+
+    /*
+     * 一层乘法和恢复合并为一次交换：[e]_i | [f]_i | 待恢复的分享
+     */
+    private void exchangeLayer(List<Value> multiplications, List<Value> openings) throws IOException {
+        int num = multiplications.size();
+        int openNum = openings.size();
+        BigInteger mod = ctx.mod;
+
+        // 每个乘法各用一个三元组
+        MultiplicationTriple[] triples = (num > 0) ? ctx.nextMultiplicationTriples(num) : null;
+
+        BigInteger[] xis = new BigInteger[num * 2 + openNum];
+        for (int i = 0; i < num; i++) {
+            Value v = multiplications.get(i);
+            xis[i] = AdditiveSecretSharing.subtract(v.inputs[0].value, triples[i].ai, mod);
+            xis[i + num] = AdditiveSecretSharing.subtract(v.inputs[1].value, triples[i].bi, mod);
+        }
+        for (int i = 0; i < openNum; i++) {
+            xis[num * 2 + i] = openings.get(i).inputs[0].value;
+        }
+
+        BigInteger[] tis = (xis.length <= DIRECT_EXCHANGE_LIMIT) ? ctx.exchangeDirectly(xis) : ctx.exchange(xis);
+        if (num > 0)
+            ServerMetrics.recordTriplesConsumed(num);
+
+        for (int i = 0; i < num; i++) {
+            BigInteger e = AdditiveSecretSharing.add(xis[i], tis[i], mod);
+            BigInteger f = AdditiveSecretSharing.add(xis[i + num], tis[i + num], mod);
+
+            MultiplicationTriple triple = triples[i];
+            BigInteger x;
+            if (ctx.isC1()) // C_1计算： [z]_1 = f * [a]_1 + e * [b]_1 + [c]_1
+                x = f.multiply(triple.ai).add(e.multiply(triple.bi)).add(triple.ci);
+            else // C_2计算： [z]_2 = e * f + f * [a]_2 + e * [b]_2 + [c]_2
+                x = e.multiply(f).add(f.multiply(triple.ai)).add(e.multiply(triple.bi)).add(triple.ci);
+
+            multiplications.get(i).value = x.mod(mod);
+        }
+        for (int i = 0; i < openNum; i++) {
+            int index = num * 2 + i;
+            openings.get(i).value = AdditiveSecretSharing.add(xis[index], tis[index], mod);
+        }
+    }
+}
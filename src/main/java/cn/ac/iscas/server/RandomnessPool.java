@@ -0,0 +1,108 @@
+package cn.ac.iscas.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.PartyID;
+import cn.ac.iscas.secretsharing.CorrelatedRandomness;
+import cn.ac.iscas.utils.Util;
+
+/**
+ * 常驻数据集中一批按顺序消耗的相关随机数（比较密钥、随机数元组等）的分配情况
+ * <p>
+ * 数据集的所有会话共用一个，每个会话按需租用互不重叠的区间，每个位置只用一次，用完后查询出错。
+ * 区间由C1分配，并在会话的信道上告知C2，所以双方的同一会话总是取到同一区间。
+ */
+class RandomnessPool {
+
+    // 每次至少租用的个数，减少C1、C2之间的往返
+    private final static int LEASE_SIZE = 1024;
+
+    private final long size;
+    private final AtomicLong reserved = new AtomicLong(); // 已租出的个数，C2上由C1告知
+
+    RandomnessPool(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return 尚未租出的个数
+     */
+    long remaining() {
+        return size - reserved.get();
+    }
+
+    /**
+     * 为一个会话租用区间，当前区间不够时再向池中租用，原区间剩下的部分不再使用。
+     * <p>
+     * 双方需在协议的同一位置取用，续租时C1在信道上写出区间，C2读取。
+     */
+    CorrelatedRandomness.Cursor lease(PartyID partyID, BufferedReader reader, PrintWriter writer) {
+        return new CorrelatedRandomness.Cursor() {
+            private long next = 0;
+            private long end = 0;
+
+            @Override
+            public synchronized long next(int n) {
+                if (end - next < n)
+                    renew(n);
+
+                long from = next;
+                next += n;
+                return from;
+            }
+
+            /**
+             * @return 已租用但尚未取出的个数，不含池中尚未租出的
+             */
+            @Override
+            public synchronized long remaining() {
+                return end - next;
+            }
+
+            private void renew(int n) {
+                try {
+                    long start, length;
+                    if (partyID == PartyID.C1) {
+                        long[] range = reserve(n);
+                        start = range[0];
+                        length = range[1];
+                        // 不足时也要告知C2，否则C2一直等待
+                        Util.writeLong(start, writer);
+                        Util.writeLong(length, writer);
+                    } else {
+                        start = Util.readLong(reader);
+                        length = Util.readLong(reader);
+                        reserved.accumulateAndGet(start + length, Math::max);
+                    }
+
+                    if (length < n)
+                        throw new IllegalStateException(
+                                "correlated randomness exhausted: " + n + " requested, " + (size - start) + " left");
+
+                    next = start;
+                    end = start + length;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /*
+     * 租出min(max(n, LEASE_SIZE), 剩余个数)个，返回起点和个数；剩余不足n个时不租出，个数为0
+     */
+    private long[] reserve(int n) {
+        while (true) {
+            long start = reserved.get();
+            long length = Math.min(Math.max(n, LEASE_SIZE), size - start);
+            if (length < n)
+                return new long[] { start, 0 };
+            if (reserved.compareAndSet(start, start + length))
+                return new long[] { start, length };
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package cn.ac.iscas.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import cn.ac.iscas.secretsharing.ReplicatedContext;
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing;
+import cn.ac.iscas.sknn.ReplicatedSKNN;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+import cn.ac.iscas.utils.RunningTimeCounter;
+import cn.ac.iscas.utils.Util;
+
+/**
+ * 三方复制秘密分享的S1、S2、S3（见ReplicatedSKNN）
+ * <p>
+ * 每一方先接受数据拥有者的连接，再与另两方两两连接成环：第party方从下一方接收，向上一方发送。
+ * 数据拥有者上传数据集的秘密分享和查询次数后，各方依次处理每个查询，最后回复平均耗时。
+ * 数据与查询的格式见TestSKNNV2.userReplicated()。
+ */
+public class ReplicatedServer {
+
+    /**
+     * S1：依次接受数据拥有者、S2和S3的连接
+     */
+    public static void s1(int portS1) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(portS1)) {
+            Socket socketUser = serverSocket.accept();
+
+            // S2、S3连接的先后不确定，由连接后发送的编号区分
+            Socket[] sockets = new Socket[ReplicatedContext.PARTIES];
+            for (int i = 1; i < ReplicatedContext.PARTIES; i++) {
+                Socket socket = serverSocket.accept();
+                sockets[socket.getInputStream().read()] = socket;
+            }
+
+            replicatedServer(0, socketUser, sockets[1], sockets[2]);
+        }
+    }
+
+    /**
+     * S2：接受数据拥有者的连接后连接S1，再接受S3的连接
+     */
+    public static void s2(String ipS1, int portS1, int portS2) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(portS2)) {
+            Socket socketUser = serverSocket.accept();
+            Socket socketS1 = connectPeer(ipS1, portS1, 1);
+            Socket socketS3 = serverSocket.accept();
+            socketS3.getInputStream().read(); // S3的编号
+
+            replicatedServer(1, socketUser, socketS3, socketS1);
+        }
+    }
+
+    /**
+     * S3：接受数据拥有者的连接后连接S1、S2
+     */
+    public static void s3(String ipS1, int portS1, String ipS2, int portS2, int portS3) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(portS3)) {
+            Socket socketUser = serverSocket.accept();
+            Socket socketS1 = connectPeer(ipS1, portS1, 2);
+            Socket socketS2 = connectPeer(ipS2, portS2, 2);
+
+            replicatedServer(2, socketUser, socketS1, socketS2);
+        }
+    }
+
+    /*
+     * 连接另一方并发送本方的编号（一个字节，不经过缓冲，避免读走之后的数据）
+     */
+    private static Socket connectPeer(String ip, int port, int party) throws IOException {
+        Socket socket = new Socket(ip, port);
+        socket.getOutputStream().write(party);
+        socket.getOutputStream().flush();
+        return socket;
+    }
+
+    /*
+     * 第party方的计算过程：从socketNext（下一方）接收，向socketPrev（上一方）发送
+     */
+    private static void replicatedServer(int party, Socket socketUser, Socket socketNext, Socket socketPrev)
+            throws IOException {
+
+        PrintWriter writerUser = new PrintWriter(socketUser.getOutputStream());
+        BufferedReader readerUser = new BufferedReader(new InputStreamReader(socketUser.getInputStream()));
+        BufferedReader readerNext = new BufferedReader(new InputStreamReader(socketNext.getInputStream()));
+        PrintWriter writerPrev = new PrintWriter(socketPrev.getOutputStream());
+
+        int k = Util.readInt(readerUser);
+        BigInteger mod = Util.readBigInteger(readerUser);
+        int m = Util.readInt(readerUser);
+        int testType = Util.readInt(readerUser);
+        ReplicatedSKNN.Point[] points = null;
+        ReplicatedSKNN.AG[] ags = null;
+        ReplicatedSKNN.VG[] vgs = null;
+        if (testType == 0) {
+            int dataNumber = Util.readInt(readerUser);
+            points = readReplicatedPoints(dataNumber, m, readerUser);
+        } else {
+            ags = readReplicatedAGs(m, readerUser);
+            vgs = readReplicatedVGs(m, readerUser);
+        }
+        int tupleNumber = Util.readInt(readerUser);
+
+        ReplicatedContext ctx = new ReplicatedContext(party, mod, readerNext, writerPrev);
+        if (tupleNumber > 0) {
+            // 离线阶段：预先生成随机数元组
+            long preprocessStart = System.currentTimeMillis();
+            ctx.preprocess(tupleNumber);
+            System.out.println("Preprocessing Time S" + (party + 1) + ": "
+                    + (System.currentTimeMillis() - preprocessStart) + " ms");
+        }
+
+        int testNumber = Util.readInt(readerUser);
+        long timeSum = 0L;
+        long communicationTimeSum = 0l;
+        ProtocolCostCounter.CostNode lastQueryCost = null;
+        for (int i = 0; i < testNumber; i++) {
+
+            ReplicatedSecretSharing.Share[] q = readReplicatedShares(m, readerUser);
+
+            Util.writeInt(i, writerPrev);
+            Util.readInt(readerNext);
+
+            long timePre = System.currentTimeMillis();
+            RunningTimeCounter.startRecord(RunningTimeCounter.COMMUNICATION_TIME);
+            ProtocolCostCounter.startQuery("query " + i);
+            ReplicatedSKNN.Point[] r = (testType == 0) ? ReplicatedSKNN.secureLinearSKNN(ctx, points, q, k)
+                    : ReplicatedSKNN.secureVoronoiSKNN(ctx, ags, vgs, q, k);
+            timeSum += System.currentTimeMillis() - timePre;
+            communicationTimeSum += RunningTimeCounter.get(RunningTimeCounter.COMMUNICATION_TIME);
+            lastQueryCost = ProtocolCostCounter.finishQuery();
+
+            writeReplicatedPoints(r, writerUser);
+        }
+        long timeAvg = timeSum / testNumber;
+        long communicationTimeAvg = communicationTimeSum / testNumber;
+        long computingTimeAvg = timeAvg - communicationTimeAvg;
+        Util.writeLong(timeAvg, writerUser);
+        Util.writeLong(communicationTimeAvg, writerUser);
+        Util.writeLong(computingTimeAvg, writerUser);
+
+        if (lastQueryCost != null) {
+            System.out.println("Cost of the last query (S" + (party + 1) + "):");
+            System.out.print(lastQueryCost.dump());
+        }
+
+        socketNext.close();
+        socketPrev.close();
+        socketUser.close();
+    }
+
+    /*
+     * 依次写出AG的个数、大小以及各个AG的label、subLabels和点
+     */
+    public static void writeReplicatedAGs(ReplicatedSKNN.AG[] ags, PrintWriter writer) throws IOException {
+        Util.writeInt(ags.length, writer);
+        Util.writeInt(ags[0].points.length, writer);
+        for (ReplicatedSKNN.AG ag : ags) {
+            writeReplicatedShares(new ReplicatedSecretSharing.Share[] { ag.label }, writer);
+            writeReplicatedShares(ag.subLabels, writer);
+            writeReplicatedPoints(ag.points, writer);
+        }
+    }
+
+    public static ReplicatedSKNN.AG[] readReplicatedAGs(int m, BufferedReader reader) throws IOException {
+        int num = Util.readInt(reader);
+        int size = Util.readInt(reader);
+
+        ReplicatedSKNN.AG[] ags = new ReplicatedSKNN.AG[num];
+        for (int i = 0; i < num; i++) {
+            ReplicatedSecretSharing.Share label = readReplicatedShares(1, reader)[0];
+            ReplicatedSecretSharing.Share[] subLabels = readReplicatedShares(size, reader);
+            ags[i] = new ReplicatedSKNN.AG(label, readReplicatedPoints(size, m, reader), subLabels);
+        }
+
+        return ags;
+    }
+
+    /*
+     * 依次写出VG的个数、大小以及各个VG的边界、subLabels和点
+     */
+    public static void writeReplicatedVGs(ReplicatedSKNN.VG[] vgs, PrintWriter writer) throws IOException {
+        Util.writeInt(vgs.length, writer);
+        Util.writeInt(vgs[0].points.length, writer);
+        for (ReplicatedSKNN.VG vg : vgs) {
+            writeReplicatedShares(vg.low, writer);
+            writeReplicatedShares(vg.high, writer);
+            writeReplicatedShares(vg.subLabels, writer);
+            writeReplicatedPoints(vg.points, writer);
+        }
+    }
+
+    public static ReplicatedSKNN.VG[] readReplicatedVGs(int m, BufferedReader reader) throws IOException {
+        int num = Util.readInt(reader);
+        int size = Util.readInt(reader);
+
+        ReplicatedSKNN.VG[] vgs = new ReplicatedSKNN.VG[num];
+        for (int i = 0; i < num; i++) {
+            ReplicatedSecretSharing.Share[] low = readReplicatedShares(m, reader);
+            ReplicatedSecretSharing.Share[] high = readReplicatedShares(m, reader);
+            ReplicatedSecretSharing.Share[] subLabels = readReplicatedShares(size, reader);
+            vgs[i] = new ReplicatedSKNN.VG(low, high, readReplicatedPoints(size, m, reader), subLabels);
+        }
+
+        return vgs;
+    }
+
+    /*
+     * 按Util.writePoints()的格式依次写出各分享的两个部分
+     */
+    public static void writeReplicatedPoints(ReplicatedSKNN.Point[] points, PrintWriter writer) {
+        int m = points[0].data.length;
+
+        Point[] as = new Point[points.length], bs = new Point[points.length];
+        for (int i = 0; i < points.length; i++) {
+            as[i] = new Point(points[i].id.a, new BigInteger[m]);
+            bs[i] = new Point(points[i].id.b, new BigInteger[m]);
+            for (int j = 0; j < m; j++) {
+                as[i].data[j] = points[i].data[j].a;
+                bs[i].data[j] = points[i].data[j].b;
+            }
+        }
+
+        Util.writePoints(as, writer);
+        Util.writePoints(bs, writer);
+    }
+
+    public static ReplicatedSKNN.Point[] readReplicatedPoints(int num, int m, BufferedReader reader)
+            throws IOException {
+        Point[] as = Util.readPoints(num, m, reader);
+        Point[] bs = Util.readPoints(num, m, reader);
+
+        ReplicatedSKNN.Point[] points = new ReplicatedSKNN.Point[num];
+        for (int i = 0; i < num; i++) {
+            points[i] = new ReplicatedSKNN.Point(new ReplicatedSecretSharing.Share(as[i].id, bs[i].id),
+                    new ReplicatedSecretSharing.Share[m]);
+            for (int j = 0; j < m; j++) {
+                points[i].data[j] = new ReplicatedSecretSharing.Share(as[i].data[j], bs[i].data[j]);
+            }
+        }
+
+        return points;
+    }
+
+    public static void writeReplicatedShares(ReplicatedSecretSharing.Share[] x, PrintWriter writer) {
+        BigInteger[] as = new BigInteger[x.length], bs = new BigInteger[x.length];
+        for (int i = 0; i < x.length; i++) {
+            as[i] = x[i].a;
+            bs[i] = x[i].b;
+        }
+
+        Util.writeBigIntegers(as, writer);
+        Util.writeBigIntegers(bs, writer);
+    }
+
+    public static ReplicatedSecretSharing.Share[] readReplicatedShares(int m, BufferedReader reader)
+            throws IOException {
+        BigInteger[] as = Util.readBigIntegers(m, reader);
+        BigInteger[] bs = Util.readBigIntegers(m, reader);
+
+        ReplicatedSecretSharing.Share[] x = new ReplicatedSecretSharing.Share[m];
+        for (int i = 0; i < m; i++) {
+            x[i] = new ReplicatedSecretSharing.Share(as[i], bs[i]);
+        }
+
+        return x;
+    }
+}
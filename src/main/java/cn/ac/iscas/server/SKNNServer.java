@@ -0,0 +1,639 @@
+package cn.ac.iscas.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.PartyID;
+import cn.ac.iscas.secretsharing.AsyncProtocol;
+import cn.ac.iscas.secretsharing.CorrelatedRandomness;
+import cn.ac.iscas.secretsharing.MultiplicationTriples;
+import cn.ac.iscas.secretsharing.OTPreprocessing;
+import cn.ac.iscas.secretsharing.ProtocolContext;
+import cn.ac.iscas.secretsharing.RandomNumberTuples;
+import cn.ac.iscas.sknn.SKNNV2;
+import cn.ac.iscas.sknn.SKNNV2.AG;
+import cn.ac.iscas.sknn.SKNNV2.IVFIndex;
+import cn.ac.iscas.sknn.SKNNV2.KDTree;
+import cn.ac.iscas.sknn.SKNNV2.LSHTables;
+import cn.ac.iscas.sknn.SKNNV2.MortonLayout;
+import cn.ac.iscas.sknn.SKNNV2.PQIndex;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.sknn.SKNNV2.VG;
+import cn.ac.iscas.sknn.SKNNV2.VGGroup;
+import cn.ac.iscas.utils.MultiplexedConnection;
+import cn.ac.iscas.utils.ServerMetrics;
+import cn.ac.iscas.utils.Util;
+
+import static cn.ac.iscas.secretsharing.AdditiveSecretSharing.*;
+
+/**
+ * 常驻的C1/C2服务
+ * <p>
+ * 数据集的秘密分享只上传、解析一次，之后常驻内存，可同时为多个用户会话提供查询。
+ * 每条连接的第一行是命令：
+ * <ul>
+ * <li>LOAD：数据拥有者上传（或替换）数据集的秘密分享，格式与TestSKNNV2.user()一致（不含k），完成后回复OK。
+ * 既没有一批乘法三元组和随机数元组、也不用OT生成时回复ERROR，不替换原数据集。</li>
+ * <li>UPDATE：数据拥有者上传AG表、VG表中变化的行（见VoronoiIndex.update()），完成后回复OK。已开始的会话仍使用更新前的数据。
+ * 未加载Voronoi数据集时读完更新后回复ERROR。</li>
+ * <li>QUERY sessionId：用户会话。之后每次查询先发送k（发送END结束会话），再发送q的秘密分享，服务端返回k个点。
+ * 未加载数据集或查询出错（如相关随机数用完）时，以一行ERROR代替结果，之后不再处理该会话的查询。</li>
+ * <li>PEER：C2启动时向C1建立的唯一连接，之后的PEER连接直接关闭。</li>
+ * </ul>
+ * C1与C2之间的所有会话都复用PEER连接（见MultiplexedConnection），双方按用户给出的sessionId配对。
+ */
+public class SKNNServer {
+
+    public final static String LOAD = "LOAD";
+    public final static String UPDATE = "UPDATE";
+    public final static String QUERY = "QUERY";
+    public final static String PEER = "PEER";
+    public final static String END = "END";
+    public final static String OK = "OK";
+    public final static String ERROR = "ERROR"; // 之后是原因，同一行
+
+    // C1等待C2建立PEER连接的最长时间
+    private final static long PEER_TIMEOUT_SECONDS = 30;
+
+    // 每个会话用于异步子协议的子会话个数（见AsyncProtocol）
+    private final static int ASYNC_LANES = 2;
+
+    /**
+     * 常驻内存的数据集秘密分享
+     */
+    public static class Dataset {
+        public int testType; // 0-线性SKNN  1/2/3-基于维诺图的SKNN  4-基于k-d树的SKNN  5-基于LSH的SKNN  6-基于IVF的SKNN  7-基于PQ的SKNN
+        public BigInteger mod;
+        public int dataNumber;
+        public int m;
+        public int precision; // 线性和基于维诺图的SKNN中距离截断后保留的有效比特数，0表示不截断
+        public Point[] points;
+        public AG[] ags;
+        public VG[] vgs;
+        public VGGroup[] groups; // 两级桶索引
+        public MortonLayout layout; // 桶的Morton键排列，与groups都为null时逐个桶定位
+        public KDTree kdTree;
+        public int backtrack; // k-d树查询时回溯的层数
+        public LSHTables lshTables;
+        public int probes; // LSH查询时每张表额外探测的桶数
+        public IVFIndex ivfIndex;
+        public int nprobe; // IVF查询时取出的簇数
+        public PQIndex pqIndex;
+        public ComparisonKey[] comparisonKeys; // 为null时使用基于比特分解的大小比较
+        public ComparisonKey[] equalityKeys; // 为null时使用基于比特分解的等值比较
+        public RandomNumberTuples tuples;
+        RandomnessPool tuplePool; // tuples的分配情况，所有会话共用
+        public MultiplicationTriples triples;
+        RandomnessPool triplePool; // triples的分配情况，所有会话共用
+        public int otNumber; // 大于0时每个会话开始前由两方生成乘法三元组和随机数元组，不使用triples和tuples
+        RandomnessPool comparisonKeyPool; // comparisonKeys的分配情况，所有会话共用
+        RandomnessPool equalityKeyPool;
+
+        public static Dataset read(BufferedReader reader) throws IOException {
+            Dataset dataset = new Dataset();
+
+            dataset.testType = Util.readInt(reader);
+            dataset.mod = Util.readBigInteger(reader);
+            dataset.dataNumber = Util.readInt(reader);
+            dataset.m = Util.readInt(reader);
+            dataset.precision = Util.readInt(reader);
+            if (dataset.testType == 0) {
+                dataset.points = Util.readPoints(dataset.dataNumber, dataset.m, reader);
+            } else if (dataset.testType == 4) {
+                dataset.kdTree = SKNNV2.parseJsonToKDTree(reader.readLine());
+                dataset.backtrack = Util.readInt(reader);
+            } else if (dataset.testType == 5) {
+                dataset.lshTables = SKNNV2.parseJsonToLSHTables(reader.readLine());
+                dataset.probes = Util.readInt(reader);
+            } else if (dataset.testType == 6) {
+                dataset.ivfIndex = SKNNV2.parseJsonToIVFIndex(reader.readLine());
+                dataset.nprobe = Util.readInt(reader);
+            } else if (dataset.testType == 7) {
+                dataset.pqIndex = SKNNV2.parseJsonToPQIndex(reader.readLine());
+            } else {
+                dataset.ags = SKNNV2.parseJsonToAGs(reader.readLine());
+                dataset.vgs = SKNNV2.parseJsonToVGs(reader.readLine());
+                dataset.groups = SKNNV2.parseJsonToVGGroups(reader.readLine());
+                dataset.layout = SKNNV2.parseJsonToMortonLayout(reader.readLine());
+            }
+            // 单个的乘法三元组和随机数元组会被所有元素重复使用，常驻服务不使用
+            reader.readLine();
+            reader.readLine();
+            dataset.comparisonKeys = parseJsonToComparisonKeys(reader.readLine());
+            dataset.equalityKeys = parseJsonToComparisonKeys(reader.readLine());
+            dataset.tuples = parseJsonToRandomNumberTuples(reader.readLine());
+            dataset.triples = parseJsonToMultiplicationTriples(reader.readLine());
+            dataset.otNumber = Util.readInt(reader);
+            if (dataset.comparisonKeys != null)
+                dataset.comparisonKeyPool = new RandomnessPool(dataset.comparisonKeys.length);
+            if (dataset.equalityKeys != null)
+                dataset.equalityKeyPool = new RandomnessPool(dataset.equalityKeys.length);
+            if (dataset.tuples != null)
+                dataset.tuplePool = new RandomnessPool(dataset.tuples.size);
+            if (dataset.triples != null)
+                dataset.triplePool = new RandomnessPool(dataset.triples.size);
+
+            return dataset;
+        }
+
+        /**
+         * @return 会话无法得到只用一次的乘法三元组或随机数元组时的原因，否则为null
+         */
+        public String missingRandomness() {
+            if (otNumber > 0)
+                return null;
+            if (triples == null)
+                return "no multiplication triples are uploaded";
+            if (tuples == null)
+                return "no random number tuples are uploaded";
+            return null;
+        }
+
+        /**
+         * 读取一次增量更新，返回更新后的数据集，原数据集不变
+         * <p>
+         * 格式：agNum | AG行数 | 各行的序号 | AG行的JSON | VG行数 | 各行的序号 | VG行的JSON
+         */
+        public Dataset update(BufferedReader reader) throws IOException {
+            int agNum = Util.readInt(reader);
+            int[] agIndexes = Util.readIntegers(Util.readInt(reader), reader);
+            AG[] agRows = SKNNV2.parseJsonToAGs(reader.readLine());
+            int[] vgIndexes = Util.readIntegers(Util.readInt(reader), reader);
+            VG[] vgRows = SKNNV2.parseJsonToVGs(reader.readLine());
+
+            Dataset updated = new Dataset();
+            updated.testType = testType;
+            updated.mod = mod;
+            updated.dataNumber = dataNumber;
+            updated.m = m;
+            updated.precision = precision;
+            updated.comparisonKeys = comparisonKeys; // 与更新前的会话继续共用，已用过的不再分配
+            updated.comparisonKeyPool = comparisonKeyPool;
+            updated.equalityKeys = equalityKeys;
+            updated.equalityKeyPool = equalityKeyPool;
+            updated.tuples = tuples;
+            updated.tuplePool = tuplePool;
+            updated.triples = triples;
+            updated.triplePool = triplePool;
+            updated.otNumber = otNumber;
+            updated.groups = groups; // 桶的边界不变，定位索引也不变
+            updated.layout = layout;
+            updated.ags = Arrays.copyOf(ags, agNum);
+            for (int i = 0; i < agIndexes.length; i++) {
+                updated.ags[agIndexes[i]] = agRows[i];
+            }
+            updated.vgs = vgs.clone();
+            for (int i = 0; i < vgIndexes.length; i++) {
+                updated.vgs[vgIndexes[i]] = vgRows[i];
+            }
+
+            return updated;
+        }
+
+        /*
+         * 读过一次更新但不使用，格式与update()一致
+         */
+        public static void skipUpdate(BufferedReader reader) throws IOException {
+            Util.readInt(reader);
+            Util.readIntegers(Util.readInt(reader), reader);
+            reader.readLine();
+            Util.readIntegers(Util.readInt(reader), reader);
+            reader.readLine();
+        }
+
+        public String getMode() {
+            return SKNNServer.getMode(testType);
+        }
+    }
+
+    /**
+     * @return testType对应的SKNN类型，用于运行指标
+     */
+    public static String getMode(int testType) {
+        if (testType == 0)
+            return "linear";
+        if (testType == 4)
+            return "kdtree";
+        if (testType == 5)
+            return "lsh";
+        if (testType == 6)
+            return "ivf";
+        if (testType == 7)
+            return "pq";
+        return "voronoi";
+    }
+
+    private final PartyID partyID;
+    private final int port;
+    private final String ipC1; // 仅C2使用
+    private final int portC1; // 仅C2使用
+
+    private volatile Dataset dataset = null;
+
+    private final CompletableFuture<MultiplexedConnection> peerConnection = new CompletableFuture<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // 进行中的会话的相关随机数，用于运行指标
+    private final Set<CorrelatedRandomness> sessionRandomness = ConcurrentHashMap.newKeySet();
+
+    private SKNNServer(PartyID partyID, int port, String ipC1, int portC1) {
+        this.partyID = partyID;
+        this.port = port;
+        this.ipC1 = ipC1;
+        this.portC1 = portC1;
+    }
+
+    public static SKNNServer c1(int portC1) {
+        return new SKNNServer(PartyID.C1, portC1, null, -1);
+    }
+
+    public static SKNNServer c2(String ipC1, int portC1, int portC2) {
+        return new SKNNServer(PartyID.C2, portC2, ipC1, portC1);
+    }
+
+    /**
+     * 持续接受连接，直到线程被中断或监听端口出错。
+     */
+    public void serve() throws IOException {
+        ServerMetrics.setTriplesRemaining(this::triplesRemaining);
+        ServerMetrics.setTuplesRemaining(this::tuplesRemaining);
+
+        if (partyID == PartyID.C2) {
+            Socket socketC1 = new Socket(ipC1, portC1);
+            socketC1.getOutputStream().write((PEER + "\n").getBytes(Util.charset));
+            peerConnection.complete(new MultiplexedConnection(socketC1));
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            String[] command = readCommand(socket.getInputStream()).split(" ");
+
+            if (command[0].equals(PEER)) { // 连接一直保持
+                MultiplexedConnection connection = new MultiplexedConnection(socket);
+                if (!peerConnection.complete(connection)) {
+                    System.out.println("A PEER connection is already established, the new one is rejected.");
+                    connection.close();
+                }
+                return;
+            }
+
+            try (socket) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                if (command[0].equals(LOAD)) {
+                    load(reader, writer);
+                } else if (command[0].equals(UPDATE)) {
+                    update(reader, writer);
+                } else if (command[0].equals(QUERY)) {
+                    session(command[1], reader, writer);
+                } else {
+                    System.out.println("Unknown command: " + command[0]);
+                }
+            }
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException
+                | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * 逐字节读取第一行命令，避免BufferedReader预读后续数据（PEER连接之后是二进制的帧）。
+     */
+    private static String readCommand(InputStream input) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = input.read()) != -1 && c != '\n') {
+            if (c != '\r')
+                sb.append((char) c);
+        }
+
+        return sb.toString();
+    }
+
+    private synchronized void load(BufferedReader reader, PrintWriter writer) throws IOException {
+        Dataset newDataset = Dataset.read(reader);
+        String missing = newDataset.missingRandomness();
+        if (missing != null) {
+            System.out.println("The dataset is rejected: " + missing + ".");
+            writer.println(ERROR + " " + missing);
+            writer.flush();
+            return;
+        }
+
+        ServerMetrics.setShareTableBytes(
+                estimateShareTableBytes(newDataset.points, newDataset.ags, newDataset.vgs,
+                        newDataset.kdTree, newDataset.lshTables, newDataset.ivfIndex,
+                        newDataset.pqIndex));
+        dataset = newDataset;
+
+        writer.println(OK);
+        writer.flush();
+    }
+
+    /*
+     * 与load()串行，否则后完成的会覆盖先完成的
+     */
+    private synchronized void update(BufferedReader reader, PrintWriter writer) throws IOException {
+        Dataset current = dataset;
+        if (current == null || current.vgs == null) {
+            System.out.println("No Voronoi dataset is loaded, update is rejected.");
+            Dataset.skipUpdate(reader); // 读完再回复，避免关闭时仍有未读的数据而重置连接
+            writer.println(ERROR + " no Voronoi dataset is loaded");
+            writer.flush();
+            return;
+        }
+
+        Dataset newDataset = current.update(reader);
+        ServerMetrics.setShareTableBytes(
+                estimateShareTableBytes(newDataset.points, newDataset.ags, newDataset.vgs,
+                        newDataset.kdTree, newDataset.lshTables, newDataset.ivfIndex,
+                        newDataset.pqIndex));
+        dataset = newDataset;
+
+        writer.println(OK);
+        writer.flush();
+    }
+
+    private void session(String sessionId, BufferedReader readerUser, PrintWriter writerUser)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+
+        Dataset sessionDataset = dataset; // 会话期间使用同一份数据
+        if (sessionDataset == null) {
+            System.out.println("No dataset is loaded, session " + sessionId + " is rejected.");
+            reject(readerUser, writerUser, "no dataset is loaded");
+            return;
+        }
+
+        MultiplexedConnection connection = peerConnection.get(PEER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        MultiplexedConnection.Session[] lanes = new MultiplexedConnection.Session[ASYNC_LANES];
+        List<CorrelatedRandomness> randomness = new ArrayList<>();
+        try (MultiplexedConnection.Session peer = connection.open(sessionId)) {
+            // 每个会话使用自己的协议上下文，会话之间互不干扰；
+            // 互相独立的子协议在子会话上并行执行，每条子会话租用自己的相关随机数
+            randomness.add(sessionRandomness(sessionDataset, peer.getReader(), peer.getWriter()));
+            for (int i = 0; i < ASYNC_LANES; i++) {
+                lanes[i] = connection.open(sessionId + "/" + (i + 1));
+                randomness.add(sessionRandomness(sessionDataset, lanes[i].getReader(), lanes[i].getWriter()));
+            }
+            ProtocolContext ctx = new ProtocolContext(partyID, sessionDataset.mod, peer.getReader(),
+                    peer.getWriter(), randomness.get(0));
+
+            if (sessionDataset.otNumber > 0) {
+                // 离线阶段：与对方生成本会话的相关随机数，主会话和各子会话各取其中一段
+                randomness = List.of(OTPreprocessing.preprocess(ctx, randomness.toArray(new CorrelatedRandomness[0]),
+                        sessionDataset.otNumber));
+                ctx = ctx.fork(peer.getReader(), peer.getWriter(), randomness.get(0));
+            }
+
+            List<ProtocolContext> laneCtxs = new ArrayList<>();
+            for (int i = 0; i < ASYNC_LANES; i++) {
+                laneCtxs.add(ctx.fork(lanes[i].getReader(), lanes[i].getWriter(), randomness.get(i + 1)));
+            }
+
+            sessionRandomness.addAll(randomness);
+            try (AsyncProtocol async = new AsyncProtocol(laneCtxs)) {
+                ctx.setAsync(async);
+
+                String line;
+                while ((line = readerUser.readLine()) != null && !line.equals(END)) {
+                    int k = Integer.parseInt(line);
+                    BigInteger[] q = Util.readBigIntegers(sessionDataset.m, readerUser);
+
+                    Point[] result;
+                    try {
+                        result = query(ctx, sessionDataset, q, k);
+                    } catch (RuntimeException e) {
+                        reject(readerUser, writerUser, String.valueOf(e.getMessage()));
+                        throw e;
+                    }
+
+                    Util.writePoints(result, writerUser);
+                }
+            }
+        } finally {
+            sessionRandomness.removeAll(randomness);
+            for (MultiplexedConnection.Session lane : lanes) {
+                if (lane != null)
+                    lane.close();
+            }
+        }
+    }
+
+    /*
+     * 以一行ERROR代替查询结果，再读完用户已发出的查询，直到END或用户关闭连接
+     */
+    private static void reject(BufferedReader readerUser, PrintWriter writerUser, String reason) throws IOException {
+        writerUser.println(ERROR + " " + reason);
+        writerUser.flush();
+
+        String line;
+        while ((line = readerUser.readLine()) != null && !line.equals(END)) {
+            // 丢弃
+        }
+    }
+
+    /*
+     * 会话的相关随机数，从数据集的乘法三元组、随机数元组以及比较密钥、等值比较密钥中租用本会话的区间（见RandomnessPool）。
+     * 没有上传的相关随机数不可用，取用时查询出错，不会重复使用同一个。
+     */
+    private CorrelatedRandomness sessionRandomness(Dataset sessionDataset, BufferedReader reader,
+            PrintWriter writer) {
+        CorrelatedRandomness randomness = CorrelatedRandomness.none();
+        if (sessionDataset.triples != null)
+            randomness = CorrelatedRandomness.batched(randomness, sessionDataset.triples,
+                    sessionDataset.triplePool.lease(partyID, reader, writer), sessionDataset.mod);
+        if (sessionDataset.tuples != null)
+            randomness = CorrelatedRandomness.batched(randomness, sessionDataset.tuples,
+                    sessionDataset.tuplePool.lease(partyID, reader, writer), sessionDataset.mod);
+        if (sessionDataset.comparisonKeys != null)
+            randomness = CorrelatedRandomness.comparisonKeys(randomness, sessionDataset.comparisonKeys,
+                    sessionDataset.comparisonKeyPool.lease(partyID, reader, writer));
+        if (sessionDataset.equalityKeys != null)
+            randomness = CorrelatedRandomness.equalityKeys(randomness, sessionDataset.equalityKeys,
+                    sessionDataset.equalityKeyPool.lease(partyID, reader, writer));
+
+        return randomness;
+    }
+
+    /*
+     * 当前数据集中尚未租出的乘法三元组，加上进行中的会话已租用或由OT生成、尚未用掉的
+     */
+    private long triplesRemaining() {
+        Dataset current = dataset;
+        long remaining = current != null && current.triplePool != null ? current.triplePool.remaining() : 0;
+        for (CorrelatedRandomness randomness : sessionRandomness) {
+            remaining += Math.max(0, randomness.remainingMultiplicationTriples());
+        }
+
+        return remaining;
+    }
+
+    /*
+     * 当前数据集中尚未租出的随机数元组，加上进行中的会话已租用或由OT生成、尚未用掉的
+     */
+    private long tuplesRemaining() {
+        Dataset current = dataset;
+        long remaining = current != null && current.tuplePool != null ? current.tuplePool.remaining() : 0;
+        for (CorrelatedRandomness randomness : sessionRandomness) {
+            remaining += Math.max(0, randomness.remainingRandomNumberTuples());
+        }
+
+        return remaining;
+    }
+
+    private static Point[] query(ProtocolContext ctx, Dataset sessionDataset, BigInteger[] q, int k)
+            throws IOException {
+
+        long queryStart = System.nanoTime();
+        ctx.startQuery("query");
+
+        Point[] result;
+        if (sessionDataset.testType == 0) {
+            // 线性SKNN会原地交换点，所以每次查询使用一份拷贝
+            result = SKNNV2.secureLinearSKNN(ctx, copyPoints(sessionDataset.points), q, k,
+                    sessionDataset.precision);
+        } else if (sessionDataset.testType == 4) {
+            result = SKNNV2.secureKDTreeSKNN(ctx, sessionDataset.kdTree, q, k, sessionDataset.backtrack);
+        } else if (sessionDataset.testType == 5) {
+            result = SKNNV2.secureLSHSKNN(ctx, sessionDataset.lshTables, q, k, sessionDataset.probes);
+        } else if (sessionDataset.testType == 6) {
+            result = SKNNV2.secureIVFSKNN(ctx, sessionDataset.ivfIndex, q, k, sessionDataset.nprobe);
+        } else if (sessionDataset.testType == 7) {
+            result = SKNNV2.securePQSKNN(ctx, sessionDataset.pqIndex, q, k);
+        } else {
+            result = SKNNV2.secureVoronoiSKNN(ctx, sessionDataset.ags, sessionDataset.vgs, sessionDataset.groups,
+                    sessionDataset.layout, q, k, sessionDataset.precision);
+        }
+
+        ctx.finishQuery();
+        ServerMetrics.recordQuery(sessionDataset.getMode(), System.nanoTime() - queryStart);
+
+        return result;
+    }
+
+    private static Point[] copyPoints(Point[] points) {
+        Point[] copies = new Point[points.length];
+        for (int i = 0; i < points.length; i++) {
+            copies[i] = new Point(points[i].id, points[i].data.clone());
+        }
+
+        return copies;
+    }
+
+    /*
+     * 估计C1/C2中秘密分享数据所占的堆内存
+     */
+    public static long estimateShareTableBytes(Point[] points, AG[] ags, VG[] vgs, KDTree kdTree,
+            LSHTables lshTables, IVFIndex ivfIndex, PQIndex pqIndex) {
+        long bytes = 0L;
+        if (points != null) {
+            bytes += estimateSize(points);
+        }
+        if (ags != null) {
+            for (AG ag : ags) {
+                bytes += ServerMetrics.estimateSize(ag.label) + estimateSize(ag.points);
+                for (BigInteger subLabel : ag.subLabels) {
+                    bytes += ServerMetrics.estimateSize(subLabel);
+                }
+            }
+        }
+        if (vgs != null) {
+            for (VG vg : vgs) {
+                bytes += estimateSize(new Point[] { vg.low, vg.high }) + estimateSize(vg.points);
+                for (BigInteger subLabel : vg.subLabels) {
+                    bytes += ServerMetrics.estimateSize(subLabel);
+                }
+            }
+        }
+        if (kdTree != null) {
+            for (BigInteger split : kdTree.splits) {
+                bytes += ServerMetrics.estimateSize(split);
+            }
+            for (int i = 0; i < kdTree.leaves.length; i++) {
+                bytes += estimateSize(kdTree.leaves[i]);
+                for (BigInteger padding : kdTree.paddings[i]) {
+                    bytes += ServerMetrics.estimateSize(padding);
+                }
+            }
+        }
+        if (lshTables != null) {
+            for (int t = 0; t < lshTables.buckets.length; t++) {
+                for (int v = 0; v < lshTables.buckets[t].length; v++) {
+                    bytes += estimateSize(lshTables.buckets[t][v]);
+                    for (BigInteger padding : lshTables.paddings[t][v]) {
+                        bytes += ServerMetrics.estimateSize(padding);
+                    }
+                }
+            }
+        }
+        if (ivfIndex != null) {
+            bytes += estimateSize(ivfIndex.centroids);
+            for (int i = 0; i < ivfIndex.clusters.length; i++) {
+                bytes += estimateSize(ivfIndex.clusters[i]);
+                for (BigInteger padding : ivfIndex.paddings[i]) {
+                    bytes += ServerMetrics.estimateSize(padding);
+                }
+            }
+        }
+        if (pqIndex != null) {
+            bytes += estimateSize(pqIndex.points);
+            for (int s = 0; s < pqIndex.codebooks.length; s++) {
+                bytes += estimateSize(pqIndex.codebooks[s]);
+                for (BigInteger[] row : pqIndex.tables[s]) {
+                    for (BigInteger value : row) {
+                        bytes += ServerMetrics.estimateSize(value);
+                    }
+                }
+            }
+            for (BigInteger[][] code : pqIndex.codes) {
+                for (BigInteger[] row : code) {
+                    for (BigInteger value : row) {
+                        bytes += ServerMetrics.estimateSize(value);
+                    }
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    private static long estimateSize(Point[] points) {
+        long bytes = 0L;
+        for (Point point : points) {
+            bytes += ServerMetrics.estimateSize(point.id);
+            for (BigInteger x : point.data) {
+                bytes += ServerMetrics.estimateSize(x);
+            }
+        }
+
+        return bytes;
+    }
+}
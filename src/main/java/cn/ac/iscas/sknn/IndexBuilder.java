@@ -0,0 +1,546 @@
+package cn.ac.iscas.sknn;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import cn.ac.iscas.sknn.SKNNV2.IVFIndex;
+import cn.ac.iscas.sknn.SKNNV2.KDTree;
+import cn.ac.iscas.sknn.SKNNV2.LSHTables;
+import cn.ac.iscas.sknn.SKNNV2.MortonLayout;
+import cn.ac.iscas.sknn.SKNNV2.PQIndex;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.sknn.SKNNV2.VG;
+import cn.ac.iscas.sknn.SKNNV2.VGGroup;
+
+/**
+ * 由明文数据集离线构造近似SKNN所用的索引（k-d树、LSH表、IVF索引、PQ索引），以及VG表之上的两级桶索引和Morton排列
+ * <p>
+ * 数据集的格式与DataProcessor.generateDataset()一致：每行为前m维的数据和id。
+ * 与VoronoiIndex一样由数据拥有者调用，得到的索引拆分为秘密分享后上传给C1/C2，查询见SKNNV2中对应的方法。
+ */
+public class IndexBuilder {
+
+    /*
+     * 构造k-d树：每层按第t mod m维的中位数把点对半分开，直到叶节点中的点数不足2 * leafSize，
+     * 各叶节点用填充的点补齐为相同大小。
+     */
+    public static KDTree buildKDTree(BigInteger[][] dataset, int m, int leafSize) {
+        long start = System.currentTimeMillis();
+
+        int depth = 0;
+        while (((long) leafSize << (depth + 1)) <= dataset.length) {
+            depth++;
+        }
+        int leafNum = 1 << depth;
+        int capacity = (dataset.length + leafNum - 1) / leafNum;
+
+        BigInteger[] splits = new BigInteger[leafNum - 1];
+        Point[][] leaves = new Point[leafNum][capacity];
+        BigInteger[][] paddings = new BigInteger[leafNum][capacity];
+
+        // 按层序逐个节点切分，nodes中依次为当前层各节点的点
+        List<List<BigInteger[]>> nodes = new ArrayList<>();
+        nodes.add(new ArrayList<>(Arrays.asList(dataset)));
+        for (int t = 0; t < depth; t++) {
+            int dim = t % m;
+            List<List<BigInteger[]>> next = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                List<BigInteger[]> rows = nodes.get(i);
+                rows.sort((a, b) -> a[dim].compareTo(b[dim]));
+
+                int half = rows.size() / 2;
+                splits[(1 << t) - 1 + i] = rows.get(half)[dim];
+                next.add(new ArrayList<>(rows.subList(0, half)));
+                next.add(new ArrayList<>(rows.subList(half, rows.size())));
+            }
+            nodes = next;
+        }
+
+        for (int i = 0; i < leafNum; i++) {
+            List<BigInteger[]> rows = nodes.get(i);
+            for (int j = 0; j < capacity; j++) {
+                if (j < rows.size()) {
+                    leaves[i][j] = new Point(rows.get(j)[m], Arrays.copyOf(rows.get(j), m));
+                    paddings[i][j] = BigInteger.ZERO;
+                } else {
+                    BigInteger[] data = new BigInteger[m];
+                    Arrays.fill(data, BigInteger.ZERO);
+                    leaves[i][j] = new Point(BigInteger.ZERO, data);
+                    paddings[i][j] = BigInteger.ONE;
+                }
+            }
+        }
+
+        System.out.println("k-d tree: depth = " + depth + ", leafSize = " + capacity + ", time = "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return new KDTree(depth, splits, leaves, paddings);
+    }
+
+    /*
+     * 构造LSH表：每张表取hashBits个随机的±1超平面，都经过数据空间的中心，点x在第b个比特上的哈希值为
+     * <w_b, x - center> >= 0。
+     * 
+     * 各桶的大小固定为平均大小的两倍（不超过最大的桶），超出的点不放入该表，这些点通常仍在其他表中；
+     * 否则少数大桶会使所有桶的填充都很多。不足的用填充的点补齐，填充的点的id为-1，不会与真实的点重复。
+     */
+    public static LSHTables buildLSHTables(BigInteger[][] dataset, int m, int dataLength, int tableNum, int hashBits,
+            Random random) {
+        long start = System.currentTimeMillis();
+
+        int bucketNum = 1 << hashBits;
+        int[][][] planes = new int[tableNum][hashBits][m];
+        BigInteger[] center = new BigInteger[m];
+        Arrays.fill(center, BigInteger.ONE.shiftLeft(dataLength - 1));
+
+        List<List<List<BigInteger[]>>> tables = new ArrayList<>();
+        int maxSize = 1;
+        for (int t = 0; t < tableNum; t++) {
+            for (int b = 0; b < hashBits; b++) {
+                for (int j = 0; j < m; j++) {
+                    planes[t][b][j] = random.nextBoolean() ? 1 : -1;
+                }
+            }
+
+            List<List<BigInteger[]>> buckets = new ArrayList<>();
+            for (int v = 0; v < bucketNum; v++) {
+                buckets.add(new ArrayList<>());
+            }
+            for (BigInteger[] row : dataset) {
+                int v = 0;
+                for (int b = 0; b < hashBits; b++) {
+                    BigInteger sum = BigInteger.ZERO;
+                    for (int j = 0; j < m; j++) {
+                        BigInteger x = row[j].subtract(center[j]);
+                        sum = (planes[t][b][j] > 0) ? sum.add(x) : sum.subtract(x);
+                    }
+                    if (sum.signum() >= 0)
+                        v |= 1 << b;
+                }
+                buckets.get(v).add(row);
+            }
+            for (List<BigInteger[]> bucket : buckets) {
+                maxSize = Math.max(maxSize, bucket.size());
+            }
+            tables.add(buckets);
+        }
+        int capacity = Math.min(maxSize, 2 * ((dataset.length + bucketNum - 1) / bucketNum));
+        int dropped = 0;
+
+        Point[][][] points = new Point[tableNum][bucketNum][capacity];
+        BigInteger[][][] paddings = new BigInteger[tableNum][bucketNum][capacity];
+        for (int t = 0; t < tableNum; t++) {
+            for (int v = 0; v < bucketNum; v++) {
+                List<BigInteger[]> rows = tables.get(t).get(v);
+                dropped += Math.max(0, rows.size() - capacity);
+                for (int i = 0; i < capacity; i++) {
+                    if (i < rows.size()) {
+                        points[t][v][i] = new Point(rows.get(i)[m], Arrays.copyOf(rows.get(i), m));
+                        paddings[t][v][i] = BigInteger.ZERO;
+                    } else {
+                        BigInteger[] data = new BigInteger[m];
+                        Arrays.fill(data, BigInteger.ZERO);
+                        points[t][v][i] = new Point(BigInteger.ONE.negate(), data);
+                        paddings[t][v][i] = BigInteger.ONE;
+                    }
+                }
+            }
+        }
+
+        System.out.println("LSH tables: tableNum = " + tableNum + ", hashBits = " + hashBits + ", bucketSize = "
+                + capacity + ", dropped = " + dropped + ", time = " + (System.currentTimeMillis() - start) + " ms");
+
+        return new LSHTables(planes, center, points, paddings);
+    }
+
+    /*
+     * 构造IVF索引：各点按k-means得到的最近簇心划分，
+     * 各簇用填充的点补齐为最大的簇的大小，填充的点的id为0。
+     */
+    public static IVFIndex buildIVFIndex(BigInteger[][] dataset, int m, int clusterNum, Random random) {
+        long start = System.currentTimeMillis();
+
+        BigInteger[][] centroids = kMeans(dataset, 0, m, clusterNum, random);
+        clusterNum = centroids.length;
+
+        List<List<BigInteger[]>> clusters = new ArrayList<>();
+        for (int c = 0; c < clusterNum; c++) {
+            clusters.add(new ArrayList<>());
+        }
+        for (BigInteger[] row : dataset) {
+            clusters.get(nearestCentroid(centroids, row, 0)).add(row);
+        }
+        int capacity = 1;
+        for (List<BigInteger[]> cluster : clusters) {
+            capacity = Math.max(capacity, cluster.size());
+        }
+
+        Point[] centroidPoints = new Point[clusterNum];
+        Point[][] points = new Point[clusterNum][capacity];
+        BigInteger[][] paddings = new BigInteger[clusterNum][capacity];
+        for (int c = 0; c < clusterNum; c++) {
+            centroidPoints[c] = new Point(BigInteger.valueOf(c), centroids[c]);
+
+            List<BigInteger[]> rows = clusters.get(c);
+            for (int i = 0; i < capacity; i++) {
+                if (i < rows.size()) {
+                    points[c][i] = new Point(rows.get(i)[m], Arrays.copyOf(rows.get(i), m));
+                    paddings[c][i] = BigInteger.ZERO;
+                } else {
+                    BigInteger[] data = new BigInteger[m];
+                    Arrays.fill(data, BigInteger.ZERO);
+                    points[c][i] = new Point(BigInteger.ZERO, data);
+                    paddings[c][i] = BigInteger.ONE;
+                }
+            }
+        }
+
+        System.out.println("IVF index: clusterNum = " + clusterNum + ", clusterSize = " + capacity + ", time = "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return new IVFIndex(centroidPoints, points, paddings);
+    }
+
+    /*
+     * 簇心的第j维对应row的第from + j维
+     */
+    private static int nearestCentroid(BigInteger[][] centroids, BigInteger[] row, int from) {
+        int nearest = 0;
+        BigInteger nearestDistance = null;
+        for (int c = 0; c < centroids.length; c++) {
+            BigInteger distance = BigInteger.ZERO;
+            for (int j = 0; j < centroids[c].length; j++) {
+                BigInteger diff = row[from + j].subtract(centroids[c][j]);
+                distance = distance.add(diff.multiply(diff));
+            }
+            if (nearestDistance == null || distance.compareTo(nearestDistance) < 0) {
+                nearest = c;
+                nearestDistance = distance;
+            }
+        }
+
+        return nearest;
+    }
+
+    /*
+     * 对各点的第from ... to - 1维做k-means：以随机选取的clusterNum个点为初始簇心做Lloyd迭代，
+     * 直到各点所属的簇不再变化（最多50次）。簇心取簇中各点的均值（取整），所以最后的划分与取整后的簇心一致。
+     */
+    private static BigInteger[][] kMeans(BigInteger[][] dataset, int from, int to, int clusterNum, Random random) {
+        int n = dataset.length;
+        int m = to - from;
+        clusterNum = Math.min(clusterNum, n);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        BigInteger[][] centroids = new BigInteger[clusterNum][];
+        for (int c = 0; c < clusterNum; c++) {
+            centroids[c] = Arrays.copyOfRange(dataset[order.get(c)], from, to);
+        }
+
+        int[] assignments = new int[n];
+        Arrays.fill(assignments, -1);
+        for (int iteration = 0; iteration < 50; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                int nearest = nearestCentroid(centroids, dataset[i], from);
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                break;
+
+            BigInteger[][] sums = new BigInteger[clusterNum][m];
+            int[] counts = new int[clusterNum];
+            for (BigInteger[] sum : sums) {
+                Arrays.fill(sum, BigInteger.ZERO);
+            }
+            for (int i = 0; i < n; i++) {
+                counts[assignments[i]]++;
+                for (int j = 0; j < m; j++) {
+                    sums[assignments[i]][j] = sums[assignments[i]][j].add(dataset[i][from + j]);
+                }
+            }
+            for (int c = 0; c < clusterNum; c++) {
+                if (counts[c] == 0)
+                    continue; // 空簇保留原簇心
+
+                BigInteger count = BigInteger.valueOf(counts[c]);
+                for (int j = 0; j < m; j++) {
+                    centroids[c][j] = sums[c][j].add(count.shiftRight(1)).divide(count);
+                }
+            }
+        }
+
+        return centroids;
+    }
+
+    /*
+     * 构造PQ索引：m维依次分为subspaceNum段，每段单独做k-means得到codewordNum个码字，各点在每段用最近的码字编码。
+     * 码字间距离表中的值统一右移shift位，shift取使各段最大距离之和小于2^width的最小值，
+     * 所以查表得到的距离都小于2^width。
+     */
+    public static PQIndex buildPQIndex(BigInteger[][] dataset, int m, int subspaceNum, int codewordNum, int width,
+            Random random) {
+        long start = System.currentTimeMillis();
+
+        int n = dataset.length;
+        subspaceNum = Math.min(subspaceNum, m);
+        codewordNum = Math.min(codewordNum, n);
+
+        BigInteger[][][] codebooks = new BigInteger[subspaceNum][][];
+        int[][] assignments = new int[n][subspaceNum];
+        BigInteger[][][] distances = new BigInteger[subspaceNum][codewordNum][codewordNum];
+        BigInteger maxTotal = BigInteger.ZERO;
+        for (int s = 0; s < subspaceNum; s++) {
+            int from = s * m / subspaceNum, to = (s + 1) * m / subspaceNum;
+            codebooks[s] = kMeans(dataset, from, to, codewordNum, random);
+            for (int x = 0; x < n; x++) {
+                assignments[x][s] = nearestCentroid(codebooks[s], dataset[x], from);
+            }
+
+            BigInteger max = BigInteger.ZERO;
+            for (int i = 0; i < codewordNum; i++) {
+                for (int j = 0; j < codewordNum; j++) {
+                    distances[s][i][j] = BigInteger.ZERO;
+                    for (int d = 0; d < to - from; d++) {
+                        BigInteger diff = codebooks[s][i][d].subtract(codebooks[s][j][d]);
+                        distances[s][i][j] = distances[s][i][j].add(diff.multiply(diff));
+                    }
+                    max = max.max(distances[s][i][j]);
+                }
+            }
+            maxTotal = maxTotal.add(max);
+        }
+        int shift = Math.max(0, maxTotal.bitLength() - width);
+
+        Point[][] codebookPoints = new Point[subspaceNum][codewordNum];
+        BigInteger[][][] tables = new BigInteger[subspaceNum][codewordNum][codewordNum];
+        for (int s = 0; s < subspaceNum; s++) {
+            for (int i = 0; i < codewordNum; i++) {
+                codebookPoints[s][i] = new Point(BigInteger.valueOf(i), codebooks[s][i]);
+                for (int j = 0; j < codewordNum; j++) {
+                    tables[s][i][j] = distances[s][i][j].shiftRight(shift);
+                }
+            }
+        }
+
+        Point[] points = new Point[n];
+        BigInteger[][][] codes = new BigInteger[n][subspaceNum][codewordNum];
+        for (int x = 0; x < n; x++) {
+            points[x] = new Point(dataset[x][m], Arrays.copyOf(dataset[x], m));
+            for (int s = 0; s < subspaceNum; s++) {
+                for (int i = 0; i < codewordNum; i++) {
+                    codes[x][s][i] = (assignments[x][s] == i) ? BigInteger.ONE : BigInteger.ZERO;
+                }
+            }
+        }
+
+        System.out.println("PQ index: subspaceNum = " + subspaceNum + ", codewordNum = " + codewordNum
+                + ", width = " + width + ", shift = " + shift + ", time = "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return new PQIndex(width, codebookPoints, tables, points, codes);
+    }
+
+    /*
+     * 把VG表的桶分为约sqrt(vgNum)组，用于两级桶索引（见SKNNV2.locateInGroups）
+     *
+     * 递归地沿某一维度切分：切分位置取某个桶的下边界，且要求每个桶都完全落在切分位置的一侧，
+     * 这样各组的外包框互不重叠，q所在的组中一定有q所在的桶。每次取两侧桶数最均衡的切分，
+     * 直到组内桶数不超过sqrt(vgNum)或无法再切分。两级索引不能减少比较次数时返回null。
+     */
+    public static VGGroup[] groupVGs(VG[] vgs) {
+        int vgNum = vgs.length;
+        int m = vgs[0].low.data.length;
+        int target = (int) Math.ceil(Math.sqrt(vgNum));
+
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < vgNum; i++) {
+            all.add(i);
+        }
+
+        List<List<Integer>> leaves = new ArrayList<>();
+        Deque<List<Integer>> pending = new ArrayDeque<>();
+        pending.add(all);
+        while (!pending.isEmpty()) {
+            List<Integer> members = pending.poll();
+            List<List<Integer>> halves = (members.size() > target) ? splitVGs(vgs, members, m) : null;
+            if (halves == null) {
+                leaves.add(members);
+            } else {
+                pending.addAll(halves);
+            }
+        }
+
+        int groupNum = leaves.size();
+        int groupSize = 0;
+        for (List<Integer> leaf : leaves) {
+            groupSize = Math.max(groupSize, leaf.size());
+        }
+        if (groupNum + groupSize >= vgNum)
+            return null;
+
+        VGGroup[] groups = new VGGroup[groupNum];
+        for (int g = 0; g < groupNum; g++) {
+            List<Integer> leaf = leaves.get(g);
+
+            BigInteger[] low = vgs[leaf.get(0)].low.data.clone();
+            BigInteger[] high = vgs[leaf.get(0)].high.data.clone();
+            int[] members = new int[groupSize];
+            Arrays.fill(members, -1);
+            for (int f = 0; f < leaf.size(); f++) {
+                VG vg = vgs[leaf.get(f)];
+                for (int j = 0; j < m; j++) {
+                    low[j] = low[j].min(vg.low.data[j]);
+                    high[j] = high[j].max(vg.high.data[j]);
+                }
+                members[f] = leaf.get(f);
+            }
+
+            groups[g] = new VGGroup(new Point(null, low), new Point(null, high), members);
+        }
+
+        return groups;
+    }
+
+    /*
+     * 找到把members分成两部分的最均衡的切分，没有合法的切分时返回null
+     */
+    private static List<List<Integer>> splitVGs(VG[] vgs, List<Integer> members, int m) {
+        List<List<Integer>> best = null;
+        int bestLarger = members.size();
+        for (int j = 0; j < m; j++) {
+            Set<BigInteger> cuts = new HashSet<>();
+            for (int i : members) {
+                cuts.add(vgs[i].low.data[j]);
+            }
+
+            for (BigInteger cut : cuts) {
+                List<Integer> lower = new ArrayList<>();
+                List<Integer> upper = new ArrayList<>();
+                for (int i : members) {
+                    if (vgs[i].high.data[j].compareTo(cut) <= 0) {
+                        lower.add(i);
+                    } else if (vgs[i].low.data[j].compareTo(cut) >= 0) {
+                        upper.add(i);
+                    } else {
+                        break; // 该桶跨过切分位置
+                    }
+                }
+
+                if (lower.isEmpty() || upper.isEmpty() || lower.size() + upper.size() < members.size())
+                    continue;
+
+                int larger = Math.max(lower.size(), upper.size());
+                if (larger < bestLarger) {
+                    bestLarger = larger;
+                    best = List.of(lower, upper);
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /*
+     * 若各桶由数据空间逐次对半切分得到，按Morton键排列各桶（见SKNNV2.MortonLayout），否则返回null。
+     * 按Morton键定位不能减少比较次数时也返回null。
+     */
+    public static MortonLayout mortonLayout(VG[] vgs) {
+        int vgNum = vgs.length;
+        int m = vgs[0].low.data.length;
+        if (vgNum < 2)
+            return null;
+
+        BigInteger[] low = new BigInteger[m];
+        BigInteger[] cellWidths = new BigInteger[m];
+        int[] depths = new int[m];
+        long comparisons = vgNum - 1;
+        for (int j = 0; j < m; j++) {
+            BigInteger high = vgs[0].high.data[j];
+            low[j] = vgs[0].low.data[j];
+            cellWidths[j] = high.subtract(low[j]);
+            for (VG vg : vgs) {
+                low[j] = low[j].min(vg.low.data[j]);
+                high = high.max(vg.high.data[j]);
+                cellWidths[j] = cellWidths[j].min(vg.high.data[j].subtract(vg.low.data[j]));
+            }
+
+            // 单元数须为2的幂
+            BigInteger[] cells = high.subtract(low[j]).divideAndRemainder(cellWidths[j]);
+            if (cells[1].signum() != 0 || cells[0].bitCount() != 1 || cells[0].bitLength() > 31)
+                return null;
+
+            depths[j] = cells[0].bitLength() - 1;
+            comparisons += (1L << depths[j]) - 1;
+        }
+        if (comparisons >= 2L * m * vgNum)
+            return null;
+
+        MortonLayout layout = new MortonLayout(low, cellWidths, depths, null, null);
+
+        // 每个桶覆盖的单元的键须是连续的一段
+        BigInteger[] starts = new BigInteger[vgNum];
+        BigInteger[] counts = new BigInteger[vgNum];
+        for (int i = 0; i < vgNum; i++) {
+            BigInteger first = BigInteger.ZERO;
+            BigInteger last = BigInteger.ZERO;
+            BigInteger count = BigInteger.ONE;
+            for (int j = 0; j < m; j++) {
+                BigInteger[] cell = vgs[i].low.data[j].subtract(low[j]).divideAndRemainder(cellWidths[j]);
+                BigInteger[] cells = vgs[i].high.data[j].subtract(vgs[i].low.data[j])
+                        .divideAndRemainder(cellWidths[j]);
+                if (cell[1].signum() != 0 || cells[1].signum() != 0)
+                    return null;
+
+                first = first.add(layout.interleave(j, cell[0]));
+                last = last.add(layout.interleave(j, cell[0].add(cells[0]).subtract(BigInteger.ONE)));
+                count = count.multiply(cells[0]);
+            }
+            if (!last.subtract(first).add(BigInteger.ONE).equals(count))
+                return null;
+
+            starts[i] = first;
+            counts[i] = count;
+        }
+
+        // 按起始键排序后须首尾相接，铺满所有的键
+        Integer[] sorted = new Integer[vgNum];
+        for (int i = 0; i < vgNum; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> starts[a].compareTo(starts[b]));
+
+        int[] order = new int[vgNum];
+        BigInteger[] keys = new BigInteger[vgNum];
+        BigInteger next = BigInteger.ZERO;
+        for (int t = 0; t < vgNum; t++) {
+            order[t] = sorted[t];
+            keys[t] = starts[sorted[t]];
+            if (!keys[t].equals(next))
+                return null;
+            next = next.add(counts[sorted[t]]);
+        }
+        if (!next.equals(BigInteger.ONE.shiftLeft(Arrays.stream(depths).sum())))
+            return null;
+
+        layout.order = order;
+        layout.keys = keys;
+
+        return layout;
+    }
+}
@@ -0,0 +1,452 @@
+package cn.ac.iscas.sknn;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static cn.ac.iscas.secretsharing.ReplicatedSecretSharing.*;
+
+import cn.ac.iscas.secretsharing.ReplicatedContext;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+
+/**
+ * 三方复制秘密分享上的SKNN：线性SKNN与SKNNV2.secureLinearSKNN相同，基于Voronoi图的SKNN见secureVoronoiSKNN
+ */
+public class ReplicatedSKNN {
+
+    public static class Point {
+        public Share id;
+        public Share[] data;
+
+        public Point(int m) {
+            data = new Share[m];
+        }
+
+        public Point(Share id, Share[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 同SKNNV2.AG
+     */
+    public static class AG {
+        public Share label; // 行号
+        public Point[] points; // 点
+        public Share[] subLabels; // 各点对应的label
+
+        public AG(Share label, Point[] points, Share[] subLabels) {
+            this.label = label;
+            this.points = points;
+            this.subLabels = subLabels;
+        }
+    }
+
+    /**
+     * 同SKNNV2.VG
+     */
+    public static class VG {
+        public Share[] low, high; // 边界
+        public Point[] points; // 点
+        public Share[] subLabels; // 各点对应的label
+
+        public VG(Share[] low, Share[] high, Point[] points, Share[] subLabels) {
+            this.low = low;
+            this.high = high;
+            this.points = points;
+            this.subLabels = subLabels;
+        }
+    }
+
+    /*
+     * 计算欧氏距离（不开方）
+     */
+    public static Share[] secureNEuclideanDistance(ReplicatedContext ctx, Point[] points, Share[] q)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureNEuclideanDistance", () -> {
+            int num = points.length;
+            int m = q.length;
+
+            Share[] diffis = new Share[num * m];
+            for (int i = 0; i < num; i++) {
+                int offset = i * m;
+                for (int j = 0; j < m; j++) {
+                    diffis[offset + j] = subtract(ctx, points[i].data[j], q[j]);
+                }
+            }
+            Share[] tis = multiplyS(ctx, diffis, diffis);
+
+            Share[] distanceis = new Share[num];
+            for (int i = 0; i < num; i++) {
+                int offset = i * m;
+                distanceis[i] = constant(ctx, BigInteger.ZERO);
+
+                for (int j = 0; j < m; j++) {
+                    distanceis[i] = add(ctx, distanceis[i], tis[offset + j]);
+                }
+            }
+
+            return distanceis;
+        });
+    }
+
+    public static Point[] secureLinearSKNN(ReplicatedContext ctx, Point[] points, Share[] q, int k)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureLinearSKNN", () -> {
+            // 计算点q到数据集中各点的欧式距离（不开方）
+            Share[] distanceis = secureNEuclideanDistance(ctx, points, q);
+
+            secureLinearSKNNCore(ctx, points, distanceis, k);
+
+            Point[] resulti = Arrays.copyOfRange(points, 0, k);
+
+            return resulti;
+        });
+    }
+
+    /*
+     * 将前K近邻点移动到数组前k个，与SKNNV2.secureLinearSKNNCore相同
+     */
+    private static void secureLinearSKNNCore(ReplicatedContext ctx, Point[] points, Share[] distances, int k)
+            throws IOException {
+
+        ProtocolCostCounter.run("secureLinearSKNNCore", () -> {
+            int num = points.length; // 点的个数
+            int m = points[0].data.length; // 维度
+
+            // 每行为：id | pointData
+            Share[][] rows = new Share[num][1 + m];
+            for (int i = 0; i < num; i++) {
+                rows[i][0] = points[i].id;
+                System.arraycopy(points[i].data, 0, rows[i], 1, m);
+            }
+
+            selectSmallest(ctx, rows, distances, k);
+
+            for (int i = 0; i < num; i++) {
+                points[i].id = rows[i][0];
+                points[i].data = Arrays.copyOfRange(rows[i], 1, 1 + m);
+            }
+        });
+    }
+
+    /*
+     * 将距离最小的k行按升序移动到rows的前k行，distances随之交换
+     */
+    private static void selectSmallest(ReplicatedContext ctx, Share[][] rows, Share[] distances, int k)
+            throws IOException {
+
+        int num = rows.length; // 行数
+        int width = rows[0].length; // 每行的元素个数
+
+        // 挑选前K个最小距离的行
+        int count = 0;
+        while (count < k) {
+            int len = num - count; // 当前长度
+
+            while (len > 1) {
+                // 前count个已经挑选好，现在从后面的行中选
+                // 如果后面行数为奇数，则对后面偶数个行进行比较和交换。
+                int offset = (len % 2 == 0) ? count : count + 1;
+
+                // 比较前一半和后一半
+                int subLen = len / 2;
+                Share[] leftis = Arrays.copyOfRange(distances, offset, offset + subLen);
+                Share[] rightis = Arrays.copyOfRange(distances, offset + subLen, offset + 2 * subLen);
+
+                Share[] cmpis = secureComparision(ctx, leftis, rightis); // <bool(a < b)>
+
+                // 交换距离、各行，长度为：subLen + width * subLen
+                int tSize = (1 + width) * subLen;
+                Share[] t1is = new Share[tSize]; // <bool(a < b)>
+                Share[] t2is = new Share[tSize]; // <a - b>
+                for (int i = 0; i < subLen; i++) {
+                    int lIndex = offset + i, rIndex = lIndex + subLen;
+
+                    // distances
+                    t1is[i] = cmpis[i];
+                    t2is[i] = subtract(ctx, distances[lIndex], distances[rIndex]);
+
+                    // rows
+                    int pIndex = subLen + i * width;
+                    for (int j = 0; j < width; j++) {
+                        t1is[pIndex + j] = cmpis[i];
+                        t2is[pIndex + j] = subtract(ctx, rows[lIndex][j], rows[rIndex][j]);
+                    }
+                }
+
+                Share[] mulis = multiplyS(ctx, t1is, t2is); // <bool(a < b)> * <a - b>
+
+                // 交换 <t> = A[left] = <a>, A[left] = <b> + <bool(a < b)> * <a - b>, A[right] = <t> + <b> - A[left]
+                for (int i = 0; i < subLen; i++) {
+                    int lIndex = offset + i, rIndex = lIndex + subLen;
+
+                    // distances
+                    Share[] ti = conditionSwap(ctx, mulis[i], distances[lIndex], distances[rIndex]);
+                    distances[lIndex] = ti[0];
+                    distances[rIndex] = ti[1];
+
+                    // rows
+                    int pIndex = subLen + i * width;
+                    for (int j = 0; j < width; j++) {
+                        ti = conditionSwap(ctx, mulis[pIndex + j], rows[lIndex][j], rows[rIndex][j]);
+                        rows[lIndex][j] = ti[0];
+                        rows[rIndex][j] = ti[1];
+                    }
+                }
+
+                len = (len % 2 == 0) ? subLen : subLen + 1;
+            }
+
+            count++;
+        }
+    }
+
+    private static Share[] conditionSwap(ReplicatedContext ctx, Share muli, Share ai, Share bi) {
+        Share[] resulti = new Share[2];
+        resulti[0] = add(ctx, bi, muli);
+        resulti[1] = subtract(ctx, add(ctx, ai, bi), resulti[0]);
+
+        return resulti;
+    }
+
+    /**
+     * 基于Voronoi图的SKNN，过程与SKNNV2.secureVoronoiSKNN相同：先找到q所在的桶（逐个桶判断），桶中最近的点即为最近邻点；
+     * 之后每次取出上一个近邻点的AG并入候选点集，其中最近的点即为下一个近邻点。
+     * <p>
+     * 与两方的实现不同，候选点集不截取，每次用selectSmallest选出最小的一个点；
+     * 选出桶和AG中数据的加权求和是内积（见innerProductS），每个元素只发送一个值。
+     */
+    public static Point[] secureVoronoiSKNN(ReplicatedContext ctx, AG[] ags, VG[] vgs, Share[] q, int k)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureVoronoiSKNN", () -> {
+            int m = q.length; // 维度
+
+            // 后续剔除点时，相当于将该点到q的距离设为该值，比较的有效范围是[0, mod / 2)
+            Share maxDistance = constant(ctx, ctx.mod.divide(BigInteger.TWO).subtract(BigInteger.ONE));
+
+            Point[] resulti = new Point[k]; // 结果集
+            Share[] resultIdis = new Share[k];
+
+            /*** 首先找到点q在哪个桶中，计算出桶中各点到q的距离 ***/
+            Share[][] rows = ProtocolCostCounter.call("locateBucket", () -> locateBucket(ctx, vgs, q));
+            Share[] distances = euclideanDistances(ctx, rows, q);
+            // 桶中的点有填充的重复点
+            distances = removeDuplicates(ctx, rows, distances, new Share[0], maxDistance);
+
+            /*** 查找第1~k最近邻点 ***/
+            int count = 0; // 记录当前已经挑选出几个最近邻点
+            while (true) {
+                selectSmallest(ctx, rows, distances, 1);
+                resultIdis[count] = rows[0][1];
+                resulti[count++] = new Point(rows[0][1], Arrays.copyOfRange(rows[0], 2, 2 + m));
+                if (count == k)
+                    break;
+
+                // 其余点作为候选点集，并入当前最近邻点的邻近点集AG
+                Share minLabeli = rows[0][0];
+                Share[][] agRows = ProtocolCostCounter.call("fetchAG", () -> fetchAG(ctx, ags, minLabeli));
+                Share[] agDistances = euclideanDistances(ctx, agRows, q);
+
+                // 剔除AG中已经选出来的点、已在候选点集中的点以及重复的点
+                Share[] excludedIds = new Share[count + rows.length - 1];
+                System.arraycopy(resultIdis, 0, excludedIds, 0, count);
+                for (int i = 1; i < rows.length; i++) {
+                    excludedIds[count + i - 1] = rows[i][1];
+                }
+                agDistances = removeDuplicates(ctx, agRows, agDistances, excludedIds, maxDistance);
+
+                rows = concat(Arrays.copyOfRange(rows, 1, rows.length), agRows);
+                distances = concat(Arrays.copyOfRange(distances, 1, distances.length), agDistances);
+            }
+
+            return resulti;
+        });
+    }
+
+    /*
+     * 选出q所在的桶中的数据，q是否在桶中：bool( low_i <= q_i < high_i ) = ( 1 - bool( q_i < low_i ) ) * bool( q_i < high_i)
+     */
+    private static Share[][] locateBucket(ReplicatedContext ctx, VG[] vgs, Share[] q) throws IOException {
+        int vgNum = vgs.length;
+        int m = q.length;
+
+        Share[] t1 = new Share[vgNum * m * 2]; //   q_1, ..., q_m   | q_1, ..., q_m
+        Share[] t2 = new Share[vgNum * m * 2]; // low_1, ..., low_m | high_1, ..., high_m
+        for (int i = 0; i < vgNum; i++) {
+            int index = i * m * 2;
+            for (int j = 0; j < m; j++) {
+                t1[index + j] = q[j];
+                t2[index + j] = vgs[i].low[j];
+
+                t1[index + m + j] = q[j];
+                t2[index + m + j] = vgs[i].high[j];
+            }
+        }
+        Share[] cmps = secureComparision(ctx, t1, t2);
+
+        Share[][] factors = new Share[vgNum][m * 2];
+        for (int i = 0; i < vgNum; i++) {
+            int index = i * m * 2;
+            for (int j = 0; j < m; j++) {
+                factors[i][j] = subtract(ctx, constant(ctx, BigInteger.ONE), cmps[index + j]);
+                factors[i][m + j] = cmps[index + m + j];
+            }
+        }
+        Share[] alphas = secureProduct(ctx, factors);
+
+        Point[][] pDatas = new Point[vgNum][];
+        Share[][] lDatas = new Share[vgNum][];
+        for (int i = 0; i < vgNum; i++) {
+            pDatas[i] = vgs[i].points;
+            lDatas[i] = vgs[i].subLabels;
+        }
+        return selectData(ctx, alphas, pDatas, lDatas);
+    }
+
+    /*
+     * 选出label为minLabel的邻近点集AG中的数据
+     */
+    private static Share[][] fetchAG(ReplicatedContext ctx, AG[] ags, Share minLabeli) throws IOException {
+        int agNum = ags.length;
+
+        Share[] t1 = new Share[agNum]; // 各个AG的label
+        Share[] t2 = new Share[agNum]; // 当前最近邻点对应的label
+        Point[][] pDatas = new Point[agNum][];
+        Share[][] lDatas = new Share[agNum][];
+        for (int i = 0; i < agNum; i++) {
+            t1[i] = ags[i].label;
+            t2[i] = minLabeli;
+            pDatas[i] = ags[i].points;
+            lDatas[i] = ags[i].subLabels;
+        }
+        Share[] alphas = secureEqual(ctx, t1, t2);
+
+        return selectData(ctx, alphas, pDatas, lDatas);
+    }
+
+    /*
+     * 根据指示向量alpha（只有一个为1）选出对应的一组数据：SUM( alpha_i * data_i )
+     *
+     * 返回每组的点数行，每行为：label | id | pointData
+     */
+    private static Share[][] selectData(ReplicatedContext ctx, Share[] alphas, Point[][] pDatas, Share[][] lDatas)
+            throws IOException {
+
+        int num = alphas.length;
+        int size = pDatas[0].length;
+        int width = 2 + pDatas[0][0].data.length;
+
+        Share[][] xs = new Share[size * width][];
+        Share[][] ys = new Share[size * width][num];
+        for (int j = 0; j < size; j++) {
+            for (int l = 0; l < width; l++) {
+                xs[j * width + l] = alphas;
+            }
+            for (int i = 0; i < num; i++) {
+                ys[j * width][i] = lDatas[i][j];
+                ys[j * width + 1][i] = pDatas[i][j].id;
+                for (int l = 2; l < width; l++) {
+                    ys[j * width + l][i] = pDatas[i][j].data[l - 2];
+                }
+            }
+        }
+        Share[] sums = innerProductS(ctx, xs, ys);
+
+        Share[][] rows = new Share[size][];
+        for (int j = 0; j < size; j++) {
+            rows[j] = Arrays.copyOfRange(sums, j * width, (j + 1) * width);
+        }
+        return rows;
+    }
+
+    /*
+     * 计算欧氏距离（不开方），rows的格式见selectData()
+     */
+    private static Share[] euclideanDistances(ReplicatedContext ctx, Share[][] rows, Share[] q) throws IOException {
+        int m = q.length;
+
+        Share[][] diffs = new Share[rows.length][m];
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < m; j++) {
+                diffs[i][j] = subtract(ctx, rows[i][2 + j], q[j]);
+            }
+        }
+
+        return innerProductS(ctx, diffs, diffs);
+    }
+
+    /*
+     * 剔除rows中的重复点以及id在excludedIds中的点（距离设为最大值），每个点只保留第一次出现的位置，
+     * 与SKNNV2.removeDuplicates相同：是否剔除由 1 - PROD( 1 - bool(id == id') ) 给出，
+     * 剔除后的距离为 d + b * (MAX_DISTANCE - d)
+     */
+    private static Share[] removeDuplicates(ReplicatedContext ctx, Share[][] rows, Share[] distances,
+            Share[] excludedIds, Share maxDistance) throws IOException {
+
+        int num = rows.length;
+        int eNum = excludedIds.length;
+
+        List<Share> t1 = new ArrayList<>();
+        List<Share> t2 = new ArrayList<>();
+        int[] fNums = new int[num];
+        for (int j = 0; j < num; j++) {
+            for (int i = 0; i < eNum; i++) {
+                t1.add(rows[j][1]);
+                t2.add(excludedIds[i]);
+            }
+            for (int i = 0; i < j; i++) {
+                t1.add(rows[j][1]);
+                t2.add(rows[i][1]);
+            }
+            fNums[j] = eNum + j;
+        }
+        if (t1.isEmpty())
+            return distances;
+        Share[] eqs = secureEqual(ctx, t1.toArray(new Share[0]), t2.toArray(new Share[0]));
+
+        // 只有一个点且没有需要剔除的id时不需要比较
+        List<Integer> compared = new ArrayList<>();
+        List<Share[]> factors = new ArrayList<>();
+        int index = 0;
+        for (int j = 0; j < num; j++) {
+            if (fNums[j] == 0)
+                continue;
+
+            Share[] f = new Share[fNums[j]];
+            for (int i = 0; i < fNums[j]; i++) {
+                f[i] = subtract(ctx, constant(ctx, BigInteger.ONE), eqs[index++]);
+            }
+            compared.add(j);
+            factors.add(f);
+        }
+        Share[] products = secureProduct(ctx, factors.toArray(new Share[0][]));
+
+        Share[] bs = new Share[products.length];
+        Share[] gaps = new Share[products.length];
+        for (int t = 0; t < products.length; t++) {
+            bs[t] = subtract(ctx, constant(ctx, BigInteger.ONE), products[t]);
+            gaps[t] = subtract(ctx, maxDistance, distances[compared.get(t)]);
+        }
+        Share[] muls = multiplyS(ctx, bs, gaps);
+
+        Share[] newDistances = distances.clone();
+        for (int t = 0; t < products.length; t++) {
+            int j = compared.get(t);
+            newDistances[j] = add(ctx, distances[j], muls[t]);
+        }
+        return newDistances;
+    }
+
+    private static <T> T[] concat(T[] x, T[] y) {
+        T[] result = Arrays.copyOf(x, x.length + y.length);
+        System.arraycopy(y, 0, result, x.length, y.length);
+        return result;
+    }
+}
@@ -7,9 +7,18 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.alibaba.fastjson2.JSON;
 
 import static cn.ac.iscas.secretsharing.AdditiveSecretSharing.*;
 
+import cn.ac.iscas.secretsharing.AsyncProtocol;
+import cn.ac.iscas.secretsharing.ProtocolContext;
+import cn.ac.iscas.secretsharing.ShareCircuit;
+import cn.ac.iscas.secretsharing.ShareCircuit.Value;
+import cn.ac.iscas.utils.ProtocolCostCounter;
+
 /**
  * 以下是2023.06实现的SKNN，包括：线性SKNN、基于维诺图的SKNN
  */
@@ -34,46 +43,86 @@ public class SKNNV2 {
     /*
      * 计算欧氏距离（不开方）
      */
-    public static BigInteger[] secureNEuclideanDistance(PartyID partyID, Point[] points, BigInteger[] q,
-            MultiplicationTriple triple, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+    public static BigInteger[] secureNEuclideanDistance(ProtocolContext ctx, Point[] points, BigInteger[] q)
+            throws IOException {
 
-        int num = points.length;
-        int m = q.length;
+        return ProtocolCostCounter.call("secureNEuclideanDistance", () -> {
+            int num = points.length;
+            int m = q.length;
 
-        BigInteger[] diffis = new BigInteger[num * m];
-        for (int i = 0; i < num; i++) {
-            int offset = i * m;
-            for (int j = 0; j < m; j++) {
-                diffis[offset + j] = points[i].data[j].subtract(q[j]).mod(mod);
+            BigInteger[] diffis = new BigInteger[num * m];
+            for (int i = 0; i < num; i++) {
+                int offset = i * m;
+                for (int j = 0; j < m; j++) {
+                    diffis[offset + j] = points[i].data[j].subtract(q[j]).mod(ctx.mod);
+                }
             }
-        }
-        BigInteger[] tis = multiplyS(partyID, diffis, diffis, triple, mod, reader, writer);
+            BigInteger[] tis = multiplyS(ctx, diffis, diffis);
 
-        BigInteger[] distanceis = new BigInteger[num];
-        for (int i = 0; i < num; i++) {
-            int offset = i * m;
-            distanceis[i] = BigInteger.ZERO;
+            BigInteger[] distanceis = new BigInteger[num];
+            for (int i = 0; i < num; i++) {
+                int offset = i * m;
+                distanceis[i] = BigInteger.ZERO;
 
-            for (int j = 0; j < m; j++) {
-                distanceis[i] = distanceis[i].add(tis[offset + j]).mod(mod);
+                for (int j = 0; j < m; j++) {
+                    distanceis[i] = distanceis[i].add(tis[offset + j]).mod(ctx.mod);
+                }
             }
-        }
 
-        return distanceis;
+            return distanceis;
+        });
     }
 
-    public static Point[] secureLinearSKNN(PartyID partyID, Point[] points, BigInteger[] q, int k,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static Point[] secureLinearSKNN(ProtocolContext ctx, Point[] points, BigInteger[] q, int k)
+            throws IOException {
+        return secureLinearSKNN(ctx, points, q, k, 0);
+    }
 
-        // 计算点q到数据集中各点的欧式距离（不开方）
-        BigInteger[] distanceis = secureNEuclideanDistance(partyID, points, q, triple, mod, reader, writer);
+    /*
+     * precision > 0时，距离先截断为precision个有效比特（见truncationShift），比较只处理precision+1个比特。
+     *
+     * 截断后相等的距离视为相等，此时按比较锦标赛中的位置决定先后（与不截断时距离相同的情况一样）；
+     * 概率截断按低位大小随机进位，所以相差不足2^shift的两个距离也可能排反，
+     * 选出的第k个点与真实的第k个点的距离之差小于2^(shift+1)。
+     */
+    public static Point[] secureLinearSKNN(ProtocolContext ctx, Point[] points, BigInteger[] q, int k,
+            int precision) throws IOException {
+
+        return ProtocolCostCounter.call("secureLinearSKNN", () -> {
+            // 计算点q到数据集中各点的欧式距离（不开方）
+            BigInteger[] distanceis = secureNEuclideanDistance(ctx, points, q);
+
+            int shift = truncationShift(ctx.mod, precision);
+            if (shift > 0) {
+                distanceis = secureTruncation(ctx, distanceis, distanceBits(ctx.mod), shift);
+                secureLinearSKNNCore(ctx, points, distanceis, null, k, precision + 1);
+            } else {
+                secureLinearSKNNCore(ctx, points, distanceis, null, k);
+            }
 
-        secureLinearSKNNCore(partyID, points, distanceis, null, k, triple, rTuple, mod, reader, writer);
+            Point[] resulti = Arrays.copyOfRange(points, 0, k);
 
-        Point[] resulti = Arrays.copyOfRange(points, 0, k);
+            return resulti;
+        });
+    }
 
-        return resulti;
+    /*
+     * 模数留出统计安全参数后，距离可用的比特数：截断要求 x + r' < p，r'取模数的低l-2位，
+     * 且比r'短STATISTICAL_SECURITY位的值才被统计地隐藏（见AdditiveSecretSharing.secureTruncation）。
+     * 需要截断时，模数的长度应为 2 * dataLength + log_2(m) + 2 + STATISTICAL_SECURITY（见TestSKNNV2.user）。
+     */
+    private static int distanceBits(BigInteger mod) {
+        return mod.bitLength() - 2 - STATISTICAL_SECURITY;
+    }
+
+    /*
+     * 将距离截断为precision个有效比特时需要去掉的低位数。
+     * precision <= 0，或模数没有留出统计安全参数（截断后仍有precision位以上）时返回0，即不截断。
+     */
+    private static int truncationShift(BigInteger mod, int precision) {
+        if (precision <= 0)
+            return 0;
+        return Math.max(0, distanceBits(mod) - precision);
     }
 
     /*
@@ -81,107 +130,117 @@ public class SKNNV2 {
      * 
      * 判断依据是distance数组，需要外部函数提前计算。
     */
-    private static void secureLinearSKNNCore(PartyID partyID, Point[] points, BigInteger[] distances,
-            BigInteger[] labels, int k, MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
-
-        boolean labelIsNull = (labels == null);
-
-        int num = points.length; // 点的个数
-        int m = points[0].data.length; // 维度
-
-        // 挑选前K个最小距离的点
-        int count = 0;
-        while (count < k) {
-            int len = num - count; // 当前长度
-
-            while (len > 1) {
-                // 前count个已经挑选好，现在从后面的点中选
-                // 如果后面点数为奇数，则对后面偶数个点进行比较和交换。
-                int offset = (len % 2 == 0) ? count : count + 1;
-
-                // 比较前一半和后一半
-                int subLen = len / 2;
-                BigInteger[] leftis = Arrays.copyOfRange(distances, offset, offset + subLen);
-                BigInteger[] rightis = Arrays.copyOfRange(distances, offset + subLen, offset + 2 * subLen);
-
-                BigInteger[] cmpis = secureComparision(partyID, leftis, rightis, triple, rTuple, mod, reader, writer); // <bool(a < b)>
-
-                // 交换 id、点、距离
-                int tSize;
-                if (labelIsNull)
-                    tSize = (2 + m) * subLen; // ids | distances | points，长度为：subLen + subLen + m * subLen
-                else
-                    tSize = (2 + m) * subLen + subLen; // ids | distances | points | labels，长度为：subLen + subLen + m * subLen + subLen
-
-                BigInteger[] t1is = new BigInteger[tSize]; // <bool(a < b)>
-                BigInteger[] t2is = new BigInteger[tSize]; // <a - b>
-                for (int i = 0; i < subLen; i++) {
-                    int lIndex = offset + i, rIndex = lIndex + subLen;
-
-                    // ids
-                    t1is[i] = cmpis[i];
-                    t2is[i] = points[lIndex].id.subtract(points[rIndex].id).mod(mod);
-
-                    // distances
-                    int dIndex = subLen + i;
-                    t1is[dIndex] = cmpis[i];
-                    t2is[dIndex] = distances[lIndex].subtract(distances[rIndex]).mod(mod);
-
-                    // points
-                    int pIndex = 2 * subLen + i * m;
-                    for (int j = 0; j < m; j++) {
-                        t1is[pIndex + j] = cmpis[i];
-                        t2is[pIndex + j] = points[lIndex].data[j].subtract(points[rIndex].data[j]).mod(mod);
-                    }
+    private static void secureLinearSKNNCore(ProtocolContext ctx, Point[] points, BigInteger[] distances,
+            BigInteger[] labels, int k) throws IOException {
+        secureLinearSKNNCore(ctx, points, distances, labels, k, 0);
+    }
 
-                    // label
-                    if (!labelIsNull) {
-                        int labelIndex = (2 + m) * subLen + i;
-                        t1is[labelIndex] = cmpis[i];
-                        t2is[labelIndex] = labels[lIndex].subtract(labels[rIndex]).mod(mod);
+    /*
+     * width > 0时距离均小于2^width，比较只处理width个比特（见AdditiveSecretSharing.secureComparision）
+     */
+    private static void secureLinearSKNNCore(ProtocolContext ctx, Point[] points, BigInteger[] distances,
+            BigInteger[] labels, int k, int width) throws IOException {
+
+        ProtocolCostCounter.run("secureLinearSKNNCore", () -> {
+            boolean labelIsNull = (labels == null);
+
+            int num = points.length; // 点的个数
+            int m = points[0].data.length; // 维度
+
+            // 挑选前K个最小距离的点
+            int count = 0;
+            while (count < k) {
+                int len = num - count; // 当前长度
+
+                while (len > 1) {
+                    // 前count个已经挑选好，现在从后面的点中选
+                    // 如果后面点数为奇数，则对后面偶数个点进行比较和交换。
+                    int offset = (len % 2 == 0) ? count : count + 1;
+
+                    // 比较前一半和后一半
+                    int subLen = len / 2;
+                    BigInteger[] leftis = Arrays.copyOfRange(distances, offset, offset + subLen);
+                    BigInteger[] rightis = Arrays.copyOfRange(distances, offset + subLen, offset + 2 * subLen);
+
+                    BigInteger[] cmpis = (width > 0) ? secureComparision(ctx, leftis, rightis, width)
+                            : secureComparision(ctx, leftis, rightis); // <bool(a < b)>
+
+                    // 交换 id、点、距离
+                    int tSize;
+                    if (labelIsNull)
+                        tSize = (2 + m) * subLen; // ids | distances | points，长度为：subLen + subLen + m * subLen
+                    else
+                        tSize = (2 + m) * subLen + subLen; // ids | distances | points | labels，长度为：subLen + subLen + m * subLen + subLen
+
+                    BigInteger[] t1is = new BigInteger[tSize]; // <bool(a < b)>
+                    BigInteger[] t2is = new BigInteger[tSize]; // <a - b>
+                    for (int i = 0; i < subLen; i++) {
+                        int lIndex = offset + i, rIndex = lIndex + subLen;
+
+                        // ids
+                        t1is[i] = cmpis[i];
+                        t2is[i] = points[lIndex].id.subtract(points[rIndex].id).mod(ctx.mod);
+
+                        // distances
+                        int dIndex = subLen + i;
+                        t1is[dIndex] = cmpis[i];
+                        t2is[dIndex] = distances[lIndex].subtract(distances[rIndex]).mod(ctx.mod);
+
+                        // points
+                        int pIndex = 2 * subLen + i * m;
+                        for (int j = 0; j < m; j++) {
+                            t1is[pIndex + j] = cmpis[i];
+                            t2is[pIndex + j] = points[lIndex].data[j].subtract(points[rIndex].data[j]).mod(ctx.mod);
+                        }
+
+                        // label
+                        if (!labelIsNull) {
+                            int labelIndex = (2 + m) * subLen + i;
+                            t1is[labelIndex] = cmpis[i];
+                            t2is[labelIndex] = labels[lIndex].subtract(labels[rIndex]).mod(ctx.mod);
+                        }
                     }
-                }
-
-                BigInteger[] mulis = multiplyS(partyID, t1is, t2is, triple, mod, reader, writer); // <bool(a < b)> * <a - b>
-
-                // 交换 <t> = A[left] = <a>, A[left] = <b> + <bool(a < b)> * <a - b>, A[right] = <t> + <b> - A[left]
-                for (int i = 0; i < subLen; i++) {
-                    int lIndex = offset + i, rIndex = lIndex + subLen;
-
-                    // ids
-                    BigInteger[] ti = conditionSwap(mulis[i], points[lIndex].id, points[rIndex].id, mod);
-                    points[lIndex].id = ti[0];
-                    points[rIndex].id = ti[1];
 
-                    // distances
-                    int dIndex = subLen + i;
-                    ti = conditionSwap(mulis[dIndex], distances[lIndex], distances[rIndex], mod);
-                    distances[lIndex] = ti[0];
-                    distances[rIndex] = ti[1];
-
-                    // points
-                    int pIndex = 2 * subLen + i * m;
-                    for (int j = 0; j < m; j++) {
-                        ti = conditionSwap(mulis[pIndex + j], points[lIndex].data[j], points[rIndex].data[j], mod);
-                        points[lIndex].data[j] = ti[0];
-                        points[rIndex].data[j] = ti[1];
+                    BigInteger[] mulis = multiplyS(ctx, t1is, t2is); // <bool(a < b)> * <a - b>
+
+                    // 交换 <t> = A[left] = <a>, A[left] = <b> + <bool(a < b)> * <a - b>, A[right] = <t> + <b> - A[left]
+                    for (int i = 0; i < subLen; i++) {
+                        int lIndex = offset + i, rIndex = lIndex + subLen;
+
+                        // ids
+                        BigInteger[] ti = conditionSwap(mulis[i], points[lIndex].id, points[rIndex].id, ctx.mod);
+                        points[lIndex].id = ti[0];
+                        points[rIndex].id = ti[1];
+
+                        // distances
+                        int dIndex = subLen + i;
+                        ti = conditionSwap(mulis[dIndex], distances[lIndex], distances[rIndex], ctx.mod);
+                        distances[lIndex] = ti[0];
+                        distances[rIndex] = ti[1];
+
+                        // points
+                        int pIndex = 2 * subLen + i * m;
+                        for (int j = 0; j < m; j++) {
+                            ti = conditionSwap(mulis[pIndex + j], points[lIndex].data[j], points[rIndex].data[j], ctx.mod);
+                            points[lIndex].data[j] = ti[0];
+                            points[rIndex].data[j] = ti[1];
+                        }
+
+                        // label
+                        if (!labelIsNull) {
+                            int labelIndex = (2 + m) * subLen + i;
+                            ti = conditionSwap(mulis[labelIndex], labels[lIndex], labels[rIndex], ctx.mod);
+                            labels[lIndex] = ti[0];
+                            labels[rIndex] = ti[1];
+                        }
                     }
 
-                    // label
-                    if (!labelIsNull) {
-                        int labelIndex = (2 + m) * subLen + i;
-                        ti = conditionSwap(mulis[labelIndex], labels[lIndex], labels[rIndex], mod);
-                        labels[lIndex] = ti[0];
-                        labels[rIndex] = ti[1];
-                    }
+                    len = (len % 2 == 0) ? subLen : subLen + 1;
                 }
 
-                len = (len % 2 == 0) ? subLen : subLen + 1;
+                count++;
             }
-
-            count++;
-        }
+        });
     }
 
     private static BigInteger[] conditionSwap(BigInteger muli, BigInteger ai, BigInteger bi, BigInteger mod) {
@@ -214,6 +273,14 @@ public class SKNNV2 {
         }
     }
 
+    public static String parseAGsToJson(AG[] ags) {
+        return JSON.toJSONString(ags);
+    }
+
+    public static AG[] parseJsonToAGs(String json) {
+        return JSON.parseArray(json, AG.class).toArray(new AG[] {});
+    }
+
     public static class VG {
 
         public Point low, high; // 边界
@@ -237,266 +304,1257 @@ public class SKNNV2 {
         }
     }
 
+    public static String parseVGsToJson(VG[] vgs) {
+        return JSON.toJSONString(vgs);
+    }
+
+    public static VG[] parseJsonToVGs(String json) {
+        return JSON.parseArray(json, VG.class).toArray(new VG[] {});
+    }
+
     /*
-     * 基于Voronoi图的SKNN
-     * 
-     * 目前假设维度只为2，中间计算是否包含时，涉及到连乘，此处就简单处理。
+     * 两级桶索引中的一组桶
      */
-    public static Point[] secureVoronoiSKNN(PartyID partyID, AG[] ags, VG[] vgs, BigInteger[] q, int k,
-            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
-            BufferedReader reader, PrintWriter writer) throws IOException {
+    public static class VGGroup {
+
+        public Point low, high; // 边界，为组内各桶的外包框
+        public int[] members; // 组内各桶在VG表中的下标（公开），不足groupSize个时用-1填充
+
+        public VGGroup(int num, int m) {
+            low = new Point(m);
+            high = new Point(m);
+            members = new int[num];
+        }
+
+        public VGGroup(Point low, Point high, int[] members) {
+            this.low = low;
+            this.high = high;
+            this.members = members;
+        }
+    }
 
-        if (q.length != 2) {
-            System.out.println("目前只支持m=2的情况");
+    public static String parseVGGroupsToJson(VGGroup[] groups) {
+        return JSON.toJSONString(groups);
+    }
+
+    public static VGGroup[] parseJsonToVGGroups(String json) {
+        if (json.equals("null"))
             return null;
+
+        return JSON.parseArray(json, VGGroup.class).toArray(new VGGroup[] {});
+    }
+
+    /*
+     * 按Morton键（Z序）排列的桶，适用于桶由数据空间逐次对半切分得到的情形
+     *
+     * 把数据空间在第j维上均分为2^depths[j]个单元，各维度单元编号的比特从高位起按层交错（第t层依次取
+     * depths[j] > t的各维度的一个比特），得到单元的Morton键。每个桶恰好覆盖一段连续的键，
+     * 各桶按起始键排序后首尾相接，铺满[0, 2^SUM(depths))。
+     * 空间范围、切分深度和桶的排列顺序是公开的，各桶的起始键是秘密分享。
+     */
+    public static class MortonLayout {
+
+        public BigInteger[] low; // 数据空间的下界
+        public BigInteger[] cellWidths; // 各维度单元的宽度
+        public int[] depths; // 各维度的切分次数
+        public int[] order; // 按起始键排序后，各桶在VG表中的下标
+        public BigInteger[] keys; // keys[t]为第order[t]个桶的起始键
+
+        public MortonLayout() {
         }
 
+        public MortonLayout(BigInteger[] low, BigInteger[] cellWidths, int[] depths, int[] order,
+                BigInteger[] keys) {
+            this.low = low;
+            this.cellWidths = cellWidths;
+            this.depths = depths;
+            this.order = order;
+            this.keys = keys;
+        }
+
+        /*
+         * 第j维的单元编号cell对Morton键的贡献，各维度的贡献相加即为单元的键
+         */
+        public BigInteger interleave(int j, BigInteger cell) {
+            int maxDepth = Arrays.stream(depths).max().getAsInt();
+            int bits = Arrays.stream(depths).sum();
+
+            BigInteger key = BigInteger.ZERO;
+            int position = bits; // 从最高位开始
+            for (int t = 0; t < maxDepth; t++) {
+                for (int d = 0; d < depths.length; d++) {
+                    if (depths[d] <= t)
+                        continue;
+
+                    position--;
+                    if (d == j && cell.testBit(depths[j] - 1 - t))
+                        key = key.setBit(position);
+                }
+            }
+
+            return key;
+        }
+    }
+
+    public static String parseMortonLayoutToJson(MortonLayout layout) {
+        return JSON.toJSONString(layout);
+    }
+
+    public static MortonLayout parseJsonToMortonLayout(String json) {
+        if (json.equals("null"))
+            return null;
+
+        return JSON.parseObject(json, MortonLayout.class);
+    }
+
+    /*
+     * 基于Voronoi图的SKNN
+     * 
+     * 支持任意维度m：判断q是否在桶中需要2m次比较，比较结果的连乘按两分法进行，所有桶一起计算，
+     * 共log_2(2m)轮（见ShareCircuit.product）。
+     * 
+     * 各阶段都在ShareCircuit上构造：互相独立的交互（如各桶的边界比较、各个点的名次比较）合并在同一轮交换中，
+     * 与公开常量相关的乘法在本地完成。
+     * 
+     * 候选点集按距离排好序，且只保留之后还可能被选中的k-count个点。每选一个点，新的AG先去重，
+     * 再与候选点集一起按名次选出最小的k-count个点（见selectByRank），只有一层比较，
+     * 所以每个近邻点的轮数是常数，开销也不再随已选出的点数增长。
+     */
+    public static Point[] secureVoronoiSKNN(ProtocolContext ctx, AG[] ags, VG[] vgs, BigInteger[] q, int k)
+            throws IOException {
+        return secureVoronoiSKNN(ctx, ags, vgs, null, null, q, k);
+    }
+
+    /*
+     * 基于Voronoi图的SKNN。定位q所在的桶时，layout不为null则按Morton键定位（见locateByMorton），
+     * 否则groups不为null则使用两级桶索引（见locateInGroups），都为null时逐个桶判断。
+     */
+    public static Point[] secureVoronoiSKNN(ProtocolContext ctx, AG[] ags, VG[] vgs, VGGroup[] groups,
+            MortonLayout layout, BigInteger[] q, int k) throws IOException {
+        return secureVoronoiSKNN(ctx, ags, vgs, groups, layout, q, k, 0);
+    }
+
+    /*
+     * precision > 0时，桶和各AG中点的距离先截断为precision个有效比特，之后的名次比较只处理precision+1个比特，
+     * 截断带来的误差与secureLinearSKNN相同。截断后距离相同时下标小的在前（见selectByRank）。
+     */
+    public static Point[] secureVoronoiSKNN(ProtocolContext ctx, AG[] ags, VG[] vgs, VGGroup[] groups,
+            MortonLayout layout, BigInteger[] q, int k, int precision) throws IOException {
+
+        int shift = truncationShift(ctx.mod, precision);
+        int cmpWidth = (shift > 0) ? precision + 1 : 0;
+
         // 后续剔除点时，相当于将该点到q的距离设为该值
-        // 比较的有效范围是[0, mod / 2)，所以实际距离的最大值为mod/2 - 1。
-        BigInteger MAX_DISTANCE = mod.divide(BigInteger.TWO).subtract(BigInteger.ONE);
+        // 比较的有效范围是[0, mod / 2)，所以实际距离的最大值为mod/2 - 1；
+        // 截断后比较的有效范围是[0, 2^cmpWidth)，而截断后的距离不超过2^precision。
+        BigInteger MAX_DISTANCE = (shift > 0) ? BigInteger.ONE.shiftLeft(cmpWidth).subtract(BigInteger.ONE)
+                : ctx.mod.divide(BigInteger.TWO).subtract(BigInteger.ONE);
 
         int count = 0; // 记录当前已经挑选出几个最近邻点
         Point[] resulti = new Point[k]; // 结果集
 
         int agNum = ags.length; // AG的数量
-        int agSize = ags[0].points.length; // AG的大小
         int vgNum = vgs.length; // VG的数量
         int vgSize = vgs[0].points.length; // VG的大小
         int m = q.length; // 维度
 
+        ShareCircuit circuit = new ShareCircuit(ctx);
+        Value[] qs = circuit.secrets(q);
+        Value maxDistance = circuit.constant(MAX_DISTANCE);
+
         /*** 首先找到点q在哪个桶中 ***/
-        //  计算 bool( low_i <= q_i < high_i ) = ( 1 - bool( q_i <= low_i ) * bool( q_i < high_i) 
-        BigInteger[] t1i = new BigInteger[vgNum * m * 2]; //   q_1, ..., q_m   | q_1, ..., q_m
-        BigInteger[] t2i = new BigInteger[vgNum * m * 2]; // low_1, ..., low_m | high_1, ..., high_m
-        for (int i = 0; i < vgNum; i++) {
-            int index = i * m * 2;
-            for (int j = 0; j < m; j++) {
-                t1i[index + j] = q[j];
-                t2i[index + j] = vgs[i].low.data[j];
+        Candidates bucket = ProtocolCostCounter.call("locateBucket", () -> {
+            Value[] alphas;
+            if (layout != null) {
+                alphas = locateByMorton(circuit, qs, layout, vgNum);
+            } else if (groups == null) {
+                Value[][] lows = new Value[vgNum][];
+                Value[][] highs = new Value[vgNum][];
+                for (int i = 0; i < vgNum; i++) {
+                    lows[i] = circuit.secrets(vgs[i].low.data);
+                    highs[i] = circuit.secrets(vgs[i].high.data);
+                }
+                alphas = boxIndicators(circuit, qs, lows, highs);
+            } else {
+                alphas = locateInGroups(circuit, qs, vgs, groups);
+            }
 
-                t1i[index + m + j] = q[j];
-                t2i[index + m + j] = vgs[i].high.data[j];
+            /*** 计算出包含桶，以及其中各点到q的距离 ***/
+            BigInteger[][] lDatas = new BigInteger[vgNum][];
+            Point[][] pDatas = new Point[vgNum][];
+            for (int i = 0; i < vgNum; i++) {
+                lDatas[i] = vgs[i].subLabels;
+                pDatas[i] = vgs[i].points;
             }
+            Value[][] rows = selectData(circuit, alphas, pDatas, lDatas, vgSize, m);
+            Value[] distances = euclideanDistances(circuit, rows, qs);
+            if (shift > 0)
+                distances = circuit.truncate(distances, distanceBits(ctx.mod), shift);
+
+            // 桶中的点有填充的重复点，去重后选出最小的k个点
+            distances = removeDuplicates(circuit, rows, distances, new Value[0], maxDistance);
+            return selectByRank(circuit, rows, distances, 0, Math.min(k, vgSize), cmpWidth);
+        });
+
+        /*** 最小点即为最近邻点，其余点作为候选点集 ***/
+        resulti[count++] = new Point(bucket.pointis[0].id, bucket.pointis[0].data);
+        BigInteger minLabeli = bucket.labelis[0];
+        Candidates candidates = bucket.range(1, bucket.size());
+
+        BigInteger[][] lDatas = new BigInteger[agNum][];
+        Point[][] pDatas = new Point[agNum][];
+        for (int i = 0; i < agNum; i++) {
+            lDatas[i] = ags[i].subLabels;
+            pDatas[i] = ags[i].points;
         }
 
-        BigInteger[] cmpis = secureComparision(partyID, t1i, t2i, triple, rTuple, mod, reader, writer);
-
-        // 计算 bool( low_i <= q_i ) = 1 - bool( q_i < low_i )
-        for (int i = 0; i < vgNum; i++) {
-            int index = i * m * 2;
+        /*** 查找剩余第2~k最近邻点 ***/
+        // 候选点集按距离升序排列，且只保留最小的k-count个点（之后最多再选k-count个点），
+        // 所以每轮的开销只取决于agSize和k，不再随已选出的点数增长。
+        AsyncProtocol async = ctx.async();
+        while (count < k) {
+            // 获取当前最近邻点的邻近点集AG
+            Candidates fetched = fetchAG(ctx, ags, pDatas, lDatas, minLabeli);
 
-            for (int j = 0; j < m; j++) {
-                cmpis[index + j] = shareConstant(partyID, BigInteger.ONE).subtract(cmpis[index + j]).mod(mod);
+            // AG中点到q的距离与AG的去重互不依赖，有多条通道时同时进行（见AsyncProtocol）
+            BigInteger[] excludedIdis = new BigInteger[count + candidates.size()];
+            for (int i = 0; i < count; i++) {
+                excludedIdis[i] = resulti[i].id;
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                excludedIdis[count + i] = candidates.pointis[i].id;
             }
+            CompletableFuture<BigInteger[]> agDistances = async.submit("agDistances",
+                    lane -> agDistances(lane, fetched, q, shift));
+            CompletableFuture<BigInteger[]> agDuplicates = async.submit("agDuplicates",
+                    lane -> agDuplicates(lane, fetched, excludedIdis));
+            Candidates ag = new Candidates(fetched.pointis, fetched.labelis, AsyncProtocol.await(agDistances));
+            BigInteger[] duplicateis = AsyncProtocol.await(agDuplicates);
+
+            // 剔除AG中的重复点后与候选点集合并，最小的点即为下一个最近邻点
+            Candidates current = candidates;
+            int remaining = k - count;
+            Candidates merged = ProtocolCostCounter.call("expandCandidates",
+                    () -> mergeCandidates(ctx, current, ag, duplicateis, MAX_DISTANCE, remaining, cmpWidth));
+
+            int minIndex = 0;
+            resulti[count++] = new Point(merged.pointis[minIndex].id, merged.pointis[minIndex].data);
+            minLabeli = merged.labelis[minIndex];
+            candidates = merged.range(1, merged.size());
         }
 
-        // 计算 PROD( bool(low_i <= q_i) * bool(q_i < high_i) )
-        // 目前就当作维度都是2
-        t1i = new BigInteger[vgNum * m]; // bool(low_i <= q_i)
-        t2i = new BigInteger[vgNum * m]; // bool(q_i < high_i)
-        for (int i = 0; i < vgNum; i++) {
-            int index1 = i * m;
-            int index2 = i * m * 2;
+        return resulti;
+    }
 
-            for (int j = 0; j < m; j++) {
-                t1i[index1 + j] = cmpis[index2 + j];
-                t2i[index1 + j] = cmpis[index2 + m + j];
+    /*
+     * 一组候选点及其到q的距离
+     */
+    private static class Candidates {
+        private final Point[] pointis;
+        private final BigInteger[] labelis;
+        private final BigInteger[] distanceis;
+
+        private Candidates(Point[] pointis, BigInteger[] labelis, BigInteger[] distanceis) {
+            this.pointis = pointis;
+            this.labelis = labelis;
+            this.distanceis = distanceis;
+        }
+
+        private int size() {
+            return pointis.length;
+        }
+
+        private Candidates range(int from, int to) {
+            return new Candidates(Arrays.copyOfRange(pointis, from, to), Arrays.copyOfRange(labelis, from, to),
+                    Arrays.copyOfRange(distanceis, from, to));
+        }
+    }
+
+    /*
+     * 获取label为minLabel的邻近点集AG，距离尚未计算（见agDistances）
+     */
+    private static Candidates fetchAG(ProtocolContext ctx, AG[] ags, Point[][] pDatas, BigInteger[][] lDatas,
+            BigInteger minLabeli) throws IOException {
+
+        return ProtocolCostCounter.call("fetchAG", () -> {
+            int agNum = ags.length;
+            int agSize = ags[0].points.length;
+            int m = ags[0].points[0].data.length;
+
+            ShareCircuit circuit = new ShareCircuit(ctx);
+
+            Value[] t1 = new Value[agNum]; // 各个AG的label
+            Value[] t2 = new Value[agNum]; // 当前最近邻点对应的label
+            Value minLabel = circuit.secret(minLabeli);
+            for (int i = 0; i < agNum; i++) {
+                t1[i] = circuit.secret(ags[i].label);
+                t2[i] = minLabel;
             }
+            Value[] agAlphas = circuit.equal(t1, t2);
+
+            Value[][] agRows = selectData(circuit, agAlphas, pDatas, lDatas, agSize, m);
+            return toCandidates(agRows, new Value[0]);
+        });
+    }
+
+    /*
+     * AG中各点到q的距离。shift > 0时距离去掉低shift位（见truncationShift）
+     */
+    private static BigInteger[] agDistances(ProtocolContext ctx, Candidates ag, BigInteger[] q, int shift)
+            throws IOException {
+
+        ShareCircuit circuit = new ShareCircuit(ctx);
+        Value[] distances = euclideanDistances(circuit, toRows(circuit, ag), circuit.secrets(q));
+        if (shift > 0)
+            distances = circuit.truncate(distances, distanceBits(ctx.mod), shift);
+
+        return circuit.shares(distances);
+    }
+
+    /*
+     * AG中各点是否需要剔除：id在excludedIdis中（已经选出来或已在候选点集中），或与AG中前面的点重复
+     */
+    private static BigInteger[] agDuplicates(ProtocolContext ctx, Candidates ag, BigInteger[] excludedIdis)
+            throws IOException {
+
+        ShareCircuit circuit = new ShareCircuit(ctx);
+        Value[] bs = duplicateIndicators(circuit, toRows(circuit, ag), circuit.secrets(excludedIdis), null);
+        for (int j = 0; j < bs.length; j++) {
+            if (bs[j] == null)
+                bs[j] = circuit.zero();
+        }
+
+        return circuit.shares(bs);
+    }
+
+    /*
+     * 将AG并入已排序的候选点集，返回最小的size个点（升序）。
+     *
+     * AG中已经选出来的点、已在候选点集中的点以及AG中重复的点先被剔除（duplicateis为1的点，见agDuplicates），
+     * 所以候选点集中不会有重复的点，截取后不会丢掉需要的点。
+     */
+    private static Candidates mergeCandidates(ProtocolContext ctx, Candidates candidates, Candidates ag,
+            BigInteger[] duplicateis, BigInteger MAX_DISTANCE, int size, int cmpWidth) throws IOException {
+
+        ShareCircuit circuit = new ShareCircuit(ctx);
+        Value maxDistance = circuit.constant(MAX_DISTANCE);
+
+        int cNum = candidates.size();
+        Value[][] rows = toRows(circuit, candidates, ag);
+        Value[] distances = new Value[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            distances[i] = circuit.secret((i < cNum) ? candidates.distanceis[i] : ag.distanceis[i - cNum]);
         }
-        BigInteger[] mulis = multiplyS(partyID, t1i, t2i, triple, mod, reader, writer);
 
-        t1i = new BigInteger[vgNum];
-        t2i = new BigInteger[vgNum];
-        for (int i = 0; i < vgNum; i++) {
-            int index = i * 2;
+        for (int j = 0; j < ag.size(); j++) {
+            distances[cNum + j] = eliminate(circuit, circuit.secret(duplicateis[j]), distances[cNum + j], maxDistance);
+        }
 
-            t1i[i] = mulis[index];
-            t2i[i] = mulis[index + 1];
+        return selectByRank(circuit, rows, distances, cNum, Math.min(size, rows.length), cmpWidth);
+    }
+
+    /*
+     * 剔除rows中的重复点以及id在excludedIds中的点（距离设为最大值），每个点只保留第一次出现的位置。
+     *
+     * 第j个点与excludedIds及前j-1个点的比较一次批量完成，
+     * 由于前面可能有多个相同的点，是否剔除由 1 - PROD( 1 - bool(id == id') ) 给出。
+     */
+    private static Value[] removeDuplicates(ShareCircuit circuit, Value[][] rows, Value[] distances,
+            Value[] excludedIds, Value maxDistance) {
+        return removeDuplicates(circuit, rows, distances, excludedIds, maxDistance, null);
+    }
+
+    /*
+     * sources不为null时，sources相同的点已知互不相同（如来自同一张LSH表），它们之间不需要比较
+     */
+    private static Value[] removeDuplicates(ShareCircuit circuit, Value[][] rows, Value[] distances,
+            Value[] excludedIds, Value maxDistance, int[] sources) {
+
+        Value[] bs = duplicateIndicators(circuit, rows, excludedIds, sources);
+        Value[] newDistances = new Value[rows.length];
+        for (int j = 0; j < rows.length; j++) {
+            newDistances[j] = (bs[j] == null) ? distances[j] : eliminate(circuit, bs[j], distances[j], maxDistance);
         }
 
-        BigInteger[] alphais = multiplyS(partyID, t1i, t2i, triple, mod, reader, writer);
+        return newDistances;
+    }
 
-        /*** 计算出包含桶 ***/
-        BigInteger[][] lDatas = new BigInteger[vgNum][];
-        Point[][] pDatas = new Point[vgNum][];
-        for (int i = 0; i < vgNum; i++) {
-            lDatas[i] = vgs[i].subLabels;
-            pDatas[i] = vgs[i].points;
+    /*
+     * 同上，只给出各点是否需要剔除，没有需要比较的点时为null
+     */
+    private static Value[] duplicateIndicators(ShareCircuit circuit, Value[][] rows, Value[] excludedIds,
+            int[] sources) {
+
+        int num = rows.length;
+        int eNum = excludedIds.length;
+
+        List<Value> t1 = new ArrayList<>();
+        List<Value> t2 = new ArrayList<>();
+        int[] fNums = new int[num];
+        for (int j = 0; j < num; j++) {
+            for (int i = 0; i < eNum; i++) {
+                t1.add(rows[j][1]);
+                t2.add(excludedIds[i]);
+            }
+            fNums[j] = eNum;
+            for (int i = 0; i < j; i++) {
+                if (sources != null && sources[i] == sources[j])
+                    continue;
+
+                t1.add(rows[j][1]);
+                t2.add(rows[i][1]);
+                fNums[j]++;
+            }
+        }
+        Value[] eqs = circuit.equal(t1.toArray(new Value[0]), t2.toArray(new Value[0]));
+
+        Value[] bs = new Value[num];
+        int index = 0;
+        for (int j = 0; j < num; j++) {
+            int fNum = fNums[j];
+            if (fNum == 0)
+                continue;
+
+            Value[] factors = new Value[fNum];
+            for (int i = 0; i < fNum; i++) {
+                factors[i] = circuit.subtract(circuit.one(), eqs[index++]);
+            }
+            bs[j] = circuit.subtract(circuit.one(), circuit.product(factors));
         }
 
-        Point[] pointis = new Point[vgSize]; // 候选点集
-        BigInteger[] labelis = new BigInteger[vgSize];
-        getSelectedData(partyID, pointis, labelis, vgNum, vgSize, m, alphais, pDatas, lDatas,
-                triple, mod, reader, writer);
+        return bs;
+    }
 
-        /*** 计算出最小点 ***/
-        BigInteger[] distanceis = secureNEuclideanDistance(partyID, pointis, q, triple, mod, reader, writer);
-        secureLinearSKNNCore(partyID, pointis, distanceis, labelis, 1, triple, rTuple, mod, reader, writer);
-        resulti[count++] = new Point(pointis[0].id, pointis[0].data);
+    /*
+     * 按距离选出最小的outputs个点（升序），rows的前sorted个点已按距离升序排列。
+     *
+     * 所有需要的两两比较在同一批中完成（前sorted个点之间的大小关系已知，不需要比较），距离相同时下标小的在前，
+     * 由此得到各点的名次 rank_i；第t个结果为 SUM( bool(rank_i == t) * row_i )。
+     * 与排序网络相比只有一层比较，轮数与点数无关。
+     */
+    private static Candidates selectByRank(ShareCircuit circuit, Value[][] rows, Value[] distances, int sorted,
+            int outputs) throws IOException {
+        return selectByRank(circuit, rows, distances, sorted, outputs, 0);
+    }
 
-        // 将候选集点中，除最近邻点外，其他全部删除。
-        // 此处的删除是真的删除。
-        pointis = Arrays.copyOf(pointis, 1);
-        labelis = Arrays.copyOf(labelis, 1);
-        distanceis = Arrays.copyOf(distanceis, 1);
+    /*
+     * cmpWidth > 0时距离均小于2^cmpWidth，比较只处理cmpWidth个比特（见ShareCircuit.lessThan）
+     */
+    private static Candidates selectByRank(ShareCircuit circuit, Value[][] rows, Value[] distances, int sorted,
+            int outputs, int cmpWidth) throws IOException {
 
-        /*** 查找剩余第2~k最近邻点 ***/
-        while (count < k) {
-            int minIndex = 0; // 由于每次都会将之前的最小值剔除，所以新的最小值都在最前面。
+        Value[][] resultRows = new Value[outputs][];
+        Value[] resultDistances = new Value[outputs];
+        selectByRank(circuit, rows, distances, sorted, resultRows, resultDistances, cmpWidth);
 
-            // 获取当前最近邻点的邻近点集AG。
-            t1i = new BigInteger[agNum]; // 各个AG的label
-            t2i = new BigInteger[agNum]; // 当前最近邻点对应的label
-            for (int i = 0; i < agNum; i++) {
-                t1i[i] = ags[i].label;
-                t2i[i] = labelis[minIndex];
+        return toCandidates(resultRows, resultDistances);
+    }
+
+    /*
+     * 同上，结果写入resultRows和resultDistances（长度为outputs），不取出分享值，
+     * 多组互相独立的选择可以先全部构造好，在同一批中完成。
+     */
+    private static void selectByRank(ShareCircuit circuit, Value[][] rows, Value[] distances, int sorted,
+            Value[][] resultRows, Value[] resultDistances) {
+        selectByRank(circuit, rows, distances, sorted, resultRows, resultDistances, 0);
+    }
+
+    private static void selectByRank(ShareCircuit circuit, Value[][] rows, Value[] distances, int sorted,
+            Value[][] resultRows, Value[] resultDistances, int cmpWidth) {
+
+        int outputs = resultRows.length;
+        int num = rows.length;
+        int width = rows[0].length;
+
+        // bool( d_j < d_i ), i < j
+        List<Value> t1 = new ArrayList<>();
+        List<Value> t2 = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            for (int j = Math.max(i + 1, sorted); j < num; j++) {
+                t1.add(distances[j]);
+                t2.add(distances[i]);
             }
-            cmpis = secureEqual(partyID, t1i, t2i, triple, rTuple, mod, reader, writer);
+        }
+        Value[] cmps = circuit.lessThan(t1.toArray(new Value[0]), t2.toArray(new Value[0]), cmpWidth);
 
-            pDatas = new Point[agNum][];
-            lDatas = new BigInteger[agNum][];
-            for (int i = 0; i < agNum; i++) {
-                lDatas[i] = ags[i].subLabels;
-                pDatas[i] = ags[i].points;
-            }
-
-            Point[] agPointis = new Point[agSize]; // 新的邻近点集
-            BigInteger[] agLabelis = new BigInteger[agSize];
-            getSelectedData(partyID, agPointis, agLabelis, agNum, agSize, m, cmpis, pDatas, lDatas,
-                    triple, mod, reader, writer);
-
-            // 计算这些点到q的距离
-            BigInteger[] agDistanceis = secureNEuclideanDistance(partyID, agPointis, q, triple, mod, reader, writer);
-
-            /*** 从新的邻近点集agPoints中剔除已经选出来的点，从当前候选点集points中剔除当前最小值点 ***/
-            // 此处的剔除=将该点到q的距离设为最大值
-            // 可能有多个，都需要剔除
-            distanceis[minIndex] = shareConstant(partyID, MAX_DISTANCE); // 候选集中第一个肯定要剔除
-            int aLen = agSize * count;
-            int tLen = pointis.length - 1;
-            t1i = new BigInteger[aLen + tLen]; // agPoints' ids   ||  points' Ids
-            t2i = new BigInteger[aLen + tLen]; //      minIds     ||    minIds
-            for (int i = 0; i < count; i++) {
-                int index = i * agSize;
-                for (int j = 0; j < agSize; j++) {
-                    t1i[index + j] = agPointis[j].id;
+        // rank_i = 排在i之前的点数：j < i 时为 1 - bool( d_i < d_j )，j > i 时为 bool( d_j < d_i )
+        Value[][] terms = new Value[num][num - 1];
+        int[] termNums = new int[num];
+        int index = 0;
+        for (int i = 0; i < num; i++) {
+            for (int j = i + 1; j < num; j++) {
+                if (j < sorted) {
+                    terms[j][termNums[j]++] = circuit.one();
+                } else {
+                    Value cmp = cmps[index++];
+                    terms[i][termNums[i]++] = cmp;
+                    terms[j][termNums[j]++] = circuit.subtract(circuit.one(), cmp);
                 }
-                Arrays.fill(t2i, index, index + agSize, resulti[i].id);
             }
-            for (int i = 0; i < tLen; i++) {
-                t1i[aLen + i] = pointis[minIndex].id;
-                t2i[aLen + i] = pointis[i + 1].id;
-            }
-            cmpis = secureEqual(partyID, t1i, t2i, triple, rTuple, mod, reader, writer); // bool( agId == minId ) || bool( pId == minId )
+        }
 
-            // 对邻近点集中，bool( agId == minId )求和
-            // 由于每个点最多与一个已选出的点相等，所以其求和要不为1，要不为0。
-            BigInteger[] tsumi = new BigInteger[agSize];
-            for (int i = 0; i < agSize; i++) {
-                tsumi[i] = BigInteger.ZERO;
-                for (int j = 0; j < count; j++) {
-                    tsumi[i] = tsumi[i].add(cmpis[j * agSize + i]).mod(mod);
+        // 第t个结果：各点的 label | id | pointData | distance 按bool(rank_i == t)加权求和
+        // 前sorted个点中第i个点之前最多有num-sorted个新点，所以其名次在[i, i + num - sorted]中
+        Value[][][] sums = new Value[outputs][width + 1][num];
+        int[] sumNums = new int[outputs];
+        for (int i = 0; i < num; i++) {
+            Value rank = (termNums[i] == 0) ? circuit.zero() : circuit.sum(Arrays.copyOf(terms[i], termNums[i]));
+            int low = (i < sorted) ? i : 0;
+            int high = (i < sorted) ? Math.min(i + num - sorted, num - 1) : num - 1;
+            Value[] eqs = indicators(circuit, rank, low, high, outputs);
+
+            for (int t = low; t < Math.min(high + 1, outputs); t++) {
+                Value eq = eqs[t - low];
+                for (int l = 0; l < width; l++) {
+                    sums[t][l][sumNums[t]] = circuit.multiply(eq, rows[i][l]);
                 }
+                sums[t][width][sumNums[t]] = circuit.multiply(eq, distances[i]);
+                sumNums[t]++;
+            }
+        }
+        for (int t = 0; t < outputs; t++) {
+            resultRows[t] = new Value[width];
+            for (int l = 0; l < width; l++) {
+                resultRows[t][l] = circuit.sum(Arrays.copyOf(sums[t][l], sumNums[t]));
             }
+            resultDistances[t] = circuit.sum(Arrays.copyOf(sums[t][width], sumNums[t]));
+        }
+    }
 
-            // 计算 (1 - bool(Id==minId) ) * d + bool(Id==minId) * MAX_DISTANCE
-            t1i = new BigInteger[2 * (agSize + tLen)]; //  (1 - bool(agId==minId) ) | bool(agId==minId)  ||  (1 - bool(pId==minId) ) | bool(pId==minId)
-            t2i = new BigInteger[2 * (agSize + tLen)]; //       ag distance         |  MAX_DISTANCE      ||     points distance      |  MAX_DISTANCE
-            for (int i = 0; i < agSize; i++) {
-                int index = i * 2;
-                t1i[index] = shareConstant(partyID, BigInteger.ONE).subtract(tsumi[i]).mod(mod);
-                t1i[index + 1] = tsumi[i];
+    /*
+     * x的取值在[low, high]中，计算 bool(x == t)，t = low ... min(high, outputs - 1)。
+     *
+     * bool(x == t) 即Lagrange基函数 L_t(x) = PROD_{u != t}( (x - u) / (t - u) )，
+     * 先计算x的各次幂（共log_2(high - low)轮），之后各个t都是幂的公开线性组合，在本地完成。
+     * 与逐个调用equal()相比，交换的元素个数从 O(outputs * l) 降为 O(high - low)。
+     */
+    private static Value[] indicators(ShareCircuit circuit, Value x, int low, int high, int outputs) {
+        BigInteger mod = circuit.getContext().mod;
+        int degree = high - low;
+
+        Value[] powers = new Value[degree + 1];
+        powers[0] = circuit.one();
+        for (int j = 1; j <= degree; j++) {
+            powers[j] = (j == 1) ? x : circuit.multiply(powers[j / 2], powers[j - j / 2]);
+        }
 
-                t2i[index] = agDistanceis[i];
-                t2i[index + 1] = shareConstant(partyID, MAX_DISTANCE);
+        int num = Math.min(high + 1, outputs) - low;
+        Value[] eqs = new Value[Math.max(num, 0)];
+        for (int t = low; t < low + num; t++) {
+            // PROD_{u != t}( x - u )的系数，以及分母 PROD_{u != t}( t - u )
+            BigInteger[] coefs = { BigInteger.ONE };
+            BigInteger denominator = BigInteger.ONE;
+            for (int u = low; u <= high; u++) {
+                if (u == t)
+                    continue;
+
+                BigInteger[] next = new BigInteger[coefs.length + 1];
+                Arrays.fill(next, BigInteger.ZERO);
+                for (int j = 0; j < coefs.length; j++) {
+                    next[j + 1] = next[j + 1].add(coefs[j]).mod(mod);
+                    next[j] = next[j].subtract(coefs[j].multiply(BigInteger.valueOf(u))).mod(mod);
+                }
+                coefs = next;
+                denominator = denominator.multiply(BigInteger.valueOf(t - u)).mod(mod);
             }
-            int offset = 2 * agSize;
-            for (int i = 0; i < tLen; i++) {
-                int index = i * 2;
-                t1i[offset + index] = shareConstant(partyID, BigInteger.ONE).subtract(cmpis[aLen + i]).mod(mod);
-                t1i[offset + index + 1] = cmpis[aLen + i];
 
-                t2i[offset + index] = distanceis[i + 1];
-                t2i[offset + index + 1] = shareConstant(partyID, MAX_DISTANCE);
+            BigInteger inverse = denominator.modInverse(mod);
+            Value[] terms = new Value[degree + 1];
+            for (int j = 0; j <= degree; j++) {
+                terms[j] = circuit.multiply(circuit.constant(coefs[j].multiply(inverse).mod(mod)), powers[j]);
             }
+            eqs[t - low] = circuit.sum(terms);
+        }
 
-            mulis = multiplyS(partyID, t1i, t2i, triple, mod, reader, writer);
+        return eqs;
+    }
 
-            for (int i = 0; i < agSize; i++) {
-                int index = i * 2;
-                agDistanceis[i] = mulis[index].add(mulis[index + 1]).mod(mod);
+    /*
+     * 计算q是否在各个框中：bool( low_i <= q_i < high_i ) = ( 1 - bool( q_i < low_i ) ) * bool( q_i < high_i)
+     *
+     * 所有框的比较一次批量完成，每个框的2m个因子两两相乘，各框在同一层的乘法合并为一轮。
+     */
+    private static Value[] boxIndicators(ShareCircuit circuit, Value[] qs, Value[][] lows, Value[][] highs) {
+        int num = lows.length;
+        int m = qs.length;
+
+        Value[] t1 = new Value[num * m * 2]; //   q_1, ..., q_m   | q_1, ..., q_m
+        Value[] t2 = new Value[num * m * 2]; // low_1, ..., low_m | high_1, ..., high_m
+        for (int i = 0; i < num; i++) {
+            int index = i * m * 2;
+            for (int j = 0; j < m; j++) {
+                t1[index + j] = qs[j];
+                t2[index + j] = lows[i][j];
+
+                t1[index + m + j] = qs[j];
+                t2[index + m + j] = highs[i][j];
             }
-            for (int i = 0; i < tLen; i++) {
-                int index = i * 2;
-                distanceis[i + 1] = mulis[offset + index].add(mulis[offset + index + 1]).mod(mod);
+        }
+        Value[] cmps = circuit.lessThan(t1, t2);
+
+        Value[] alphas = new Value[num];
+        for (int i = 0; i < num; i++) {
+            int index = i * m * 2;
+
+            Value[] factors = new Value[m * 2];
+            for (int j = 0; j < m; j++) {
+                factors[j] = circuit.subtract(circuit.one(), cmps[index + j]);
+                factors[m + j] = cmps[index + m + j];
             }
+            alphas[i] = circuit.product(factors);
+        }
 
-            // 将邻近点集添加到候补点集中
-            int oldSize = pointis.length;
-            int newSize = pointis.length + agSize;
-            pointis = Arrays.copyOf(pointis, newSize);
-            labelis = Arrays.copyOf(labelis, newSize);
-            distanceis = Arrays.copyOf(distanceis, newSize);
-            System.arraycopy(agPointis, 0, pointis, oldSize, agSize);
-            System.arraycopy(agLabelis, 0, labelis, oldSize, agSize);
-            System.arraycopy(agDistanceis, 0, distanceis, oldSize, agSize);
+        return alphas;
+    }
 
-            // 计算当前最近邻点
-            secureLinearSKNNCore(partyID, pointis, distanceis, labelis, 1, triple, rTuple, mod, reader, writer);
+    /*
+     * 两级定位：先找到q所在的组（beta_g），再从该组的成员中找到q所在的桶（alpha_f），桶的指示值为 beta_g * alpha_f。
+     *
+     * 第f个成员的边界为 SUM( beta_g * bound(members_g[f]) )，缺少第f个成员的组不参与求和，
+     * 若q所在的组缺少该成员，选出的边界为[0, 0)，不包含q。
+     * 比较次数从2m * vgNum降为2m * (groupNum + groupSize)，代价是两层比较依次进行；
+     * 选出桶中数据的乘法次数不变，仍与VG表的大小成正比。
+     */
+    private static Value[] locateInGroups(ShareCircuit circuit, Value[] qs, VG[] vgs, VGGroup[] groups) {
+        int groupNum = groups.length;
+        int groupSize = groups[0].members.length;
+        int m = qs.length;
+
+        Value[][] lows = new Value[groupNum][];
+        Value[][] highs = new Value[groupNum][];
+        for (int g = 0; g < groupNum; g++) {
+            lows[g] = circuit.secrets(groups[g].low.data);
+            highs[g] = circuit.secrets(groups[g].high.data);
+        }
+        Value[] betas = boxIndicators(circuit, qs, lows, highs);
 
-            // 将当前最近邻点加入结果集
-            resulti[count++] = new Point(pointis[0].id, pointis[0].data);
+        Value[][] memberLows = new Value[groupSize][m];
+        Value[][] memberHighs = new Value[groupSize][m];
+        for (int f = 0; f < groupSize; f++) {
+            for (int j = 0; j < m; j++) {
+                List<Value> lowTerms = new ArrayList<>();
+                List<Value> highTerms = new ArrayList<>();
+                for (int g = 0; g < groupNum; g++) {
+                    int vg = groups[g].members[f];
+                    if (vg < 0)
+                        continue;
+
+                    lowTerms.add(circuit.multiply(betas[g], circuit.secret(vgs[vg].low.data[j])));
+                    highTerms.add(circuit.multiply(betas[g], circuit.secret(vgs[vg].high.data[j])));
+                }
+                memberLows[f][j] = circuit.sum(lowTerms.toArray(new Value[0]));
+                memberHighs[f][j] = circuit.sum(highTerms.toArray(new Value[0]));
+            }
+        }
+        Value[] memberAlphas = boxIndicators(circuit, qs, memberLows, memberHighs);
+
+        Value[] alphas = new Value[vgs.length];
+        Arrays.fill(alphas, circuit.zero()); // 不属于任何组的桶
+        for (int g = 0; g < groupNum; g++) {
+            for (int f = 0; f < groupSize; f++) {
+                int vg = groups[g].members[f];
+                if (vg >= 0)
+                    alphas[vg] = circuit.multiply(betas[g], memberAlphas[f]);
+            }
         }
 
-        return resulti;
+        return alphas;
     }
 
-    private static void getSelectedData(PartyID partyID, Point[] pointis, BigInteger[] labelis, int num, int size,
-            int m, BigInteger[] alphais, Point[][] pDatas, BigInteger[][] lDatas,
-            MultiplicationTriple triple, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+    /*
+     * 按Morton键定位：先由q算出其所在单元的键key(q)，再与各桶的起始键比较，
+     * s_t = bool( keys[t] <= key(q) )，第order[t]个桶的指示值为 s_t - s_{t+1}。
+     *
+     * 单元编号不做比特分解：第j维与各单元的下边界比较一次，得到温度计编码 s_{j,v} = bool( low_j + v * w_j <= q_j )，
+     * 则 key(q) = SUM( s_{j,v} * (interleave(j, v) - interleave(j, v - 1)) )，在本地计算。
+     * 比较次数为 SUM(2^depths[j] - 1) + vgNum - 1，不再需要连乘，代价是两层比较依次进行。
+     */
+    private static Value[] locateByMorton(ShareCircuit circuit, Value[] qs, MortonLayout layout, int vgNum) {
+        int m = qs.length;
+
+        List<Value> t1 = new ArrayList<>();
+        List<Value> t2 = new ArrayList<>();
+        List<BigInteger> weights = new ArrayList<>();
+        for (int j = 0; j < m; j++) {
+            int cells = 1 << layout.depths[j];
+            for (int v = 1; v < cells; v++) {
+                BigInteger bound = layout.low[j].add(layout.cellWidths[j].multiply(BigInteger.valueOf(v)));
+                t1.add(qs[j]);
+                t2.add(circuit.constant(bound));
+                weights.add(layout.interleave(j, BigInteger.valueOf(v))
+                        .subtract(layout.interleave(j, BigInteger.valueOf(v - 1))));
+            }
+        }
+        Value[] cmps = circuit.lessThan(t1.toArray(new Value[0]), t2.toArray(new Value[0]));
 
-        int tSize = size * (2 + m);
-        BigInteger[] t1i = new BigInteger[num * tSize]; // label |  id   | pointData
-        BigInteger[] t2i = new BigInteger[num * tSize]; // alpha | alpha | alpha
-        for (int i = 0; i < num; i++) {
-            int index1 = i * tSize;
+        Value[] terms = new Value[cmps.length];
+        for (int i = 0; i < cmps.length; i++) {
+            Value s = circuit.subtract(circuit.one(), cmps[i]);
+            terms[i] = circuit.multiply(s, circuit.constant(weights.get(i)));
+        }
+        Value key = circuit.sum(terms);
+
+        // 第一个桶的起始键为0，总有 s_0 = 1
+        Value[] keys = new Value[vgNum - 1];
+        Value[] keyQs = new Value[vgNum - 1];
+        for (int t = 1; t < vgNum; t++) {
+            keys[t - 1] = circuit.secret(layout.keys[t]);
+            keyQs[t - 1] = key;
+        }
+        Value[] lts = circuit.lessThan(keyQs, keys);
+
+        Value[] ss = new Value[vgNum + 1];
+        ss[0] = circuit.one();
+        for (int t = 1; t < vgNum; t++) {
+            ss[t] = circuit.subtract(circuit.one(), lts[t - 1]);
+        }
+        ss[vgNum] = circuit.zero();
+
+        Value[] alphas = new Value[vgNum];
+        for (int t = 0; t < vgNum; t++) {
+            alphas[layout.order[t]] = circuit.subtract(ss[t], ss[t + 1]);
+        }
+
+        return alphas;
+    }
 
-            for (int j = 0; j < size; j++) {
-                int index2 = index1 + j * (2 + m);
+    /*
+     * 根据指示向量alpha（只有一个为1）选出对应的一组数据：SUM( alpha_i * data_i )
+     *
+     * 返回size行，每行为：label | id | pointData
+     */
+    private static Value[][] selectData(ShareCircuit circuit, Value[] alphas, Point[][] pDatas,
+            BigInteger[][] lDatas, int size, int m) {
+
+        Value[][] rows = new Value[size][2 + m];
+        for (int j = 0; j < size; j++) {
+            Value[][] terms = new Value[2 + m][alphas.length];
+            for (int i = 0; i < alphas.length; i++) {
+                terms[0][i] = circuit.multiply(alphas[i], circuit.secret(lDatas[i][j]));
+                terms[1][i] = circuit.multiply(alphas[i], circuit.secret(pDatas[i][j].id));
+                for (int l = 0; l < m; l++) {
+                    terms[2 + l][i] = circuit.multiply(alphas[i], circuit.secret(pDatas[i][j].data[l]));
+                }
+            }
 
-                t1i[index2] = lDatas[i][j];
-                t1i[index2 + 1] = pDatas[i][j].id;
-                System.arraycopy(pDatas[i][j].data, 0, t1i, index2 + 2, m);
+            for (int l = 0; l < 2 + m; l++) {
+                rows[j][l] = circuit.sum(terms[l]);
             }
+        }
 
-            Arrays.fill(t2i, index1, index1 + tSize, alphais[i]);
+        return rows;
+    }
+
+    /*
+     * 计算欧氏距离（不开方），rows的格式见selectData()
+     */
+    private static Value[] euclideanDistances(ShareCircuit circuit, Value[][] rows, Value[] q) {
+        Value[] distances = new Value[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            Value[] squares = new Value[q.length];
+            for (int j = 0; j < q.length; j++) {
+                Value diff = circuit.subtract(rows[i][2 + j], q[j]);
+                squares[j] = circuit.multiply(diff, diff);
+            }
+            distances[i] = circuit.sum(squares);
         }
-        BigInteger[] mulis = multiplyS(partyID, t1i, t2i, triple, mod, reader, writer);
 
-        for (int i = 0; i < size; i++) {
-            labelis[i] = BigInteger.ZERO;
+        return distances;
+    }
+
+    /*
+     * (1 - b) * d + b * MAX_DISTANCE = d + b * (MAX_DISTANCE - d)，只需一次乘法
+     */
+    private static Value eliminate(ShareCircuit circuit, Value b, Value d, Value maxDistance) {
+        return circuit.add(d, circuit.multiply(b, circuit.subtract(maxDistance, d)));
+    }
 
+    private static Point[] toPoints(Value[][] rows, BigInteger[] labelis) throws IOException {
+        Point[] pointis = new Point[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            int m = rows[i].length - 2;
+
+            labelis[i] = rows[i][0].share();
             pointis[i] = new Point(m);
-            pointis[i].id = BigInteger.ZERO;
-            pointis[i].data = new BigInteger[m];
+            pointis[i].id = rows[i][1].share();
             for (int j = 0; j < m; j++) {
-                pointis[i].data[j] = BigInteger.ZERO;
+                pointis[i].data[j] = rows[i][2 + j].share();
             }
         }
 
-        for (int i = 0; i < num; i++) {
-            int index1 = i * tSize;
+        return pointis;
+    }
 
-            for (int j = 0; j < size; j++) {
-                int index2 = index1 + j * (2 + m);
+    private static Candidates toCandidates(Value[][] rows, Value[] distances) throws IOException {
+        BigInteger[] labelis = new BigInteger[rows.length];
+        Point[] pointis = toPoints(rows, labelis);
 
-                labelis[j] = labelis[j].add(mulis[index2]).mod(mod);
-                pointis[j].id = pointis[j].id.add(mulis[index2 + 1]).mod(mod);
+        BigInteger[] distanceis = new BigInteger[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            distanceis[i] = distances[i].share();
+        }
 
-                for (int l = 0; l < m; l++) {
-                    pointis[j].data[l] = pointis[j].data[l].add(mulis[index2 + 2 + l]).mod(mod);
+        return new Candidates(pointis, labelis, distanceis);
+    }
+
+    /*
+     * 与toPoints()相反，每行为：label | id | pointData
+     */
+    private static Value[][] toRows(ShareCircuit circuit, Candidates... candidatesArray) {
+        List<Value[]> rows = new ArrayList<>();
+        for (Candidates candidates : candidatesArray) {
+            for (int i = 0; i < candidates.size(); i++) {
+                Point point = candidates.pointis[i];
+
+                Value[] row = new Value[2 + point.data.length];
+                row[0] = circuit.secret(candidates.labelis[i]);
+                row[1] = circuit.secret(point.id);
+                for (int j = 0; j < point.data.length; j++) {
+                    row[2 + j] = circuit.secret(point.data[j]);
+                }
+                rows.add(row);
+            }
+        }
+
+        return rows.toArray(new Value[0][]);
+    }
+
+    /*
+     * k-d树：内部节点按层序存放（节点i的子节点为2i+1、2i+2），第t层按第t mod m维切分，
+     * 叶节点补齐为相同的大小。树的形状和各层切分的维度是公开的，切分值、点和填充标记是秘密分享。
+     */
+    public static class KDTree {
+
+        public int depth; // 内部节点的层数，叶节点个数为2^depth
+        public BigInteger[] splits; // 各内部节点的切分值，q的对应维度小于切分值时进入左子树
+        public Point[][] leaves; // 各叶节点中的点
+        public BigInteger[][] paddings; // 叶节点中的点是否为填充的点（1为填充）
+
+        public KDTree() {
+        }
+
+        public KDTree(int depth, BigInteger[] splits, Point[][] leaves, BigInteger[][] paddings) {
+            this.depth = depth;
+            this.splits = splits;
+            this.leaves = leaves;
+            this.paddings = paddings;
+        }
+    }
+
+    public static String parseKDTreeToJson(KDTree kdTree) {
+        return JSON.toJSONString(kdTree);
+    }
+
+    public static KDTree parseJsonToKDTree(String json) {
+        return JSON.parseObject(json, KDTree.class);
+    }
+
+    /*
+     * 基于k-d树的SKNN（近似）
+     *
+     * 从根开始逐层下降：第t层的指示向量ind（只有q所在的节点为1）选出该节点的切分值 SUM( ind_i * split_i )，
+     * 与q的对应维度比较一次，得到下一层的指示向量 left_i = ind_i * bool( q < split )，right_i = ind_i - left_i。
+     * 只下降depth - backtrack层，取出所到节点下的全部2^backtrack个叶节点（即在最后backtrack层回溯所有分支），
+     * 再按名次选出其中最近的k个点（见selectByRank），填充的点的距离视为最大值。
+     * 
+     * 比较次数和轮数随树的深度（log_2(n)）增长，不再与n成正比；选出切分值和叶节点的乘法仍与节点数成正比，
+     * 但每层只有一轮。backtrack越大召回率越高，名次比较的开销也越大；取出的点数少于k时自动减少下降的层数。
+     */
+    public static Point[] secureKDTreeSKNN(ProtocolContext ctx, KDTree tree, BigInteger[] q, int k, int backtrack)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureKDTreeSKNN", () -> {
+            BigInteger MAX_DISTANCE = ctx.mod.divide(BigInteger.TWO).subtract(BigInteger.ONE);
+
+            int m = q.length;
+            int leafSize = tree.leaves[0].length;
+            int levels = Math.max(tree.depth - backtrack, 0);
+            while (levels > 0 && ((long) leafSize << (tree.depth - levels)) < k) {
+                levels--;
+            }
+
+            ShareCircuit circuit = new ShareCircuit(ctx);
+            Value[] qs = circuit.secrets(q);
+
+            // 逐层下降
+            Value[] ind = { circuit.one() };
+            for (int t = 0; t < levels; t++) {
+                int first = (1 << t) - 1; // 第t层的第一个节点
+
+                Value[] terms = new Value[ind.length];
+                for (int i = 0; i < ind.length; i++) {
+                    terms[i] = circuit.multiply(ind[i], circuit.secret(tree.splits[first + i]));
+                }
+                Value lt = circuit.lessThan(qs[t % m], circuit.sum(terms));
+
+                Value[] next = new Value[ind.length * 2];
+                for (int i = 0; i < ind.length; i++) {
+                    next[2 * i] = circuit.multiply(ind[i], lt);
+                    next[2 * i + 1] = circuit.subtract(ind[i], next[2 * i]);
+                }
+                ind = next;
+            }
+
+            // 取出所到节点下的全部叶节点
+            int block = 1 << (tree.depth - levels);
+            Point[][] pDatas = new Point[ind.length][block * leafSize];
+            BigInteger[][] lDatas = new BigInteger[ind.length][block * leafSize];
+            for (int i = 0; i < ind.length; i++) {
+                for (int b = 0; b < block; b++) {
+                    System.arraycopy(tree.leaves[i * block + b], 0, pDatas[i], b * leafSize, leafSize);
+                    System.arraycopy(tree.paddings[i * block + b], 0, lDatas[i], b * leafSize, leafSize);
+                }
+            }
+            Value[][] rows = selectData(circuit, ind, pDatas, lDatas, block * leafSize, m);
+
+            Value maxDistance = circuit.constant(MAX_DISTANCE);
+            Value[] distances = euclideanDistances(circuit, rows, qs);
+            for (int i = 0; i < rows.length; i++) {
+                distances[i] = eliminate(circuit, rows[i][0], distances[i], maxDistance);
+            }
+
+            return selectByRank(circuit, rows, distances, 0, Math.min(k, rows.length)).pointis;
+        });
+    }
+
+    /*
+     * 随机投影LSH表：每张表有hashBits个超平面，系数取1或-1，q的第b个哈希比特为 bool( <w_b, q - center> >= 0 )，
+     * 各比特组成桶号 SUM( bit_b * 2^b )。各桶补齐为相同大小，填充的点的id为-1、标记为1。
+     * 超平面、中心点和桶的大小是公开的，桶中的点和填充标记是秘密分享。
+     */
+    public static class LSHTables {
+
+        public int[][][] planes; // [表][比特][维度]
+        public BigInteger[] center;
+        public Point[][][] buckets; // [表][桶][点]
+        public BigInteger[][][] paddings; // 各点是否为填充的点（1为填充）
+
+        public LSHTables() {
+        }
+
+        public LSHTables(int[][][] planes, BigInteger[] center, Point[][][] buckets, BigInteger[][][] paddings) {
+            this.planes = planes;
+            this.center = center;
+            this.buckets = buckets;
+            this.paddings = paddings;
+        }
+    }
+
+    public static String parseLSHTablesToJson(LSHTables tables) {
+        return JSON.toJSONString(tables);
+    }
+
+    public static LSHTables parseJsonToLSHTables(String json) {
+        return JSON.parseObject(json, LSHTables.class);
+    }
+
+    /*
+     * 基于LSH的SKNN（近似）
+     *
+     * 所有表的哈希比特一次批量比较得到：<w, q - center> >= 0 即
+     * SUM_{w_j = 1}( q_j ) + SUM_{w_j = -1}( c_j ) >= SUM_{w_j = -1}( q_j ) + SUM_{w_j = 1}( c_j )，两边都非负。
+     * 桶v的指示值为 PROD( v_b ? bit_b : 1 - bit_b )，各桶一起两分连乘。
+     * 多探测（probes）时还取出把第0 ... probes-1个比特分别取反后的桶，其指示向量只是原指示向量的重排，不需要额外计算。
+     * 
+     * 每个取出的桶先各自按名次选出最近的k个点（各桶的选择在同一批中完成），填充的点的距离视为最大值；
+     * 各桶的结果合并后去重（同一张表的桶互不相交，不需要比较），再选出最近的k个点。
+     * 最近的k个点一定在其所在桶的前k个中，所以分两级选择与直接在所有桶的并集上选择结果相同，
+     * 但名次比较的次数从 (桶数 * 桶大小)^2 / 2 降为 桶数 * 桶大小^2 / 2 + (桶数 * k)^2 / 2。
+     * 比较次数与点数无关；表数和探测数越多召回率越高，开销也越大。
+     */
+    public static Point[] secureLSHSKNN(ProtocolContext ctx, LSHTables tables, BigInteger[] q, int k, int probes)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureLSHSKNN", () -> {
+            BigInteger MAX_DISTANCE = ctx.mod.divide(BigInteger.TWO).subtract(BigInteger.ONE);
+
+            int m = q.length;
+            int tableNum = tables.planes.length;
+            int hashBits = tables.planes[0].length;
+            int bucketNum = 1 << hashBits;
+            int capacity = tables.buckets[0][0].length;
+            int probeNum = Math.min(probes, hashBits);
+
+            ShareCircuit circuit = new ShareCircuit(ctx);
+            Value[] qs = circuit.secrets(q);
+
+            // 哈希比特
+            Value[] t1 = new Value[tableNum * hashBits];
+            Value[] t2 = new Value[tableNum * hashBits];
+            for (int t = 0; t < tableNum; t++) {
+                for (int b = 0; b < hashBits; b++) {
+                    Value plus = circuit.zero(), minus = circuit.zero();
+                    for (int j = 0; j < m; j++) {
+                        if (tables.planes[t][b][j] > 0) {
+                            plus = circuit.add(plus, qs[j]);
+                            minus = circuit.add(minus, circuit.constant(tables.center[j]));
+                        } else {
+                            plus = circuit.add(plus, circuit.constant(tables.center[j]));
+                            minus = circuit.add(minus, qs[j]);
+                        }
+                    }
+                    t1[t * hashBits + b] = plus;
+                    t2[t * hashBits + b] = minus;
+                }
+            }
+            Value[] lts = circuit.lessThan(t1, t2);
+
+            // 各表中q所在桶的指示向量，以及各探测的桶，每个桶先各自选出最近的k个点
+            Value maxDistance = circuit.constant(MAX_DISTANCE);
+            int outputs = Math.min(k, capacity);
+            int groupNum = tableNum * (probeNum + 1);
+            Value[][] candidateRows = new Value[groupNum * outputs][];
+            Value[] distances = new Value[groupNum * outputs];
+            int[] sources = new int[groupNum * outputs];
+            for (int t = 0; t < tableNum; t++) {
+                Value[] ind = new Value[bucketNum];
+                for (int v = 0; v < bucketNum; v++) {
+                    Value[] factors = new Value[hashBits];
+                    for (int b = 0; b < hashBits; b++) {
+                        Value lt = lts[t * hashBits + b];
+                        factors[b] = ((v >> b & 1) == 1) ? circuit.subtract(circuit.one(), lt) : lt;
+                    }
+                    ind[v] = circuit.product(factors);
+                }
+
+                for (int p = 0; p <= probeNum; p++) {
+                    int flip = (p == 0) ? 0 : 1 << (p - 1);
+                    Value[] alphas = new Value[bucketNum];
+                    for (int v = 0; v < bucketNum; v++) {
+                        alphas[v] = ind[v ^ flip];
+                    }
+
+                    Value[][] selected = selectData(circuit, alphas, tables.buckets[t], tables.paddings[t], capacity, m);
+                    Value[] selectedDistances = euclideanDistances(circuit, selected, qs);
+                    for (int i = 0; i < capacity; i++) {
+                        selectedDistances[i] = eliminate(circuit, selected[i][0], selectedDistances[i], maxDistance);
+                    }
+
+                    Value[][] groupRows = new Value[outputs][];
+                    Value[] groupDistances = new Value[outputs];
+                    selectByRank(circuit, selected, selectedDistances, 0, groupRows, groupDistances);
+
+                    int offset = (t * (probeNum + 1) + p) * outputs;
+                    System.arraycopy(groupRows, 0, candidateRows, offset, outputs);
+                    System.arraycopy(groupDistances, 0, distances, offset, outputs);
+                    Arrays.fill(sources, offset, offset + outputs, t);
                 }
             }
+
+            distances = removeDuplicates(circuit, candidateRows, distances, new Value[0], maxDistance, sources);
+
+            return selectByRank(circuit, candidateRows, distances, 0, Math.min(k, candidateRows.length)).pointis;
+        });
+    }
+
+    /*
+     * IVF（倒排文件）索引：数据集离线做k-means聚类，各簇补齐为相同的大小。
+     * 簇数和簇的大小是公开的，簇心、簇中的点和填充标记是秘密分享，簇心的id为簇的序号。
+     */
+    public static class IVFIndex {
+
+        public Point[] centroids;
+        public Point[][] clusters; // 各簇中的点
+        public BigInteger[][] paddings; // 各点是否为填充的点（1为填充）
+
+        public IVFIndex() {
+        }
+
+        public IVFIndex(Point[] centroids, Point[][] clusters, BigInteger[][] paddings) {
+            this.centroids = centroids;
+            this.clusters = clusters;
+            this.paddings = paddings;
+        }
+    }
+
+    public static String parseIVFIndexToJson(IVFIndex index) {
+        return JSON.toJSONString(index);
+    }
+
+    public static IVFIndex parseJsonToIVFIndex(String json) {
+        return JSON.parseObject(json, IVFIndex.class);
+    }
+
+    /*
+     * 基于IVF索引的SKNN（近似）
+     *
+     * 先计算q到各簇心的距离，用线性SKNN的锦标赛选出最近的nprobe个簇的序号（只交换序号和距离），
+     * 再由序号得到各簇的指示向量（见indicators），不经打开地取出这些簇中的点，
+     * 最后在这nprobe * clusterSize个点上计算距离并选出最近的k个点，填充的点的距离视为最大值。
+     * 
+     * 簇心部分的开销与簇数成正比，其余部分与nprobe * clusterSize成正比，只有取出簇时的乘法与点数成正比。
+     * nprobe越大召回率越高；取出的点数少于k时自动增大nprobe。
+     */
+    public static Point[] secureIVFSKNN(ProtocolContext ctx, IVFIndex index, BigInteger[] q, int k, int nprobe)
+            throws IOException {
+
+        return ProtocolCostCounter.call("secureIVFSKNN", () -> {
+            BigInteger MAX_DISTANCE = ctx.mod.divide(BigInteger.TWO).subtract(BigInteger.ONE);
+
+            int m = q.length;
+            int clusterNum = index.centroids.length;
+            int clusterSize = index.clusters[0].length;
+            int probeNum = Math.min(clusterNum, Math.max(nprobe, (k + clusterSize - 1) / clusterSize));
+
+            // 最近的nprobe个簇
+            BigInteger[] centroidDistanceis = secureNEuclideanDistance(ctx, index.centroids, q);
+            Point[] probeis = new Point[clusterNum];
+            for (int i = 0; i < clusterNum; i++) {
+                probeis[i] = new Point(index.centroids[i].id, new BigInteger[0]);
+            }
+            secureLinearSKNNCore(ctx, probeis, centroidDistanceis, null, probeNum);
+
+            // 取出这些簇中的点，计算距离
+            ShareCircuit circuit = new ShareCircuit(ctx);
+            Value[] qs = circuit.secrets(q);
+            Value maxDistance = circuit.constant(MAX_DISTANCE);
+            Value[][] rows = new Value[probeNum * clusterSize][];
+            for (int p = 0; p < probeNum; p++) {
+                Value[] alphas = indicators(circuit, circuit.secret(probeis[p].id), 0, clusterNum - 1, clusterNum);
+                Value[][] selected = selectData(circuit, alphas, index.clusters, index.paddings, clusterSize, m);
+                System.arraycopy(selected, 0, rows, p * clusterSize, clusterSize);
+            }
+            Value[] distances = euclideanDistances(circuit, rows, qs);
+            for (int i = 0; i < rows.length; i++) {
+                distances[i] = eliminate(circuit, rows[i][0], distances[i], maxDistance);
+            }
+
+            Candidates candidates = toCandidates(rows, distances);
+            secureLinearSKNNCore(ctx, candidates.pointis, candidates.distanceis, null, k);
+
+            return Arrays.copyOfRange(candidates.pointis, 0, k);
+        });
+    }
+
+    /*
+     * 乘积量化（PQ）索引：m维依次分为subspaceNum段（第s段为第 s*m/subspaceNum ... (s+1)*m/subspaceNum - 1 维），
+     * 每段离线聚类得到码本，各点在每段用最近的码字编码，编码以one-hot形式秘密分享。
+     * 码字之间的距离表离线计算并按比例缩小，使任意两点各段距离之和小于2^width，width是公开的。
+     */
+    public static class PQIndex {
+
+        public int width; // 距离的比特长度
+        public Point[][] codebooks; // [段][码字]，data为该段的各维
+        public BigInteger[][][] tables; // [段][码字][码字]，缩小后的码字间距离
+        public Point[] points;
+        public BigInteger[][][] codes; // [点][段][码字]，各点编码的one-hot
+
+        public PQIndex() {
+        }
+
+        public PQIndex(int width, Point[][] codebooks, BigInteger[][][] tables, Point[] points,
+                BigInteger[][][] codes) {
+            this.width = width;
+            this.codebooks = codebooks;
+            this.tables = tables;
+            this.points = points;
+            this.codes = codes;
         }
     }
+
+    public static String parsePQIndexToJson(PQIndex index) {
+        return JSON.toJSONString(index);
+    }
+
+    public static PQIndex parseJsonToPQIndex(String json) {
+        return JSON.parseObject(json, PQIndex.class);
+    }
+
+    /*
+     * 基于PQ的SKNN（近似，对称距离）
+     *
+     * 先在每段中按名次选出q最近的码字，得到q编码的one-hot oq_s（比较次数只与码字数有关），
+     * 再查表：u_s = oq_s^T * T_s，点x的距离为 SUM_s( <u_s, ox_s> )，其中ox_s为x编码的one-hot。
+     * 距离小于2^width，所以之后线性SKNN中的每次比较都只处理width个比特，而不是模数的长度l；
+     * 模数需比 width + 3 多出STATISTICAL_SECURITY位，否则退化为完整的比较（见AdditiveSecretSharing.secureComparision）。
+     */
+    public static Point[] securePQSKNN(ProtocolContext ctx, PQIndex index, BigInteger[] q, int k)
+            throws IOException {
+
+        return ProtocolCostCounter.call("securePQSKNN", () -> {
+            int m = q.length;
+            int num = index.points.length;
+            int subspaceNum = index.codebooks.length;
+            int codewordNum = index.codebooks[0].length;
+
+            ShareCircuit circuit = new ShareCircuit(ctx);
+            Value[] qs = circuit.secrets(q);
+
+            // 各段中q的编码，以及查表得到的u_s
+            Value[][] oneHots = new Value[codewordNum][codewordNum];
+            for (int i = 0; i < codewordNum; i++) {
+                for (int j = 0; j < codewordNum; j++) {
+                    oneHots[i][j] = (i == j) ? circuit.one() : circuit.zero();
+                }
+            }
+            Value[][] us = new Value[subspaceNum][codewordNum];
+            for (int s = 0; s < subspaceNum; s++) {
+                int from = s * m / subspaceNum, to = (s + 1) * m / subspaceNum;
+                Value[][] rows = new Value[codewordNum][];
+                for (int i = 0; i < codewordNum; i++) {
+                    rows[i] = new Value[2 + to - from];
+                    rows[i][0] = circuit.zero();
+                    rows[i][1] = circuit.zero();
+                    for (int j = 0; j < to - from; j++) {
+                        rows[i][2 + j] = circuit.secret(index.codebooks[s][i].data[j]);
+                    }
+                }
+                Value[] distances = euclideanDistances(circuit, rows, Arrays.copyOfRange(qs, from, to));
+
+                Value[][] oq = new Value[1][];
+                selectByRank(circuit, oneHots, distances, 0, oq, new Value[1]);
+
+                for (int j = 0; j < codewordNum; j++) {
+                    Value[] terms = new Value[codewordNum];
+                    for (int i = 0; i < codewordNum; i++) {
+                        terms[i] = circuit.multiply(oq[0][i], circuit.secret(index.tables[s][i][j]));
+                    }
+                    us[s][j] = circuit.sum(terms);
+                }
+            }
+
+            // 各点的距离
+            Value[] distances = new Value[num];
+            for (int x = 0; x < num; x++) {
+                Value[] terms = new Value[subspaceNum * codewordNum];
+                for (int s = 0; s < subspaceNum; s++) {
+                    for (int j = 0; j < codewordNum; j++) {
+                        terms[s * codewordNum + j] = circuit.multiply(us[s][j], circuit.secret(index.codes[x][s][j]));
+                    }
+                }
+                distances[x] = circuit.sum(terms);
+            }
+            BigInteger[] distanceis = circuit.shares(distances);
+
+            // 线性SKNN会原地交换点，所以使用一份拷贝
+            Point[] pointis = new Point[num];
+            for (int x = 0; x < num; x++) {
+                pointis[x] = new Point(index.points[x].id, index.points[x].data.clone());
+            }
+            secureLinearSKNNCore(ctx, pointis, distanceis, null, k, index.width);
+
+            return Arrays.copyOfRange(pointis, 0, k);
+        });
+    }
+
+    /*
+     * 以下为此前的参数形式，每次调用创建一个使用固定相关随机数的ProtocolContext
+     */
+
+    public static BigInteger[] secureNEuclideanDistance(PartyID partyID, Point[] points, BigInteger[] q,
+            MultiplicationTriple triple, BigInteger mod, BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureNEuclideanDistance(new ProtocolContext(partyID, mod, reader, writer, triple, null), points, q);
+    }
+
+    public static Point[] secureLinearSKNN(PartyID partyID, Point[] points, BigInteger[] q, int k,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureLinearSKNN(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), points, q, k);
+    }
+
+    public static Point[] secureVoronoiSKNN(PartyID partyID, AG[] ags, VG[] vgs, BigInteger[] q, int k,
+            MultiplicationTriple triple, RandomNumberTuple rTuple, BigInteger mod,
+            BufferedReader reader, PrintWriter writer) throws IOException {
+        return secureVoronoiSKNN(new ProtocolContext(partyID, mod, reader, writer, triple, rTuple), ags, vgs, q, k);
+    }
 }
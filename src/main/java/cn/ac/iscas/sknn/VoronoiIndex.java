@@ -0,0 +1,828 @@
+package cn.ac.iscas.sknn;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import cn.ac.iscas.sknn.SKNNV2.AG;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.sknn.SKNNV2.VG;
+import de.alsclo.voronoi.Voronoi;
+import de.alsclo.voronoi.graph.Edge;
+import de.alsclo.voronoi.graph.Vertex;
+
+/**
+ * 由明文数据集离线构造基于维诺图的SKNN所需的AG表和VG表（见SKNNV2.secureVoronoiSKNN），并支持增量维护
+ * <p>
+ * 数据集的格式与DataProcessor.generateDataset()、loadGowallaDataset()一致：每行为 x | y | id，只支持m=2。
+ * <ul>
+ * <li>AG：第i行的label为i，内容为第i个点的维诺单元的所有邻接单元中的点，即第i+1近邻点的候选集合。</li>
+ * <li>VG：把数据空间等分为gridSize * gridSize个桶，每个桶包含与它相交的所有维诺单元中的点，
+ * 所以q的最近邻点一定在q所在的桶中。单元与桶是否相交按单元的外接矩形判断，只会多包含，不会遗漏。</li>
+ * </ul>
+ * 两张表都补齐到固定长度（重复本行已有的点），补齐的重复点在查询中与已选出的点去重，不影响结果。
+ * 索引中至少要有一个点，否则无法补齐。
+ * <p>
+ * 维诺图本身由voronoi-java（Fortune算法）单线程构造，之后按单元、按桶的计算都是并行的。
+ * <p>
+ * 插入、删除点时（见update()），只对受影响单元附近的点重新构造局部维诺图，并逐步扩大局部范围，
+ * 直到受影响单元的每个顶点都通过检验（没有局部之外的点比该单元的点更近），
+ * 然后只重新生成邻接关系变化的AG行和覆盖范围变化的VG桶。删除的点所在的行不再被引用，留给之后插入的点使用。
+ */
+public class VoronoiIndex {
+
+    /**
+     * 一次更新中变化的AG行和VG桶，数据拥有者只需把这些行的秘密分享发送给C1/C2（见SKNNServer的UPDATE命令）
+     */
+    public static class Update {
+        public final int agNum; // 更新后AG的行数
+        public final int[] agIndexes;
+        public final AG[] ags;
+        public final int[] vgIndexes;
+        public final VG[] vgs;
+
+        private Update(int agNum, int[] agIndexes, AG[] ags, int[] vgIndexes, VG[] vgs) {
+            this.agNum = agNum;
+            this.agIndexes = agIndexes;
+            this.ags = ags;
+            this.vgIndexes = vgIndexes;
+            this.vgs = vgs;
+        }
+    }
+
+    // 数据空间[x0, x1) * [y0, y1)，以及桶的边界
+    private final double x0, y0, x1, y1;
+    private final int gridSize;
+    private final BigInteger[][] cuts;
+    private final double[][] cutValues;
+
+    // 各点，即AG的各行，已删除的行为null
+    private final List<Point> points = new ArrayList<>();
+    private final List<Integer> rowSites = new ArrayList<>();
+    private final Deque<Integer> freeRows = new ArrayDeque<>();
+    private final Map<BigInteger, Integer> rowOfId = new HashMap<>();
+
+    // 各站点，坐标相同的点只作为一个站点，已删除的站点members为空
+    private final List<de.alsclo.voronoi.graph.Point> sites = new ArrayList<>();
+    private final List<List<BigInteger>> siteKeys = new ArrayList<>();
+    private final Map<List<BigInteger>, Integer> siteIndexes = new HashMap<>();
+    private final List<List<Integer>> members = new ArrayList<>();
+    private final List<int[]> neighbours = new ArrayList<>();
+    private final List<double[]> bounds = new ArrayList<>(); // 各单元的外接矩形：minX, minY, maxX, maxY
+    private final int[] cornerOwners = new int[4]; // 数据空间四个角所在的单元
+    private int liveSites = 0;
+
+    // 各桶覆盖的站点，升序
+    private final int[][] bucketSites;
+
+    private int agSize, vgSize;
+    private final List<AG> ags = new ArrayList<>();
+    private final VG[] vgs;
+
+    private VoronoiIndex(BigInteger[] low, BigInteger[] high, int gridSize) {
+        this.x0 = low[0].doubleValue();
+        this.y0 = low[1].doubleValue();
+        this.x1 = high[0].doubleValue();
+        this.y1 = high[1].doubleValue();
+        this.gridSize = gridSize;
+
+        this.cuts = new BigInteger[2][gridSize + 1];
+        this.cutValues = new double[2][gridSize + 1];
+        for (int j = 0; j < 2; j++) {
+            BigInteger width = high[j].subtract(low[j]);
+            for (int c = 0; c <= gridSize; c++) {
+                cuts[j][c] = low[j].add(width.multiply(BigInteger.valueOf(c)).divide(BigInteger.valueOf(gridSize)));
+                cutValues[j][c] = cuts[j][c].doubleValue();
+            }
+        }
+
+        this.bucketSites = new int[gridSize * gridSize][];
+        this.vgs = new VG[gridSize * gridSize];
+    }
+
+    /**
+     * 以数据的外接矩形为数据空间构造索引
+     */
+    public static VoronoiIndex build(BigInteger[][] dataset, int gridSize) {
+        if (dataset.length == 0)
+            throw new IllegalArgumentException("The dataset is empty");
+
+        BigInteger[] low = dataset[0].clone();
+        BigInteger[] high = dataset[0].clone();
+        for (BigInteger[] row : dataset) {
+            for (int j = 0; j < 2; j++) {
+                low[j] = low[j].min(row[j]);
+                high[j] = high[j].max(row[j]);
+            }
+        }
+
+        return build(dataset, new BigInteger[] { low[0], low[1] },
+                new BigInteger[] { high[0].add(BigInteger.ONE), high[1].add(BigInteger.ONE) }, gridSize);
+    }
+
+    /**
+     * @param dataset  每行为 x | y | id
+     * @param low      数据空间的下界（含）
+     * @param high     数据空间的上界（不含），查询点及之后插入的点须在[low, high)中
+     * @param gridSize 每个维度上桶的个数
+     */
+    public static VoronoiIndex build(BigInteger[][] dataset, BigInteger[] low, BigInteger[] high, int gridSize) {
+        if (dataset.length == 0)
+            throw new IllegalArgumentException("The dataset is empty");
+        if (dataset[0].length != 3)
+            throw new IllegalArgumentException("Only 2-dimensional datasets are supported");
+
+        VoronoiIndex index = new VoronoiIndex(low, high, gridSize);
+        for (BigInteger[] row : dataset) {
+            index.addPoint(row);
+        }
+        index.buildDiagram();
+        index.buildTables();
+
+        return index;
+    }
+
+    public AG[] getAGs() {
+        return ags.toArray(new AG[0]);
+    }
+
+    public VG[] getVGs() {
+        return vgs.clone();
+    }
+
+    /*
+     * 为点分配一行（优先使用删除的点留下的行），并加入其坐标所在的站点
+     *
+     * @return 站点序号，新建的站点返回 -1 - 序号
+     */
+    private int addPoint(BigInteger[] row) {
+        BigInteger id = row[2];
+        if (rowOfId.containsKey(id))
+            throw new IllegalArgumentException("Duplicate point id " + id);
+
+        Point point = new Point(id, new BigInteger[] { row[0], row[1] });
+        int r;
+        if (freeRows.isEmpty()) {
+            r = points.size();
+            points.add(point);
+            rowSites.add(-1);
+        } else {
+            r = freeRows.poll();
+            points.set(r, point);
+        }
+        rowOfId.put(id, r);
+
+        List<BigInteger> key = Arrays.asList(point.data);
+        Integer site = siteIndexes.get(key);
+        boolean isNew = (site == null);
+        if (isNew) {
+            site = sites.size();
+            siteIndexes.put(key, site);
+            siteKeys.add(key);
+            sites.add(new de.alsclo.voronoi.graph.Point(row[0].doubleValue(), row[1].doubleValue()));
+            members.add(new ArrayList<>());
+            neighbours.add(new int[0]);
+            bounds.add(null);
+            liveSites++;
+        }
+        members.get(site).add(r);
+        rowSites.set(r, site);
+
+        return isNew ? -1 - site : site;
+    }
+
+    /*
+     * 构造整个维诺图：各站点的邻接关系、单元的外接矩形以及各桶覆盖的站点
+     */
+    private void buildDiagram() {
+        int siteNum = sites.size();
+
+        List<Set<Integer>> adjacency = new ArrayList<>();
+        for (int i = 0; i < siteNum; i++) {
+            adjacency.add(new LinkedHashSet<>());
+            bounds.set(i, pointBound(sites.get(i)));
+        }
+        if (siteNum > 1) {
+            Voronoi voronoi = new Voronoi(sites).applyBoundingBox(x0, y0, x1 - x0, y1 - y0);
+            Map<de.alsclo.voronoi.graph.Point, Integer> siteOf = new HashMap<>();
+            for (int i = 0; i < siteNum; i++) {
+                siteOf.put(sites.get(i), i);
+            }
+            voronoi.getGraph().edgeStream().forEach(edge -> {
+                Integer s1 = siteOf.get(edge.getSite1());
+                Integer s2 = siteOf.get(edge.getSite2());
+                if (s1 == null || s2 == null)
+                    return;
+
+                adjacency.get(s1).add(s2);
+                adjacency.get(s2).add(s1);
+                for (double[] v : vertices(edge)) {
+                    extend(bounds.get(s1), v);
+                    extend(bounds.get(s2), v);
+                }
+            });
+        }
+        for (int i = 0; i < siteNum; i++) {
+            neighbours.set(i, adjacency.get(i).stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        // 单元的顶点不包括数据空间的四个角，角所在的单元即离角最近的点所在的单元
+        double[][] corners = corners();
+        for (int c = 0; c < 4; c++) {
+            double[] corner = corners[c];
+            cornerOwners[c] = IntStream.range(0, siteNum).parallel().boxed()
+                    .min((a, b) -> Double.compare(squareDistance(sites.get(a), corner),
+                            squareDistance(sites.get(b), corner)))
+                    .get();
+            extend(bounds.get(cornerOwners[c]), corner);
+        }
+
+        // 每个单元覆盖的桶：先计数，再填入，两遍都按单元并行
+        int vgNum = gridSize * gridSize;
+        AtomicIntegerArray sizes = new AtomicIntegerArray(vgNum);
+        IntStream.range(0, siteNum).parallel().forEach(site -> {
+            for (int bucket : coveredBuckets(bounds.get(site))) {
+                sizes.incrementAndGet(bucket);
+            }
+        });
+        AtomicIntegerArray cursors = new AtomicIntegerArray(vgNum);
+        for (int bucket = 0; bucket < vgNum; bucket++) {
+            bucketSites[bucket] = new int[sizes.get(bucket)];
+        }
+        IntStream.range(0, siteNum).parallel().forEach(site -> {
+            for (int bucket : coveredBuckets(bounds.get(site))) {
+                bucketSites[bucket][cursors.getAndIncrement(bucket)] = site;
+            }
+        });
+        Arrays.stream(bucketSites).parallel().forEach(Arrays::sort); // 与并行填入的顺序无关
+    }
+
+    /*
+     * 按当前的邻接关系生成全部AG行和VG桶
+     */
+    private void buildTables() {
+        int n = points.size();
+        int[][] agRows = new int[n][];
+        IntStream.range(0, n).parallel().forEach(i -> agRows[i] = agRow(i));
+        agSize = Arrays.stream(agRows).mapToInt(row -> row.length).max().orElse(1);
+
+        AG[] agArray = new AG[n];
+        IntStream.range(0, n).parallel().forEach(i -> agArray[i] = toAG(i, agRows[i]));
+        ags.addAll(Arrays.asList(agArray));
+
+        int vgNum = vgs.length;
+        int[][] vgRows = new int[vgNum][];
+        IntStream.range(0, vgNum).parallel().forEach(bucket -> vgRows[bucket] = vgRow(bucket));
+        vgSize = Arrays.stream(vgRows).mapToInt(row -> row.length).max().orElse(1);
+
+        IntStream.range(0, vgNum).parallel().forEach(bucket -> vgs[bucket] = toVG(bucket, vgRows[bucket]));
+    }
+
+    /**
+     * 插入、删除一批点，并返回变化的AG行和VG桶。先处理删除，再处理插入。
+     * <p>
+     * 若某行的长度超过了当前的agSize（或vgSize），则所有行按新的长度（多留出1/4）重新补齐，此时返回全部的行。
+     *
+     * @param inserts 每行为 x | y | id
+     * @param deletes 要删除的点的id，更新后至少要剩下一个点
+     */
+    public Update update(List<BigInteger[]> inserts, List<BigInteger> deletes) {
+        if (rowOfId.size() - deletes.size() + inserts.size() <= 0)
+            throw new IllegalArgumentException("The index must keep at least one point");
+
+        Set<Integer> changedRows = new TreeSet<>();
+        Set<Integer> changedBuckets = new TreeSet<>();
+
+        for (BigInteger id : deletes) {
+            delete(id, changedRows, changedBuckets);
+        }
+        for (BigInteger[] row : inserts) {
+            insert(row, changedRows, changedBuckets);
+        }
+
+        Map<Integer, int[]> agRows = new HashMap<>();
+        for (int i : changedRows) {
+            agRows.put(i, agRow(i));
+        }
+        Map<Integer, int[]> vgRows = new HashMap<>();
+        for (int bucket : changedBuckets) {
+            vgRows.put(bucket, vgRow(bucket));
+        }
+
+        // 需要加长时多留出1/4，避免之后频繁地重新补齐全部的行
+        int newAgSize = agRows.values().stream().mapToInt(row -> row.length).max().orElse(0);
+        if (newAgSize > agSize) {
+            agSize = newAgSize + newAgSize / 4;
+            changedRows = allIndexes(points.size());
+        }
+        int newVgSize = vgRows.values().stream().mapToInt(row -> row.length).max().orElse(0);
+        if (newVgSize > vgSize) {
+            vgSize = newVgSize + newVgSize / 4;
+            changedBuckets = allIndexes(vgs.length);
+        }
+
+        int[] agIndexes = changedRows.stream().mapToInt(Integer::intValue).toArray();
+        AG[] changedAGs = new AG[agIndexes.length];
+        for (int j = 0; j < agIndexes.length; j++) {
+            int i = agIndexes[j];
+            AG ag = (points.get(i) == null) ? padDeletedRow(i) : toAG(i, agRows.computeIfAbsent(i, this::agRow));
+            if (i < ags.size())
+                ags.set(i, ag);
+            else
+                ags.add(ag);
+            changedAGs[j] = ag;
+        }
+
+        int[] vgIndexes = changedBuckets.stream().mapToInt(Integer::intValue).toArray();
+        VG[] changedVGs = new VG[vgIndexes.length];
+        for (int j = 0; j < vgIndexes.length; j++) {
+            int bucket = vgIndexes[j];
+            vgs[bucket] = toVG(bucket, vgRows.computeIfAbsent(bucket, this::vgRow));
+            changedVGs[j] = vgs[bucket];
+        }
+
+        return new Update(ags.size(), agIndexes, changedAGs, vgIndexes, changedVGs);
+    }
+
+    private void insert(BigInteger[] row, Set<Integer> changedRows, Set<Integer> changedBuckets) {
+        if (row.length != 3)
+            throw new IllegalArgumentException("Only 2-dimensional points are supported");
+
+        int site = addPoint(row);
+        changedRows.add(rowOfId.get(row[2]));
+        if (site >= 0) { // 与已有的点重合，维诺图不变
+            markSite(site, changedRows, changedBuckets);
+            return;
+        }
+
+        site = -1 - site;
+        if (liveSites == 1) { // 唯一的点，单元即整个数据空间
+            bounds.set(site, new double[] { x0, y0, x1, y1 });
+            Arrays.fill(cornerOwners, site);
+            moveSite(site, null, changedBuckets);
+            return;
+        }
+
+        // 新点的单元从最近的点及其附近的单元中分出，局部范围从最近的点的两层邻接单元开始
+        int nearest = nearestSite(sites.get(site));
+        Set<Integer> local = new HashSet<>();
+        local.add(site);
+        local.add(nearest);
+        for (int t : neighbours.get(nearest)) {
+            local.add(t);
+            for (int u : neighbours.get(t)) {
+                local.add(u);
+            }
+        }
+
+        rebuildCells(site, new HashSet<>(), local, -1, changedRows, changedBuckets);
+    }
+
+    private void delete(BigInteger id, Set<Integer> changedRows, Set<Integer> changedBuckets) {
+        Integer r = rowOfId.remove(id);
+        if (r == null)
+            throw new IllegalArgumentException("Unknown point id " + id);
+
+        int site = rowSites.get(r);
+        points.set(r, null);
+        rowSites.set(r, -1);
+        freeRows.add(r);
+        members.get(site).remove(r);
+        changedRows.remove(r);
+
+        if (!members.get(site).isEmpty()) { // 仍有重合的点，维诺图不变
+            markSite(site, changedRows, changedBuckets);
+            return;
+        }
+
+        // 删除站点，其单元由原来的邻接单元瓜分
+        siteIndexes.remove(siteKeys.get(site));
+        liveSites--;
+        int[] oldNeighbours = neighbours.get(site);
+        neighbours.set(site, new int[0]);
+        for (int t : oldNeighbours) {
+            neighbours.set(t, Arrays.stream(neighbours.get(t)).filter(u -> u != site).toArray());
+            markRows(t, changedRows);
+        }
+        double[] oldBound = bounds.get(site);
+        bounds.set(site, null);
+        moveSite(site, oldBound, changedBuckets);
+
+        if (liveSites == 0)
+            return;
+
+        Set<Integer> affected = new HashSet<>();
+        Set<Integer> local = new HashSet<>();
+        for (int t : oldNeighbours) {
+            affected.add(t);
+            local.add(t);
+            for (int u : neighbours.get(t)) {
+                local.add(u);
+            }
+        }
+
+        rebuildCells(-1, affected, local, site, changedRows, changedBuckets);
+    }
+
+    /*
+     * 重新计算受影响单元的邻接关系和外接矩形
+     *
+     * @param inserted 插入的站点，没有时为-1。受影响的单元为它及其邻接单元，随局部维诺图确定
+     * @param affected 删除时受影响的单元，即删除的站点原有的邻接单元
+     * @param local    局部维诺图的初始站点集合，检验不通过时逐步扩大
+     * @param removed  删除的站点，没有时为-1
+     */
+    private void rebuildCells(int inserted, Set<Integer> affected, Set<Integer> local, int removed,
+            Set<Integer> changedRows, Set<Integer> changedBuckets) {
+
+        double[][] corners = corners();
+        Map<Integer, Set<Integer>> adjacency = new HashMap<>();
+        Map<Integer, List<double[]>> cellVertices = new HashMap<>();
+        int[] localCornerOwners = new int[4];
+        while (true) {
+            List<de.alsclo.voronoi.graph.Point> localSites = new ArrayList<>();
+            Map<de.alsclo.voronoi.graph.Point, Integer> siteOf = new HashMap<>();
+            adjacency.clear();
+            cellVertices.clear();
+            for (int s : local) {
+                localSites.add(sites.get(s));
+                siteOf.put(sites.get(s), s);
+                adjacency.put(s, new LinkedHashSet<>());
+                cellVertices.put(s, new ArrayList<>());
+            }
+
+            if (localSites.size() > 1) {
+                Voronoi voronoi = new Voronoi(localSites).applyBoundingBox(x0, y0, x1 - x0, y1 - y0);
+                voronoi.getGraph().edgeStream().forEach(edge -> {
+                    Integer s1 = siteOf.get(edge.getSite1());
+                    Integer s2 = siteOf.get(edge.getSite2());
+                    if (s1 == null || s2 == null)
+                        return;
+
+                    adjacency.get(s1).add(s2);
+                    adjacency.get(s2).add(s1);
+                    for (double[] v : vertices(edge)) {
+                        cellVertices.get(s1).add(v);
+                        cellVertices.get(s2).add(v);
+                    }
+                });
+            }
+            for (int c = 0; c < 4; c++) {
+                double[] corner = corners[c];
+                localCornerOwners[c] = local.stream()
+                        .min((a, b) -> Double.compare(squareDistance(sites.get(a), corner),
+                                squareDistance(sites.get(b), corner)))
+                        .get();
+                cellVertices.get(localCornerOwners[c]).add(corner);
+            }
+
+            if (inserted >= 0) {
+                affected.clear();
+                affected.add(inserted);
+                affected.addAll(adjacency.get(inserted));
+            }
+
+            // 检验：受影响单元的每个顶点，都没有局部之外的点比该单元的点更近。
+            // 凸多边形的顶点都在真实单元中时，局部单元即真实单元。
+            Set<Integer> missing = new HashSet<>();
+            for (int s : affected) {
+                for (double[] v : cellVertices.get(s)) {
+                    double d = squareDistance(sites.get(s), v);
+                    for (int o : candidates(v, removed)) {
+                        if (!local.contains(o) && squareDistance(sites.get(o), v) < d * (1 - 1e-9))
+                            missing.add(o);
+                    }
+                }
+            }
+
+            if (missing.isEmpty())
+                break;
+            local.addAll(missing);
+        }
+
+        // 角所在的单元：插入的点更近，或原来的单元被删除（此时新的单元是其邻接单元之一）
+        for (int c = 0; c < 4; c++) {
+            int owner = cornerOwners[c];
+            int candidate = localCornerOwners[c];
+            if (owner == removed
+                    || squareDistance(sites.get(candidate), corners[c]) < squareDistance(sites.get(owner), corners[c]))
+                cornerOwners[c] = candidate;
+        }
+
+        for (int s : affected) {
+            // 邻接关系，不受影响的单元只需对称地增删s
+            Set<Integer> oldSet = new HashSet<>();
+            for (int t : neighbours.get(s)) {
+                oldSet.add(t);
+            }
+            Set<Integer> newSet = adjacency.get(s);
+            neighbours.set(s, newSet.stream().mapToInt(Integer::intValue).toArray());
+            for (int t : oldSet) {
+                if (!newSet.contains(t) && !affected.contains(t)) {
+                    neighbours.set(t, Arrays.stream(neighbours.get(t)).filter(u -> u != s).toArray());
+                    markRows(t, changedRows);
+                }
+            }
+            for (int t : newSet) {
+                if (!oldSet.contains(t) && !affected.contains(t)) {
+                    int[] tNeighbours = Arrays.copyOf(neighbours.get(t), neighbours.get(t).length + 1);
+                    tNeighbours[tNeighbours.length - 1] = s;
+                    neighbours.set(t, tNeighbours);
+                    markRows(t, changedRows);
+                }
+            }
+            if (!oldSet.equals(newSet))
+                markRows(s, changedRows);
+
+            // 外接矩形
+            double[] bound = pointBound(sites.get(s));
+            for (double[] v : cellVertices.get(s)) {
+                extend(bound, v);
+            }
+            for (int c = 0; c < 4; c++) {
+                if (cornerOwners[c] == s)
+                    extend(bound, corners[c]);
+            }
+            double[] oldBound = bounds.get(s);
+            bounds.set(s, bound);
+            if (!Arrays.equals(oldBound, bound))
+                moveSite(s, oldBound, changedBuckets);
+        }
+    }
+
+    /*
+     * 站点的点集变化（维诺图不变）：其所有点、邻接单元的所有点所在的行以及覆盖它的桶都需要更新
+     */
+    private void markSite(int site, Set<Integer> changedRows, Set<Integer> changedBuckets) {
+        markRows(site, changedRows);
+        for (int t : neighbours.get(site)) {
+            markRows(t, changedRows);
+        }
+        for (int bucket : coveredBuckets(bounds.get(site))) {
+            changedBuckets.add(bucket);
+        }
+    }
+
+    private void markRows(int site, Set<Integer> changedRows) {
+        changedRows.addAll(members.get(site));
+    }
+
+    /*
+     * 站点的外接矩形由oldBound变为bounds.get(site)（null表示不覆盖任何桶），更新各桶覆盖的站点
+     */
+    private void moveSite(int site, double[] oldBound, Set<Integer> changedBuckets) {
+        Set<Integer> oldBuckets = new HashSet<>();
+        for (int bucket : coveredBuckets(oldBound)) {
+            oldBuckets.add(bucket);
+        }
+        Set<Integer> newBuckets = new HashSet<>();
+        for (int bucket : coveredBuckets(bounds.get(site))) {
+            newBuckets.add(bucket);
+        }
+
+        for (int bucket : oldBuckets) {
+            if (!newBuckets.contains(bucket))
+                bucketSites[bucket] = Arrays.stream(bucketSites[bucket]).filter(s -> s != site).toArray();
+        }
+        for (int bucket : newBuckets) {
+            if (!oldBuckets.contains(bucket)) {
+                int[] row = Arrays.copyOf(bucketSites[bucket], bucketSites[bucket].length + 1);
+                row[row.length - 1] = site;
+                Arrays.sort(row);
+                bucketSites[bucket] = row;
+            }
+        }
+        changedBuckets.addAll(oldBuckets);
+        changedBuckets.addAll(newBuckets);
+    }
+
+    /*
+     * 顶点v处可能比局部站点更近的点：v所在的桶覆盖的站点，当前维诺图中离v最近的点一定在其中。
+     * 删除站点时，原来在其单元中的顶点离它的邻接单元最近，这些单元已在局部范围中。
+     */
+    private int[] candidates(double[] v, int removed) {
+        return Arrays.stream(bucketSites[bucketOf(v)])
+                .filter(s -> s != removed && !members.get(s).isEmpty())
+                .toArray();
+    }
+
+    private int nearestSite(de.alsclo.voronoi.graph.Point site) {
+        double[] p = { site.x, site.y };
+        int nearest = -1;
+        double best = Double.MAX_VALUE;
+        for (int s : candidates(p, -1)) {
+            double d = squareDistance(sites.get(s), p);
+            if (d < best) {
+                best = d;
+                nearest = s;
+            }
+        }
+
+        return nearest;
+    }
+
+    /*
+     * 第i个点的AG行（未补齐）：邻接单元中的点，以及与其重合的其他点
+     */
+    private int[] agRow(int i) {
+        int site = rowSites.get(i);
+        if (site < 0)
+            return new int[0];
+
+        List<Integer> row = new ArrayList<>();
+        for (int neighbour : neighbours.get(site)) {
+            row.addAll(members.get(neighbour));
+        }
+        for (int j : members.get(site)) {
+            if (j != i)
+                row.add(j);
+        }
+
+        return row.stream().distinct().mapToInt(Integer::intValue).toArray();
+    }
+
+    /*
+     * 桶的VG行（未补齐）：覆盖该桶的单元中的点
+     */
+    private int[] vgRow(int bucket) {
+        List<Integer> row = new ArrayList<>();
+        for (int site : bucketSites[bucket]) {
+            row.addAll(members.get(site));
+        }
+
+        return row.stream().sorted().mapToInt(Integer::intValue).toArray();
+    }
+
+    private AG toAG(int i, int[] row) {
+        row = pad(row, agSize, i);
+        Point[] agPoints = new Point[agSize];
+        BigInteger[] subLabels = new BigInteger[agSize];
+        for (int j = 0; j < agSize; j++) {
+            agPoints[j] = points.get(row[j]);
+            subLabels[j] = BigInteger.valueOf(row[j]);
+        }
+
+        return new AG(BigInteger.valueOf(i), agPoints, subLabels);
+    }
+
+    /*
+     * 已删除的行不再被引用，只需保持长度一致，沿用原有内容
+     */
+    private AG padDeletedRow(int i) {
+        AG old = ags.get(i);
+        Point[] agPoints = new Point[agSize];
+        BigInteger[] subLabels = new BigInteger[agSize];
+        for (int j = 0; j < agSize; j++) {
+            agPoints[j] = old.points[j % old.points.length];
+            subLabels[j] = old.subLabels[j % old.subLabels.length];
+        }
+
+        return new AG(old.label, agPoints, subLabels);
+    }
+
+    /*
+     * 各单元的外接矩形覆盖整个数据空间，桶中总有点；若因浮点误差为空，补入离桶中心最近的点
+     */
+    private VG toVG(int bucket, int[] row) {
+        int cx = bucket / gridSize, cy = bucket % gridSize;
+        row = pad(row, vgSize, (row.length > 0) ? row[0] : nearestRow(cx, cy));
+        Point[] vgPoints = new Point[vgSize];
+        BigInteger[] subLabels = new BigInteger[vgSize];
+        for (int j = 0; j < vgSize; j++) {
+            vgPoints[j] = points.get(row[j]);
+            subLabels[j] = BigInteger.valueOf(row[j]);
+        }
+        Point bucketLow = new Point(null, new BigInteger[] { cuts[0][cx], cuts[1][cy] });
+        Point bucketHigh = new Point(null, new BigInteger[] { cuts[0][cx + 1], cuts[1][cy + 1] });
+
+        return new VG(bucketLow, bucketHigh, vgPoints, subLabels);
+    }
+
+    private int nearestRow(int cx, int cy) {
+        double[] center = { (cutValues[0][cx] + cutValues[0][cx + 1]) / 2,
+                (cutValues[1][cy] + cutValues[1][cy + 1]) / 2 };
+
+        return rowOfId.values().stream()
+                .min((a, b) -> Double.compare(squareDistance(sites.get(rowSites.get(a)), center),
+                        squareDistance(sites.get(rowSites.get(b)), center)))
+                .orElseThrow(() -> new IllegalStateException("The index has no points"));
+    }
+
+    private int bucketOf(double[] p) {
+        return firstBucket(cutValues[0], p[0]) * gridSize + firstBucket(cutValues[1], p[1]);
+    }
+
+    /*
+     * 外接矩形覆盖的桶，bound为null时没有
+     */
+    private int[] coveredBuckets(double[] bound) {
+        if (bound == null)
+            return new int[0];
+
+        // 桶中的整数点在闭区间[cut_c, cut_{c+1}]内
+        int cx0 = firstBucket(cutValues[0], bound[0]), cx1 = lastBucket(cutValues[0], bound[2]);
+        int cy0 = firstBucket(cutValues[1], bound[1]), cy1 = lastBucket(cutValues[1], bound[3]);
+        int[] buckets = new int[(cx1 - cx0 + 1) * (cy1 - cy0 + 1)];
+        int index = 0;
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                buckets[index++] = cx * gridSize + cy;
+            }
+        }
+
+        return buckets;
+    }
+
+    private double[][] corners() {
+        return new double[][] { { x0, y0 }, { x1, y0 }, { x0, y1 }, { x1, y1 } };
+    }
+
+    private static Set<Integer> allIndexes(int n) {
+        Set<Integer> indexes = new TreeSet<>();
+        for (int i = 0; i < n; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    /*
+     * 循环重复已有的元素，补齐到size；row为空时使用defaultValue
+     */
+    private static int[] pad(int[] row, int size, int defaultValue) {
+        if (row.length == 0)
+            row = new int[] { defaultValue };
+
+        int[] padded = new int[size];
+        for (int i = 0; i < size; i++) {
+            padded[i] = row[i % row.length];
+        }
+
+        return padded;
+    }
+
+    /*
+     * 闭区间[cuts[c], cuts[c + 1]]中有不小于value的点的最小c，二分查找
+     */
+    private static int firstBucket(double[] cuts, double value) {
+        int lo = 0, hi = cuts.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cuts[mid + 1] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * 闭区间[cuts[c], cuts[c + 1]]中有不大于value的点的最大c，二分查找
+     */
+    private static int lastBucket(double[] cuts, double value) {
+        int lo = 0, hi = cuts.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (cuts[mid] > value)
+                hi = mid - 1;
+            else
+                lo = mid;
+        }
+        return lo;
+    }
+
+    private static List<double[]> vertices(Edge edge) {
+        List<double[]> vertices = new ArrayList<>(2);
+        for (Vertex vertex : new Vertex[] { edge.getA(), edge.getB() }) {
+            if (vertex != null)
+                vertices.add(new double[] { vertex.getLocation().x, vertex.getLocation().y });
+        }
+        return vertices;
+    }
+
+    private static double[] pointBound(de.alsclo.voronoi.graph.Point site) {
+        return new double[] { site.x, site.y, site.x, site.y };
+    }
+
+    private static void extend(double[] bound, double[] p) {
+        bound[0] = Math.min(bound[0], p[0]);
+        bound[1] = Math.min(bound[1], p[1]);
+        bound[2] = Math.max(bound[2], p[0]);
+        bound[3] = Math.max(bound[3], p[1]);
+    }
+
+    private static double squareDistance(de.alsclo.voronoi.graph.Point site, double[] p) {
+        double dx = site.x - p[0], dy = site.y - p[1];
+        return dx * dx + dy * dy;
+    }
+}
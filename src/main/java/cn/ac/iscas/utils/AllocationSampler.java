@@ -0,0 +1,72 @@
+package cn.ac.iscas.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 分配统计
+ * <p>
+ * 开启后（-Dsknn.allocation=true 或 setEnabled(true)），ProtocolCostCounter会在进入和退出每个原语、阶段时
+ * 读取当前线程累计分配的字节数（ThreadMXBean.getThreadAllocatedBytes），得到各阶段分配的内存；
+ * 每次查询还会记录期间GC的次数和耗时。
+ * <p>
+ * 默认关闭，关闭时不读取任何计数。
+ */
+public class AllocationSampler {
+
+    private final static com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+    private static volatile boolean enabled = Boolean.getBoolean("sknn.allocation") && threadBean != null;
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported())
+            return null;
+
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        AllocationSampler.enabled = enabled && threadBean != null;
+    }
+
+    /**
+     * @return 当前线程累计分配的字节数，未开启时返回0
+     */
+    public static long currentThreadAllocatedBytes() {
+        return enabled ? threadBean.getCurrentThreadAllocatedBytes() : 0L;
+    }
+
+    /**
+     * @return 所有收集器累计的GC次数
+     */
+    public static long gcCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(bean.getCollectionCount(), 0L);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return 所有收集器累计的GC耗时（毫秒）
+     */
+    public static long gcMillis() {
+        long time = 0L;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0L);
+        }
+
+        return time;
+    }
+}
@@ -0,0 +1,267 @@
+package cn.ac.iscas.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 在一条C1与C2之间的连接上复用多个会话
+ * <p>
+ * 每个会话都有自己的BufferedReader和PrintWriter，用法与普通socket的读写一致，
+ * 所以AdditiveSecretSharing和SKNNV2中的协议不需要任何修改。
+ * <p>
+ * 会话的PrintWriter每次flush（或缓冲满）时，把缓冲的数据作为一帧发出，帧格式为：
+ * sessionId(UTF) | seq(int) | length(int) | data(ISO-8859-1)。
+ * 接收线程按sessionId把帧放入对应会话的信箱，会话按seq顺序读取。
+ * 会话关闭后对方迟到的帧直接丢弃，不再为它新建信箱；对方以同一sessionId从第0帧重新开始时视为新的会话。
+ * 不同会话之间只在写出一帧时短暂加锁，互不阻塞。
+ */
+public class MultiplexedConnection implements Closeable {
+
+    // 单帧最多携带的字符数，超过时先发出一帧
+    private final static int MAX_FRAME_LENGTH = 1 << 16;
+
+    // 记住的已关闭会话个数，更早关闭的会话迟到的帧不再丢弃
+    private final static int MAX_CLOSED_SESSIONS = 4096;
+
+    // 连接断开时放入各信箱，通知读取方
+    private final static Frame END_OF_STREAM = new Frame(-1, null);
+
+    private static class Frame {
+        private final int seq;
+        private final byte[] data;
+
+        private Frame(int seq, byte[] data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+
+    private final Map<String, BlockingQueue<Frame>> mailboxes = new ConcurrentHashMap<>();
+    private final Set<String> closedSessions = new LinkedHashSet<>(); // 按关闭顺序，访问时对其加锁
+    private volatile boolean closed = false;
+
+    public MultiplexedConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        Thread receiver = new Thread(this::receive, "multiplexed-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * 打开一个会话。双方使用相同的sessionId即可配对，无须事先协商。
+     * 同一查询中互相独立的子协议也可以各自打开一个会话（如 sessionId/1、sessionId/2），并行执行。
+     */
+    public Session open(String sessionId) {
+        return new Session(sessionId);
+    }
+
+    private BlockingQueue<Frame> mailbox(String sessionId) {
+        BlockingQueue<Frame> queue = mailboxes.computeIfAbsent(sessionId, id -> new LinkedBlockingQueue<>());
+        if (closed) // 连接已断开，避免读取方一直等待
+            queue.offer(END_OF_STREAM);
+
+        return queue;
+    }
+
+    private void deliver(String sessionId, Frame frame) {
+        synchronized (closedSessions) {
+            if (closedSessions.contains(sessionId)) {
+                if (frame.seq != 0) // 已关闭的会话迟到的帧
+                    return;
+                closedSessions.remove(sessionId); // 对方以同一sessionId开始了新的会话
+            }
+
+            mailbox(sessionId).offer(frame);
+        }
+    }
+
+    private void send(String sessionId, int seq, byte[] data) throws IOException {
+        synchronized (output) {
+            output.writeUTF(sessionId);
+            output.writeInt(seq);
+            output.writeInt(data.length);
+            output.write(data);
+            output.flush();
+        }
+    }
+
+    private void receive() {
+        try {
+            while (true) {
+                String sessionId = input.readUTF();
+                int seq = input.readInt();
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+
+                deliver(sessionId, new Frame(seq, data));
+            }
+        } catch (EOFException e) {
+            // 对方关闭了连接
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        } finally {
+            closed = true;
+            for (BlockingQueue<Frame> queue : mailboxes.values()) {
+                queue.offer(END_OF_STREAM);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+    }
+
+    /**
+     * 复用连接上的一个会话
+     */
+    public class Session implements Closeable {
+        private final String sessionId;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+
+        private Session(String sessionId) {
+            this.sessionId = sessionId;
+            BlockingQueue<Frame> mailbox;
+            synchronized (closedSessions) {
+                closedSessions.remove(sessionId);
+                mailbox = mailbox(sessionId);
+            }
+            this.reader = new BufferedReader(new FrameReader(mailbox));
+            this.writer = new PrintWriter(new FrameWriter());
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public BufferedReader getReader() {
+            return reader;
+        }
+
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        /**
+         * 关闭会话，不影响连接和其他会话。之后对方在该会话上发来的帧都被丢弃。
+         */
+        @Override
+        public void close() {
+            writer.flush();
+            synchronized (closedSessions) {
+                mailboxes.remove(sessionId);
+                closedSessions.add(sessionId);
+                if (closedSessions.size() > MAX_CLOSED_SESSIONS) {
+                    Iterator<String> eldest = closedSessions.iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+
+        private class FrameWriter extends Writer {
+            private final StringBuilder buffer = new StringBuilder();
+            private int seq = 0;
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                buffer.append(cbuf, off, len);
+                if (buffer.length() >= MAX_FRAME_LENGTH)
+                    flush();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (buffer.length() == 0)
+                    return;
+
+                byte[] data = buffer.toString().getBytes(Util.charset);
+                buffer.setLength(0);
+                send(sessionId, seq++, data);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }
+
+        private class FrameReader extends Reader {
+            private final BlockingQueue<Frame> mailbox;
+            private int expectedSeq = 0;
+            private byte[] data = new byte[0];
+            private int position = 0;
+
+            private FrameReader(BlockingQueue<Frame> mailbox) {
+                this.mailbox = mailbox;
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+
+                while (position == data.length) {
+                    Frame frame;
+                    try {
+                        frame = mailbox.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for session " + sessionId, e);
+                    }
+
+                    if (frame == END_OF_STREAM) {
+                        mailbox.offer(END_OF_STREAM);
+                        return -1;
+                    }
+                    if (frame.seq != expectedSeq)
+                        throw new IOException("Session " + sessionId + " expects frame " + expectedSeq
+                                + " but receives " + frame.seq);
+
+                    expectedSeq++;
+                    data = frame.data;
+                    position = 0;
+                }
+
+                int n = Math.min(len, data.length - position);
+                for (int i = 0; i < n; i++) {
+                    cbuf[off + i] = (char) (data[position + i] & 0xff); // ISO-8859-1
+                }
+                position += n;
+
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+    }
+}
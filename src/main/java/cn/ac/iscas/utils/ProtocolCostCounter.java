@@ -0,0 +1,379 @@
+package cn.ac.iscas.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 协议开销统计
+ * <p>
+ * 以树的形式记录每次查询中各原语的通信轮数、交换的元素个数、收发字节数以及耗时（纳秒）。
+ * 原语通过enter()进入一个节点，交换函数（Util.exchangeBigIntegers等）通过recordExchange()把开销记到当前节点上。
+ * <p>
+ * 每个线程维护自己的节点栈，计数器使用LongAdder，所以多个线程同时向同一棵树累加是安全的。
+ * 没有调用startQuery()时，enter()和recordExchange()不记录开销，只产生JFR事件（见ProtocolPhaseEvent）。
+ */
+public class ProtocolCostCounter {
+
+    public static class CostNode {
+        public final String name;
+
+        private final int order; // 子节点的创建顺序，输出时按此排序
+        private final AtomicInteger childCount = new AtomicInteger();
+        private final Map<String, CostNode> children = new ConcurrentHashMap<>();
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder rounds = new LongAdder();
+        private final LongAdder elements = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder exchangeNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder(); // 含子节点
+
+        // 仅根节点使用：本次查询期间的GC次数和耗时
+        private long gcCount, gcMillis;
+
+        private CostNode(String name, int order) {
+            this.name = name;
+            this.order = order;
+        }
+
+        public CostNode child(String name) {
+            return children.computeIfAbsent(name, n -> new CostNode(n, childCount.getAndIncrement()));
+        }
+
+        public List<CostNode> getChildren() {
+            List<CostNode> list = new ArrayList<>(children.values());
+            list.sort(Comparator.comparingInt(n -> n.order));
+            return list;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        public long getExchangeNanos() {
+            return exchangeNanos.sum();
+        }
+
+        /**
+         * @return 本节点（含子节点以及交换时的读写线程）分配的字节数，未开启AllocationSampler时为0
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes.sum();
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        /*
+         * 以下统计值均包含子节点
+         */
+        public long getRounds() {
+            long sum = rounds.sum();
+            for (CostNode child : children.values()) {
+                sum += child.getRounds();
+            }
+            return sum;
+        }
+
+        public long getElements() {
+            long sum = elements.sum();
+            for (CostNode child : children.values()) {
+                sum += child.getElements();
+            }
+            return sum;
+        }
+
+        public long getBytesSent() {
+            long sum = bytesSent.sum();
+            for (CostNode child : children.values()) {
+                sum += child.getBytesSent();
+            }
+            return sum;
+        }
+
+        public long getBytesReceived() {
+            long sum = bytesReceived.sum();
+            for (CostNode child : children.values()) {
+                sum += child.getBytesReceived();
+            }
+            return sum;
+        }
+
+        public long getTotalExchangeNanos() {
+            long sum = exchangeNanos.sum();
+            for (CostNode child : children.values()) {
+                sum += child.getTotalExchangeNanos();
+            }
+            return sum;
+        }
+
+        public String dump() {
+            StringBuilder sb = new StringBuilder();
+            dump(sb, 0);
+            return sb.toString();
+        }
+
+        private void dump(StringBuilder sb, int depth) {
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            sb.append(name)
+                    .append(" calls=").append(getCalls())
+                    .append(" time=").append(String.format("%.3f", getNanos() / 1e6)).append("ms")
+                    .append(" rounds=").append(getRounds())
+                    .append(" elements=").append(getElements())
+                    .append(" sent=").append(getBytesSent()).append("B")
+                    .append(" received=").append(getBytesReceived()).append("B")
+                    .append(" exchange=").append(String.format("%.3f", getTotalExchangeNanos() / 1e6)).append("ms");
+            if (AllocationSampler.isEnabled()) {
+                sb.append(" alloc=").append(getAllocatedBytes()).append("B");
+                if (depth == 0)
+                    sb.append(" gc=").append(gcCount).append(" gcTime=").append(gcMillis).append("ms");
+            }
+            sb.append(System.lineSeparator());
+
+            for (CostNode child : getChildren()) {
+                child.dump(sb, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * enter()的返回值，关闭时退出当前节点。一般通过call()或run()使用，不需要自己关闭。
+     * <p>
+     * 同时也是一个JFR阶段事件的边界：JFR未开启记录时，事件不会被提交。
+     */
+    public static class Scope implements AutoCloseable {
+        private final String name;
+        private final CostNode node; // 没有正在记录的查询时为null
+        private final ProtocolPhaseEvent event;
+        private final long startTime;
+        private final long startAllocated;
+
+        // 本阶段（含子阶段）交换的元素个数和字节数
+        private long elements, bytes, exchangeNanos;
+        // 本阶段（含子阶段）交换时读写线程分配的字节数
+        private long helperAllocated;
+
+        private Scope(String name, CostNode node) {
+            this.name = name;
+            this.node = node;
+            this.startTime = System.nanoTime();
+            this.startAllocated = AllocationSampler.currentThreadAllocatedBytes();
+            this.event = new ProtocolPhaseEvent();
+            this.event.begin();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+            long allocated = AllocationSampler.currentThreadAllocatedBytes() - startAllocated + helperAllocated;
+            if (node != null) {
+                node.calls.increment();
+                node.nanos.add(System.nanoTime() - startTime);
+                node.allocatedBytes.add(allocated);
+            }
+
+            Deque<Scope> scopes = stack.get();
+            scopes.pop();
+
+            Scope parent = scopes.peek();
+            if (parent != null) {
+                parent.elements += elements;
+                parent.bytes += bytes;
+                parent.exchangeNanos += exchangeNanos;
+                parent.helperAllocated += helperAllocated;
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.elements = elements;
+                event.bytes = bytes;
+                event.exchangeTime = exchangeNanos;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+    }
+
+    private static final ThreadLocal<Deque<Scope>> stack = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * 开始记录一次查询，当前线程之前的记录会被丢弃。
+     *
+     * @param name 根节点的名称，如查询类型
+     * @return 本次查询的根节点
+     */
+    public static CostNode startQuery(String name) {
+        CostNode root = new CostNode(name, 0);
+        if (AllocationSampler.isEnabled()) {
+            root.gcCount = -AllocationSampler.gcCount();
+            root.gcMillis = -AllocationSampler.gcMillis();
+        }
+
+        Deque<Scope> scopes = stack.get();
+        scopes.clear();
+        scopes.push(new Scope(name, root));
+
+        return root;
+    }
+
+    /**
+     * 结束当前线程的查询记录
+     *
+     * @return 本次查询的根节点，若没有正在记录的查询则返回null
+     */
+    public static CostNode finishQuery() {
+        Deque<Scope> scopes = stack.get();
+        if (scopes.isEmpty())
+            return null;
+
+        // 查询异常中断时，栈中可能残留未退出的节点
+        while (scopes.size() > 1) {
+            scopes.peek().close();
+        }
+        Scope root = scopes.peek();
+        root.close();
+
+        if (AllocationSampler.isEnabled()) {
+            root.node.gcCount += AllocationSampler.gcCount();
+            root.node.gcMillis += AllocationSampler.gcMillis();
+        }
+
+        return root.node;
+    }
+
+    /**
+     * 进入一个原语或阶段。没有正在记录的查询时，只产生JFR事件，不记录开销。
+     */
+    public static Scope enter(String primitive) {
+        Deque<Scope> scopes = stack.get();
+        Scope parent = scopes.peek();
+
+        CostNode node = (parent == null || parent.node == null) ? null : parent.node.child(primitive);
+        Scope scope = new Scope(primitive, node);
+        scopes.push(scope);
+
+        return scope;
+    }
+
+    /**
+     * call()和run()执行的原语体
+     */
+    @FunctionalInterface
+    public interface Body<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    @FunctionalInterface
+    public interface VoidBody<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * 在primitive节点中执行body，body抛出异常时同样会退出该节点
+     */
+    public static <T, E extends Exception> T call(String primitive, Body<T, E> body) throws E {
+        Scope scope = enter(primitive);
+        try (scope) {
+            return body.call();
+        }
+    }
+
+    /**
+     * 同call()，用于没有返回值的原语
+     */
+    public static <E extends Exception> void run(String primitive, VoidBody<E> body) throws E {
+        Scope scope = enter(primitive);
+        try (scope) {
+            body.run();
+        }
+    }
+
+    /**
+     * 在另一个线程中进入parent的子节点，用于把异步执行的原语记到提交它的查询中（见AsyncProtocol）。
+     *
+     * @param parent 提交时的currentNode()，为null时只产生JFR事件
+     */
+    public static Scope enter(CostNode parent, String primitive) {
+        Scope scope = new Scope(primitive, (parent == null) ? null : parent.child(primitive));
+        stack.get().push(scope);
+
+        return scope;
+    }
+
+    /**
+     * @return 当前所在的节点，没有正在记录的查询时返回null
+     */
+    public static CostNode currentNode() {
+        Scope scope = stack.get().peek();
+        return (scope == null) ? null : scope.node;
+    }
+
+    /**
+     * @return 当前所在的原语或阶段名称，不在任何原语中时返回null
+     */
+    public static String currentPrimitive() {
+        Scope scope = stack.get().peek();
+        return (scope == null) ? null : scope.name;
+    }
+
+    /**
+     * 记录交换时读写线程分配的字节数，计入当前所在的原语或阶段
+     */
+    public static void recordHelperAllocation(long bytes) {
+        Scope scope = stack.get().peek();
+        if (scope != null)
+            scope.helperAllocated += bytes;
+    }
+
+    /**
+     * 记录一轮交换
+     *
+     * @param elements      发送的元素个数
+     * @param bytesSent     发送的字节数
+     * @param bytesReceived 接收的字节数
+     * @param exchangeNanos 交换的耗时，含发送、接收和等待对方
+     */
+    public static void recordExchange(int elements, long bytesSent, long bytesReceived, long exchangeNanos) {
+        Scope scope = stack.get().peek();
+        if (scope == null)
+            return;
+
+        scope.elements += elements;
+        scope.bytes += bytesSent + bytesReceived;
+        scope.exchangeNanos += exchangeNanos;
+
+        CostNode node = scope.node;
+        if (node == null)
+            return;
+
+        node.rounds.increment();
+        node.elements.add(elements);
+        node.bytesSent.add(bytesSent);
+        node.bytesReceived.add(bytesReceived);
+        node.exchangeNanos.add(exchangeNanos);
+    }
+}
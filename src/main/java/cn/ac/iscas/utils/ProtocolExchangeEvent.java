@@ -0,0 +1,37 @@
+package cn.ac.iscas.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR事件：与对方的一轮数据交换，事件的持续时间即这轮交换的耗时，含发送、接收和等待对方。
+ * <p>
+ * 由Util中的交换函数产生，JFR未开启记录时不会被提交。
+ */
+@Name("cn.ac.iscas.ProtocolExchange")
+@Label("Protocol Exchange")
+@Category({ "SKNN", "Network" })
+@Description("One round of data exchange with the peer")
+@StackTrace(false)
+public class ProtocolExchangeEvent extends Event {
+
+    @Label("Primitive")
+    @Description("The primitive or phase which issued the exchange")
+    public String primitive;
+
+    @Label("Elements")
+    public int elements;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+}
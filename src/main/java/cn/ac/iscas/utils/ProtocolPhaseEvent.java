@@ -0,0 +1,45 @@
+package cn.ac.iscas.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR事件：协议中的一个原语或阶段，如secureComparision、locateBucket、fetchAG等。
+ * <p>
+ * 由ProtocolCostCounter.enter()产生，JFR未开启记录时不会被提交。
+ */
+@Name("cn.ac.iscas.ProtocolPhase")
+@Label("Protocol Phase")
+@Category({ "SKNN", "Protocol" })
+@Description("A primitive or phase of the secret sharing protocol")
+@StackTrace(false)
+public class ProtocolPhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Elements")
+    @Description("Number of elements sent to the peer, including nested phases")
+    public long elements;
+
+    @Label("Bytes")
+    @Description("Bytes sent and received, including nested phases")
+    @DataAmount
+    public long bytes;
+
+    @Label("Exchange Time")
+    @Description("Time spent in exchanges with the peer (sending, receiving and waiting), including nested phases")
+    @Timespan
+    public long exchangeTime;
+
+    @Label("Allocated")
+    @Description("Bytes allocated during the phase, only sampled when AllocationSampler is enabled")
+    @DataAmount
+    public long allocated;
+}
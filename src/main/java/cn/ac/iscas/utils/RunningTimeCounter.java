@@ -3,38 +3,45 @@ package cn.ac.iscas.utils;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * 计时器
+ * <p>
+ * 记录按线程区分，多个查询在不同线程中同时执行时互不影响。
+ */
 public class RunningTimeCounter {
 
     public final static String COMMUNICATION_TIME = "COMMUNICATION_TIME";
 
-    private static Map<String, Long> preTimeRecorder = new HashMap<>();
-    private static Map<String, Long> runningTimeRecorder = new HashMap<>();
+    private static ThreadLocal<Map<String, Long>> preTimeRecorder = ThreadLocal.withInitial(HashMap::new);
+    private static ThreadLocal<Map<String, Long>> runningTimeRecorder = ThreadLocal.withInitial(HashMap::new);
 
     public static void startRecord(String label) {
-        preTimeRecorder.put(label, System.currentTimeMillis());
-        runningTimeRecorder.put(label, 0L);
+        preTimeRecorder.get().put(label, System.currentTimeMillis());
+        runningTimeRecorder.get().put(label, 0L);
     }
 
     public static void updatePreviousTime(String label) {
-        preTimeRecorder.replace(label, System.currentTimeMillis());
+        preTimeRecorder.get().replace(label, System.currentTimeMillis());
     }
 
     public static void accumulate(String label) {
-        Long nowTime = System.currentTimeMillis();
-        Long preTime = preTimeRecorder.get(label);
+        Long preTime = preTimeRecorder.get().get(label);
+        if (preTime == null) // 未调用startRecord()
+            return;
 
-        Long preTotalTime = runningTimeRecorder.get(label);
-        runningTimeRecorder.replace(label, preTotalTime + (nowTime - preTime));
+        Long nowTime = System.currentTimeMillis();
+        Long preTotalTime = runningTimeRecorder.get().get(label);
+        runningTimeRecorder.get().replace(label, preTotalTime + (nowTime - preTime));
         // preTimeRecorder.replace(label, nowTime);
     }
 
     public static long get(String label) {
-        return runningTimeRecorder.get(label);
+        return runningTimeRecorder.get().get(label);
     }
 
     public static void showRunningTime() {
         System.out.println("The running time is:");
-        for (Map.Entry<String, Long> entry : runningTimeRecorder.entrySet()) {
+        for (Map.Entry<String, Long> entry : runningTimeRecorder.get().entrySet()) {
             System.out.println(entry.getKey() + " : " + entry.getValue() + " ms.");
         }
     }
@@ -0,0 +1,209 @@
+package cn.ac.iscas.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * C1/C2服务端的运行指标
+ * <p>
+ * 协议中的计数通过LongAdder无锁累加，startHttpServer()开启后，
+ * 可通过 http://127.0.0.1:port/metrics 以Prometheus文本格式获取。
+ * 使用JDK自带的HttpServer，不引入额外依赖。
+ */
+public class ServerMetrics {
+
+    // 查询耗时直方图的上界（秒）
+    private final static double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+            30, 60 };
+
+    private static class LatencyHistogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < buckets.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    private final static Map<String, LatencyHistogram> queryLatencies = new ConcurrentHashMap<>();
+
+    private final static LongAdder triplesConsumed = new LongAdder();
+    private final static LongAdder peerBytesSent = new LongAdder();
+    private final static LongAdder peerBytesReceived = new LongAdder();
+    private final static LongAdder peerRounds = new LongAdder();
+
+    private static volatile LongSupplier triplesRemaining = null;
+    private static volatile LongSupplier tuplesRemaining = null;
+    private static volatile long shareTableBytes = 0L;
+
+    private static HttpServer server = null;
+
+    /**
+     * @param mode  SKNN类型，如linear、voronoi
+     * @param nanos 查询耗时
+     */
+    public static void recordQuery(String mode, long nanos) {
+        queryLatencies.computeIfAbsent(mode, m -> new LatencyHistogram()).record(nanos);
+    }
+
+    public static void recordTriplesConsumed(int num) {
+        triplesConsumed.add(num);
+    }
+
+    public static void recordExchange(long bytesSent, long bytesReceived) {
+        peerRounds.increment();
+        peerBytesSent.add(bytesSent);
+        peerBytesReceived.add(bytesReceived);
+    }
+
+    /**
+     * 设置剩余乘法三元组数量的来源，未设置时不输出该指标。
+     */
+    public static void setTriplesRemaining(LongSupplier supplier) {
+        triplesRemaining = supplier;
+    }
+
+    /**
+     * 设置剩余随机数元组数量的来源，未设置时不输出该指标。
+     */
+    public static void setTuplesRemaining(LongSupplier supplier) {
+        tuplesRemaining = supplier;
+    }
+
+    public static void setShareTableBytes(long bytes) {
+        shareTableBytes = bytes;
+    }
+
+    /**
+     * 粗略估计一个BigInteger占用的堆内存：对象头及字段约40字节，加上int[] mag数组。
+     */
+    public static long estimateSize(BigInteger x) {
+        if (x == null)
+            return 0L;
+
+        return 40L + 16L + 4L * ((x.bitLength() + 31) / 32);
+    }
+
+    public static synchronized void startHttpServer(int port) throws IOException {
+        if (server != null)
+            return;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(Util.charset);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    public static synchronized void stopHttpServer() {
+        if (server == null)
+            return;
+
+        server.stop(0);
+        server = null;
+    }
+
+    /**
+     * @return Prometheus文本格式的全部指标
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# HELP sknn_queries_total Number of served SKNN queries.\n");
+        sb.append("# TYPE sknn_queries_total counter\n");
+        for (Map.Entry<String, LatencyHistogram> entry : queryLatencies.entrySet()) {
+            sb.append("sknn_queries_total{mode=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().count.sum()).append('\n');
+        }
+
+        sb.append("# HELP sknn_query_duration_seconds Latency of SKNN queries.\n");
+        sb.append("# TYPE sknn_query_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : queryLatencies.entrySet()) {
+            String mode = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+
+            long cumulative = 0L;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                sb.append("sknn_query_duration_seconds_bucket{mode=\"").append(mode).append("\",le=\"")
+                        .append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = histogram.count.sum();
+            sb.append("sknn_query_duration_seconds_bucket{mode=\"").append(mode).append("\",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            sb.append("sknn_query_duration_seconds_sum{mode=\"").append(mode).append("\"} ")
+                    .append(histogram.sumNanos.sum() / 1e9).append('\n');
+            sb.append("sknn_query_duration_seconds_count{mode=\"").append(mode).append("\"} ")
+                    .append(count).append('\n');
+        }
+
+        sb.append("# HELP sknn_triples_consumed_total Number of multiplication triples consumed.\n");
+        sb.append("# TYPE sknn_triples_consumed_total counter\n");
+        sb.append("sknn_triples_consumed_total ").append(triplesConsumed.sum()).append('\n');
+
+        LongSupplier remaining = triplesRemaining;
+        if (remaining != null) {
+            sb.append("# HELP sknn_triples_remaining Number of multiplication triples left.\n");
+            sb.append("# TYPE sknn_triples_remaining gauge\n");
+            sb.append("sknn_triples_remaining ").append(remaining.getAsLong()).append('\n');
+        }
+
+        remaining = tuplesRemaining;
+        if (remaining != null) {
+            sb.append("# HELP sknn_tuples_remaining Number of random number tuples left.\n");
+            sb.append("# TYPE sknn_tuples_remaining gauge\n");
+            sb.append("sknn_tuples_remaining ").append(remaining.getAsLong()).append('\n');
+        }
+
+        sb.append("# HELP sknn_peer_rounds_total Number of exchange rounds with the peer server.\n");
+        sb.append("# TYPE sknn_peer_rounds_total counter\n");
+        sb.append("sknn_peer_rounds_total ").append(peerRounds.sum()).append('\n');
+
+        sb.append("# HELP sknn_peer_bytes_total Bytes exchanged with the peer server.\n");
+        sb.append("# TYPE sknn_peer_bytes_total counter\n");
+        sb.append("sknn_peer_bytes_total{direction=\"sent\"} ").append(peerBytesSent.sum()).append('\n');
+        sb.append("sknn_peer_bytes_total{direction=\"received\"} ").append(peerBytesReceived.sum()).append('\n');
+
+        sb.append("# HELP sknn_share_table_bytes Estimated heap used by the resident share tables.\n");
+        sb.append("# TYPE sknn_share_table_bytes gauge\n");
+        sb.append("sknn_share_table_bytes ").append(shareTableBytes).append('\n');
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append("# HELP jvm_heap_used_bytes Used heap of the JVM.\n");
+        sb.append("# TYPE jvm_heap_used_bytes gauge\n");
+        sb.append("jvm_heap_used_bytes ").append(heap.getUsed()).append('\n');
+
+        return sb.toString();
+    }
+}
@@ -15,6 +15,9 @@ public class Util {
     public final static int DEFAULT_RADIX = 36;
     public static Charset charset = Charset.forName("ISO-8859-1");
 
+    // 数据按行传输，每行末尾的换行符也计入字节数
+    private final static int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
     private static Random random = new SecureRandom();
     
     public static double log2(double N) {
@@ -69,7 +72,7 @@ public class Util {
 
     public static void writeIntegers(int[] x, PrintWriter writer) {
         for (int i = 0; i < x.length; i++) {
-            writer.println(x);
+            writer.println(x[i]);
         }
         writer.flush();
     }
@@ -93,13 +96,59 @@ public class Util {
         return x;
     }
 
-    public static void writeBigIntegers(BigInteger[] x, PrintWriter writer) {
+    /**
+     * @return 写出的字节数
+     */
+    public static long writeBigIntegers(BigInteger[] x, PrintWriter writer) {
+        long bytes = 0L;
         for (int i = 0; i < x.length; i++) {
             // if (i % 1000 == 0)
             //     System.out.println(i + " ");
-            writer.println(x[i].toString(DEFAULT_RADIX));
+            String line = x[i].toString(DEFAULT_RADIX);
+            writer.println(line);
+            bytes += line.length() + LINE_SEPARATOR_LENGTH;
         }
         writer.flush();
+
+        return bytes;
+    }
+
+    /**
+     * 先传后读，适用于少量数据的交换。
+     */
+    public static BigInteger[] exchangeBigIntegersDirectly(BigInteger[] x, BufferedReader reader, PrintWriter writer)
+            throws IOException {
+
+        int num = x.length;
+        BigInteger[] y = new BigInteger[num];
+
+        ProtocolExchangeEvent event = new ProtocolExchangeEvent();
+        event.begin();
+        long timePre = System.nanoTime();
+        long bytesSent = writeBigIntegers(x, writer);
+        long bytesReceived = 0L;
+        for (int i = 0; i < num; i++) {
+            String line = reader.readLine();
+            y[i] = new BigInteger(line, DEFAULT_RADIX);
+            bytesReceived += line.length() + LINE_SEPARATOR_LENGTH;
+        }
+        ProtocolCostCounter.recordExchange(num, bytesSent, bytesReceived, System.nanoTime() - timePre);
+        ServerMetrics.recordExchange(bytesSent, bytesReceived);
+        commitExchangeEvent(event, num, bytesSent, bytesReceived);
+
+        return y;
+    }
+
+    private static void commitExchangeEvent(ProtocolExchangeEvent event, int num, long bytesSent,
+            long bytesReceived) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.primitive = ProtocolCostCounter.currentPrimitive();
+            event.elements = num;
+            event.bytesSent = bytesSent;
+            event.bytesReceived = bytesReceived;
+            event.commit();
+        }
     }
 
     public static BigInteger[] exchangeBigIntegers(BigInteger[] x, BufferedReader reader, PrintWriter writer)
@@ -118,30 +167,41 @@ public class Util {
         //     y = readBigIntegers(num, reader);
         // } else {
         y = new BigInteger[num];
+        long[] bytes = new long[2]; // 发送字节数 | 接收字节数
+        long[] allocated = new long[2]; // 写线程分配的字节数 | 读线程分配的字节数
 
         Runnable writerRunnable = new Runnable() {
             @Override
             public void run() {
-                writeBigIntegers(x, writer);
+                long allocatedPre = AllocationSampler.currentThreadAllocatedBytes();
+                bytes[0] = writeBigIntegers(x, writer);
+                allocated[0] = AllocationSampler.currentThreadAllocatedBytes() - allocatedPre;
             }
         };
 
         Runnable readerRunnable = new Runnable() {
             @Override
             public void run() {
+                long allocatedPre = AllocationSampler.currentThreadAllocatedBytes();
                 try {
                     for (int i = 0; i < num; i++) {
-                        y[i] = new BigInteger(reader.readLine(), DEFAULT_RADIX);
+                        String line = reader.readLine();
+                        y[i] = new BigInteger(line, DEFAULT_RADIX);
+                        bytes[1] += line.length() + LINE_SEPARATOR_LENGTH;
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                allocated[1] = AllocationSampler.currentThreadAllocatedBytes() - allocatedPre;
             }
         };
 
         Thread writerThread = new Thread(writerRunnable);
         Thread readerThread = new Thread(readerRunnable);
         RunningTimeCounter.updatePreviousTime(RunningTimeCounter.COMMUNICATION_TIME);
+        ProtocolExchangeEvent event = new ProtocolExchangeEvent();
+        event.begin();
+        long timePre = System.nanoTime();
         writerThread.start();
         readerThread.start();
         try {
@@ -152,6 +212,10 @@ public class Util {
         }
         // }
         RunningTimeCounter.accumulate(RunningTimeCounter.COMMUNICATION_TIME);
+        ProtocolCostCounter.recordExchange(num, bytes[0], bytes[1], System.nanoTime() - timePre);
+        ServerMetrics.recordExchange(bytes[0], bytes[1]);
+        ProtocolCostCounter.recordHelperAllocation(allocated[0] + allocated[1]);
+        commitExchangeEvent(event, num, bytes[0], bytes[1]);
 
         return y;
     }
@@ -232,6 +296,13 @@ public class Util {
     }
 
     public static BigInteger getRandomBigInteger(BigInteger bound) {
+        return getRandomBigInteger(bound, random);
+    }
+
+    /**
+     * 使用指定的随机数生成器，如ProtocolContext自带的生成器，避免多个查询争用同一个生成器
+     */
+    public static BigInteger getRandomBigInteger(BigInteger bound, Random random) {
 
         BigInteger r;
         do {
@@ -0,0 +1,77 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+
+public class AdditiveSecretSharingTest {
+
+    private final static BigInteger MOD = BigInteger.probablePrime(24, new Random(7));
+
+    @Test
+    public void multiplySUsesOneTriplePerElement() throws Exception {
+        int n = 20;
+        Random random = new Random(8);
+        BigInteger[] x = new BigInteger[n], y = new BigInteger[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = new BigInteger(MOD.bitLength() - 1, random);
+            y[i] = new BigInteger(MOD.bitLength() - 1, random);
+        }
+
+        // 三元组池恰好n个，少一个都会出错
+        List<BigInteger[]> shares = TwoParties.run(MOD, pools(n), ctx -> {
+            BigInteger[][] xy = { x.clone(), y.clone() };
+            if (!ctx.isC1()) {
+                Arrays.fill(xy[0], BigInteger.ZERO);
+                Arrays.fill(xy[1], BigInteger.ZERO);
+            }
+            BigInteger[] z = AdditiveSecretSharing.multiplyS(ctx, xy[0], xy[1]);
+            assertEquals(0, ctx.randomness.remainingMultiplicationTriples());
+            return z;
+        });
+
+        BigInteger[] z = TwoParties.reconstruct(shares, MOD);
+        for (int i = 0; i < n; i++) {
+            assertEquals(x[i].multiply(y[i]).mod(MOD), z[i]);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void multiplySFailsWhenTriplesRunOut() throws Throwable {
+        try {
+            TwoParties.run(MOD, pools(3), ctx -> {
+                BigInteger[] zeros = { BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO };
+                return AdditiveSecretSharing.multiplyS(ctx, zeros, zeros);
+            });
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * 两方各n个互不相同的乘法三元组
+     */
+    private static CorrelatedRandomness[] pools(int n) {
+        MultiplicationTriple[][] triples = new MultiplicationTriple[2][n];
+        for (int i = 0; i < n; i++) {
+            MultiplicationTriple[] pair = AdditiveSecretSharing.generateMultiplicationTriples(MOD);
+            triples[0][i] = pair[0];
+            triples[1][i] = pair[1];
+        }
+
+        CorrelatedRandomness[] randomness = new CorrelatedRandomness[2];
+        for (int i = 0; i < 2; i++) {
+            randomness[i] = CorrelatedRandomness.pooled(CorrelatedRandomness.fixed(triples[i][0], null), triples[i],
+                    CorrelatedRandomness.Cursor.of(n));
+        }
+        return randomness;
+    }
+}
@@ -0,0 +1,119 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cn.ac.iscas.utils.ProtocolCostCounter;
+
+public class AsyncProtocolTest {
+
+    private final static BigInteger MOD = BigInteger.probablePrime(24, new Random(1));
+
+    @Test
+    public void wrappersComputeAndRecordUnderPrimitiveNames() throws Exception {
+        BigInteger[] a = { BigInteger.valueOf(3), BigInteger.valueOf(7), BigInteger.valueOf(100) };
+        BigInteger[] b = { BigInteger.valueOf(5), BigInteger.valueOf(7), BigInteger.valueOf(9) };
+        BigInteger[][] as = split(a), bs = split(b);
+
+        List<BigInteger[][]> outputs = TwoParties.run(MOD, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            ProtocolCostCounter.CostNode root = ctx.startQuery("query");
+
+            AsyncProtocol async = ctx.async();
+            CompletableFuture<BigInteger[]> product = async.multiplyS(as[party], bs[party]);
+            CompletableFuture<BigInteger[]> opened = async.recover(as[party]);
+            CompletableFuture<BigInteger[]> less = async.secureComparision(as[party], bs[party]);
+            CompletableFuture<BigInteger[]> equal = async.secureEqual(as[party], bs[party]);
+            CompletableFuture<BigInteger[]> chain = async.secureProduct(new BigInteger[][] { as[party] });
+
+            // 只有一条通道时在提交时直接执行
+            assertTrue(product.isDone());
+
+            BigInteger[][] results = { AsyncProtocol.await(product), AsyncProtocol.await(opened),
+                    AsyncProtocol.await(less), AsyncProtocol.await(equal), AsyncProtocol.await(chain) };
+            ctx.finishQuery();
+            async.close();
+
+            List<String> names = new ArrayList<>();
+            for (ProtocolCostCounter.CostNode child : root.getChildren()) {
+                names.add(child.name);
+            }
+            assertEquals(List.of("multiplyS", "recover", "secureComparision", "secureEqual", "secureProduct"),
+                    names);
+
+            return results;
+        });
+
+        BigInteger[][] c1 = outputs.get(0), c2 = outputs.get(1);
+        assertArrayEquals(new BigInteger[] { BigInteger.valueOf(15), BigInteger.valueOf(49), BigInteger.valueOf(900) },
+                TwoParties.reconstruct(List.of(c1[0], c2[0]), MOD));
+        assertArrayEquals(a, c1[1]);
+        assertArrayEquals(new BigInteger[] { BigInteger.ONE, BigInteger.ZERO, BigInteger.ZERO },
+                TwoParties.reconstruct(List.of(c1[2], c2[2]), MOD));
+        assertArrayEquals(new BigInteger[] { BigInteger.ZERO, BigInteger.ONE, BigInteger.ZERO },
+                TwoParties.reconstruct(List.of(c1[3], c2[3]), MOD));
+        assertArrayEquals(new BigInteger[] { BigInteger.valueOf(2100) },
+                TwoParties.reconstruct(List.of(c1[4], c2[4]), MOD));
+    }
+
+    @Test
+    public void lanesRunConcurrently() throws Exception {
+        BigInteger[] a = { BigInteger.valueOf(3), BigInteger.valueOf(4) };
+        BigInteger[] b = { BigInteger.valueOf(5), BigInteger.valueOf(6) };
+        BigInteger[][] as = split(a), bs = split(b);
+
+        List<BigInteger[][]> outputs = TwoParties.run(MOD, 2, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            AsyncProtocol async = ctx.async();
+            assertEquals(2, async.getLaneNumber());
+
+            // 第一个子协议要等第二个子协议完成后才继续，串行执行时会一直等待
+            CountDownLatch second = new CountDownLatch(1);
+            CompletableFuture<BigInteger[]> first = async.submit("first", lane -> {
+                try {
+                    if (!second.await(10, TimeUnit.SECONDS))
+                        throw new InterruptedIOException("lanes are not concurrent");
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return AdditiveSecretSharing.multiplyS(lane, as[party], bs[party]);
+            });
+            CompletableFuture<BigInteger[]> other = async.submit("second", lane -> {
+                BigInteger[] z = AdditiveSecretSharing.multiplyS(lane, bs[party], bs[party]);
+                second.countDown();
+                return z;
+            });
+
+            return new BigInteger[][] { AsyncProtocol.await(first), AsyncProtocol.await(other) };
+        });
+
+        BigInteger[][] c1 = outputs.get(0), c2 = outputs.get(1);
+        assertArrayEquals(new BigInteger[] { BigInteger.valueOf(15), BigInteger.valueOf(24) },
+                TwoParties.reconstruct(List.of(c1[0], c2[0]), MOD));
+        assertArrayEquals(new BigInteger[] { BigInteger.valueOf(25), BigInteger.valueOf(36) },
+                TwoParties.reconstruct(List.of(c1[1], c2[1]), MOD));
+    }
+
+    private static BigInteger[][] split(BigInteger[] x) {
+        BigInteger[][] shares = new BigInteger[2][x.length];
+        for (int i = 0; i < x.length; i++) {
+            BigInteger[] t = AdditiveSecretSharing.randomSplit(x[i], MOD);
+            shares[0][i] = t[0];
+            shares[1][i] = t[1];
+        }
+
+        return shares;
+    }
+}
@@ -0,0 +1,136 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.ComparisonKey;
+
+public class DCFTest {
+
+    private final static BigInteger MOD = BigInteger.probablePrime(20, new Random(2));
+
+    @Test
+    public void sharesSumToBetaBelowAlpha() {
+        Random random = new Random(3);
+        BigInteger beta = BigInteger.valueOf(12345);
+        BigInteger[] alphas = { BigInteger.ZERO, BigInteger.ONE, MOD.shiftRight(1), MOD.subtract(BigInteger.ONE),
+                new BigInteger(MOD.bitLength() - 1, random) };
+
+        for (BigInteger alpha : alphas) {
+            DCF.Key[] keys = DCF.generate(alpha, MOD.bitLength(), beta, MOD, random);
+
+            // alpha两侧以及定义域两端
+            BigInteger[] xs = { BigInteger.ZERO, alpha.subtract(BigInteger.ONE), alpha, alpha.add(BigInteger.ONE),
+                    MOD.subtract(BigInteger.ONE) };
+            for (BigInteger x : xs) {
+                if (x.signum() < 0 || x.compareTo(MOD) >= 0)
+                    continue;
+
+                BigInteger sum = DCF.evaluate(false, keys[0], x, MOD).add(DCF.evaluate(true, keys[1], x, MOD))
+                        .mod(MOD);
+                assertEquals("alpha = " + alpha + ", x = " + x, x.compareTo(alpha) < 0 ? beta : BigInteger.ZERO,
+                        sum);
+            }
+        }
+    }
+
+    @Test
+    public void comparisonUsesOneKeyPerElement() throws Exception {
+        BigInteger half = MOD.shiftRight(1);
+        BigInteger[] a = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(5), half.subtract(BigInteger.ONE) };
+        BigInteger[] b = { BigInteger.ZERO, BigInteger.ZERO, BigInteger.valueOf(6), BigInteger.ZERO };
+        ComparisonKey[][] keys = AdditiveSecretSharing.generateComparisonKeys(MOD, a.length);
+        assertNotEquals(keys[0][0].r.add(keys[1][0].r).mod(MOD), keys[0][1].r.add(keys[1][1].r).mod(MOD));
+
+        CorrelatedRandomness[] randomness = new CorrelatedRandomness[2];
+        for (int i = 0; i < 2; i++) {
+            randomness[i] = CorrelatedRandomness.comparisonKeys(CorrelatedRandomness.fixed(null, null), keys[i]);
+        }
+
+        BigInteger[][] as = split(a), bs = split(b);
+        List<BigInteger[]> shares = TwoParties.run(MOD, randomness, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            return AdditiveSecretSharing.secureComparision(ctx, as[party], bs[party]);
+        });
+
+        assertArrayEquals(new BigInteger[] { BigInteger.ZERO, BigInteger.ZERO, BigInteger.ONE, BigInteger.ZERO },
+                TwoParties.reconstruct(shares, MOD));
+    }
+
+    @Test
+    public void equalityUsesOneKeyPerElement() throws Exception {
+        BigInteger last = MOD.subtract(BigInteger.ONE);
+        BigInteger[] a = { BigInteger.ZERO, BigInteger.ZERO, BigInteger.valueOf(5), BigInteger.valueOf(5), last, last };
+        BigInteger[] b = { BigInteger.ZERO, last, BigInteger.valueOf(5), BigInteger.valueOf(6), last, BigInteger.ZERO };
+        ComparisonKey[][] keys = AdditiveSecretSharing.generateEqualityKeys(MOD, a.length);
+
+        CorrelatedRandomness[] randomness = new CorrelatedRandomness[2];
+        for (int i = 0; i < 2; i++) {
+            randomness[i] = CorrelatedRandomness.equalityKeys(CorrelatedRandomness.fixed(null, null), keys[i]);
+        }
+
+        // 有等值比较密钥时secureEqual改用secureEqualFSS，密钥恰好用完
+        BigInteger[][] as = split(a), bs = split(b);
+        List<BigInteger[]> shares = TwoParties.run(MOD, randomness, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            BigInteger[] head = AdditiveSecretSharing.secureEqual(ctx, Arrays.copyOf(as[party], 2),
+                    Arrays.copyOf(bs[party], 2));
+            BigInteger[] tail = AdditiveSecretSharing.secureEqualFSS(ctx,
+                    Arrays.copyOfRange(as[party], 2, a.length), Arrays.copyOfRange(bs[party], 2, b.length));
+            BigInteger[] result = Arrays.copyOf(head, a.length);
+            System.arraycopy(tail, 0, result, 2, tail.length);
+            return result;
+        });
+
+        assertArrayEquals(new BigInteger[] { BigInteger.ONE, BigInteger.ZERO, BigInteger.ONE, BigInteger.ZERO,
+                BigInteger.ONE, BigInteger.ZERO }, TwoParties.reconstruct(shares, MOD));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void equalityKeysAreNotReused() throws Throwable {
+        ComparisonKey[][] keys = AdditiveSecretSharing.generateEqualityKeys(MOD, 1);
+        CorrelatedRandomness[] randomness = new CorrelatedRandomness[2];
+        for (int i = 0; i < 2; i++) {
+            randomness[i] = CorrelatedRandomness.equalityKeys(CorrelatedRandomness.fixed(null, null), keys[i]);
+        }
+
+        try {
+            TwoParties.run(MOD, randomness, ctx -> {
+                BigInteger[] zeros = { BigInteger.ZERO, BigInteger.ZERO };
+                return AdditiveSecretSharing.secureEqualFSS(ctx, zeros, zeros);
+            });
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void keysAreNotReused() {
+        ComparisonKey[][] keys = AdditiveSecretSharing.generateComparisonKeys(MOD, 3);
+        CorrelatedRandomness randomness = CorrelatedRandomness.comparisonKeys(CorrelatedRandomness.fixed(null, null),
+                keys[0]);
+
+        randomness.nextComparisonKeys(2);
+        randomness.nextComparisonKeys(2);
+    }
+
+    private static BigInteger[][] split(BigInteger[] x) {
+        BigInteger[][] shares = new BigInteger[2][x.length];
+        for (int i = 0; i < x.length; i++) {
+            BigInteger[] t = AdditiveSecretSharing.randomSplit(x[i], MOD);
+            shares[0][i] = t[0];
+            shares[1][i] = t[1];
+        }
+
+        return shares;
+    }
+}
@@ -0,0 +1,52 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+
+public class MultiplicationTriplesTest {
+
+    @Test
+    public void seedAndPackedReconstructProducts() {
+        // 分别覆盖一个long能放下的情形和需要多个分块的情形
+        for (int l : new int[] { 20, 70 }) {
+            BigInteger mod = BigInteger.probablePrime(l, new Random(l));
+            MultiplicationTriples[] batches = MultiplicationTriples.generate(mod, 50);
+            assertNull(batches[0].getPacked());
+
+            // 经过序列化，C1只有种子，C2还有[c]_2
+            MultiplicationTriples c1 = roundTrip(batches[0]);
+            MultiplicationTriples c2 = roundTrip(batches[1]);
+
+            MultiplicationTriple[] shares1 = c1.get(0, c1.size, mod);
+            MultiplicationTriple[] shares2 = c2.get(0, c2.size, mod);
+            for (int i = 0; i < c1.size; i++) {
+                BigInteger a = shares1[i].ai.add(shares2[i].ai).mod(mod);
+                BigInteger b = shares1[i].bi.add(shares2[i].bi).mod(mod);
+                assertEquals(a.multiply(b).mod(mod), shares1[i].ci.add(shares2[i].ci).mod(mod));
+            }
+            // 各三元组的密钥流互不相同
+            assertNotEquals(shares1[0].ai, shares1[1].ai);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void triplesAreNotReused() {
+        BigInteger mod = BigInteger.probablePrime(20, new Random(9));
+        MultiplicationTriples c1 = MultiplicationTriples.generate(mod, 4)[0];
+
+        c1.get(2, 3, mod);
+    }
+
+    private static MultiplicationTriples roundTrip(MultiplicationTriples triples) {
+        return AdditiveSecretSharing
+                .parseJsonToMultiplicationTriples(AdditiveSecretSharing.parseMultiplicationTriplesToJson(triples));
+    }
+}
@@ -0,0 +1,67 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.MultiplicationTriple;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+
+public class OTPreprocessingTest {
+
+    private final static BigInteger MOD = BigInteger.probablePrime(24, new Random(4));
+
+    @Test
+    public void triplesSatisfyProduct() throws Exception {
+        List<MultiplicationTriple[]> triples = TwoParties.run(MOD,
+                ctx -> new OTPreprocessing(ctx).generateMultiplicationTriples(200));
+
+        for (int i = 0; i < 200; i++) {
+            MultiplicationTriple c1 = triples.get(0)[i], c2 = triples.get(1)[i];
+            BigInteger a = c1.ai.add(c2.ai).mod(MOD);
+            BigInteger b = c1.bi.add(c2.bi).mod(MOD);
+            assertEquals(a.multiply(b).mod(MOD), c1.ci.add(c2.ci).mod(MOD));
+        }
+    }
+
+    @Test
+    public void tuplesAreBitDecompositionsBelowMod() throws Exception {
+        List<RandomNumberTuple[]> tuples = TwoParties.run(MOD,
+                ctx -> new OTPreprocessing(ctx).generateRandomNumberTuples(100));
+
+        for (int i = 0; i < 100; i++) {
+            RandomNumberTuple c1 = tuples.get(0)[i], c2 = tuples.get(1)[i];
+            BigInteger r = c1.r.add(c2.r).mod(MOD);
+            BigInteger bits = BigInteger.ZERO;
+            for (int j = 0; j < c1.l; j++) {
+                BigInteger bit = c1.rBinary[j].add(c2.rBinary[j]).mod(MOD);
+                assertTrue(bit.compareTo(BigInteger.ONE) <= 0);
+                bits = bits.add(bit.shiftLeft(j));
+            }
+            // 被拒绝的 r >= p 不会留下
+            assertEquals(r, bits);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void preprocessedTriplesAreNotReused() throws Throwable {
+        try {
+            TwoParties.run(MOD, ctx -> {
+                CorrelatedRandomness randomness = OTPreprocessing.preprocess(ctx, ctx.randomness, 4, 1)[0];
+                assertEquals(4 * 2 * MOD.bitLength(), randomness.remainingMultiplicationTriples());
+                for (int i = 0; i <= 4 * 2 * MOD.bitLength(); i++) {
+                    randomness.nextMultiplicationTriple();
+                }
+                return null;
+            });
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.RandomNumberTuple;
+
+public class RandomNumberTuplesTest {
+
+    @Test
+    public void seedAndLimbsReconstructBitDecomposition() {
+        // 分别覆盖只用long运算的情形和超过62位的情形
+        for (int l : new int[] { 20, 70 }) {
+            BigInteger mod = BigInteger.probablePrime(l, new Random(l));
+            RandomNumberTuples[] batches = RandomNumberTuples.generate(l, mod, 50);
+            assertNotNull(batches[0].seed);
+            assertNull(batches[1].seed);
+
+            // 经过序列化，C1由种子展开，C2由Base64还原分块
+            RandomNumberTuples c1 = AdditiveSecretSharing
+                    .parseJsonToRandomNumberTuples(AdditiveSecretSharing.parseRandomNumberTuplesToJson(batches[0]));
+            RandomNumberTuples c2 = AdditiveSecretSharing
+                    .parseJsonToRandomNumberTuples(AdditiveSecretSharing.parseRandomNumberTuplesToJson(batches[1]));
+
+            RandomNumberTuple[] shares1 = c1.get(0, c1.size, mod);
+            RandomNumberTuple[] shares2 = c2.get(0, c2.size, mod);
+            for (int i = 0; i < c1.size; i++) {
+                assertValid(shares1[i], shares2[i], mod);
+            }
+        }
+    }
+
+    @Test
+    public void ofKeepsTuples() {
+        BigInteger mod = BigInteger.probablePrime(24, new Random(5));
+        int l = mod.bitLength();
+        RandomNumberTuple[][] tuples = new RandomNumberTuple[2][10];
+        for (int i = 0; i < 10; i++) {
+            RandomNumberTuple[] pair = AdditiveSecretSharing.generateRandomNumberTuples(l, mod);
+            tuples[0][i] = pair[0];
+            tuples[1][i] = pair[1];
+        }
+
+        RandomNumberTuples c1 = RandomNumberTuples.of(tuples[0], mod);
+        RandomNumberTuples c2 = RandomNumberTuples.of(tuples[1], mod);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(tuples[0][i].r, c1.get(i, mod).r);
+            assertValid(c1.get(i, mod), c2.get(i, mod), mod);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tuplesAreNotReused() {
+        BigInteger mod = BigInteger.probablePrime(20, new Random(6));
+        RandomNumberTuples c2 = RandomNumberTuples.generate(mod.bitLength(), mod, 4)[1];
+
+        c2.get(2, 3, mod);
+    }
+
+    /*
+     * 两方的r之和在[0, p)中，各比特之和为0或1，且正是r的二进制表示
+     */
+    private static void assertValid(RandomNumberTuple c1, RandomNumberTuple c2, BigInteger mod) {
+        BigInteger r = c1.r.add(c2.r).mod(mod);
+        BigInteger bits = BigInteger.ZERO;
+        for (int j = 0; j < c1.l; j++) {
+            BigInteger bit = c1.rBinary[j].add(c2.rBinary[j]).mod(mod);
+            assertTrue("bit " + j + " = " + bit, bit.compareTo(BigInteger.ONE) <= 0);
+            bits = bits.add(bit.shiftLeft(j));
+        }
+
+        assertEquals(r, bits);
+    }
+}
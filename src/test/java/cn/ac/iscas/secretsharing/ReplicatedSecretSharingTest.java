@@ -0,0 +1,125 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing.Share;
+import cn.ac.iscas.utils.Util;
+
+public class ReplicatedSecretSharingTest {
+
+    // randomBits要求p = 3 mod 4
+    private final static BigInteger MOD = blumPrime(40, new Random(51));
+
+    private final static int N = 40;
+
+    @Test
+    public void multiplyMatchesPlaintext() throws Exception {
+        Random random = new Random(52);
+        BigInteger[] x = new BigInteger[N], y = new BigInteger[N];
+        for (int i = 0; i < N; i++) {
+            x[i] = Util.getRandomBigInteger(MOD, random);
+            y[i] = Util.getRandomBigInteger(MOD, random);
+        }
+        x[0] = BigInteger.ZERO;
+        y[1] = MOD.subtract(BigInteger.ONE);
+
+        BigInteger[] xy = run(x, y, (ctx, a, b) -> ReplicatedSecretSharing.multiplyS(ctx, a, b), random);
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, x[i].multiply(y[i]).mod(MOD), xy[i]);
+        }
+    }
+
+    @Test
+    public void comparisonMatchesPlaintext() throws Exception {
+        Random random = new Random(53);
+        BigInteger[][] ab = pairs(random);
+
+        BigInteger[] lt = run(ab[0], ab[1], (ctx, a, b) -> ReplicatedSecretSharing.secureComparision(ctx, a, b),
+                random);
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, bool(ab[0][i].compareTo(ab[1][i]) < 0), lt[i]);
+        }
+    }
+
+    @Test
+    public void equalMatchesPlaintext() throws Exception {
+        Random random = new Random(54);
+        BigInteger[][] ab = pairs(random);
+
+        BigInteger[] eq = run(ab[0], ab[1], (ctx, a, b) -> ReplicatedSecretSharing.secureEqual(ctx, a, b), random);
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, bool(ab[0][i].equals(ab[1][i])), eq[i]);
+        }
+    }
+
+    @Test
+    public void randomBitsAreBits() throws Exception {
+        int n = 200;
+        List<Share[]> shares = ThreeParties.run(MOD, ctx -> ReplicatedSecretSharing.randomBits(ctx, n));
+
+        int ones = 0;
+        for (BigInteger bit : ThreeParties.reconstruct(shares, MOD)) {
+            assertTrue("bit = " + bit, bit.equals(BigInteger.ZERO) || bit.equals(BigInteger.ONE));
+            ones += bit.intValue();
+        }
+        // 均匀的比特，偏离n/2超过6个标准差的概率可以忽略
+        assertTrue("ones = " + ones, Math.abs(ones - n / 2) < 6 * Math.sqrt(n) / 2);
+    }
+
+    @FunctionalInterface
+    private interface Gate {
+        Share[] apply(ReplicatedContext ctx, Share[] a, Share[] b) throws Exception;
+    }
+
+    /*
+     * 三方各持有x、y的复制分享，计算后恢复结果
+     */
+    private static BigInteger[] run(BigInteger[] x, BigInteger[] y, Gate gate, Random random) throws Exception {
+        Share[][] xs = ThreeParties.split(x, MOD, random), ys = ThreeParties.split(y, MOD, random);
+        List<Share[]> shares = ThreeParties.run(MOD, ctx -> gate.apply(ctx, xs[ctx.party], ys[ctx.party]));
+
+        return ThreeParties.reconstruct(shares, MOD);
+    }
+
+    /*
+     * N对小于p/2的数，其中每隔几对令b = a或b = a + 1，覆盖相等和相邻的情形
+     */
+    private static BigInteger[][] pairs(Random random) {
+        int bits = MOD.bitLength() - 2;
+        BigInteger[][] ab = new BigInteger[2][N];
+        for (int i = 0; i < N; i++) {
+            ab[0][i] = new BigInteger(bits, random);
+            if (i % 4 == 0)
+                ab[1][i] = ab[0][i];
+            else if (i % 4 == 1)
+                ab[1][i] = ab[0][i].add(BigInteger.ONE);
+            else
+                ab[1][i] = new BigInteger(bits, random);
+        }
+        // 边界值
+        ab[0][2] = BigInteger.ZERO;
+        ab[1][3] = BigInteger.ZERO;
+
+        return ab;
+    }
+
+    private static BigInteger blumPrime(int bits, Random random) {
+        BigInteger p;
+        do {
+            p = BigInteger.probablePrime(bits, random);
+        } while (!p.testBit(1));
+
+        return p;
+    }
+
+    private static BigInteger bool(boolean b) {
+        return b ? BigInteger.ONE : BigInteger.ZERO;
+    }
+}
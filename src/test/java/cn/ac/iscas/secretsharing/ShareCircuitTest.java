@@ -0,0 +1,120 @@
+package cn.ac.iscas.secretsharing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ShareCircuitTest {
+
+    // 足够长，lessThan(a, b, width)才不会退化为完整的比较
+    private final static BigInteger MOD = BigInteger.probablePrime(64, new Random(11));
+
+    private final static int WIDTH = 16;
+
+    // 超过DIRECT_EXCHANGE_LIMIT，交换经过读写线程
+    private final static int N = 40;
+
+    @Test
+    public void lessThanMatchesPlaintext() throws Exception {
+        BigInteger[][] ab = pairs(MOD.bitLength() - 2, new Random(12));
+
+        BigInteger[] lt = run(ab, (circuit, a, b) -> circuit.lessThan(a, b));
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, bool(ab[0][i].compareTo(ab[1][i]) < 0), lt[i]);
+        }
+    }
+
+    @Test
+    public void shortLessThanMatchesPlaintext() throws Exception {
+        BigInteger[][] ab = pairs(WIDTH, new Random(13));
+
+        BigInteger[] lt = run(ab, (circuit, a, b) -> circuit.lessThan(a, b, WIDTH));
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, bool(ab[0][i].compareTo(ab[1][i]) < 0), lt[i]);
+        }
+    }
+
+    @Test
+    public void equalMatchesPlaintext() throws Exception {
+        BigInteger[][] ab = pairs(MOD.bitLength() - 2, new Random(14));
+
+        BigInteger[] eq = run(ab, (circuit, a, b) -> circuit.equal(a, b));
+        for (int i = 0; i < N; i++) {
+            assertEquals("i = " + i, bool(ab[0][i].equals(ab[1][i])), eq[i]);
+        }
+    }
+
+    @Test
+    public void truncateRoundsDownOrUp() throws Exception {
+        int bits = 30, shift = 12;
+        BigInteger[][] ab = pairs(bits, new Random(15));
+
+        BigInteger[] t = run(ab, (circuit, a, b) -> circuit.truncate(a, bits, shift));
+        for (int i = 0; i < N; i++) {
+            BigInteger floor = ab[0][i].shiftRight(shift);
+            assertTrue("i = " + i + ", t = " + t[i],
+                    t[i].equals(floor) || t[i].equals(floor.add(BigInteger.ONE)));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Gate {
+        ShareCircuit.Value[] apply(ShareCircuit circuit, ShareCircuit.Value[] a, ShareCircuit.Value[] b);
+    }
+
+    /*
+     * 两方各持有a、b的一份随机分享，计算后恢复结果
+     */
+    private static BigInteger[] run(BigInteger[][] ab, Gate gate) throws Exception {
+        BigInteger[][] as = split(ab[0]), bs = split(ab[1]);
+        List<BigInteger[]> shares = TwoParties.run(MOD, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            ShareCircuit circuit = new ShareCircuit(ctx);
+            return circuit.shares(gate.apply(circuit, circuit.secrets(as[party]), circuit.secrets(bs[party])));
+        });
+
+        return TwoParties.reconstruct(shares, MOD);
+    }
+
+    /*
+     * N对bits位的随机数，其中每隔几对令b = a或b = a + 1，覆盖相等和相邻的情形
+     */
+    private static BigInteger[][] pairs(int bits, Random random) {
+        BigInteger[][] ab = new BigInteger[2][N];
+        for (int i = 0; i < N; i++) {
+            ab[0][i] = new BigInteger(bits - 1, random);
+            if (i % 4 == 0)
+                ab[1][i] = ab[0][i];
+            else if (i % 4 == 1)
+                ab[1][i] = ab[0][i].add(BigInteger.ONE);
+            else
+                ab[1][i] = new BigInteger(bits - 1, random);
+        }
+        // 边界值
+        ab[0][2] = BigInteger.ZERO;
+        ab[1][3] = BigInteger.ZERO;
+        ab[0][6] = BigInteger.ONE.shiftLeft(bits - 1).subtract(BigInteger.ONE);
+
+        return ab;
+    }
+
+    private static BigInteger[][] split(BigInteger[] x) {
+        BigInteger[][] shares = new BigInteger[2][x.length];
+        for (int i = 0; i < x.length; i++) {
+            BigInteger[] t = AdditiveSecretSharing.randomSplit(x[i], MOD);
+            shares[0][i] = t[0];
+            shares[1][i] = t[1];
+        }
+
+        return shares;
+    }
+
+    private static BigInteger bool(boolean b) {
+        return b ? BigInteger.ONE : BigInteger.ZERO;
+    }
+}
@@ -0,0 +1,104 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import cn.ac.iscas.secretsharing.ReplicatedSecretSharing.Share;
+
+/**
+ * 测试用：在本机的三对socket上同时执行S1、S2、S3三方的复制秘密分享协议，三方连成与ReplicatedContext相同的环
+ */
+class ThreeParties {
+
+    private final static long TIMEOUT_SECONDS = 60;
+
+    @FunctionalInterface
+    interface Party<T> {
+        T run(ReplicatedContext ctx) throws Exception;
+    }
+
+    /**
+     * @return 三方的结果，第i个为第i方的
+     */
+    static <T> List<T> run(BigInteger mod, Party<T> party) throws Exception {
+        int parties = ReplicatedContext.PARTIES;
+        ExecutorService executor = Executors.newFixedThreadPool(parties);
+        // 第i个socket由第i - 1方监听，第i方连接后只向其发送
+        ServerSocket[] serverSockets = new ServerSocket[parties];
+        try {
+            for (int i = 0; i < parties; i++) {
+                serverSockets[i] = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            }
+
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < parties; i++) {
+                int id = i;
+                futures.add(executor.submit(() -> {
+                    try (Socket prev = new Socket(InetAddress.getLoopbackAddress(),
+                            serverSockets[id].getLocalPort());
+                            Socket next = serverSockets[(id + 1) % parties].accept()) {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(next.getInputStream()));
+                        PrintWriter writer = new PrintWriter(prev.getOutputStream());
+                        return party.run(new ReplicatedContext(id, mod, reader, writer));
+                    }
+                }));
+            }
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            for (ServerSocket serverSocket : serverSockets) {
+                if (serverSocket != null)
+                    serverSocket.close();
+            }
+        }
+    }
+
+    /**
+     * 把每个x分享给三方，第i行为第i方的部分
+     */
+    static Share[][] split(BigInteger[] x, BigInteger mod, Random random) {
+        Share[][] shares = new Share[ReplicatedContext.PARTIES][x.length];
+        for (int i = 0; i < x.length; i++) {
+            Share[] t = ReplicatedSecretSharing.randomSplit(x[i], mod, random);
+            for (int j = 0; j < ReplicatedContext.PARTIES; j++) {
+                shares[j][i] = t[j];
+            }
+        }
+
+        return shares;
+    }
+
+    /**
+     * 由三方的部分恢复，并检查每方的第二个分量与下一方的第一个分量一致
+     */
+    static BigInteger[] reconstruct(List<Share[]> shares, BigInteger mod) {
+        int parties = ReplicatedContext.PARTIES;
+        BigInteger[] result = new BigInteger[shares.get(0).length];
+        for (int i = 0; i < result.length; i++) {
+            for (int j = 0; j < parties; j++) {
+                if (!shares.get(j)[i].b.equals(shares.get((j + 1) % parties)[i].a))
+                    throw new IllegalStateException("inconsistent shares of element " + i + " at party " + j);
+            }
+            result[i] = ReplicatedSecretSharing.recover(shares.get(0)[i], shares.get(1)[i], mod);
+        }
+
+        return result;
+    }
+}
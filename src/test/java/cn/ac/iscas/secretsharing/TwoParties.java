@@ -0,0 +1,133 @@
+package cn.ac.iscas.secretsharing;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing.PartyID;
+import cn.ac.iscas.utils.MultiplexedConnection;
+
+/**
+ * 测试用：在本机的一对socket上同时执行C1、C2两方的协议
+ */
+public class TwoParties {
+
+    private final static long TIMEOUT_SECONDS = 60;
+
+    @FunctionalInterface
+    public interface Party<T> {
+        T run(ProtocolContext ctx) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Endpoint<T> {
+        T run(PartyID partyID, Socket socket, CorrelatedRandomness randomness) throws Exception;
+    }
+
+    /**
+     * @param randomness 两方的相关随机数来源，分别给C1、C2
+     * @return 两方的结果，第0个为C1的
+     */
+    public static <T> List<T> run(BigInteger mod, CorrelatedRandomness[] randomness, Party<T> party) throws Exception {
+        return connect(randomness, (partyID, socket, r) -> party.run(context(partyID, mod, socket, r)));
+    }
+
+    /**
+     * 使用固定的乘法三元组和随机数元组
+     */
+    public static <T> List<T> run(BigInteger mod, Party<T> party) throws Exception {
+        return run(mod, fixed(mod), party);
+    }
+
+    /**
+     * 同上，另在同一连接上复用出lanes条通道，ctx.async()在这些通道上并发执行子协议（见AsyncProtocol）
+     */
+    public static <T> List<T> run(BigInteger mod, int lanes, Party<T> party) throws Exception {
+        return connect(fixed(mod), (partyID, socket, r) -> {
+            try (MultiplexedConnection connection = new MultiplexedConnection(socket)) {
+                List<MultiplexedConnection.Session> sessions = new ArrayList<>();
+                try {
+                    for (int i = 0; i <= lanes; i++) {
+                        sessions.add(connection.open("test/" + i));
+                    }
+
+                    ProtocolContext ctx = new ProtocolContext(partyID, mod, sessions.get(0).getReader(),
+                            sessions.get(0).getWriter(), r);
+                    List<ProtocolContext> laneCtxs = new ArrayList<>();
+                    for (int i = 1; i <= lanes; i++) {
+                        laneCtxs.add(ctx.fork(sessions.get(i).getReader(), sessions.get(i).getWriter()));
+                    }
+
+                    try (AsyncProtocol async = new AsyncProtocol(laneCtxs)) {
+                        ctx.setAsync(async);
+                        return party.run(ctx);
+                    }
+                } finally {
+                    for (MultiplexedConnection.Session session : sessions) {
+                        session.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private static <T> List<T> connect(CorrelatedRandomness[] randomness, Endpoint<T> endpoint) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<T> c1 = executor.submit(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    return endpoint.run(PartyID.C1, socket, randomness[0]);
+                }
+            });
+            Future<T> c2 = executor.submit(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+                    return endpoint.run(PartyID.C2, socket, randomness[1]);
+                }
+            });
+
+            return List.of(c1.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), c2.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static CorrelatedRandomness[] fixed(BigInteger mod) {
+        AdditiveSecretSharing.MultiplicationTriple[] triples = AdditiveSecretSharing.generateMultiplicationTriples(mod);
+        AdditiveSecretSharing.RandomNumberTuple[] tuples = AdditiveSecretSharing
+                .generateRandomNumberTuples(mod.bitLength(), mod);
+
+        return new CorrelatedRandomness[] { CorrelatedRandomness.fixed(triples[0], tuples[0]),
+                CorrelatedRandomness.fixed(triples[1], tuples[1]) };
+    }
+
+    /**
+     * 两方的分享之和
+     */
+    public static BigInteger[] reconstruct(List<BigInteger[]> shares, BigInteger mod) {
+        BigInteger[] c1 = shares.get(0), c2 = shares.get(1);
+        BigInteger[] result = new BigInteger[c1.length];
+        for (int i = 0; i < c1.length; i++) {
+            result[i] = c1[i].add(c2[i]).mod(mod);
+        }
+
+        return result;
+    }
+
+    private static ProtocolContext context(PartyID partyID, BigInteger mod, Socket socket,
+            CorrelatedRandomness randomness) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter writer = new PrintWriter(socket.getOutputStream());
+
+        return new ProtocolContext(partyID, mod, reader, writer, randomness);
+    }
+}
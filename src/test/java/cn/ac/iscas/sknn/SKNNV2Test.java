@@ -0,0 +1,360 @@
+package cn.ac.iscas.sknn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cn.ac.iscas.TestSKNNV2;
+import cn.ac.iscas.secretsharing.AdditiveSecretSharing;
+import cn.ac.iscas.secretsharing.ProtocolContext;
+import cn.ac.iscas.secretsharing.TwoParties;
+import cn.ac.iscas.sknn.SKNNV2.AG;
+import cn.ac.iscas.sknn.SKNNV2.IVFIndex;
+import cn.ac.iscas.sknn.SKNNV2.KDTree;
+import cn.ac.iscas.sknn.SKNNV2.LSHTables;
+import cn.ac.iscas.sknn.SKNNV2.MortonLayout;
+import cn.ac.iscas.sknn.SKNNV2.PQIndex;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.sknn.SKNNV2.VG;
+import cn.ac.iscas.sknn.SKNNV2.VGGroup;
+
+public class SKNNV2Test {
+
+    private final static int DATA_LENGTH = 6;
+
+    // 2 * dataLength + log_2(m) + 2，m <= 4，同TestSKNNV2.user()
+    private final static BigInteger MOD = BigInteger.probablePrime(DATA_LENGTH * 2 + 4, new Random(31));
+
+    // 留出统计安全参数，截断距离和PQ的短位宽比较才不会退化为完整的比较
+    private final static BigInteger WIDE_MOD = BigInteger.probablePrime(
+            DATA_LENGTH * 2 + 4 + AdditiveSecretSharing.STATISTICAL_SECURITY, new Random(32));
+
+    private final static BigInteger[] LOW = { BigInteger.ZERO, BigInteger.ZERO };
+    private final static BigInteger[] HIGH = { BigInteger.ONE.shiftLeft(DATA_LENGTH),
+            BigInteger.ONE.shiftLeft(DATA_LENGTH) };
+
+    private final static int K = 3;
+    private final static int QUERIES = 8;
+
+    @Test
+    public void voronoiBreaksTiesWithoutRepeatingPoints() throws Exception {
+        // q的周围有5个距离相同的点（其中两个重合），其余的点都更远，前5近邻全部并列
+        BigInteger[] q = { BigInteger.valueOf(32), BigInteger.valueOf(32) };
+        BigInteger[][] dataset = tiedDataset(q, new Random(33));
+        VoronoiIndex index = VoronoiIndex.build(dataset, LOW, HIGH, 4);
+        AG[][] ags = TestSKNNV2.shareAGs(index.getAGs(), MOD);
+        VG[][] vgs = TestSKNNV2.shareVGs(index.getVGs(), MOD);
+
+        for (int k : new int[] { 3, 5, 7 }) {
+            Point[] result = query(q,
+                    (ctx, party, qi) -> SKNNV2.secureVoronoiSKNN(ctx, ags[party], vgs[party], qi, k));
+            assertKNearest(dataset, q, k, result);
+        }
+    }
+
+    @Test
+    public void voronoiLocatesBucketInGroups() throws Exception {
+        Random random = new Random(34);
+        BigInteger[][] dataset = randomDataset(2, 80, random);
+        VoronoiIndex index = VoronoiIndex.build(dataset, LOW, HIGH, 8);
+        VGGroup[] groups = IndexBuilder.groupVGs(index.getVGs());
+        assertNotNull(groups);
+
+        assertVoronoiKNearest(dataset, index, TestSKNNV2.shareVGGroups(groups, MOD), new MortonLayout[2], random);
+    }
+
+    @Test
+    public void voronoiLocatesBucketByMortonKey() throws Exception {
+        Random random = new Random(35);
+        BigInteger[][] dataset = randomDataset(2, 80, random);
+        VoronoiIndex index = VoronoiIndex.build(dataset, LOW, HIGH, 8);
+        MortonLayout layout = IndexBuilder.mortonLayout(index.getVGs());
+        assertNotNull(layout);
+
+        assertVoronoiKNearest(dataset, index, new VGGroup[2][], TestSKNNV2.shareMortonLayout(layout, MOD), random);
+    }
+
+    @Test
+    public void kdTreeRecall() throws Exception {
+        Random random = new Random(36);
+        BigInteger[][] dataset = randomDataset(4, 100, random);
+        KDTree tree = IndexBuilder.buildKDTree(dataset, 4, 4);
+        KDTree[] trees = TestSKNNV2.shareKDTree(tree, MOD);
+
+        int hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(4, random);
+            // 回溯所有层时取出全部叶节点，结果是精确的
+            Point[] exact = query(q,
+                    (ctx, party, qi) -> SKNNV2.secureKDTreeSKNN(ctx, trees[party], qi, K, tree.depth));
+            assertKNearest(dataset, q, K, exact);
+
+            Point[] result = query(q, (ctx, party, qi) -> SKNNV2.secureKDTreeSKNN(ctx, trees[party], qi, K, 1));
+            hits += hits(dataset, q, K, result);
+        }
+        assertRecall(0.5, hits);
+    }
+
+    @Test
+    public void lshRecall() throws Exception {
+        Random random = new Random(37);
+        BigInteger[][] dataset = randomDataset(4, 100, random);
+        // 只有两个桶时没有点被丢弃，多探测一个桶即取出全部的点，结果是精确的
+        LSHTables[] whole = TestSKNNV2
+                .shareLSHTables(IndexBuilder.buildLSHTables(dataset, 4, DATA_LENGTH, 1, 1, random), MOD);
+        LSHTables[] tables = TestSKNNV2
+                .shareLSHTables(IndexBuilder.buildLSHTables(dataset, 4, DATA_LENGTH, 4, 3, random), MOD);
+
+        int hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(4, random);
+            Point[] exact = query(q, (ctx, party, qi) -> SKNNV2.secureLSHSKNN(ctx, whole[party], qi, K, 1));
+            assertKNearest(dataset, q, K, exact);
+
+            Point[] result = query(q, (ctx, party, qi) -> SKNNV2.secureLSHSKNN(ctx, tables[party], qi, K, 1));
+            hits += hits(dataset, q, K, result);
+        }
+        assertRecall(0.5, hits);
+    }
+
+    @Test
+    public void ivfRecall() throws Exception {
+        Random random = new Random(38);
+        BigInteger[][] dataset = randomDataset(4, 100, random);
+        IVFIndex[] indexes = TestSKNNV2.shareIVFIndex(IndexBuilder.buildIVFIndex(dataset, 4, 6, random), MOD);
+
+        int hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(4, random);
+            // 取出所有的簇时结果是精确的
+            Point[] exact = query(q, (ctx, party, qi) -> SKNNV2.secureIVFSKNN(ctx, indexes[party], qi, K, 6));
+            assertKNearest(dataset, q, K, exact);
+
+            Point[] result = query(q, (ctx, party, qi) -> SKNNV2.secureIVFSKNN(ctx, indexes[party], qi, K, 2));
+            hits += hits(dataset, q, K, result);
+        }
+        assertRecall(0.5, hits);
+    }
+
+    @Test
+    public void pqRecall() throws Exception {
+        Random random = new Random(39);
+        BigInteger[][] dataset = randomDataset(4, 100, random);
+        PQIndex[] indexes = TestSKNNV2
+                .sharePQIndex(IndexBuilder.buildPQIndex(dataset, 4, 2, 16, 10, random), WIDE_MOD);
+
+        int hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(4, random);
+            Point[] result = query(WIDE_MOD, q,
+                    (ctx, party, qi) -> SKNNV2.securePQSKNN(ctx, indexes[party], qi, K));
+            hits += hits(dataset, q, K, result);
+        }
+        assertRecall(0.5, hits);
+    }
+
+    @Test
+    public void truncatedDistancesStayWithinTheError() throws Exception {
+        Random random = new Random(40);
+        BigInteger[][] dataset = randomDataset(4, 40, random);
+        int precision = 6;
+        // 截断去掉的低位数，见SKNNV2.truncationShift
+        int shift = WIDE_MOD.bitLength() - 2 - AdditiveSecretSharing.STATISTICAL_SECURITY - precision;
+
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(4, random);
+            Point[][] points = TestSKNNV2.sharePoints(dataset, 4, WIDE_MOD);
+            Point[] result = query(WIDE_MOD, q,
+                    (ctx, party, qi) -> SKNNV2.secureLinearSKNN(ctx, points[party], qi, K, precision));
+
+            // 选出的点与真实的第k近邻的距离之差小于2^(shift+1)
+            BigInteger bound = kthDistance(dataset, q, K).add(BigInteger.ONE.shiftLeft(shift + 1));
+            assertEquals(K, distinctIds(result).size());
+            for (Point point : result) {
+                assertTrue(distance(point.data, q).compareTo(bound) < 0);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Query {
+        Point[] run(ProtocolContext ctx, int party, BigInteger[] qi) throws Exception;
+    }
+
+    private static Point[] query(BigInteger[] q, Query query) throws Exception {
+        return query(MOD, q, query);
+    }
+
+    /*
+     * 两方各持有q的一份随机分享，执行查询后恢复结果中各点的id和数据
+     */
+    private static Point[] query(BigInteger mod, BigInteger[] q, Query query) throws Exception {
+        BigInteger[][] qs = new BigInteger[2][q.length];
+        for (int j = 0; j < q.length; j++) {
+            BigInteger[] t = AdditiveSecretSharing.randomSplit(q[j], mod);
+            qs[0][j] = t[0];
+            qs[1][j] = t[1];
+        }
+
+        List<Point[]> results = TwoParties.run(mod, ctx -> {
+            int party = ctx.isC1() ? 0 : 1;
+            return query.run(ctx, party, qs[party]);
+        });
+
+        Point[] r1 = results.get(0), r2 = results.get(1);
+        Point[] result = new Point[r1.length];
+        for (int i = 0; i < r1.length; i++) {
+            BigInteger[] data = new BigInteger[q.length];
+            for (int j = 0; j < q.length; j++) {
+                data[j] = r1[i].data[j].add(r2[i].data[j]).mod(mod);
+            }
+            result[i] = new Point(r1[i].id.add(r2[i].id).mod(mod), data);
+        }
+
+        return result;
+    }
+
+    /*
+     * 在随机的q上用给定的桶索引查询，结果都是精确的
+     */
+    private static void assertVoronoiKNearest(BigInteger[][] dataset, VoronoiIndex index, VGGroup[][] groups,
+            MortonLayout[] layouts, Random random) throws Exception {
+        AG[][] ags = TestSKNNV2.shareAGs(index.getAGs(), MOD);
+        VG[][] vgs = TestSKNNV2.shareVGs(index.getVGs(), MOD);
+
+        for (int i = 0; i < QUERIES; i++) {
+            BigInteger[] q = randomPoint(2, random);
+            Point[] result = query(q, (ctx, party, qi) -> SKNNV2.secureVoronoiSKNN(ctx, ags[party], vgs[party],
+                    groups[party], layouts[party], qi, K));
+            assertKNearest(dataset, q, K, result);
+        }
+    }
+
+    /*
+     * 结果为k个不同的点，数据与id一致，距离依次等于暴力计算的前k近邻的距离（距离相同的点可以互换）
+     */
+    private static void assertKNearest(BigInteger[][] dataset, BigInteger[] q, int k, Point[] result) {
+        Map<BigInteger, BigInteger[]> rows = new HashMap<>();
+        List<BigInteger> expected = new ArrayList<>();
+        for (BigInteger[] row : dataset) {
+            rows.put(row[q.length], row);
+            expected.add(distance(row, q));
+        }
+        expected.sort(null);
+
+        assertEquals(k, result.length);
+        List<BigInteger> ids = new ArrayList<>();
+        List<BigInteger> distances = new ArrayList<>();
+        for (Point point : result) {
+            BigInteger[] row = rows.get(point.id);
+            assertNotNull("unknown id " + point.id, row);
+            assertArrayEquals(Arrays.copyOf(row, q.length), point.data);
+            assertFalse("repeated id " + point.id, ids.contains(point.id));
+            ids.add(point.id);
+            distances.add(distance(row, q));
+        }
+        distances.sort(null);
+        assertEquals(expected.subList(0, k), distances);
+    }
+
+    /*
+     * 结果中距离不超过真实的第k近邻的不同点的个数（距离相同的点可以互换）
+     */
+    private static int hits(BigInteger[][] dataset, BigInteger[] q, int k, Point[] result) {
+        BigInteger kth = kthDistance(dataset, q, k);
+        Set<BigInteger> ids = distinctIds(result);
+
+        int hits = 0;
+        for (BigInteger[] row : dataset) {
+            if (ids.contains(row[q.length]) && distance(row, q).compareTo(kth) <= 0)
+                hits++;
+        }
+        return hits;
+    }
+
+    private static void assertRecall(double min, int hits) {
+        double recall = (double) hits / (QUERIES * K);
+        assertTrue("recall = " + recall, recall >= min);
+    }
+
+    private static Set<BigInteger> distinctIds(Point[] result) {
+        Set<BigInteger> ids = new HashSet<>();
+        for (Point point : result) {
+            ids.add(point.id);
+        }
+        return ids;
+    }
+
+    private static BigInteger kthDistance(BigInteger[][] dataset, BigInteger[] q, int k) {
+        List<BigInteger> distances = new ArrayList<>();
+        for (BigInteger[] row : dataset) {
+            distances.add(distance(row, q));
+        }
+        distances.sort(null);
+
+        return distances.get(k - 1);
+    }
+
+    /*
+     * 与q距离为3的4个点以及其中一个的重合点，其余随机点与q的距离都大于5
+     */
+    private static BigInteger[][] tiedDataset(BigInteger[] q, Random random) {
+        int[][] offsets = { { -3, 0 }, { 3, 0 }, { 0, -3 }, { 0, 3 }, { -3, 0 } };
+        List<BigInteger[]> dataset = new ArrayList<>();
+        for (int[] offset : offsets) {
+            dataset.add(new BigInteger[] { q[0].add(BigInteger.valueOf(offset[0])),
+                    q[1].add(BigInteger.valueOf(offset[1])), BigInteger.valueOf(dataset.size()) });
+        }
+        while (dataset.size() < 60) {
+            BigInteger[] row = Arrays.copyOf(randomPoint(2, random), 3);
+            row[2] = BigInteger.valueOf(dataset.size());
+            if (distance(row, q).compareTo(BigInteger.valueOf(25)) > 0)
+                dataset.add(row);
+        }
+
+        return dataset.toArray(new BigInteger[0][]);
+    }
+
+    /*
+     * 每行为前m维的数据和id，同DataProcessor.generateDataset()
+     */
+    private static BigInteger[][] randomDataset(int m, int number, Random random) {
+        BigInteger[][] dataset = new BigInteger[number][];
+        for (int i = 0; i < number; i++) {
+            dataset[i] = Arrays.copyOf(randomPoint(m, random), m + 1);
+            dataset[i][m] = BigInteger.valueOf(i);
+        }
+        return dataset;
+    }
+
+    private static BigInteger[] randomPoint(int m, Random random) {
+        BigInteger[] point = new BigInteger[m];
+        for (int j = 0; j < m; j++) {
+            point[j] = new BigInteger(DATA_LENGTH, random);
+        }
+        return point;
+    }
+
+    private static BigInteger distance(BigInteger[] p, BigInteger[] q) {
+        BigInteger sum = BigInteger.ZERO;
+        for (int j = 0; j < q.length; j++) {
+            BigInteger d = p[j].subtract(q[j]);
+            sum = sum.add(d.multiply(d));
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,183 @@
+package cn.ac.iscas.sknn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cn.ac.iscas.sknn.SKNNV2.AG;
+import cn.ac.iscas.sknn.SKNNV2.Point;
+import cn.ac.iscas.sknn.SKNNV2.VG;
+
+public class VoronoiIndexTest {
+
+    private final static int BITS = 12;
+    private final static int GRID = 4;
+    private final static int K = 5;
+
+    private final static BigInteger[] LOW = { BigInteger.ZERO, BigInteger.ZERO };
+    private final static BigInteger[] HIGH = { BigInteger.ONE.shiftLeft(BITS), BigInteger.ONE.shiftLeft(BITS) };
+
+    @Test
+    public void tablesAnswerKNearest() {
+        Random random = new Random(21);
+        List<BigInteger[]> dataset = randomPoints(200, 0, random);
+        VoronoiIndex index = VoronoiIndex.build(dataset.toArray(new BigInteger[0][]), LOW, HIGH, GRID);
+
+        for (int i = 0; i < 50; i++) {
+            assertKNearest(index.getAGs(), index.getVGs(), dataset, randomPoint(random));
+        }
+    }
+
+    @Test
+    public void updatedRowsAnswerKNearest() {
+        Random random = new Random(22);
+        List<BigInteger[]> dataset = randomPoints(200, 0, random);
+        VoronoiIndex index = VoronoiIndex.build(dataset.toArray(new BigInteger[0][]), LOW, HIGH, GRID);
+
+        // 数据拥有者手中的表只按每次返回的变化行更新
+        AG[] ags = index.getAGs();
+        VG[] vgs = index.getVGs();
+        int nextId = dataset.size();
+        for (int round = 0; round < 10; round++) {
+            List<BigInteger> deletes = new ArrayList<>();
+            for (int j = 0; j < 5; j++) {
+                deletes.add(dataset.remove(random.nextInt(dataset.size()))[2]);
+            }
+            List<BigInteger[]> inserts = randomPoints(5, nextId, random);
+            nextId += inserts.size();
+            dataset.addAll(inserts);
+
+            VoronoiIndex.Update update = index.update(inserts, deletes);
+            ags = Arrays.copyOf(ags, update.agNum);
+            for (int j = 0; j < update.agIndexes.length; j++) {
+                ags[update.agIndexes[j]] = update.ags[j];
+            }
+            for (int j = 0; j < update.vgIndexes.length; j++) {
+                vgs[update.vgIndexes[j]] = update.vgs[j];
+            }
+
+            for (int i = 0; i < 20; i++) {
+                assertKNearest(ags, vgs, dataset, randomPoint(random));
+            }
+        }
+    }
+
+    @Test
+    public void farQueryOfClusteredPoints() {
+        // 所有点都在左下角的桶中，q在对角的桶中
+        Random random = new Random(23);
+        List<BigInteger[]> dataset = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            dataset.add(new BigInteger[] { new BigInteger(BITS - 3, random), new BigInteger(BITS - 3, random),
+                    BigInteger.valueOf(i) });
+        }
+        VoronoiIndex index = VoronoiIndex.build(dataset.toArray(new BigInteger[0][]), LOW, HIGH, GRID);
+
+        assertKNearest(index.getAGs(), index.getVGs(), dataset,
+                new BigInteger[] { HIGH[0].subtract(BigInteger.ONE), HIGH[1].subtract(BigInteger.ONE) });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyDatasetIsRejected() {
+        VoronoiIndex.build(new BigInteger[0][], LOW, HIGH, GRID);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateKeepsAtLeastOnePoint() {
+        List<BigInteger[]> dataset = randomPoints(2, 0, new Random(24));
+        VoronoiIndex index = VoronoiIndex.build(dataset.toArray(new BigInteger[0][]), LOW, HIGH, GRID);
+
+        index.update(new ArrayList<>(), Arrays.asList(BigInteger.ZERO, BigInteger.ONE));
+    }
+
+    /*
+     * 按secureVoronoiSKNN的方式在明文上查询：第1近邻取自q所在的VG桶，之后每次从已选出的点的AG行中取最近的未选点，
+     * 第j次取出的点与暴力计算的第j近邻距离相同（距离相同的点可以互换）
+     */
+    private static void assertKNearest(AG[] ags, VG[] vgs, List<BigInteger[]> dataset, BigInteger[] q) {
+        List<BigInteger> expected = new ArrayList<>();
+        for (BigInteger[] row : dataset) {
+            expected.add(distance(row, q));
+        }
+        expected.sort(null);
+
+        VG bucket = null;
+        for (VG vg : vgs) {
+            if (contains(vg, q))
+                bucket = vg;
+        }
+        assertNotNull("no bucket contains q", bucket);
+
+        Map<BigInteger, Integer> labels = new HashMap<>();
+        Map<BigInteger, BigInteger[]> candidates = new HashMap<>();
+        addAll(candidates, labels, bucket.points, bucket.subLabels);
+
+        Set<BigInteger> selected = new HashSet<>();
+        Map<BigInteger, BigInteger[]> expansion = new HashMap<>();
+        for (int j = 0; j < Math.min(K, dataset.size()); j++) {
+            BigInteger nearest = null;
+            for (Map.Entry<BigInteger, BigInteger[]> candidate : candidates.entrySet()) {
+                if (!selected.contains(candidate.getKey()) && (nearest == null
+                        || distance(candidate.getValue(), q).compareTo(distance(candidates.get(nearest), q)) < 0))
+                    nearest = candidate.getKey();
+            }
+            assertNotNull("no candidate for the neighbor " + j + " of " + Arrays.toString(q), nearest);
+            assertEquals("neighbor " + j + " of " + Arrays.toString(q), expected.get(j),
+                    distance(candidates.get(nearest), q));
+
+            selected.add(nearest);
+            AG ag = ags[labels.get(nearest)];
+            addAll(expansion, labels, ag.points, ag.subLabels);
+            candidates = expansion;
+        }
+    }
+
+    private static void addAll(Map<BigInteger, BigInteger[]> candidates, Map<BigInteger, Integer> labels,
+            Point[] points, BigInteger[] subLabels) {
+        for (int i = 0; i < points.length; i++) {
+            candidates.put(points[i].id, points[i].data);
+            labels.put(points[i].id, subLabels[i].intValue());
+        }
+    }
+
+    private static boolean contains(VG vg, BigInteger[] q) {
+        for (int j = 0; j < q.length; j++) {
+            if (q[j].compareTo(vg.low.data[j]) < 0 || q[j].compareTo(vg.high.data[j]) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static BigInteger distance(BigInteger[] p, BigInteger[] q) {
+        BigInteger sum = BigInteger.ZERO;
+        for (int j = 0; j < q.length; j++) {
+            BigInteger d = p[j].subtract(q[j]);
+            sum = sum.add(d.multiply(d));
+        }
+        return sum;
+    }
+
+    private static List<BigInteger[]> randomPoints(int number, int firstId, Random random) {
+        List<BigInteger[]> points = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            BigInteger[] q = randomPoint(random);
+            points.add(new BigInteger[] { q[0], q[1], BigInteger.valueOf(firstId + i) });
+        }
+        return points;
+    }
+
+    private static BigInteger[] randomPoint(Random random) {
+        return new BigInteger[] { new BigInteger(BITS, random), new BigInteger(BITS, random) };
+    }
+}
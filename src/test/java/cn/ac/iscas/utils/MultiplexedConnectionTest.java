@@ -0,0 +1,48 @@
+package cn.ac.iscas.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class MultiplexedConnectionTest {
+
+    @Test
+    public void lateFramesOfClosedSessionAreDropped() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket socketB = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                MultiplexedConnection b = new MultiplexedConnection(socketB);
+                MultiplexedConnection a = new MultiplexedConnection(serverSocket.accept())) {
+
+            MultiplexedConnection.Session a1 = a.open("s");
+            MultiplexedConnection.Session b1 = b.open("s");
+            b1.getWriter().println("first");
+            b1.getWriter().flush();
+            assertEquals("first", a1.getReader().readLine());
+
+            // a已关闭会话后，b仍在该会话上发送
+            a1.close();
+            b1.getWriter().println("late");
+            b1.close();
+
+            // 同一连接上的帧按顺序到达，收到sync时迟到的帧已处理完
+            try (MultiplexedConnection.Session aSync = a.open("sync");
+                    MultiplexedConnection.Session bSync = b.open("sync")) {
+                bSync.getWriter().println("sync");
+                bSync.getWriter().flush();
+                assertEquals("sync", aSync.getReader().readLine());
+            }
+
+            // 同一sessionId重新开始的会话不受迟到的帧影响
+            try (MultiplexedConnection.Session a2 = a.open("s");
+                    MultiplexedConnection.Session b2 = b.open("s")) {
+                b2.getWriter().println("second");
+                b2.getWriter().flush();
+                assertEquals("second", a2.getReader().readLine());
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package cn.ac.iscas.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class UtilTest {
+
+    @Test
+    public void integersRoundTrip() throws Exception {
+        int[] x = { 0, 7, -3, Integer.MAX_VALUE };
+        StringWriter out = new StringWriter();
+        Util.writeIntegers(x, new PrintWriter(out));
+
+        // 每个元素一行，而不是数组本身
+        assertArrayEquals(x, Util.readIntegers(x.length, new BufferedReader(new StringReader(out.toString()))));
+    }
+}